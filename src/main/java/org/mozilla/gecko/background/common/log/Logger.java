@@ -5,7 +5,7 @@
 package org.mozilla.gecko.background.common.log;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -20,7 +20,16 @@ import org.mozilla.gecko.background.common.log.writers.ThreadLocalTagLogWriter;
 import android.util.Log;
 
 /**
- * Logging helper class. Serializes all log operations (by synchronizing).
+ * Logging helper class.
+ * <p>
+ * Logging does not take a lock: each call works on a snapshot of the current
+ * writers, which are replaced (copy-on-write) when writers are added or
+ * removed. Writers must therefore be thread-safe.
+ * <p>
+ * The <code>trace</code>, <code>debug</code>, and <code>info</code> methods
+ * that take a format and arguments build their message only if some writer
+ * would write it, so a call at a disabled level allocates nothing. Each
+ * <code>{}</code> in the format is replaced by the next argument.
  */
 public class Logger {
   public static final String LOGGER_TAG = "Logger";
@@ -55,15 +64,16 @@ public class Logger {
   }
 
   /**
-   * Current set of writers to which we will log.
+   * Current writers to which we will log. Never modified: replaced while
+   * holding <code>writersLock</code>.
    * <p>
    * We want logging to be available while running tests, so we initialize
-   * this set statically.
+   * this statically.
    */
-  protected final static Set<LogWriter> logWriters;
+  private static volatile LogWriter[] logWriters;
+  private static final Object writersLock = new Object();
   static {
-    final Set<LogWriter> defaultWriters = Logger.defaultLogWriters();
-    logWriters = new LinkedHashSet<LogWriter>(defaultWriters);
+    logWriters = Logger.defaultLogWriters().toArray(new LogWriter[0]);
   }
 
   /**
@@ -83,40 +93,62 @@ public class Logger {
     return defaultLogWriters;
   }
 
-  public static synchronized void startLoggingTo(LogWriter logWriter) {
-    logWriters.add(logWriter);
+  public static void startLoggingTo(LogWriter logWriter) {
+    synchronized (writersLock) {
+      final LinkedHashSet<LogWriter> writers = new LinkedHashSet<LogWriter>(Arrays.asList(logWriters));
+      writers.add(logWriter);
+      logWriters = writers.toArray(new LogWriter[0]);
+    }
   }
 
-  public static synchronized void startLoggingToWriters(Set<LogWriter> writers) {
-    logWriters.addAll(writers);
+  public static void startLoggingToWriters(Set<LogWriter> writers) {
+    synchronized (writersLock) {
+      final LinkedHashSet<LogWriter> newWriters = new LinkedHashSet<LogWriter>(Arrays.asList(logWriters));
+      newWriters.addAll(writers);
+      logWriters = newWriters.toArray(new LogWriter[0]);
+    }
   }
 
-  public static synchronized void stopLoggingTo(LogWriter logWriter) {
+  public static void stopLoggingTo(LogWriter logWriter) {
     try {
       logWriter.close();
     } catch (Exception e) {
       Log.e(LOGGER_TAG, "Got exception closing and removing LogWriter " + logWriter + ".", e);
     }
-    logWriters.remove(logWriter);
+    removeLogWriter(logWriter);
   }
 
-  public static synchronized void stopLoggingToAll() {
-    for (LogWriter logWriter : logWriters) {
+  protected static void removeLogWriter(LogWriter logWriter) {
+    synchronized (writersLock) {
+      final LinkedHashSet<LogWriter> writers = new LinkedHashSet<LogWriter>(Arrays.asList(logWriters));
+      writers.remove(logWriter);
+      logWriters = writers.toArray(new LogWriter[0]);
+    }
+  }
+
+  public static void stopLoggingToAll() {
+    final LogWriter[] writers;
+    synchronized (writersLock) {
+      writers = logWriters;
+      logWriters = new LogWriter[0];
+    }
+    for (LogWriter logWriter : writers) {
       try {
         logWriter.close();
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception closing and removing LogWriter " + logWriter + ".", e);
       }
     }
-    logWriters.clear();
   }
 
   /**
    * Write to only the default log writers.
    */
-  public static synchronized void resetLogging() {
-    stopLoggingToAll();
-    logWriters.addAll(Logger.defaultLogWriters());
+  public static void resetLogging() {
+    synchronized (writersLock) {
+      stopLoggingToAll();
+      startLoggingToWriters(Logger.defaultLogWriters());
+    }
   }
 
   /**
@@ -124,13 +156,12 @@ public class Logger {
    * <p>
    * Use <code>resetLogging</code> to stop logging to stdout.
    */
-  public static synchronized void startLoggingToConsole() {
+  public static void startLoggingToConsole() {
     setThreadLogTag("Test");
     startLoggingTo(new PrintLogWriter(new PrintWriter(System.out, true)));
   }
 
-  // Synchronized version for other classes to use.
-  public static synchronized boolean shouldLogVerbose(String logTag) {
+  public static boolean shouldLogVerbose(String logTag) {
     for (LogWriter logWriter : logWriters) {
       if (logWriter.shouldLogVerbose(logTag)) {
         return true;
@@ -139,6 +170,21 @@ public class Logger {
     return false;
   }
 
+  /**
+   * @param level
+   *          one of the <code>android.util.Log</code> levels.
+   * @return true if any writer would write a message at <code>level</code>
+   *         for <code>logTag</code>.
+   */
+  public static boolean shouldLog(String logTag, int level) {
+    for (LogWriter logWriter : logWriters) {
+      if (logWriter.shouldLog(logTag, level)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static void error(String tag, String message) {
     Logger.error(tag, message, null);
   }
@@ -165,67 +211,167 @@ public class Logger {
     }
   }
 
-  public static synchronized void error(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void info(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.INFO)) {
+      Logger.info(tag, format(format, arg), null);
+    }
+  }
+
+  public static void info(String tag, String format, long arg) {
+    if (shouldLog(tag, Log.INFO)) {
+      Logger.info(tag, format(format, Long.toString(arg)), null);
+    }
+  }
+
+  public static void info(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.INFO)) {
+      Logger.info(tag, format(format, arg1, arg2), null);
+    }
+  }
+
+  public static void info(String tag, String format, Object arg1, long arg2) {
+    if (shouldLog(tag, Log.INFO)) {
+      Logger.info(tag, format(format, arg1, Long.toString(arg2)), null);
+    }
+  }
+
+  public static void info(String tag, String format, long arg1, long arg2) {
+    if (shouldLog(tag, Log.INFO)) {
+      Logger.info(tag, format(format, Long.toString(arg1), Long.toString(arg2)), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      Logger.debug(tag, format(format, arg), null);
+    }
+  }
+
+  public static void debug(String tag, String format, long arg) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      Logger.debug(tag, format(format, Long.toString(arg)), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      Logger.debug(tag, format(format, arg1, arg2), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg1, long arg2) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      Logger.debug(tag, format(format, arg1, Long.toString(arg2)), null);
+    }
+  }
+
+  public static void debug(String tag, String format, long arg1, long arg2) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      Logger.debug(tag, format(format, Long.toString(arg1), Long.toString(arg2)), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      Logger.trace(tag, format(format, arg), null);
+    }
+  }
+
+  public static void trace(String tag, String format, long arg) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      Logger.trace(tag, format(format, Long.toString(arg)), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      Logger.trace(tag, format(format, arg1, arg2), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg1, long arg2) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      Logger.trace(tag, format(format, arg1, Long.toString(arg2)), null);
+    }
+  }
+
+  public static void trace(String tag, String format, long arg1, long arg2) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      Logger.trace(tag, format(format, Long.toString(arg1), Long.toString(arg2)), null);
+    }
+  }
+
+  /**
+   * Replace each <code>{}</code> in <code>format</code> with the next of
+   * <code>args</code>. Surplus placeholders are left as they are.
+   */
+  public static String format(String format, Object... args) {
+    final StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+    int start = 0;
+    for (Object arg : args) {
+      final int placeholder = format.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
+      }
+      sb.append(format, start, placeholder);
+      sb.append(arg);
+      start = placeholder + 2;
+    }
+    sb.append(format, start, format.length());
+    return sb.toString();
+  }
+
+  public static void error(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.error(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        removeLogWriter(writer);
       }
     }
   }
 
-  public static synchronized void warn(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void warn(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.warn(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        removeLogWriter(writer);
       }
     }
   }
 
-  public static synchronized void info(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void info(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.info(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        removeLogWriter(writer);
       }
     }
   }
 
-  public static synchronized void debug(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void debug(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.debug(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        removeLogWriter(writer);
       }
     }
   }
 
-  public static synchronized void trace(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  public static void trace(String tag, String message, Throwable error) {
+    for (LogWriter writer : logWriters) {
       try {
         writer.trace(tag, message, error);
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        removeLogWriter(writer);
       }
     }
   }
@@ -19,108 +19,85 @@ public class AndroidLevelCachingLogWriter extends LogWriter {
     this.inner = inner;
   }
 
-  // I can't believe we have to implement this ourselves.
-  // These aren't synchronized (and neither are the setters) because
-  // the logging calls themselves are synchronized.
-  private Map<String, Boolean> isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+  /**
+   * The lowest loggable level for each tag we've seen.
+   * <p>
+   * Lookups don't lock: the map is never modified once published, but
+   * replaced by a modified copy. Log tags are constants, so there are few of
+   * them and we can compare them by identity.
+   */
+  private volatile Map<String, Integer> levels = new IdentityHashMap<String, Integer>();
 
   /**
    * Empty the caches of log levels.
    */
   public void refreshLogLevels() {
-    isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-    isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-    isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-    isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-    isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+    synchronized (this) {
+      levels = new IdentityHashMap<String, Integer>();
+    }
   }
 
-  private boolean shouldLogError(String logTag) {
-    Boolean out = isErrorLoggable.get(logTag);
-    if (out != null) {
-      return out;
+  // I can't believe we have to implement this ourselves.
+  protected int getLevel(String logTag) {
+    final Integer cached = levels.get(logTag);
+    if (cached != null) {
+      return cached;
     }
-    out = Log.isLoggable(logTag, Log.ERROR);
-    isErrorLoggable.put(logTag, out);
-    return out;
-  }
 
-  private boolean shouldLogWarn(String logTag) {
-    Boolean out = isWarnLoggable.get(logTag);
-    if (out != null) {
-      return out;
+    int level = Log.VERBOSE;
+    while (level <= Log.ASSERT && !Log.isLoggable(logTag, level)) {
+      level++;
     }
-    out = Log.isLoggable(logTag, Log.WARN);
-    isWarnLoggable.put(logTag, out);
-    return out;
-  }
 
-  private boolean shouldLogInfo(String logTag) {
-    Boolean out = isInfoLoggable.get(logTag);
-    if (out != null) {
-      return out;
+    synchronized (this) {
+      final Map<String, Integer> updated = new IdentityHashMap<String, Integer>(levels);
+      updated.put(logTag, level);
+      levels = updated;
     }
-    out = Log.isLoggable(logTag, Log.INFO);
-    isInfoLoggable.put(logTag, out);
-    return out;
+    return level;
   }
 
-  private boolean shouldLogDebug(String logTag) {
-    Boolean out = isDebugLoggable.get(logTag);
-    if (out != null) {
-      return out;
-    }
-    out = Log.isLoggable(logTag, Log.DEBUG);
-    isDebugLoggable.put(logTag, out);
-    return out;
+  @Override
+  public boolean shouldLog(String logTag, int level) {
+    return level >= getLevel(logTag) && inner.shouldLog(logTag, level);
   }
 
   @Override
   public boolean shouldLogVerbose(String logTag) {
-    Boolean out = isVerboseLoggable.get(logTag);
-    if (out != null) {
-      return out;
-    }
-    out = Log.isLoggable(logTag, Log.VERBOSE);
-    isVerboseLoggable.put(logTag, out);
-    return out;
+    return Log.VERBOSE >= getLevel(logTag);
   }
 
   @Override
   public void error(String tag, String message, Throwable error) {
-    if (shouldLogError(tag)) {
+    if (Log.ERROR >= getLevel(tag)) {
       inner.error(tag, message, error);
     }
   }
 
   @Override
   public void warn(String tag, String message, Throwable error) {
-    if (shouldLogWarn(tag)) {
+    if (Log.WARN >= getLevel(tag)) {
       inner.warn(tag, message, error);
     }
   }
 
   @Override
   public void info(String tag, String message, Throwable error) {
-    if (shouldLogInfo(tag)) {
+    if (Log.INFO >= getLevel(tag)) {
       inner.info(tag, message, error);
     }
   }
 
   @Override
   public void debug(String tag, String message, Throwable error) {
-    if (shouldLogDebug(tag)) {
+    if (Log.DEBUG >= getLevel(tag)) {
       inner.debug(tag, message, error);
     }
   }
 
   @Override
   public void trace(String tag, String message, Throwable error) {
-    if (shouldLogVerbose(tag)) {
+    if (Log.VERBOSE >= getLevel(tag)) {
       inner.trace(tag, message, error);
     }
   }
@@ -0,0 +1,188 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.background.common.log.writers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Hand messages to an inner <code>LogWriter</code> on a background thread.
+ * <p>
+ * Logging threads only add a message to a fixed-size ring buffer, so they
+ * never wait on slow output such as a file. If the buffer is full, the
+ * message is dropped and counted; the writer thread reports how many were
+ * dropped once it catches up.
+ * <p>
+ * <code>close</code> writes any buffered messages before closing the inner
+ * writer.
+ */
+public class AsyncLogWriter extends LogWriter {
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final String LOG_TAG = "AsyncLogWriter";
+
+  protected static final long CLOSE_TIMEOUT_MSEC = 5000;
+
+  protected static final class Entry {
+    public final int level;
+    public final String tag;
+    public final String message;
+    public final Throwable error;
+
+    public Entry(int level, String tag, String message, Throwable error) {
+      this.level = level;
+      this.tag = tag;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  // Tells the writer thread to stop.
+  protected static final Entry CLOSE = new Entry(0, null, null, null);
+
+  protected final LogWriter inner;
+  protected final BlockingQueue<Entry> buffer;
+  protected final AtomicLong dropped = new AtomicLong(0);
+  protected final Thread thread;
+  protected volatile boolean closed = false;
+
+  public AsyncLogWriter(LogWriter inner) {
+    this(inner, DEFAULT_CAPACITY);
+  }
+
+  public AsyncLogWriter(LogWriter inner, int capacity) {
+    this.inner = inner;
+    this.buffer = new ArrayBlockingQueue<Entry>(capacity);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, LOG_TAG);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * @return the number of messages dropped because the buffer was full.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  protected void enqueue(int level, String tag, String message, Throwable error) {
+    if (closed) {
+      return;
+    }
+    if (!buffer.offer(new Entry(level, tag, message, error))) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  protected void drain() {
+    long reported = 0;
+    while (true) {
+      final Entry entry;
+      try {
+        entry = buffer.take();
+      } catch (InterruptedException e) {
+        continue;
+      }
+      if (entry != CLOSE) {
+        write(entry);
+      }
+
+      final long droppedNow = dropped.get();
+      if (droppedNow > reported && (buffer.isEmpty() || entry == CLOSE)) {
+        inner.warn(LOG_TAG, "Dropped " + (droppedNow - reported) + " log messages.", null);
+        reported = droppedNow;
+      }
+      if (entry == CLOSE) {
+        return;
+      }
+    }
+  }
+
+  protected void write(Entry entry) {
+    try {
+      switch (entry.level) {
+      case Log.ERROR:
+        inner.error(entry.tag, entry.message, entry.error);
+        break;
+      case Log.WARN:
+        inner.warn(entry.tag, entry.message, entry.error);
+        break;
+      case Log.INFO:
+        inner.info(entry.tag, entry.message, entry.error);
+        break;
+      case Log.DEBUG:
+        inner.debug(entry.tag, entry.message, entry.error);
+        break;
+      default:
+        inner.trace(entry.tag, entry.message, entry.error);
+        break;
+      }
+    } catch (Exception e) {
+      // There's nobody to tell but the platform log.
+      Log.e(LOG_TAG, "Got exception writing log message.", e);
+    }
+  }
+
+  @Override
+  public void error(String tag, String message, Throwable error) {
+    enqueue(Log.ERROR, tag, message, error);
+  }
+
+  @Override
+  public void warn(String tag, String message, Throwable error) {
+    enqueue(Log.WARN, tag, message, error);
+  }
+
+  @Override
+  public void info(String tag, String message, Throwable error) {
+    enqueue(Log.INFO, tag, message, error);
+  }
+
+  @Override
+  public void debug(String tag, String message, Throwable error) {
+    enqueue(Log.DEBUG, tag, message, error);
+  }
+
+  @Override
+  public void trace(String tag, String message, Throwable error) {
+    enqueue(Log.VERBOSE, tag, message, error);
+  }
+
+  @Override
+  public boolean shouldLogVerbose(String tag) {
+    return inner.shouldLogVerbose(tag);
+  }
+
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    return inner.shouldLog(tag, level);
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    try {
+      // Messages already buffered are written before the writer thread sees
+      // this. Wait for room rather than drop it.
+      buffer.put(CLOSE);
+      thread.join(CLOSE_TIMEOUT_MSEC);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    inner.close();
+  }
+}
@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.background.common.log.writers;
 
+import android.util.Log;
+
 /**
  * An abstract object that logs information in some way.
  * <p>
@@ -11,6 +13,9 @@ package org.mozilla.gecko.background.common.log.writers;
  * writer could make all log entries have the same single log tag, or
  * could ignore certain log levels, before delegating to an inner log
  * writer.
+ * <p>
+ * <code>Logger</code> calls log writers concurrently from any thread, so
+ * they must be thread-safe.
  */
 public abstract class LogWriter {
   public abstract void error(String tag, String message, Throwable error);
@@ -20,10 +25,22 @@ public abstract class LogWriter {
   public abstract void trace(String tag, String message, Throwable error);
 
   /**
-   * We expect <code>close</code> to be called only by static
-   * synchronized methods in class <code>Logger</code>.
+   * We expect <code>close</code> to be called only by static methods in class
+   * <code>Logger</code>, after this writer has been removed from its list.
    */
   public abstract void close();
 
   public abstract boolean shouldLogVerbose(String tag);
+
+  /**
+   * Would a message at <code>level</code> for <code>tag</code> be written?
+   * <code>Logger</code> asks before formatting a message, so writers that
+   * drop messages should override this.
+   *
+   * @param level
+   *          one of the <code>android.util.Log</code> levels.
+   */
+  public boolean shouldLog(String tag, int level) {
+    return level > Log.VERBOSE || shouldLogVerbose(tag);
+  }
 }
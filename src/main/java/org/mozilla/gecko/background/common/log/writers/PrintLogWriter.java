@@ -8,6 +8,11 @@ import java.io.PrintWriter;
 
 /**
  * Log to a <code>PrintWriter</code>.
+ * <p>
+ * Each message, with its stack trace, is written while holding this writer's
+ * lock, so that messages from different threads are not interleaved. Wrap in
+ * an <code>AsyncLogWriter</code> to keep logging threads from waiting on the
+ * output.
  */
 public class PrintLogWriter extends LogWriter {
   protected final PrintWriter pw;
@@ -23,7 +28,7 @@ public class PrintLogWriter extends LogWriter {
     this.pw = pw;
   }
 
-  protected void log(String tag, String message, Throwable error) {
+  protected synchronized void log(String tag, String message, Throwable error) {
     if (closed) {
       return;
     }
@@ -65,7 +70,7 @@ public class PrintLogWriter extends LogWriter {
   }
 
   @Override
-  public void close() {
+  public synchronized void close() {
     if (closed) {
       return;
     }
@@ -48,6 +48,11 @@ public abstract class TagLogWriter extends LogWriter {
     return inner.shouldLogVerbose(this.getMainTag());
   }
 
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    return inner.shouldLog(this.getMainTag(), level);
+  }
+
   @Override
   public void close() {
     inner.close();
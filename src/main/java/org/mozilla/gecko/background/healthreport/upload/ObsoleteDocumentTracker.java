@@ -144,6 +144,21 @@ public class ObsoleteDocumentTracker {
     }
   }
 
+  /**
+   * Order as {@link PairComparator}, breaking ties by decreasing ID, so that
+   * which ID we pick doesn't depend on the order the IDs are stored in.
+   */
+  protected static class DeterministicPairComparator extends PairComparator {
+    @Override
+    public int compare(Entry<String, Object> lhs, Entry<String, Object> rhs) {
+      final int c = super.compare(lhs, rhs);
+      if (c != 0) {
+        return c;
+      }
+      return rhs.getKey().compareTo(lhs.getKey());
+    }
+  }
+
   /**
    * Return a batch of obsolete document IDs that should be deleted next.
    *
@@ -157,7 +172,7 @@ public class ObsoleteDocumentTracker {
     ExtendedJSONObject ids = getObsoleteIds();
     // Sort by increasing order of key values.
     List<Entry<String, Object>> pairs = new ArrayList<Entry<String,Object>>(ids.entrySet());
-    Collections.sort(pairs, new PairComparator());
+    Collections.sort(pairs, new DeterministicPairComparator());
     List<String> batch = new ArrayList<String>(HealthReportConstants.MAXIMUM_DELETIONS_PER_POST);
     int i = 0;
     while (batch.size() < HealthReportConstants.MAXIMUM_DELETIONS_PER_POST && i < pairs.size()) {
@@ -179,7 +194,7 @@ public class ObsoleteDocumentTracker {
       // Remove the one that's been tried the most and is least likely to be
       // known to be on the server. Since the comparator orders in decreasing
       // order, we take the max.
-      ids.remove(Collections.max(ids.entrySet(), new PairComparator()).getKey());
+      ids.remove(Collections.max(ids.entrySet(), new DeterministicPairComparator()).getKey());
     }
     ids.put(id, HealthReportConstants.DELETION_ATTEMPTS_PER_OBSOLETE_DOCUMENT_ID);
     setObsoleteIds(ids);
@@ -215,7 +230,7 @@ public class ObsoleteDocumentTracker {
       // Delete the one that's most likely to be known to be on the server, and
       // that's not been tried as much. Since the comparator orders in
       // decreasing order, we take the min.
-      return Collections.min(ids.entrySet(), new PairComparator()).getKey();
+      return Collections.min(ids.entrySet(), new DeterministicPairComparator()).getKey();
     } catch (Exception e) {
       Logger.warn(LOG_TAG, "Got exception picking obsolete id to delete.", e);
       return null;
@@ -100,6 +100,29 @@ public class Married extends TokensAndKeysState {
     return assertion;
   }
 
+  /**
+   * @return when our certificate expires, in milliseconds since the epoch, or
+   *         -1 if it can't be parsed.
+   */
+  public long getCertificateExpiresAt() {
+    try {
+      final ExtendedJSONObject c = JSONWebTokenUtils.parseCertificate(certificate);
+      final Long exp = (c == null) ? null : c.getObject("payload").getLong("exp");
+      return (exp == null) ? -1 : exp;
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return true if our certificate is known to expire within
+   *         <code>marginMillis</code> of <code>now</code>.
+   */
+  public boolean isCertificateExpiringSoon(long now, long marginMillis) {
+    final long expiresAt = getCertificateExpiresAt();
+    return expiresAt > 0 && now + marginMillis >= expiresAt;
+  }
+
   public KeyBundle getSyncKeyBundle() throws InvalidKeyException, NoSuchAlgorithmException, UnsupportedEncodingException {
     // TODO Document this choice for deriving from kB.
     return FxAccountUtils.generateSyncKeyBundle(kB);
@@ -43,6 +43,7 @@ import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.delegates.BaseGlobalSessionCallback;
 import org.mozilla.gecko.sync.delegates.ClientsDataDelegate;
+import org.mozilla.gecko.sync.metrics.LoggingMetricsSink;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.HawkAuthHeaderProvider;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
@@ -50,6 +51,7 @@ import org.mozilla.gecko.tokenserver.TokenServerClient;
 import org.mozilla.gecko.tokenserver.TokenServerClientDelegate;
 import org.mozilla.gecko.tokenserver.TokenServerException;
 import org.mozilla.gecko.tokenserver.TokenServerToken;
+import org.mozilla.gecko.tokenserver.TokenServerTokenCache;
 
 import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
@@ -77,6 +79,13 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
   private static final int MINIMUM_SYNC_DELAY_MILLIS = 15 * 1000;        // 15 seconds.
   private volatile long lastSyncRealtimeMillis;
 
+  // Renew our certificate this long before it expires, rather than waiting
+  // for the token server to reject it. Certificates last 12 hours.
+  private static final long CERTIFICATE_REFRESH_MARGIN_MILLIS = 60 * 60 * 1000;   // 1 hour.
+
+  // Tokens outlive a single sync; reuse them until they're about to expire.
+  protected static final TokenServerTokenCache tokenCache = new TokenServerTokenCache();
+
   protected final ExecutorService executor;
   protected final FxAccountNotificationManager notificationManager;
 
@@ -208,12 +217,21 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
     protected final SyncDelegate syncDelegate;
     protected final SchedulePolicy schedulePolicy;
     protected volatile BackoffHandler storageBackoffHandler;
+    protected volatile String[] tokenCacheKey;
 
     public SessionCallback(SyncDelegate syncDelegate, SchedulePolicy schedulePolicy) {
       this.syncDelegate = syncDelegate;
       this.schedulePolicy = schedulePolicy;
     }
 
+    /**
+     * Forget the cached token for this account if the storage server rejects
+     * it.
+     */
+    public void setTokenCacheKey(String uid, String tokenServerEndpoint, String clientState) {
+      this.tokenCacheKey = new String[] { uid, tokenServerEndpoint, clientState };
+    }
+
     public void setBackoffHandler(BackoffHandler backoffHandler) {
       this.storageBackoffHandler = backoffHandler;
     }
@@ -236,6 +254,10 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
 
     @Override
     public void informUnauthorizedResponse(GlobalSession globalSession, URI oldClusterURL) {
+      final String[] key = tokenCacheKey;
+      if (key != null) {
+        tokenCache.invalidate(key[0], key[1], key[2]);
+      }
       schedulePolicy.onUnauthorized();
     }
 
@@ -306,7 +328,89 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
     return forced;
   }
 
+  /**
+   * Start a global session against the storage server named by
+   * <code>token</code>.
+   */
+  protected void syncWithToken(final TokenServerToken token,
+                               final SharedPreferences sharedPrefs,
+                               final KeyBundle syncKeyBundle,
+                               final SessionCallback callback,
+                               final Bundle extras) {
+    final URI storageServerURI;
+    try {
+      storageServerURI = new URI(token.endpoint);
+    } catch (URISyntaxException e) {
+      callback.handleError(null, e);
+      return;
+    }
+    final String storageHostname = storageServerURI.getHost();
+
+    // We back off on a per-host basis. When we have an endpoint URI from a token, we
+    // can check on the backoff status for that host.
+    // If we're supposed to be backing off, we abort the not-yet-started session.
+    final BackoffHandler storageBackoffHandler = new PrefsBackoffHandler(sharedPrefs, "sync.storage");
+    callback.setBackoffHandler(storageBackoffHandler);
+
+    String lastStorageHost = sharedPrefs.getString(PREF_BACKOFF_STORAGE_HOST, null);
+    final boolean storageHostIsUnchanged = lastStorageHost != null &&
+                                           lastStorageHost.equalsIgnoreCase(storageHostname);
+    if (storageHostIsUnchanged) {
+      Logger.debug(LOG_TAG, "Storage host is unchanged.");
+      if (!shouldPerformSync(storageBackoffHandler, "storage", extras)) {
+        Logger.info(LOG_TAG, "Not syncing: storage server requested backoff.");
+        callback.handleAborted(null, "Storage backoff");
+        return;
+      }
+    } else {
+      Logger.debug(LOG_TAG, "Received new storage host.");
+    }
+
+    // Invalidate the previous backoff, because our storage host has changed,
+    // or we never had one at all, or we're OK to sync.
+    storageBackoffHandler.setEarliestNextRequest(0L);
+
+    FxAccountGlobalSession globalSession = null;
+    try {
+      final ClientsDataDelegate clientsDataDelegate = new SharedPreferencesClientsDataDelegate(sharedPrefs, getContext());
+      if (FxAccountUtils.LOG_PERSONAL_INFORMATION) {
+        FxAccountUtils.pii(LOG_TAG, "Client device name is: '" + clientsDataDelegate.getClientName() + "'.");
+        FxAccountUtils.pii(LOG_TAG, "Client device data last modified: " + clientsDataDelegate.getLastModifiedTimestamp());
+      }
+
+      // We compute skew over time using SkewHandler. This yields an unchanging
+      // skew adjustment that the HawkAuthHeaderProvider uses to adjust its
+      // timestamps. Eventually we might want this to adapt within the scope of a
+      // global session.
+      final SkewHandler storageServerSkewHandler = SkewHandler.getSkewHandlerForHostname(storageHostname);
+      final long storageServerSkew = storageServerSkewHandler.getSkewInSeconds();
+      // We expect Sync to upload large sets of records. Calculating the
+      // payload verification hash for these record sets could be expensive,
+      // so we explicitly do not send payload verification hashes to the
+      // Sync storage endpoint.
+      final boolean includePayloadVerificationHash = false;
+      final AuthHeaderProvider authHeaderProvider = new HawkAuthHeaderProvider(token.id, token.key.getBytes("UTF-8"), includePayloadVerificationHash, storageServerSkew);
+
+      final Context context = getContext();
+      final SyncConfiguration syncConfig = new SyncConfiguration(token.uid, authHeaderProvider, sharedPrefs, syncKeyBundle);
+
+      Collection<String> knownStageNames = SyncConfiguration.validEngineNames();
+      syncConfig.stagesToSync = Utils.getStagesToSyncFromBundle(knownStageNames, extras);
+      syncConfig.setClusterURL(storageServerURI);
+
+      globalSession = new FxAccountGlobalSession(syncConfig, callback, context, clientsDataDelegate);
+      if (LoggingMetricsSink.isEnabled()) {
+        globalSession.setMetricsSink(new LoggingMetricsSink());
+      }
+      globalSession.start();
+    } catch (Exception e) {
+      callback.handleError(globalSession, e);
+      return;
+    }
+  }
+
   protected void syncWithAssertion(final String audience,
+                                   final String uid,
                                    final String assertion,
                                    final URI tokenServerEndpointURI,
                                    final BackoffHandler tokenBackoffHandler,
@@ -332,73 +436,8 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
           tokenBackoffHandler.setEarliestNextRequest(0L);
         }
 
-        final URI storageServerURI;
-        try {
-          storageServerURI = new URI(token.endpoint);
-        } catch (URISyntaxException e) {
-          handleError(e);
-          return;
-        }
-        final String storageHostname = storageServerURI.getHost();
-
-        // We back off on a per-host basis. When we have an endpoint URI from a token, we
-        // can check on the backoff status for that host.
-        // If we're supposed to be backing off, we abort the not-yet-started session.
-        final BackoffHandler storageBackoffHandler = new PrefsBackoffHandler(sharedPrefs, "sync.storage");
-        callback.setBackoffHandler(storageBackoffHandler);
-
-        String lastStorageHost = sharedPrefs.getString(PREF_BACKOFF_STORAGE_HOST, null);
-        final boolean storageHostIsUnchanged = lastStorageHost != null &&
-                                               lastStorageHost.equalsIgnoreCase(storageHostname);
-        if (storageHostIsUnchanged) {
-          Logger.debug(LOG_TAG, "Storage host is unchanged.");
-          if (!shouldPerformSync(storageBackoffHandler, "storage", extras)) {
-            Logger.info(LOG_TAG, "Not syncing: storage server requested backoff.");
-            callback.handleAborted(null, "Storage backoff");
-            return;
-          }
-        } else {
-          Logger.debug(LOG_TAG, "Received new storage host.");
-        }
-
-        // Invalidate the previous backoff, because our storage host has changed,
-        // or we never had one at all, or we're OK to sync.
-        storageBackoffHandler.setEarliestNextRequest(0L);
-
-        FxAccountGlobalSession globalSession = null;
-        try {
-          final ClientsDataDelegate clientsDataDelegate = new SharedPreferencesClientsDataDelegate(sharedPrefs, getContext());
-          if (FxAccountUtils.LOG_PERSONAL_INFORMATION) {
-            FxAccountUtils.pii(LOG_TAG, "Client device name is: '" + clientsDataDelegate.getClientName() + "'.");
-            FxAccountUtils.pii(LOG_TAG, "Client device data last modified: " + clientsDataDelegate.getLastModifiedTimestamp());
-          }
-
-          // We compute skew over time using SkewHandler. This yields an unchanging
-          // skew adjustment that the HawkAuthHeaderProvider uses to adjust its
-          // timestamps. Eventually we might want this to adapt within the scope of a
-          // global session.
-          final SkewHandler storageServerSkewHandler = SkewHandler.getSkewHandlerForHostname(storageHostname);
-          final long storageServerSkew = storageServerSkewHandler.getSkewInSeconds();
-          // We expect Sync to upload large sets of records. Calculating the
-          // payload verification hash for these record sets could be expensive,
-          // so we explicitly do not send payload verification hashes to the
-          // Sync storage endpoint.
-          final boolean includePayloadVerificationHash = false;
-          final AuthHeaderProvider authHeaderProvider = new HawkAuthHeaderProvider(token.id, token.key.getBytes("UTF-8"), includePayloadVerificationHash, storageServerSkew);
-
-          final Context context = getContext();
-          final SyncConfiguration syncConfig = new SyncConfiguration(token.uid, authHeaderProvider, sharedPrefs, syncKeyBundle);
-
-          Collection<String> knownStageNames = SyncConfiguration.validEngineNames();
-          syncConfig.stagesToSync = Utils.getStagesToSyncFromBundle(knownStageNames, extras);
-          syncConfig.setClusterURL(storageServerURI);
-
-          globalSession = new FxAccountGlobalSession(syncConfig, callback, context, clientsDataDelegate);
-          globalSession.start();
-        } catch (Exception e) {
-          callback.handleError(globalSession, e);
-          return;
-        }
+        tokenCache.put(uid, tokenServerEndpointURI.toString(), clientState, token);
+        syncWithToken(token, sharedPrefs, syncKeyBundle, callback, extras);
       }
 
       @Override
@@ -433,8 +472,9 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
   }
 
   /**
-   * A trivial Sync implementation that does not cache client keys,
-   * certificates, or tokens.
+   * A Sync implementation that reuses tokens until they are about to expire,
+   * and renews certificates shortly before they expire. It does not cache
+   * client keys.
    *
    * This should be replaced with a full {@link FxAccountAuthenticator}-based
    * token implementation.
@@ -535,10 +575,24 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
       final String tokenServerEndpoint = fxAccount.getTokenServerURI();
       final URI tokenServerEndpointURI = new URI(tokenServerEndpoint);
 
+      // If we'll need to sign an assertion, and our certificate is about to
+      // expire, renew it now rather than waiting for the token server to
+      // reject it. With a cached token we don't need the certificate at all.
+      State startState = state;
+      if (state.getStateLabel() == StateLabel.Married) {
+        final Married married = (Married) state;
+        final long now = System.currentTimeMillis();
+        if (married.isCertificateExpiringSoon(now, CERTIFICATE_REFRESH_MARGIN_MILLIS) &&
+            tokenCache.get(married.uid, tokenServerEndpoint, married.getClientState(), now) == null) {
+          Logger.info(LOG_TAG, "Certificate expires soon; renewing it.");
+          startState = married.makeCohabitingState();
+        }
+      }
+
       // TODO: why doesn't the loginPolicy extract the audience from the account?
       final FxAccountClient client = new FxAccountClient20(authServerEndpoint, executor);
       final FxAccountLoginStateMachine stateMachine = new FxAccountLoginStateMachine();
-      stateMachine.advance(state, StateLabel.Married, new LoginStateMachineDelegate() {
+      stateMachine.advance(startState, StateLabel.Married, new LoginStateMachineDelegate() {
         @Override
         public FxAccountClient getClient() {
           return client;
@@ -581,6 +635,20 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
             }
 
             final Married married = (Married) state;
+            final SessionCallback sessionCallback = new SessionCallback(syncDelegate, schedulePolicy);
+            final KeyBundle syncKeyBundle = married.getSyncKeyBundle();
+            final String clientState = married.getClientState();
+            sessionCallback.setTokenCacheKey(married.uid, tokenServerEndpoint, clientState);
+
+            // A token from a recent sync saves signing an assertion and a
+            // round-trip to the token server.
+            final TokenServerToken cachedToken = tokenCache.get(married.uid, tokenServerEndpoint, clientState, System.currentTimeMillis());
+            if (cachedToken != null) {
+              Logger.info(LOG_TAG, "Using cached token.");
+              syncWithToken(cachedToken, sharedPrefs, syncKeyBundle, sessionCallback, extras);
+              return;
+            }
+
             final String assertion = married.generateAssertion(audience, JSONWebTokenUtils.DEFAULT_ASSERTION_ISSUER);
 
             /*
@@ -610,10 +678,7 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
               return;
             }
 
-            final SessionCallback sessionCallback = new SessionCallback(syncDelegate, schedulePolicy);
-            final KeyBundle syncKeyBundle = married.getSyncKeyBundle();
-            final String clientState = married.getClientState();
-            syncWithAssertion(audience, assertion, tokenServerEndpointURI, tokenBackoffHandler, sharedPrefs, syncKeyBundle, clientState, sessionCallback, extras);
+            syncWithAssertion(audience, married.uid, assertion, tokenServerEndpointURI, tokenBackoffHandler, sharedPrefs, syncKeyBundle, clientState, sessionCallback, extras);
           } catch (Exception e) {
             syncDelegate.handleError(e);
             return;
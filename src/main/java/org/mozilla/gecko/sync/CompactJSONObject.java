@@ -0,0 +1,650 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A <code>JSONObject</code> for the small objects that make up most Sync
+ * JSON: record payloads, visits, <code>meta/global</code> engines.
+ * <p>
+ * <code>JSONObject</code> is a <code>HashMap</code>, which costs a table
+ * and an entry object per mapping, and a boxed <code>Long</code> or
+ * <code>Double</code> per number. This class instead keeps up to
+ * {@link #MAX_ARRAY_SIZE} mappings in insertion order in parallel arrays,
+ * and can hold numbers unboxed: see {@link #putLong(Object, long)} and
+ * {@link #getLong(Object, long)}. Numbers are boxed only when read through
+ * the <code>Map</code> interface. Larger objects move their mappings into
+ * the inherited <code>HashMap</code>.
+ * <p>
+ * Every <code>HashMap</code> method that can be declared against the Java 7
+ * and Android APIs this code builds against is overridden to use the arrays,
+ * including the Java 8 methods that don't take a functional interface. Java 8's
+ * <code>forEach</code>, <code>replaceAll</code>, <code>compute*</code> and
+ * <code>merge</code> can't be declared here, and don't see array mappings:
+ * they don't exist on the Android versions we support, so nothing here calls
+ * them. Instances serialize as a plain <code>JSONObject</code>.
+ */
+public class CompactJSONObject extends JSONObject {
+  private static final long serialVersionUID = -3427614928632436432L;
+
+  private static final int DEFAULT_CAPACITY = 4;
+  protected static final int MAX_ARRAY_SIZE = 32;
+
+  // Stand-ins in values[] for numbers held in numbers[].
+  private static final Object UNBOXED_LONG = new Object();
+  private static final Object UNBOXED_DOUBLE = new Object();
+
+  // Null once the mappings have moved into the HashMap.
+  private Object[] keys;
+  private Object[] values;
+  // Allocated on first use.
+  private long[] numbers;
+  private int count;
+
+  public CompactJSONObject() {
+    this.keys = new Object[DEFAULT_CAPACITY];
+    this.values = new Object[DEFAULT_CAPACITY];
+  }
+
+  public CompactJSONObject(Map<?, ?> map) {
+    this();
+    putAll(map);
+  }
+
+  protected int indexOf(Object key) {
+    final Object[] keys = this.keys;
+    if (key == null) {
+      for (int i = 0; i < count; ++i) {
+        if (keys[i] == null) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    for (int i = 0; i < count; ++i) {
+      final Object k = keys[i];
+      if (k == key || key.equals(k)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  protected Object valueAt(int i) {
+    final Object value = values[i];
+    if (value == UNBOXED_LONG) {
+      return Long.valueOf(numbers[i]);
+    }
+    if (value == UNBOXED_DOUBLE) {
+      return Double.valueOf(Double.longBitsToDouble(numbers[i]));
+    }
+    return value;
+  }
+
+  /**
+   * Find or append a slot for <code>key</code>.
+   *
+   * @return the slot, or -1 if the mappings have moved into the HashMap.
+   */
+  @SuppressWarnings("unchecked")
+  protected int slotFor(Object key) {
+    final int i = indexOf(key);
+    if (i >= 0) {
+      return i;
+    }
+    if (count == keys.length) {
+      if (count == MAX_ARRAY_SIZE) {
+        for (int j = 0; j < count; ++j) {
+          super.put(keys[j], valueAt(j));
+        }
+        keys = null;
+        values = null;
+        numbers = null;
+        count = 0;
+        return -1;
+      }
+      final int capacity = Math.min(count * 2, MAX_ARRAY_SIZE);
+      final Object[] newKeys = new Object[capacity];
+      final Object[] newValues = new Object[capacity];
+      System.arraycopy(keys, 0, newKeys, 0, count);
+      System.arraycopy(values, 0, newValues, 0, count);
+      keys = newKeys;
+      values = newValues;
+      if (numbers != null) {
+        final long[] newNumbers = new long[capacity];
+        System.arraycopy(numbers, 0, newNumbers, 0, count);
+        numbers = newNumbers;
+      }
+    }
+    keys[count] = key;
+    values[count] = null;
+    return count++;
+  }
+
+  /**
+   * Map <code>key</code> to an integer without boxing it.
+   */
+  @SuppressWarnings("unchecked")
+  public void putLong(Object key, long value) {
+    if (keys != null) {
+      final int i = slotFor(key);
+      if (i >= 0) {
+        if (numbers == null) {
+          numbers = new long[keys.length];
+        }
+        values[i] = UNBOXED_LONG;
+        numbers[i] = value;
+        return;
+      }
+    }
+    super.put(key, Long.valueOf(value));
+  }
+
+  /**
+   * Map <code>key</code> to a floating point number without boxing it.
+   */
+  @SuppressWarnings("unchecked")
+  public void putDouble(Object key, double value) {
+    if (keys != null) {
+      final int i = slotFor(key);
+      if (i >= 0) {
+        if (numbers == null) {
+          numbers = new long[keys.length];
+        }
+        values[i] = UNBOXED_DOUBLE;
+        numbers[i] = Double.doubleToRawLongBits(value);
+        return;
+      }
+    }
+    super.put(key, Double.valueOf(value));
+  }
+
+  /**
+   * Return the value for <code>key</code> as a long, without boxing.
+   *
+   * @return the value if it is a number, truncated if necessary; otherwise
+   *         <code>defaultValue</code>.
+   */
+  public long getLong(Object key, long defaultValue) {
+    if (keys == null) {
+      final Object value = super.get(key);
+      return (value instanceof Number) ? ((Number) value).longValue() : defaultValue;
+    }
+    final int i = indexOf(key);
+    if (i < 0) {
+      return defaultValue;
+    }
+    final Object value = values[i];
+    if (value == UNBOXED_LONG) {
+      return numbers[i];
+    }
+    if (value == UNBOXED_DOUBLE) {
+      return (long) Double.longBitsToDouble(numbers[i]);
+    }
+    return (value instanceof Number) ? ((Number) value).longValue() : defaultValue;
+  }
+
+  /**
+   * Return the value for <code>key</code> as a double, without boxing.
+   *
+   * @return the value if it is a number; otherwise <code>defaultValue</code>.
+   */
+  public double getDouble(Object key, double defaultValue) {
+    if (keys == null) {
+      final Object value = super.get(key);
+      return (value instanceof Number) ? ((Number) value).doubleValue() : defaultValue;
+    }
+    final int i = indexOf(key);
+    if (i < 0) {
+      return defaultValue;
+    }
+    final Object value = values[i];
+    if (value == UNBOXED_LONG) {
+      return numbers[i];
+    }
+    if (value == UNBOXED_DOUBLE) {
+      return Double.longBitsToDouble(numbers[i]);
+    }
+    return (value instanceof Number) ? ((Number) value).doubleValue() : defaultValue;
+  }
+
+  /**
+   * Return the value for <code>key</code> in any map as a long, without
+   * boxing if the map is a <code>CompactJSONObject</code>.
+   *
+   * @return the value if it is a number, truncated if necessary; otherwise
+   *         <code>defaultValue</code>.
+   */
+  public static long getLong(Map<?, ?> map, Object key, long defaultValue) {
+    if (map instanceof CompactJSONObject) {
+      return ((CompactJSONObject) map).getLong(key, defaultValue);
+    }
+    final Object value = map.get(key);
+    return (value instanceof Number) ? ((Number) value).longValue() : defaultValue;
+  }
+
+  /**
+   * Write this object to <code>writer</code> without boxing its numbers.
+   */
+  protected void writeTo(JSONWriter writer) throws IOException {
+    if (keys == null) {
+      writer.writeMap(this);
+      return;
+    }
+    writer.beginObject();
+    for (int i = 0; i < count; ++i) {
+      writer.name(String.valueOf(keys[i]));
+      final Object value = values[i];
+      if (value == UNBOXED_LONG) {
+        writer.value(numbers[i]);
+      } else if (value == UNBOXED_DOUBLE) {
+        writer.value(Double.longBitsToDouble(numbers[i]));
+      } else {
+        writer.value(value);
+      }
+    }
+    writer.endObject();
+  }
+
+  @Override
+  public int size() {
+    return (keys == null) ? super.size() : count;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return (keys == null) ? super.containsKey(key) : indexOf(key) >= 0;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    if (keys == null) {
+      return super.containsValue(value);
+    }
+    for (int i = 0; i < count; ++i) {
+      final Object v = valueAt(i);
+      if (value == null ? v == null : value.equals(v)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (keys == null) {
+      return super.get(key);
+    }
+    final int i = indexOf(key);
+    return (i < 0) ? null : valueAt(i);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Object put(Object key, Object value) {
+    if (keys != null) {
+      final int i = slotFor(key);
+      if (i >= 0) {
+        final Object old = valueAt(i);
+        values[i] = value;
+        return old;
+      }
+    }
+    return super.put(key, value);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void putAll(Map map) {
+    for (Object o : map.entrySet()) {
+      final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public Object remove(Object key) {
+    if (keys == null) {
+      return super.remove(key);
+    }
+    final int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    final Object old = valueAt(i);
+    removeAt(i);
+    return old;
+  }
+
+  protected void removeAt(int i) {
+    final int moved = count - i - 1;
+    if (moved > 0) {
+      System.arraycopy(keys, i + 1, keys, i, moved);
+      System.arraycopy(values, i + 1, values, i, moved);
+      if (numbers != null) {
+        System.arraycopy(numbers, i + 1, numbers, i, moved);
+      }
+    }
+    --count;
+    keys[count] = null;
+    values[count] = null;
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    keys = new Object[DEFAULT_CAPACITY];
+    values = new Object[DEFAULT_CAPACITY];
+    numbers = null;
+    count = 0;
+  }
+
+  protected static boolean equal(Object a, Object b) {
+    return (a == null) ? b == null : a.equals(b);
+  }
+
+  // The following override Java 8's HashMap methods, which work on its table
+  // directly. They can't be marked @Override: Java 7 has no such methods.
+
+  public Object getOrDefault(Object key, Object defaultValue) {
+    if (keys == null) {
+      return containsKey(key) ? super.get(key) : defaultValue;
+    }
+    final int i = indexOf(key);
+    return (i < 0) ? defaultValue : valueAt(i);
+  }
+
+  public Object putIfAbsent(Object key, Object value) {
+    final Object old = get(key);
+    if (old == null) {
+      put(key, value);
+    }
+    return old;
+  }
+
+  public boolean remove(Object key, Object value) {
+    if (!containsKey(key) || !equal(get(key), value)) {
+      return false;
+    }
+    remove(key);
+    return true;
+  }
+
+  public Object replace(Object key, Object value) {
+    if (!containsKey(key)) {
+      return null;
+    }
+    return put(key, value);
+  }
+
+  public boolean replace(Object key, Object oldValue, Object newValue) {
+    if (!containsKey(key) || !equal(get(key), oldValue)) {
+      return false;
+    }
+    put(key, newValue);
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof Map)) {
+      return false;
+    }
+    if (keys == null) {
+      return super.equals(o);
+    }
+    final Map<?, ?> other = (Map<?, ?>) o;
+    if (other.size() != count) {
+      return false;
+    }
+    for (int i = 0; i < count; ++i) {
+      final Object key = keys[i];
+      final Object value = valueAt(i);
+      if (value == null) {
+        if (other.get(key) != null || !other.containsKey(key)) {
+          return false;
+        }
+      } else if (!value.equals(other.get(key))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    if (keys == null) {
+      return super.hashCode();
+    }
+    int hash = 0;
+    for (int i = 0; i < count; ++i) {
+      final Object key = keys[i];
+      final Object value = valueAt(i);
+      hash += (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+    }
+    return hash;
+  }
+
+  // HashMap.clone would copy our array mappings into the clone's table.
+  @Override
+  public Object clone() {
+    final CompactJSONObject copy = new CompactJSONObject();
+    if (keys == null) {
+      copy.keys = null;
+      copy.values = null;
+      copy.putAll(this);
+      return copy;
+    }
+    copy.keys = keys.clone();
+    copy.values = values.clone();
+    copy.numbers = (numbers == null) ? null : numbers.clone();
+    copy.count = count;
+    return copy;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Set<Object> keySet() {
+    if (keys == null) {
+      return super.keySet();
+    }
+    return new AbstractSet<Object>() {
+      @Override
+      public Iterator<Object> iterator() {
+        return new ArrayIterator<Object>() {
+          @Override
+          protected Object get(int i) {
+            return keys[i];
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return count;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Collection<Object> values() {
+    if (keys == null) {
+      return super.values();
+    }
+    return new AbstractCollection<Object>() {
+      @Override
+      public Iterator<Object> iterator() {
+        return new ArrayIterator<Object>() {
+          @Override
+          protected Object get(int i) {
+            return valueAt(i);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return count;
+      }
+    };
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Override
+  public Set entrySet() {
+    if (keys == null) {
+      return super.entrySet();
+    }
+    return new AbstractSet<Map.Entry<Object, Object>>() {
+      @Override
+      public Iterator<Map.Entry<Object, Object>> iterator() {
+        return new ArrayIterator<Map.Entry<Object, Object>>() {
+          @Override
+          protected Map.Entry<Object, Object> get(int i) {
+            return new ArrayEntry(i);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return count;
+      }
+    };
+  }
+
+  /**
+   * Iterates over the array slots, supporting removal.
+   */
+  private abstract class ArrayIterator<T> implements Iterator<T> {
+    private int next;
+    private int last = -1;
+
+    protected abstract T get(int i);
+
+    @Override
+    public boolean hasNext() {
+      return next < count;
+    }
+
+    @Override
+    public T next() {
+      if (next >= count) {
+        throw new NoSuchElementException();
+      }
+      last = next++;
+      return get(last);
+    }
+
+    @Override
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      removeAt(last);
+      next = last;
+      last = -1;
+    }
+  }
+
+  private class ArrayEntry implements Map.Entry<Object, Object> {
+    private final int index;
+
+    ArrayEntry(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public Object getKey() {
+      return keys[index];
+    }
+
+    @Override
+    public Object getValue() {
+      return valueAt(index);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      final Object old = valueAt(index);
+      values[index] = value;
+      return old;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      final Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      final Object key = getKey();
+      final Object value = getValue();
+      return (key == null ? other.getKey() == null : key.equals(other.getKey())) &&
+             (value == null ? other.getValue() == null : value.equals(other.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      final Object key = getKey();
+      final Object value = getValue();
+      return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+
+  @Override
+  public String toJSONString() {
+    return JSONWriter.toJSONString(this);
+  }
+
+  @Override
+  public String toString() {
+    return toJSONString();
+  }
+
+  @Override
+  public void writeJSONString(Writer out) throws IOException {
+    out.write(toJSONString());
+  }
+
+  /**
+   * Serialize as a plain <code>JSONObject</code>.
+   */
+  @SuppressWarnings("unchecked")
+  private Object writeReplace() {
+    final JSONObject plain = new JSONObject();
+    plain.putAll(this);
+    return plain;
+  }
+}
@@ -6,10 +6,13 @@ package org.mozilla.gecko.sync;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.crypto.Base64Decoder;
+import org.mozilla.gecko.sync.crypto.Base64Encoder;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.CryptoInfo;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
@@ -58,19 +61,125 @@ public class CryptoRecord extends Record {
    * @throws UnsupportedEncodingException
    */
   private static byte[] decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle) throws CryptoException, UnsupportedEncodingException {
-    byte[] ciphertext = Base64.decodeBase64(((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8"));
+    // The HMAC is over the base64 text, so we hand that over as-is and let
+    // CryptoInfo decode it once.
+    byte[] ciphertext = ((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8");
     byte[] iv         = Base64.decodeBase64(((String) payload.get(KEY_IV)).getBytes("UTF-8"));
     byte[] hmac       = Utils.hex2Byte((String) payload.get(KEY_HMAC));
 
-    return CryptoInfo.decrypt(ciphertext, iv, hmac, keybundle).getMessage();
+    return CryptoInfo.decryptEncoded(ciphertext, 0, ciphertext.length, iv, hmac, keybundle).getMessage();
   }
 
+  private static byte[] decryptPayload(EncryptedPayload encrypted, KeyBundle keybundle) throws CryptoException {
+    final byte[] buffer = encrypted.buffer;
+    byte[] iv         = Base64Decoder.decode(buffer, encrypted.ivOffset, encrypted.ivLength);
+    byte[] hmac       = Utils.hex2Byte(new String(buffer, encrypted.hmacOffset, encrypted.hmacLength, UTF8));
+
+    return CryptoInfo.decryptEncoded(buffer, encrypted.ciphertextOffset, encrypted.ciphertextLength, iv, hmac, keybundle).getMessage();
+  }
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * An encrypted payload that has not been parsed into a JSON object: the
+   * UTF-8 bytes of the payload, and the positions of the (unescaped)
+   * ciphertext, IV and HMAC values within them.
+   *
+   * Produced by {@link WBOEnvelopeReader}.
+   */
+  public static class EncryptedPayload {
+    public final byte[] buffer;
+    public final int length;
+    public final int ciphertextOffset;
+    public final int ciphertextLength;
+    public final int ivOffset;
+    public final int ivLength;
+    public final int hmacOffset;
+    public final int hmacLength;
+
+    public EncryptedPayload(byte[] buffer, int length,
+                            int ciphertextOffset, int ciphertextLength,
+                            int ivOffset, int ivLength,
+                            int hmacOffset, int hmacLength) {
+      this.buffer = buffer;
+      this.length = length;
+      this.ciphertextOffset = ciphertextOffset;
+      this.ciphertextLength = ciphertextLength;
+      this.ivOffset = ivOffset;
+      this.ivLength = ivLength;
+      this.hmacOffset = hmacOffset;
+      this.hmacLength = hmacLength;
+    }
+
+    public ExtendedJSONObject toJSONObject() throws IOException, ParseException, NonObjectJSONException {
+      return ExtendedJSONObject.parseUTF8AsJSONObject(buffer, 0, length);
+    }
+
+    /**
+     * Lay out the payload for freshly encrypted data, without going through
+     * a JSON object: <code>{"ciphertext":"...","hmac":"...","IV":"..."}</code>.
+     * Base64 and hex need no escaping, so the values are copied in as-is.
+     */
+    public static EncryptedPayload fromCryptoInfo(CryptoInfo info) {
+      final byte[] ciphertext = info.getEncodedMessage();
+      final byte[] iv = info.getIV();
+      final int ivLength = Base64Encoder.encodedLength(iv.length);
+      final byte[] hmac = info.getHMAC();
+      final byte[] buffer = new byte[PAYLOAD_OVERHEAD + ciphertext.length + ivLength + 2 * hmac.length];
+
+      int pos = copy(PAYLOAD_CIPHERTEXT_PREFIX, buffer, 0);
+      final int ciphertextOffset = pos;
+      pos = copy(ciphertext, buffer, pos);
+      pos = copy(PAYLOAD_HMAC_PREFIX, buffer, pos);
+      final int hmacOffset = pos;
+      for (byte b : hmac) {
+        buffer[pos++] = HEX[(b >> 4) & 0xF];
+        buffer[pos++] = HEX[b & 0xF];
+      }
+      pos = copy(PAYLOAD_IV_PREFIX, buffer, pos);
+      final int ivOffset = pos;
+      pos += Base64Encoder.encode(iv, 0, iv.length, buffer, pos);
+      pos = copy(PAYLOAD_SUFFIX, buffer, pos);
+
+      return new EncryptedPayload(buffer, pos,
+                                  ciphertextOffset, ciphertext.length,
+                                  ivOffset, ivLength,
+                                  hmacOffset, 2 * hmac.length);
+    }
+
+    private static int copy(byte[] from, byte[] to, int pos) {
+      System.arraycopy(from, 0, to, pos, from.length);
+      return pos + from.length;
+    }
+  }
+
+  private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+  private static final byte[] PAYLOAD_CIPHERTEXT_PREFIX = ("{\"" + KEY_CIPHERTEXT + "\":\"").getBytes(UTF8);
+  private static final byte[] PAYLOAD_HMAC_PREFIX       = ("\",\"" + KEY_HMAC + "\":\"").getBytes(UTF8);
+  private static final byte[] PAYLOAD_IV_PREFIX         = ("\",\"" + KEY_IV + "\":\"").getBytes(UTF8);
+  private static final byte[] PAYLOAD_SUFFIX            = "\"}".getBytes(UTF8);
+  private static final int PAYLOAD_OVERHEAD = PAYLOAD_CIPHERTEXT_PREFIX.length + PAYLOAD_HMAC_PREFIX.length +
+                                              PAYLOAD_IV_PREFIX.length + PAYLOAD_SUFFIX.length;
+
+  // Per-thread buffer for the cleartext of records being encrypted for upload.
+  private static final ThreadLocal<JSONWriter> cleartextWriters = new ThreadLocal<JSONWriter>() {
+    @Override
+    protected JSONWriter initialValue() {
+      return new JSONWriter();
+    }
+  };
+
   // The encrypted JSON body object.
   // The decrypted JSON body object. Fields are copied from `body`.
 
   public ExtendedJSONObject payload;
   public KeyBundle   keyBundle;
 
+  // If non-null, the still-encrypted payload as read off the wire. In that
+  // case <code>payload</code> is null until the record is decrypted, or until
+  // <code>getPayload</code> parses it.
+  public EncryptedPayload encryptedPayload;
+
   /**
    * Don't forget to set cleartext or body!
    */
@@ -109,6 +218,7 @@ public class CryptoRecord extends Record {
     out.sortIndex    = this.sortIndex;
     out.ttl          = this.ttl;
     out.payload      = (this.payload == null) ? null : new ExtendedJSONObject(this.payload.object);
+    out.encryptedPayload = this.encryptedPayload;   // Immutable.
     out.keyBundle    = this.keyBundle;    // TODO: copy me?
     return out;
   }
@@ -177,6 +287,29 @@ public class CryptoRecord extends Record {
     return record;
   }
 
+  /**
+   * Parse a whole record from UTF-8 bytes without building an intermediate
+   * JSON object for the envelope or the encrypted payload.
+   *
+   * @see WBOEnvelopeReader
+   */
+  public static CryptoRecord fromJSONRecord(byte[] jsonRecord, int offset, int length)
+      throws ParseException, NonObjectJSONException, IOException, RecordParseException {
+    return WBOEnvelopeReader.read(jsonRecord, offset, length);
+  }
+
+  /**
+   * Return the payload as a JSON object, parsing a pending encrypted payload
+   * if necessary.
+   */
+  public ExtendedJSONObject getPayload() throws IOException, ParseException, NonObjectJSONException {
+    if (payload == null && encryptedPayload != null) {
+      payload = encryptedPayload.toJSONObject();
+      encryptedPayload = null;
+    }
+    return payload;
+  }
+
   public void setKeyBundle(KeyBundle bundle) {
     this.keyBundle = bundle;
   }
@@ -187,6 +320,14 @@ public class CryptoRecord extends Record {
       throw new NoKeyBundleException();
     }
 
+    if (payload == null && encryptedPayload != null) {
+      // The reader has already found all the pieces for us.
+      byte[] cleartext = decryptPayload(encryptedPayload, keyBundle);
+      payload = ExtendedJSONObject.parseUTF8AsJSONObject(cleartext);
+      encryptedPayload = null;
+      return this;
+    }
+
     // Check that payload contains all pieces for crypto.
     if (!payload.containsKey(KEY_CIPHERTEXT) ||
         !payload.containsKey(KEY_IV) ||
@@ -205,10 +346,9 @@ public class CryptoRecord extends Record {
     if (this.keyBundle == null) {
       throw new NoKeyBundleException();
     }
-    String cleartext = payload.toJSONString();
-    byte[] cleartextBytes = cleartext.getBytes("UTF-8");
+    byte[] cleartextBytes = payload.toJSONBytes();
     CryptoInfo info = CryptoInfo.encrypt(cleartextBytes, keyBundle);
-    String message = new String(Base64.encodeBase64(info.getMessage()));
+    String message = new String(info.getEncodedMessage(), UTF8);
     String iv      = new String(Base64.encodeBase64(info.getIV()));
     String hmac    = Utils.byte2Hex(info.getHMAC());
     ExtendedJSONObject ciphertext = new ExtendedJSONObject();
@@ -216,9 +356,39 @@ public class CryptoRecord extends Record {
     ciphertext.put(KEY_HMAC, hmac);
     ciphertext.put(KEY_IV, iv);
     this.payload = ciphertext;
+    this.encryptedPayload = null;
     return this;
   }
 
+  /**
+   * Encrypt a record for upload without building its cleartext payload as a
+   * JSON object or string.
+   * <p>
+   * The record writes its payload into a per-thread buffer, which is
+   * encrypted in place; the result is kept as an {@link EncryptedPayload},
+   * ready to be written by {@link #writeTo(JSONWriter)}. Equivalent to
+   * <code>getEnvelope()</code> followed by <code>encrypt()</code>.
+   */
+  public static CryptoRecord encrypt(Record record, KeyBundle keyBundle) throws CryptoException {
+    if (keyBundle == null) {
+      throw new NoKeyBundleException();
+    }
+    final JSONWriter cleartext = cleartextWriters.get();
+    cleartext.reset();
+    try {
+      record.writePayload(cleartext);
+    } catch (IOException e) {
+      // In-memory writers don't throw.
+      throw new IllegalStateException(e);
+    }
+    CryptoInfo info = CryptoInfo.encrypt(cleartext.buffer, 0, cleartext.count, keyBundle);
+
+    CryptoRecord rec = new CryptoRecord(record);
+    rec.keyBundle = keyBundle;
+    rec.encryptedPayload = EncryptedPayload.fromCryptoInfo(info);
+    return rec;
+  }
+
   @Override
   public void initFromEnvelope(CryptoRecord payload) {
     throw new IllegalStateException("Can't do this with a CryptoRecord.");
@@ -242,7 +412,11 @@ public class CryptoRecord extends Record {
   // TODO: this only works with encrypted object, and has other limitations.
   public JSONObject toJSONObject() {
     ExtendedJSONObject o = new ExtendedJSONObject();
-    o.put(KEY_PAYLOAD, payload.toJSONString());
+    if (payload == null && encryptedPayload != null) {
+      o.put(KEY_PAYLOAD, new String(encryptedPayload.buffer, 0, encryptedPayload.length, UTF8));
+    } else {
+      o.put(KEY_PAYLOAD, payload.toJSONString());
+    }
     o.put(KEY_ID,      this.guid);
     if (this.ttl > 0) {
       o.put(KEY_TTL, this.ttl);
@@ -254,4 +428,36 @@ public class CryptoRecord extends Record {
   public String toJSONString() {
     return toJSONObject().toJSONString();
   }
+
+  /**
+   * Write the same JSON as {@link #toJSONString()}, escaping the payload
+   * straight from its bytes.
+   */
+  @Override
+  public void writeTo(JSONWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name(KEY_PAYLOAD);
+    if (payload == null && encryptedPayload != null) {
+      writer.value(encryptedPayload.buffer, 0, encryptedPayload.length);
+    } else {
+      final byte[] bytes = payload.toJSONBytes();
+      writer.value(bytes, 0, bytes.length);
+    }
+    writer.name(KEY_ID).value(this.guid);
+    if (this.ttl > 0) {
+      writer.name(KEY_TTL).value(this.ttl);
+    }
+    writer.endObject();
+  }
+
+  @Override
+  public byte[] toJSONBytes() {
+    final JSONWriter writer = new JSONWriter();
+    try {
+      writeTo(writer);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return writer.toByteArray();
+  }
 }
@@ -5,15 +5,17 @@
 package org.mozilla.gecko.sync;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.UnexpectedJSONException.BadRequiredFieldJSONException;
@@ -28,20 +30,49 @@ public class ExtendedJSONObject {
 
   public JSONObject object;
 
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
   /**
-   * Return a <code>JSONParser</code> instance for immediate use.
+   * Parse UTF-8 encoded JSON.
    * <p>
-   * <code>JSONParser</code> is not thread-safe, so we return a new instance
-   * each call. This is extremely inefficient in execution time and especially
-   * memory use -- each instance allocates a 16kb temporary buffer -- and we
-   * hope to improve matters eventually.
+   * This is where all of our parsing ends up: a {@link JSONTokenizer} walks
+   * the bytes, and objects come back as {@link CompactJSONObject} instances.
+   *
+   * @param in buffer containing JSON-encoded input; not necessarily a JSON object.
+   * @return a regular Java <code>Object</code>.
+   * @throws ParseException
    */
-  protected static JSONParser getJSONParser() {
-    return new JSONParser();
+  protected static Object parseRaw(byte[] in, int offset, int length) throws ParseException {
+    return new JSONTokenizer(in, offset, length).readDocument();
   }
 
   /**
-   * Parse a JSON encoded string.
+   * Parse a JSON encoded stream.
+   *
+   * @param in <code>InputStream</code> over UTF-8 JSON-encoded input to
+   *           parse; not necessarily a JSON object.
+   * @return a regular Java <code>Object</code>.
+   * @throws ParseException
+   * @throws IOException
+   */
+  protected static Object parseRaw(InputStream in) throws ParseException, IOException {
+    byte[] buffer = new byte[4096];
+    int length = 0;
+    int read;
+    while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+      if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+    return parseRaw(buffer, 0, length);
+  }
+
+  /**
+   * Parse a JSON encoded stream.
+   * <p>
+   * You should prefer the byte interfaces: characters are encoded to UTF-8
+   * before parsing.
    *
    * @param in <code>Reader</code> over a JSON-encoded input to parse; not
    *            necessarily a JSON object.
@@ -50,30 +81,28 @@ public class ExtendedJSONObject {
    * @throws IOException
    */
   protected static Object parseRaw(Reader in) throws ParseException, IOException {
-    try {
-      return getJSONParser().parse(in);
-    } catch (Error e) {
-      // Don't be stupid, org.json.simple. Bug 1042929.
-      throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION);
+    final StringBuilder builder = new StringBuilder();
+    final char[] buffer = new char[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      builder.append(buffer, 0, read);
     }
+    return parseRaw(builder.toString());
   }
 
   /**
    * Parse a JSON encoded string.
    * <p>
-   * You should prefer the streaming interface {@link #parseRaw(Reader)}.
+   * You should prefer the byte interfaces: the string is encoded to UTF-8
+   * before parsing.
    *
    * @param input JSON-encoded input string to parse; not necessarily a JSON object.
    * @return a regular Java <code>Object</code>.
    * @throws ParseException
    */
   protected static Object parseRaw(String input) throws ParseException {
-    try {
-      return getJSONParser().parse(input);
-    } catch (Error e) {
-      // Don't be stupid, org.json.simple. Bug 1042929.
-      throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION);
-    }
+    final byte[] bytes = input.getBytes(UTF8);
+    return parseRaw(bytes, 0, bytes.length);
   }
 
   /**
@@ -162,11 +191,46 @@ public class ExtendedJSONObject {
    */
   public static ExtendedJSONObject parseUTF8AsJSONObject(byte[] in)
       throws ParseException, NonObjectJSONException, IOException {
-    return parseJSONObject(new String(in, "UTF-8"));
+    return parseUTF8AsJSONObject(in, 0, in.length);
+  }
+
+  /**
+   * Helper method to get a JSON object from part of a UTF-8 byte array.
+   *
+   * @param in UTF-8 bytes.
+   * @param offset start of the JSON in <code>in</code>.
+   * @param length length of the JSON in bytes.
+   * @throws ParseException
+   * @throws NonObjectJSONException if the object is valid JSON, but not an object.
+   * @throws IOException
+   */
+  public static ExtendedJSONObject parseUTF8AsJSONObject(byte[] in, int offset, int length)
+      throws ParseException, NonObjectJSONException, IOException {
+    return new ExtendedJSONObject(checkObject(parseRaw(in, offset, length)));
+  }
+
+  /**
+   * Helper method to get a JSON object from a UTF-8 stream.
+   *
+   * @param in input {@link InputStream}; not closed.
+   * @throws ParseException
+   * @throws IOException
+   * @throws NonObjectJSONException if the object is valid JSON, but not an object.
+   */
+  public static ExtendedJSONObject parseJSONObject(InputStream in)
+      throws IOException, ParseException, NonObjectJSONException {
+    return new ExtendedJSONObject(checkObject(parseRaw(in)));
   }
 
   public ExtendedJSONObject() {
-    this.object = new JSONObject();
+    this.object = new CompactJSONObject();
+  }
+
+  private static JSONObject checkObject(Object parsed) throws NonObjectJSONException {
+    if (parsed instanceof JSONObject) {
+      return (JSONObject) parsed;
+    }
+    throw new NonObjectJSONException("value must be a JSON object");
   }
 
   public ExtendedJSONObject(JSONObject o) {
@@ -174,21 +238,11 @@ public class ExtendedJSONObject {
   }
 
   public ExtendedJSONObject(Reader in) throws IOException, ParseException, NonObjectJSONException {
-    if (in == null) {
-      this.object = new JSONObject();
-      return;
-    }
-
-    Object obj = parseRaw(in);
-    if (obj instanceof JSONObject) {
-      this.object = ((JSONObject) obj);
-    } else {
-      throw new NonObjectJSONException("value must be a JSON object");
-    }
+    this.object = (in == null) ? new CompactJSONObject() : checkObject(parseRaw(in));
   }
 
   public ExtendedJSONObject(String jsonString) throws IOException, ParseException, NonObjectJSONException {
-    this(jsonString == null ? null : new StringReader(jsonString));
+    this.object = (jsonString == null) ? new CompactJSONObject() : checkObject(parseRaw(jsonString));
   }
 
   // Passthrough methods.
@@ -200,6 +254,16 @@ public class ExtendedJSONObject {
     return (Long) this.get(key);
   }
 
+  /**
+   * Return the value for this key as a primitive long, without boxing.
+   *
+   * @return the value if it is a number, truncated if necessary; otherwise
+   *         <code>defaultValue</code>.
+   */
+  public long getLong(String key, long defaultValue) {
+    return CompactJSONObject.getLong(this.object, key, defaultValue);
+  }
+
   public String getString(String key) {
     return (String) this.get(key);
   }
@@ -263,11 +327,28 @@ public class ExtendedJSONObject {
   }
 
   public String toJSONString() {
-    return this.object.toJSONString();
+    return JSONWriter.toJSONString(this.object);
+  }
+
+  /**
+   * @return the UTF-8 bytes of {@link #toJSONString()}.
+   */
+  public byte[] toJSONBytes() {
+    return JSONWriter.toJSONBytes(this.object);
+  }
+
+  /**
+   * Write this object as UTF-8 JSON to <code>out</code>, without building a
+   * string. <code>out</code> is flushed but not closed.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    final JSONWriter writer = new JSONWriter(out);
+    writer.value(this.object);
+    writer.flush();
   }
 
   public String toString() {
-    return this.object.toString();
+    return toJSONString();
   }
 
   public void put(String key, Object value) {
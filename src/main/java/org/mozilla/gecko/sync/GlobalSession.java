@@ -11,12 +11,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
@@ -32,6 +36,8 @@ import org.mozilla.gecko.sync.delegates.KeyUploadDelegate;
 import org.mozilla.gecko.sync.delegates.MetaGlobalDelegate;
 import org.mozilla.gecko.sync.delegates.NodeAssignmentCallback;
 import org.mozilla.gecko.sync.delegates.WipeServerDelegate;
+import org.mozilla.gecko.sync.metrics.MetricsSink;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.HttpResponseObserver;
@@ -48,12 +54,14 @@ import org.mozilla.gecko.sync.stage.EnsureClusterURLStage;
 import org.mozilla.gecko.sync.stage.EnsureCrypto5KeysStage;
 import org.mozilla.gecko.sync.stage.FennecTabsServerSyncStage;
 import org.mozilla.gecko.sync.stage.FetchInfoCollectionsStage;
+import org.mozilla.gecko.sync.stage.FetchInfoConfigurationStage;
 import org.mozilla.gecko.sync.stage.FetchMetaGlobalStage;
 import org.mozilla.gecko.sync.stage.FormHistoryServerSyncStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
 import org.mozilla.gecko.sync.stage.NoSuchStageException;
 import org.mozilla.gecko.sync.stage.PasswordsServerSyncStage;
+import org.mozilla.gecko.sync.stage.ServerSyncStage;
 import org.mozilla.gecko.sync.stage.SyncClientsEngineStage;
 import org.mozilla.gecko.sync.stage.UploadMetaGlobalStage;
 
@@ -75,11 +83,64 @@ public class GlobalSession implements HttpResponseObserver {
   protected final ClientsDataDelegate clientsDelegate;
   protected final NodeAssignmentCallback nodeAssignmentCallback;
 
+  /**
+   * Timings and counts for this sync. HTTP requests are recorded under
+   * <code>http</code>, each engine under its collection name, and each stage
+   * that runs on its own as <code>stage.NAME.millis</code>.
+   */
+  protected final SyncMetrics metrics = new SyncMetrics();
+
+  // BaseResource only holds a weak reference to this.
+  protected final SyncMetrics httpMetrics = metrics.scope("http");
+
+  protected volatile MetricsSink metricsSink = null;
+  // System.nanoTime() can return any value, including negative ones; we
+  // take this one to mean we're not timing. Stages finish on many threads.
+  protected static final long NOT_TIMING = Long.MIN_VALUE;
+  protected volatile long syncStartNanos = NOT_TIMING;
+  protected volatile long stageStartNanos = NOT_TIMING;
+
   /**
    * Map from engine name to new settings for an updated meta/global record.
    * Engines to remove will have <code>null</code> EngineSettings.
    */
-  public final Map<String, EngineSettings> enginesToUpdate = new HashMap<String, EngineSettings>();
+  public final Map<String, EngineSettings> enginesToUpdate = Collections.synchronizedMap(new HashMap<String, EngineSettings>());
+
+  /**
+   * Engine stages that depend only on the stages before them (meta/global,
+   * crypto/keys, clients), not on each other, and so can run concurrently.
+   * <code>uploadMetaGlobal</code> runs only once all of them have finished.
+   */
+  protected static final Set<Stage> CONCURRENT_STAGES = Collections.unmodifiableSet(EnumSet.of(
+      Stage.syncTabs,
+      Stage.syncPasswords,
+      Stage.syncBookmarks,
+      Stage.syncHistory,
+      Stage.syncFormHistory));
+
+  public static final int DEFAULT_MAX_CONCURRENT_STAGES = 3;
+
+  private static volatile int maxConcurrentStages = DEFAULT_MAX_CONCURRENT_STAGES;
+
+  /**
+   * Limit how many engine stages run at once. 1 runs them one after another.
+   */
+  public static void setMaxConcurrentStages(int max) {
+    if (max < 1) {
+      throw new IllegalArgumentException("max must be positive.");
+    }
+    maxConcurrentStages = max;
+  }
+
+  protected static int getMaxConcurrentStages() {
+    return maxConcurrentStages;
+  }
+
+  /**
+   * The engine stages currently running, or that were running when the sync
+   * aborted; null otherwise.
+   */
+  protected volatile ConcurrentStages concurrentStages;
 
    /*
    * Key accessors.
@@ -180,6 +241,7 @@ public class GlobalSession implements HttpResponseObserver {
     stages.put(Stage.checkPreconditions,      new CheckPreconditionsStage());
     stages.put(Stage.ensureClusterURL,        new EnsureClusterURLStage(nodeAssignmentCallback));
     stages.put(Stage.fetchInfoCollections,    new FetchInfoCollectionsStage());
+    stages.put(Stage.fetchInfoConfiguration,  new FetchInfoConfigurationStage());
     stages.put(Stage.fetchMetaGlobal,         new FetchMetaGlobalStage());
     stages.put(Stage.ensureKeysStage,         new EnsureCrypto5KeysStage());
     stages.put(Stage.attemptMigrationStage,   new MigrationSentinelSyncStage());
@@ -250,8 +312,19 @@ public class GlobalSession implements HttpResponseObserver {
 
   /**
    * Move to the next stage in the syncing process.
+   * <p>
+   * Stages that can run concurrently should use
+   * {@link #advance(GlobalSyncStage)} instead: while engine stages are running
+   * concurrently, a call to this method can only be attributed to a stage if it
+   * is made from within that stage's <code>execute</code>.
    */
   public void advance() {
+    final ConcurrentStages running = this.concurrentStages;
+    if (running != null) {
+      running.stageFinished(running.executingStage());
+      return;
+    }
+
     // If we have a backoff, request a backoff and don't advance to next stage.
     long existingBackoff = largestBackoffObserved.get();
     if (existingBackoff > 0) {
@@ -259,8 +332,23 @@ public class GlobalSession implements HttpResponseObserver {
       return;
     }
 
+    if (stageStartNanos != NOT_TIMING) {
+      metrics.histogram("stage." + this.currentState.name() + ".millis").recordMillisSince(stageStartNanos);
+    }
     this.callback.handleStageCompleted(this.currentState, this);
     Stage next = nextStage(this.currentState);
+
+    if (CONCURRENT_STAGES.contains(next)) {
+      final List<Stage> group = new ArrayList<Stage>();
+      for (Stage stage = next; CONCURRENT_STAGES.contains(stage); stage = nextStage(stage)) {
+        group.add(stage);
+      }
+      if (group.size() > 1 && getMaxConcurrentStages() > 1 && canRunConcurrently(group)) {
+        runConcurrently(group);
+        return;
+      }
+    }
+
     GlobalSyncStage nextStage;
     try {
       nextStage = this.getSyncStageByName(next);
@@ -270,6 +358,7 @@ public class GlobalSession implements HttpResponseObserver {
     }
     this.currentState = next;
     Logger.info(LOG_TAG, "Running next stage " + next + " (" + nextStage + ")...");
+    stageStartNanos = System.nanoTime();
     try {
       nextStage.execute(this);
     } catch (Exception ex) {
@@ -279,6 +368,296 @@ public class GlobalSession implements HttpResponseObserver {
     }
   }
 
+  /**
+   * Called by <code>stage</code> when it has finished.
+   * <p>
+   * While engine stages are running concurrently, this records that
+   * <code>stage</code> has finished; otherwise it moves to the next stage.
+   */
+  public void advance(GlobalSyncStage stage) {
+    final ConcurrentStages running = this.concurrentStages;
+    if (running != null) {
+      running.stageFinished(stage);
+      return;
+    }
+    this.advance();
+  }
+
+  /**
+   * Only stages that say which stage they are when they finish can run
+   * concurrently; see {@link #advance(GlobalSyncStage)}.
+   */
+  protected boolean canRunConcurrently(List<Stage> group) {
+    for (Stage stage : group) {
+      try {
+        if (!(this.getSyncStageByName(stage) instanceof ServerSyncStage)) {
+          return false;
+        }
+      } catch (NoSuchStageException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected void runConcurrently(List<Stage> group) {
+    final ArrayList<GlobalSyncStage> toRun = new ArrayList<GlobalSyncStage>(group.size());
+    for (Stage stage : group) {
+      try {
+        toRun.add(this.getSyncStageByName(stage));
+      } catch (NoSuchStageException e) {
+        this.abort(e, "No such stage " + stage);
+        return;
+      }
+    }
+    // Not any one of the group; see ConcurrentStages.
+    this.currentState = group.get(0);
+    Logger.info(LOG_TAG, "Running " + group.size() + " stages concurrently: " + Utils.toCommaSeparatedString(group) + ".");
+    final ConcurrentStages running = new ConcurrentStages(group, toRun, getMaxConcurrentStages());
+    this.concurrentStages = running;
+    stageStartNanos = System.nanoTime();
+    running.start();
+  }
+
+  /**
+   * Called once every stage in <code>group</code> has finished: report them
+   * completed and carry on with the stage after them.
+   */
+  protected void concurrentStagesFinished(List<Stage> group) {
+    this.concurrentStages = null;
+    metrics.histogram("stage.concurrent.millis").recordMillisSince(stageStartNanos);
+    stageStartNanos = NOT_TIMING;
+    final int last = group.size() - 1;
+    for (int i = 0; i < last; i++) {
+      this.callback.handleStageCompleted(group.get(i), this);
+    }
+    // advance() reports the last stage completed, after checking for backoff.
+    this.currentState = group.get(last);
+    this.advance();
+  }
+
+  /**
+   * Runs a group of stages, at most <code>maxRunning</code> at a time, and
+   * joins them.
+   * <p>
+   * Each stage reports that it has finished by calling
+   * <code>advance(GlobalSyncStage)</code> or
+   * <code>abort(GlobalSyncStage, ...)</code>. Only the first report from each
+   * stage counts: a stage that aborts and then advances has still only
+   * finished once. The first stage to abort the sync, or to finish after a
+   * backoff has been observed, ends the group: stages not yet started are not
+   * started. Stages still running are left to finish, and the abort is only
+   * reported once they have, so that none of them is still writing when the
+   * sync fails or the next sync starts. Their own aborts are ignored.
+   * <p>
+   * <code>currentState</code> is the first stage of the group while it runs,
+   * so it must not be used to tell which stage is reporting.
+   */
+  protected class ConcurrentStages {
+    /**
+     * One stage of the group, once launched.
+     */
+    protected class StageRun {
+      public final Stage stage;
+      public final long startNanos = System.nanoTime();
+      // Guarded by the enclosing ConcurrentStages.
+      public boolean finished = false;
+
+      public StageRun(Stage stage) {
+        this.stage = stage;
+      }
+    }
+
+    protected final List<Stage> group;
+    protected final ArrayList<Stage> waiting;
+    protected final Map<Stage, GlobalSyncStage> stages = new EnumMap<Stage, GlobalSyncStage>(Stage.class);
+    protected final Map<GlobalSyncStage, StageRun> launched = new IdentityHashMap<GlobalSyncStage, StageRun>();
+    protected final int maxRunning;
+    protected final ExecutorService executor;
+
+    // The stage whose execute is running on the current thread, if any.
+    protected final ThreadLocal<GlobalSyncStage> executing = new ThreadLocal<GlobalSyncStage>();
+
+    protected int running = 0;
+    protected boolean ended = false;
+
+    // The abort to report once every running stage has finished.
+    protected boolean abortPending = false;
+    protected Exception abortException;
+    protected String abortReason;
+
+    public ConcurrentStages(List<Stage> group, List<GlobalSyncStage> stages, int maxRunning) {
+      this.group = group;
+      this.waiting = new ArrayList<Stage>(group);
+      for (int i = 0; i < group.size(); i++) {
+        this.stages.put(group.get(i), stages.get(i));
+      }
+      this.maxRunning = Math.min(maxRunning, stages.size());
+      this.executor = Executors.newFixedThreadPool(this.maxRunning);
+    }
+
+    public synchronized void start() {
+      while (!ended && running < maxRunning && !waiting.isEmpty()) {
+        launch(waiting.remove(0));
+      }
+    }
+
+    // Must be called while synchronized.
+    protected void launch(final Stage name) {
+      final GlobalSyncStage stage = stages.get(name);
+      launched.put(stage, new StageRun(name));
+      running++;
+      Logger.info(LOG_TAG, "Running stage " + name + " (" + running + " running, " + waiting.size() + " waiting)...");
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          executing.set(stage);
+          try {
+            stage.execute(GlobalSession.this);
+          } catch (Exception ex) {
+            Logger.warn(LOG_TAG, "Caught exception " + ex + " running stage " + name);
+            abort(stage, ex, "Uncaught exception in stage " + name + ".");
+          } finally {
+            executing.remove();
+          }
+        }
+      });
+    }
+
+    /**
+     * @return the stage whose <code>execute</code> is running on the current
+     *         thread, or null.
+     */
+    public GlobalSyncStage executingStage() {
+      return executing.get();
+    }
+
+    /**
+     * Must be called while synchronized.
+     *
+     * @return the run of <code>stage</code> if this is the first time it has
+     *         reported finishing; null otherwise.
+     */
+    protected StageRun finishRun(GlobalSyncStage stage, String what) {
+      final StageRun run = launched.get(stage);
+      if (run == null) {
+        Logger.warn(LOG_TAG, "Ignoring " + what + " from stage " + stage + ", which is not running.");
+        return null;
+      }
+      if (run.finished) {
+        Logger.warn(LOG_TAG, "Ignoring " + what + " from stage " + run.stage + ", which has already finished.");
+        return null;
+      }
+      run.finished = true;
+      running--;
+      return run;
+    }
+
+    /**
+     * <code>stage</code> called <code>advance</code>.
+     */
+    public void stageFinished(GlobalSyncStage stage) {
+      final boolean succeeded;
+      synchronized (this) {
+        if (stage == null) {
+          Logger.warn(LOG_TAG, "Ignoring advance that can't be attributed to a running stage.");
+          return;
+        }
+        final StageRun run = finishRun(stage, "advance");
+        if (run == null) {
+          return;
+        }
+        metrics.histogram("stage." + run.stage.name() + ".millis").recordMillisSince(run.startNanos);
+        if (ended) {
+          Logger.debug(LOG_TAG, "Stage " + run.stage + " finished after concurrent stages ended; " + running + " still running.");
+          if (!readyToReportAbort()) {
+            return;
+          }
+          succeeded = false;
+        } else if (largestBackoffObserved.get() > 0) {
+          long existingBackoff = largestBackoffObserved.get();
+          end(null, "Aborting sync because of backoff of " + existingBackoff + " milliseconds.");
+          if (!readyToReportAbort()) {
+            return;
+          }
+          succeeded = false;
+        } else {
+          if (!waiting.isEmpty()) {
+            launch(waiting.remove(0));
+            return;
+          }
+          if (running > 0) {
+            return;
+          }
+          ended = true;
+          executor.shutdown();
+          succeeded = true;
+        }
+      }
+
+      if (succeeded) {
+        concurrentStagesFinished(group);
+      } else {
+        reportAbort(abortException, abortReason);
+      }
+    }
+
+    /**
+     * <code>stage</code> called <code>abort</code>. If <code>stage</code> is
+     * null and the abort wasn't made from within a stage's
+     * <code>execute</code>, it can't be attributed to a stage: it ends the
+     * group, but no stage has finished.
+     */
+    public void stageAborted(GlobalSyncStage stage, Exception e, String reason) {
+      if (stage == null) {
+        stage = executingStage();
+      }
+      synchronized (this) {
+        if (stage != null) {
+          final StageRun run = finishRun(stage, "abort");
+          if (run == null) {
+            return;
+          }
+          reason = "Stage " + run.stage + ": " + reason;
+        }
+        if (ended) {
+          Logger.warn(LOG_TAG, "Ignoring abort after concurrent stages ended: " + reason, e);
+        } else {
+          end(e, reason);
+        }
+        if (!readyToReportAbort()) {
+          return;
+        }
+      }
+      reportAbort(abortException, abortReason);
+    }
+
+    // Must be called while synchronized.
+    protected void end(Exception e, String reason) {
+      Logger.warn(LOG_TAG, "Ending concurrent stages: " + reason + " Waiting for " + running + " running stages to finish.");
+      ended = true;
+      abortPending = true;
+      abortException = e;
+      abortReason = reason;
+      waiting.clear();
+      executor.shutdown();
+    }
+
+    /**
+     * Must be called while synchronized.
+     *
+     * @return true exactly once: when the group has ended because of an abort
+     *         and no stage is still running.
+     */
+    protected boolean readyToReportAbort() {
+      if (!abortPending || running > 0) {
+        return false;
+      }
+      abortPending = false;
+      return true;
+    }
+  }
+
   public Context getContext() {
     return this.context;
   }
@@ -299,7 +678,11 @@ public class GlobalSession implements HttpResponseObserver {
     if (this.currentState != GlobalSyncStage.Stage.idle) {
       throw new AlreadySyncingException(this.currentState);
     }
+    this.concurrentStages = null;
     installAsHttpResponseObserver(); // Uninstalled by completeSync or abort.
+    syncStartNanos = System.nanoTime();
+    stageStartNanos = NOT_TIMING;
+    BaseResource.setMetrics(httpMetrics); // Uninstalled by cleanUp.
     this.advance();
   }
 
@@ -321,10 +704,44 @@ public class GlobalSession implements HttpResponseObserver {
    */
   protected void cleanUp() {
     uninstallAsHttpResponseObserver();
+    BaseResource.setMetrics(null);
     this.stages = null;
+    exportMetrics();
+  }
+
+  /**
+   * @return the metrics of this sync, complete once the sync has finished.
+   */
+  public SyncMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Export this sync's metrics to <code>sink</code> when the sync finishes,
+   * whether it succeeds or not.
+   */
+  public void setMetricsSink(MetricsSink sink) {
+    this.metricsSink = sink;
+  }
+
+  protected void exportMetrics() {
+    if (syncStartNanos != NOT_TIMING) {
+      metrics.histogram("sync.millis").recordMillisSince(syncStartNanos);
+      syncStartNanos = NOT_TIMING;
+    }
+    final MetricsSink sink = this.metricsSink;
+    if (sink == null) {
+      return;
+    }
+    try {
+      metrics.export(sink);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Got exception exporting sync metrics.", e);
+    }
   }
 
   public void completeSync() {
+    metrics.counter("sync.succeeded").increment();
     cleanUp();
     this.currentState = GlobalSyncStage.Stage.idle;
     this.callback.handleSuccess(this);
@@ -360,7 +777,9 @@ public class GlobalSession implements HttpResponseObserver {
 
     if (Logger.shouldLogVerbose(LOG_TAG)) {
       Logger.trace(LOG_TAG, "Uploading updated meta/global record since there are engine changes to meta/global.");
-      Logger.trace(LOG_TAG, "Engines requesting update [" + Utils.toCommaSeparatedString(enginesToUpdate.keySet()) + "]");
+      synchronized (enginesToUpdate) {
+        Logger.trace(LOG_TAG, "Engines requesting update [" + Utils.toCommaSeparatedString(enginesToUpdate.keySet()) + "]");
+      }
     }
 
     return true;
@@ -369,15 +788,17 @@ public class GlobalSession implements HttpResponseObserver {
   public void updateMetaGlobalInPlace() {
     config.metaGlobal.declined = this.declinedEngineNames();
     ExtendedJSONObject engines = config.metaGlobal.getEngines();
-    for (Entry<String, EngineSettings> pair : enginesToUpdate.entrySet()) {
-      if (pair.getValue() == null) {
-        engines.remove(pair.getKey());
-      } else {
-        engines.put(pair.getKey(), pair.getValue().toJSONObject());
+    synchronized (enginesToUpdate) {
+      for (Entry<String, EngineSettings> pair : enginesToUpdate.entrySet()) {
+        if (pair.getValue() == null) {
+          engines.remove(pair.getKey());
+        } else {
+          engines.put(pair.getKey(), pair.getValue().toJSONObject());
+        }
       }
-    }
 
-    enginesToUpdate.clear();
+      enginesToUpdate.clear();
+    }
   }
 
   /**
@@ -449,7 +870,31 @@ public class GlobalSession implements HttpResponseObserver {
 
 
   public void abort(Exception e, String reason) {
+    this.abort(null, e, reason);
+  }
+
+  /**
+   * Abort the sync because <code>stage</code> failed.
+   * <p>
+   * Stages that can run concurrently should say which stage is aborting, so
+   * that the abort counts as that stage finishing even when it is made from
+   * outside the stage's <code>execute</code>.
+   *
+   * @param stage the stage aborting, or null.
+   */
+  public void abort(GlobalSyncStage stage, Exception e, String reason) {
+    final ConcurrentStages running = this.concurrentStages;
+    if (running != null) {
+      // Reported once every running stage has finished.
+      running.stageAborted(stage, e, reason);
+      return;
+    }
+    reportAbort(e, reason);
+  }
+
+  protected void reportAbort(Exception e, String reason) {
     Logger.warn(LOG_TAG, "Aborting sync: " + reason, e);
+    metrics.counter("sync.aborted").increment();
     cleanUp();
     long existingBackoff = largestBackoffObserved.get();
     if (existingBackoff > 0) {
@@ -465,11 +910,21 @@ public class GlobalSession implements HttpResponseObserver {
   }
 
   public void handleHTTPError(SyncStorageResponse response, String reason) {
+    this.handleHTTPError(null, response, reason);
+  }
+
+  /**
+   * As {@link #handleHTTPError(SyncStorageResponse, String)}, for a stage that
+   * can run concurrently.
+   *
+   * @param stage the stage aborting, or null.
+   */
+  public void handleHTTPError(GlobalSyncStage stage, SyncStorageResponse response, String reason) {
     // TODO: handling of 50x (backoff), 401 (node reassignment or auth error).
     // Fall back to aborting.
     Logger.warn(LOG_TAG, "Aborting sync due to HTTP " + response.getStatusCode());
     this.interpretHTTPFailure(response.httpResponse());
-    this.abort(new HTTPFailureException(response), reason);
+    this.abort(stage, new HTTPFailureException(response), reason);
   }
 
   /**
@@ -519,7 +974,21 @@ public class GlobalSession implements HttpResponseObserver {
   }
 
   public void fetchInfoCollections(JSONRecordFetchDelegate callback) throws URISyntaxException {
+    fetchInfoCollections(callback, -1);
+  }
+
+  /**
+   * Fetch info/collections if it has changed since <code>ifModifiedSince</code>;
+   * if it hasn't, <code>callback</code> fails with a 304 response.
+   */
+  public void fetchInfoCollections(JSONRecordFetchDelegate callback, long ifModifiedSince) throws URISyntaxException {
     final JSONRecordFetcher fetcher = new JSONRecordFetcher(config.infoCollectionsURL(), getAuthHeaderProvider());
+    fetcher.setIfModifiedSince(ifModifiedSince);
+    fetcher.fetch(callback);
+  }
+
+  public void fetchInfoConfiguration(JSONRecordFetchDelegate callback) throws URISyntaxException {
+    final JSONRecordFetcher fetcher = new JSONRecordFetcher(config.infoConfigurationURL(), getAuthHeaderProvider());
     fetcher.fetch(callback);
   }
 
@@ -738,6 +1207,7 @@ public class GlobalSession implements HttpResponseObserver {
         session.resetAllStages();
         session.config.purgeMetaGlobal();
         session.config.purgeCryptoKeys();
+        session.config.purgeInfoCollections();
         session.config.persistToPrefs();
 
         Logger.info(LOG_TAG, "Uploading new meta/global with sync ID " + mg.syncID + ".");
@@ -941,9 +1411,11 @@ public class GlobalSession implements HttpResponseObserver {
   @SuppressWarnings("unchecked")
   protected JSONArray declinedEngineNames() {
     final JSONArray declined = new JSONArray();
-    for (String engine : config.declinedEngineNames) {
-      declined.add(engine);
-    };
+    synchronized (config.declinedEngineNames) {
+      for (String engine : config.declinedEngineNames) {
+        declined.add(engine);
+      }
+    }
 
     return declined;
   }
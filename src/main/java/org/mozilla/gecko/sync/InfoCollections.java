@@ -74,6 +74,24 @@ public class InfoCollections {
     return timestamps.get(collection);
   }
 
+  /**
+   * Return the most recent collection timestamp. The record can't have
+   * changed without one of these changing, so this is safe to use as the
+   * record's last modified time in a conditional request.
+   *
+   * @return the timestamp in milliseconds since epoch, or -1 if there are no
+   *         timestamps.
+   */
+  public long getLastModified() {
+    long lastModified = -1;
+    for (Long timestamp : timestamps.values()) {
+      if (timestamp != null && timestamp > lastModified) {
+        lastModified = timestamp;
+      }
+    }
+    return lastModified;
+  }
+
   /**
    * Test if a given collection needs to be updated.
    *
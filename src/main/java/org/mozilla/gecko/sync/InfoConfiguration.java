@@ -0,0 +1,81 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Upload limits advertised by the storage server at
+ * <code>info/configuration</code>.
+ * <p>
+ * Missing or malformed limits fall back to defaults that any server accepts.
+ */
+public class InfoConfiguration {
+  private static final String LOG_TAG = "InfoConfiguration";
+
+  public static final String MAX_REQUEST_BYTES = "max_request_bytes";
+  public static final String MAX_POST_RECORDS = "max_post_records";
+  public static final String MAX_POST_BYTES = "max_post_bytes";
+  public static final String MAX_TOTAL_RECORDS = "max_total_records";
+  public static final String MAX_TOTAL_BYTES = "max_total_bytes";
+
+  public static final long DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;       // 1MB.
+  public static final long DEFAULT_MAX_POST_RECORDS = 100;
+  public static final long DEFAULT_MAX_POST_BYTES = 1024 * 1024;          // 1MB.
+  public static final long DEFAULT_MAX_TOTAL_RECORDS = 10000;
+  public static final long DEFAULT_MAX_TOTAL_BYTES = 100 * 1024 * 1024;   // 100MB.
+
+  /**
+   * Largest request body, in bytes.
+   */
+  public final long maxRequestBytes;
+
+  /**
+   * Most records in a single POST.
+   */
+  public final long maxPostRecords;
+
+  /**
+   * Largest total size, in bytes, of the records in a single POST.
+   */
+  public final long maxPostBytes;
+
+  /**
+   * Most records in a single batch.
+   */
+  public final long maxTotalRecords;
+
+  /**
+   * Largest total size, in bytes, of the records in a single batch.
+   */
+  public final long maxTotalBytes;
+
+  public InfoConfiguration() {
+    this(new ExtendedJSONObject());
+  }
+
+  public InfoConfiguration(final ExtendedJSONObject record) {
+    Logger.debug(LOG_TAG, "info/configuration is " + record.toJSONString());
+    this.maxRequestBytes = getLimit(record, MAX_REQUEST_BYTES, DEFAULT_MAX_REQUEST_BYTES);
+    this.maxPostRecords = getLimit(record, MAX_POST_RECORDS, DEFAULT_MAX_POST_RECORDS);
+    this.maxPostBytes = getLimit(record, MAX_POST_BYTES, DEFAULT_MAX_POST_BYTES);
+    this.maxTotalRecords = getLimit(record, MAX_TOTAL_RECORDS, DEFAULT_MAX_TOTAL_RECORDS);
+    this.maxTotalBytes = getLimit(record, MAX_TOTAL_BYTES, DEFAULT_MAX_TOTAL_BYTES);
+  }
+
+  protected static long getLimit(final ExtendedJSONObject record, final String key, final long defaultValue) {
+    final Object value = record.get(key);
+    if (value instanceof Number) {
+      final long limit = ((Number) value).longValue();
+      if (limit > 0) {
+        return limit;
+      }
+    }
+    if (value != null) {
+      Logger.warn(LOG_TAG, "Ignoring malformed info/configuration entry for " + key);
+    }
+    return defaultValue;
+  }
+}
@@ -26,6 +26,9 @@ public class JSONRecordFetcher {
   protected final String uri;
   protected JSONRecordFetchDelegate delegate;
 
+  protected long ifModifiedSince = -1;
+  protected String ifNoneMatch = null;
+
   public JSONRecordFetcher(final String uri, final AuthHeaderProvider authHeaderProvider) {
     if (uri == null) {
       throw new IllegalArgumentException("uri must not be null");
@@ -38,6 +41,27 @@ public class JSONRecordFetcher {
     return this.uri;
   }
 
+  /**
+   * Only fetch the record if it has changed since <code>timestamp</code>. If
+   * it hasn't, the delegate's <code>handleFailure</code> is called with a 304
+   * response.
+   *
+   * @param timestamp milliseconds since the epoch; non-positive values make
+   *        the fetch unconditional.
+   */
+  public void setIfModifiedSince(long timestamp) {
+    this.ifModifiedSince = timestamp;
+  }
+
+  /**
+   * Only fetch the record if its entity tag doesn't match <code>etag</code>.
+   * If it does, the delegate's <code>handleFailure</code> is called with a
+   * 304 response.
+   */
+  public void setIfNoneMatch(String etag) {
+    this.ifNoneMatch = etag;
+  }
+
   private class JSONFetchHandler implements SyncStorageRequestDelegate {
 
     // SyncStorageRequestDelegate methods for fetching.
@@ -80,6 +104,8 @@ public class JSONRecordFetcher {
     try {
       final SyncStorageRecordRequest r = new SyncStorageRecordRequest(this.getURI());
       r.delegate = new JSONFetchHandler();
+      r.setIfModifiedSince(this.ifModifiedSince);
+      r.setIfNoneMatch(this.ifNoneMatch);
       r.get();
     } catch (Exception e) {
       delegate.handleError(e);
@@ -0,0 +1,500 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.nio.charset.Charset;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Pull tokenizer over UTF-8 encoded JSON.
+ * <p>
+ * Call {@link #next()} to advance to the next token, then read the value of
+ * a <code>STRING</code>, <code>LONG</code> or <code>DOUBLE</code> token with
+ * {@link #stringValue()}, {@link #longValue()} or {@link #doubleValue()}.
+ * Integers are read without boxing; strings are only decoded when asked for,
+ * and short ASCII object keys are shared between parses.
+ * <p>
+ * {@link #readValue()} builds a tree out of the tokens: objects become
+ * {@link CompactJSONObject} instances holding their numbers unboxed, and
+ * arrays become <code>JSONArray</code> instances, as json-simple would
+ * produce.
+ * <p>
+ * Instances are not thread-safe, and must not outlive the input buffer.
+ */
+public class JSONTokenizer {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public static final int END_DOCUMENT = 0;
+  public static final int BEGIN_OBJECT = 1;
+  public static final int END_OBJECT   = 2;
+  public static final int BEGIN_ARRAY  = 3;
+  public static final int END_ARRAY    = 4;
+  public static final int COLON        = 5;
+  public static final int COMMA        = 6;
+  public static final int STRING       = 7;
+  public static final int LONG         = 8;
+  public static final int DOUBLE       = 9;
+  public static final int TRUE         = 10;
+  public static final int FALSE        = 11;
+  public static final int NULL         = 12;
+
+  // Deeper input is rejected rather than risking the stack.
+  protected static final int MAX_DEPTH = 256;
+
+  // Object keys repeat from record to record, so short ASCII keys are cached.
+  // Races only cost an extra String.
+  private static final int KEY_CACHE_SIZE = 512;
+  private static final int MAX_CACHED_KEY_LENGTH = 32;
+  private static final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+  private final byte[] buf;
+  private final int end;
+  private int pos;
+
+  // Where the current token starts, for error reporting.
+  private int tokenStart;
+
+  // Set for STRING tokens: the content between the quotes.
+  private int stringStart;
+  private int stringEnd;
+  private boolean stringHasEscapes;
+  private boolean stringIsASCII;
+  private int stringHash;
+
+  // Set for LONG and DOUBLE tokens.
+  private long longValue;
+  private double doubleValue;
+
+  // Reused for strings with escapes.
+  private byte[] scratch;
+
+  public JSONTokenizer(byte[] buf, int offset, int length) {
+    this.buf = buf;
+    this.pos = offset;
+    this.end = offset + length;
+  }
+
+  public JSONTokenizer(byte[] buf) {
+    this(buf, 0, buf.length);
+  }
+
+  /**
+   * @return the offset in the input of the start of the current token.
+   */
+  public int position() {
+    return tokenStart;
+  }
+
+  /**
+   * Advance to the next token.
+   *
+   * @return one of the token constants; <code>END_DOCUMENT</code> at the end
+   *         of the input.
+   * @throws ParseException if the input isn't a valid token.
+   */
+  public int next() throws ParseException {
+    skipWhitespace();
+    tokenStart = pos;
+    if (pos >= end) {
+      return END_DOCUMENT;
+    }
+    final byte b = buf[pos++];
+    switch (b) {
+    case '{': return BEGIN_OBJECT;
+    case '}': return END_OBJECT;
+    case '[': return BEGIN_ARRAY;
+    case ']': return END_ARRAY;
+    case ':': return COLON;
+    case ',': return COMMA;
+    case '"':
+      scanString();
+      return STRING;
+    case 't':
+      expectLiteral("rue");
+      return TRUE;
+    case 'f':
+      expectLiteral("alse");
+      return FALSE;
+    case 'n':
+      expectLiteral("ull");
+      return NULL;
+    default:
+      if (b == '-' || (b >= '0' && b <= '9')) {
+        --pos;
+        return scanNumber();
+      }
+      throw unexpectedChar();
+    }
+  }
+
+  /**
+   * @return the value of the current <code>STRING</code> token.
+   */
+  public String stringValue() throws ParseException {
+    final int length = stringEnd - stringStart;
+    if (!stringHasEscapes) {
+      return new String(buf, stringStart, length, UTF8);
+    }
+    // Unescaping never makes the string longer.
+    if (scratch == null || scratch.length < length) {
+      scratch = new byte[Math.max(length, 64)];
+    }
+    final int decoded = unescape(buf, stringStart, stringEnd, scratch, 0);
+    return new String(scratch, 0, decoded, UTF8);
+  }
+
+  /**
+   * Like {@link #stringValue()}, but short ASCII strings are shared with
+   * earlier parses. Use this for object keys.
+   */
+  public String keyValue() throws ParseException {
+    final int length = stringEnd - stringStart;
+    if (stringHasEscapes || !stringIsASCII || length > MAX_CACHED_KEY_LENGTH) {
+      return stringValue();
+    }
+    // For ASCII, stringHash is exactly String.hashCode().
+    final int slot = (stringHash ^ (stringHash >>> 16)) & (KEY_CACHE_SIZE - 1);
+    final String cached = keyCache[slot];
+    if (cached != null && cached.length() == length) {
+      int i = 0;
+      while (i < length && cached.charAt(i) == buf[stringStart + i]) {
+        ++i;
+      }
+      if (i == length) {
+        return cached;
+      }
+    }
+    final String key = new String(buf, stringStart, length, UTF8);
+    keyCache[slot] = key;
+    return key;
+  }
+
+  /**
+   * @return the value of the current <code>LONG</code> token.
+   */
+  public long longValue() {
+    return longValue;
+  }
+
+  /**
+   * @return the value of the current <code>DOUBLE</code> or <code>LONG</code>
+   *         token.
+   */
+  public double doubleValue() {
+    return doubleValue;
+  }
+
+  /**
+   * Read a complete value, starting with the next token.
+   *
+   * @return a <code>CompactJSONObject</code>, <code>JSONArray</code>,
+   *         <code>String</code>, <code>Long</code>, <code>Double</code>,
+   *         <code>Boolean</code>, or null.
+   */
+  public Object readValue() throws ParseException {
+    return readValue(next(), 0);
+  }
+
+  /**
+   * Read a complete document: a single value followed by the end of input.
+   */
+  public Object readDocument() throws ParseException {
+    final Object value = readValue();
+    if (next() != END_DOCUMENT) {
+      throw unexpectedToken();
+    }
+    return value;
+  }
+
+  protected Object readValue(int token, int depth) throws ParseException {
+    switch (token) {
+    case BEGIN_OBJECT:
+      return readObject(depth + 1);
+    case BEGIN_ARRAY:
+      return readArray(depth + 1);
+    case STRING:
+      return stringValue();
+    case LONG:
+      return Long.valueOf(longValue);
+    case DOUBLE:
+      return Double.valueOf(doubleValue);
+    case TRUE:
+      return Boolean.TRUE;
+    case FALSE:
+      return Boolean.FALSE;
+    case NULL:
+      return null;
+    default:
+      throw unexpectedToken();
+    }
+  }
+
+  // Like json-simple, we treat commas between members and elements as
+  // optional: they may be missing, repeated, or trailing.
+
+  protected CompactJSONObject readObject(int depth) throws ParseException {
+    if (depth > MAX_DEPTH) {
+      throw unexpectedToken();
+    }
+    final CompactJSONObject object = new CompactJSONObject();
+    while (true) {
+      final int token = next();
+      if (token == COMMA) {
+        continue;
+      }
+      if (token == END_OBJECT) {
+        return object;
+      }
+      if (token != STRING) {
+        throw unexpectedToken();
+      }
+      final String key = keyValue();
+      if (next() != COLON) {
+        throw unexpectedToken();
+      }
+      final int valueToken = next();
+      // Numbers are stored without boxing.
+      if (valueToken == LONG) {
+        object.putLong(key, longValue);
+      } else if (valueToken == DOUBLE) {
+        object.putDouble(key, doubleValue);
+      } else {
+        object.put(key, readValue(valueToken, depth));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  protected JSONArray readArray(int depth) throws ParseException {
+    if (depth > MAX_DEPTH) {
+      throw unexpectedToken();
+    }
+    final JSONArray array = new JSONArray();
+    while (true) {
+      final int token = next();
+      if (token == COMMA) {
+        continue;
+      }
+      if (token == END_ARRAY) {
+        return array;
+      }
+      array.add(readValue(token, depth));
+    }
+  }
+
+  protected void skipWhitespace() {
+    while (pos < end) {
+      final byte b = buf[pos];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r' && b != '\f') {
+        return;
+      }
+      ++pos;
+    }
+  }
+
+  protected void expectLiteral(String rest) throws ParseException {
+    for (int i = 0; i < rest.length(); ++i) {
+      if (pos >= end || buf[pos] != rest.charAt(i)) {
+        throw unexpectedChar();
+      }
+      ++pos;
+    }
+  }
+
+  /**
+   * Advance past a string whose opening quote has already been consumed.
+   */
+  protected void scanString() throws ParseException {
+    stringStart = pos;
+    stringHasEscapes = false;
+    int ascii = 0;
+    int hash = 0;
+    while (pos < end) {
+      final byte b = buf[pos++];
+      if (b == '"') {
+        stringEnd = pos - 1;
+        stringIsASCII = ascii >= 0;
+        stringHash = hash;
+        return;
+      }
+      if (b == '\\') {
+        stringHasEscapes = true;
+        ++pos;
+      }
+      ascii |= b;
+      hash = 31 * hash + b;
+    }
+    throw new ParseException(stringStart - 1, ParseException.ERROR_UNEXPECTED_EXCEPTION, "Unterminated string.");
+  }
+
+  /**
+   * Read a number in json-simple's grammar: <code>-?[0-9]+</code> is a
+   * <code>LONG</code>, and anything with a fraction or exponent is a
+   * <code>DOUBLE</code>. Integers too large for a long are read as doubles.
+   */
+  protected int scanNumber() throws ParseException {
+    final int start = pos;
+    boolean negative = false;
+    if (buf[pos] == '-') {
+      negative = true;
+      ++pos;
+    }
+    long value = 0;
+    int digits = 0;
+    while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+      value = value * 10 + (buf[pos++] - '0');
+      ++digits;
+    }
+    if (digits == 0) {
+      throw unexpectedChar();
+    }
+    boolean integral = true;
+    if (pos < end && buf[pos] == '.') {
+      integral = false;
+      ++pos;
+      if (!skipDigits()) {
+        throw unexpectedChar();
+      }
+    }
+    if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+      integral = false;
+      ++pos;
+      if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) {
+        ++pos;
+      }
+      if (!skipDigits()) {
+        throw unexpectedChar();
+      }
+    }
+
+    if (integral && digits <= 18) {
+      longValue = negative ? -value : value;
+      doubleValue = longValue;
+      return LONG;
+    }
+    final String number = new String(buf, start, pos - start, UTF8);
+    if (integral) {
+      try {
+        longValue = Long.parseLong(number, 10);
+        doubleValue = longValue;
+        return LONG;
+      } catch (NumberFormatException e) {
+        // Fall through.
+      }
+    }
+    try {
+      doubleValue = Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw new ParseException(start, ParseException.ERROR_UNEXPECTED_TOKEN, number);
+    }
+    return DOUBLE;
+  }
+
+  private boolean skipDigits() {
+    final int start = pos;
+    while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+      ++pos;
+    }
+    return pos > start;
+  }
+
+  protected ParseException unexpectedChar() {
+    final int at = Math.min(pos, end - 1);
+    return new ParseException(at, ParseException.ERROR_UNEXPECTED_CHAR,
+        at < 0 ? null : Character.valueOf((char) (buf[at] & 0xFF)));
+  }
+
+  protected ParseException unexpectedToken() {
+    return new ParseException(tokenStart, ParseException.ERROR_UNEXPECTED_TOKEN,
+        tokenStart < end ? Character.valueOf((char) (buf[tokenStart] & 0xFF)) : "END OF FILE");
+  }
+
+  /**
+   * Decode the JSON string escapes in <code>in[start, stop)</code>, writing
+   * UTF-8 to <code>out</code> starting at <code>outPos</code>. The output is
+   * never longer than the input.
+   *
+   * @return the index in <code>out</code> after the last byte written.
+   */
+  public static int unescape(byte[] in, int start, int stop, byte[] out, int outPos) throws ParseException {
+    int i = start;
+    while (i < stop) {
+      final byte b = in[i++];
+      if (b != '\\') {
+        out[outPos++] = b;
+        continue;
+      }
+      if (i >= stop) {
+        throw new ParseException(i - 1, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf('\\'));
+      }
+      final byte e = in[i++];
+      switch (e) {
+      case '"':  out[outPos++] = '"';  break;
+      case '\\': out[outPos++] = '\\'; break;
+      case '/':  out[outPos++] = '/';  break;
+      case 'b':  out[outPos++] = '\b'; break;
+      case 'f':  out[outPos++] = '\f'; break;
+      case 'n':  out[outPos++] = '\n'; break;
+      case 'r':  out[outPos++] = '\r'; break;
+      case 't':  out[outPos++] = '\t'; break;
+      case 'u':
+        int codePoint = readHex4(in, i, stop);
+        i += 4;
+        if (codePoint >= 0xD800 && codePoint <= 0xDBFF &&
+            i + 6 <= stop && in[i] == '\\' && in[i + 1] == 'u') {
+          final int low = readHex4(in, i + 2, stop);
+          if (low >= 0xDC00 && low <= 0xDFFF) {
+            codePoint = 0x10000 + ((codePoint - 0xD800) << 10) + (low - 0xDC00);
+            i += 6;
+          }
+        }
+        outPos = writeUTF8(codePoint, out, outPos);
+        break;
+      default:
+        throw new ParseException(i - 1, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf((char) e));
+      }
+    }
+    return outPos;
+  }
+
+  private static int readHex4(byte[] in, int i, int stop) throws ParseException {
+    if (i + 4 > stop) {
+      throw new ParseException(i, ParseException.ERROR_UNEXPECTED_EXCEPTION, "Truncated unicode escape.");
+    }
+    int value = 0;
+    for (int j = i; j < i + 4; ++j) {
+      final int digit = Character.digit(in[j], 16);
+      if (digit < 0) {
+        throw new ParseException(j, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf((char) in[j]));
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  // Every escape is at least as long as the UTF-8 it produces: \\uXXXX is six
+  // bytes, and no code point below 0x10000 needs more than three; a surrogate
+  // pair is twelve bytes for four.
+  private static int writeUTF8(int codePoint, byte[] out, int outPos) {
+    if (codePoint < 0x80) {
+      out[outPos++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      out[outPos++] = (byte) (0xC0 | (codePoint >> 6));
+      out[outPos++] = (byte) (0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      out[outPos++] = (byte) (0xE0 | (codePoint >> 12));
+      out[outPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      out[outPos++] = (byte) (0x80 | (codePoint & 0x3F));
+    } else {
+      out[outPos++] = (byte) (0xF0 | (codePoint >> 18));
+      out[outPos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+      out[outPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      out[outPos++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+    return outPos;
+  }
+}
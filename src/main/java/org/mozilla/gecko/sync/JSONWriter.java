@@ -0,0 +1,482 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONAware;
+
+/**
+ * Streaming JSON writer producing UTF-8.
+ * <p>
+ * Output goes through a byte buffer, either to an <code>OutputStream</code>
+ * or, for a writer made with {@link #JSONWriter()}, into a growable buffer
+ * read with {@link #toByteArray()}. Values can be written whole with
+ * {@link #value(Object)}, or piecewise with {@link #beginObject()},
+ * {@link #name(String)}, {@link #value(long)} and friends; the caller is
+ * responsible for nesting them correctly.
+ * <p>
+ * The output is byte-for-byte what json-simple's <code>toJSONString</code>
+ * produces, including its escaping of '/' and of some non-ASCII ranges, and
+ * <code>toString()</code> for unknown types.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class JSONWriter {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+  private static final int DEFAULT_IN_MEMORY_SIZE = 256;
+
+  // The longest a single char can become: "\\uXXXX", or a four-byte
+  // supplementary character.
+  private static final int MAX_BYTES_PER_CHAR = 6;
+
+  private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+  private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+  private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+  private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+  // For each ASCII character: 0 to copy it, 'u' for a \\u escape, or the
+  // character to follow the backslash.
+  private static final byte[] ASCII_ESCAPES = new byte[128];
+  static {
+    for (int c = 0; c < 0x20; ++c) {
+      ASCII_ESCAPES[c] = 'u';
+    }
+    ASCII_ESCAPES[0x7F] = 'u';
+    ASCII_ESCAPES['"'] = '"';
+    ASCII_ESCAPES['\\'] = '\\';
+    ASCII_ESCAPES['/'] = '/';
+    ASCII_ESCAPES['\b'] = 'b';
+    ASCII_ESCAPES['\f'] = 'f';
+    ASCII_ESCAPES['\n'] = 'n';
+    ASCII_ESCAPES['\r'] = 'r';
+    ASCII_ESCAPES['\t'] = 't';
+  }
+
+  // Null for an in-memory writer.
+  protected final OutputStream out;
+  protected byte[] buffer;
+  protected int count;
+
+  // For each open object or array, whether anything has been written to it.
+  private boolean[] nonEmpty = new boolean[8];
+  private int depth;
+  private boolean afterName;
+
+  public JSONWriter(OutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  public JSONWriter(OutputStream out, int bufferSize) {
+    if (out == null) {
+      throw new IllegalArgumentException("out must not be null.");
+    }
+    this.out = out;
+    this.buffer = new byte[Math.max(bufferSize, 64)];
+  }
+
+  /**
+   * Create a writer that accumulates its output in memory.
+   */
+  public JSONWriter() {
+    this.out = null;
+    this.buffer = new byte[DEFAULT_IN_MEMORY_SIZE];
+  }
+
+  /**
+   * @return the UTF-8 encoding of <code>value</code>, as json-simple would
+   *         serialize it.
+   */
+  public static byte[] toJSONBytes(Object value) {
+    final JSONWriter writer = new JSONWriter();
+    try {
+      writer.value(value);
+    } catch (IOException e) {
+      // In-memory writers don't throw.
+      throw new IllegalStateException(e);
+    }
+    return writer.toByteArray();
+  }
+
+  public static String toJSONString(Object value) {
+    final JSONWriter writer = new JSONWriter();
+    try {
+      writer.value(value);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return new String(writer.buffer, 0, writer.count, UTF8);
+  }
+
+  /**
+   * Write any buffered output to the underlying stream, and flush it.
+   */
+  public void flush() throws IOException {
+    if (out != null) {
+      out.write(buffer, 0, count);
+      count = 0;
+      out.flush();
+    }
+  }
+
+  /**
+   * @return a copy of the output of an in-memory writer.
+   */
+  public byte[] toByteArray() {
+    if (out != null) {
+      throw new IllegalStateException("Not an in-memory writer.");
+    }
+    return Arrays.copyOf(buffer, count);
+  }
+
+  /**
+   * @return the number of bytes written to an in-memory writer.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Discard the output of an in-memory writer, keeping its buffer for reuse.
+   */
+  public void reset() {
+    count = 0;
+    depth = 0;
+    afterName = false;
+  }
+
+  public JSONWriter beginObject() throws IOException {
+    beforeValue();
+    writeByte('{');
+    push();
+    return this;
+  }
+
+  public JSONWriter endObject() throws IOException {
+    --depth;
+    writeByte('}');
+    return this;
+  }
+
+  public JSONWriter beginArray() throws IOException {
+    beforeValue();
+    writeByte('[');
+    push();
+    return this;
+  }
+
+  public JSONWriter endArray() throws IOException {
+    --depth;
+    writeByte(']');
+    return this;
+  }
+
+  /**
+   * Write the name of the next member of the current object.
+   */
+  public JSONWriter name(String name) throws IOException {
+    if (nonEmpty[depth - 1]) {
+      writeByte(',');
+    }
+    nonEmpty[depth - 1] = true;
+    writeQuoted(name);
+    writeByte(':');
+    afterName = true;
+    return this;
+  }
+
+  public JSONWriter value(String value) throws IOException {
+    beforeValue();
+    if (value == null) {
+      writeBytes(NULL);
+    } else {
+      writeQuoted(value);
+    }
+    return this;
+  }
+
+  /**
+   * Write a string given as valid UTF-8 bytes, escaped exactly as
+   * {@link #value(String)} would escape the decoded string.
+   */
+  public JSONWriter value(byte[] utf8, int offset, int length) throws IOException {
+    beforeValue();
+    require(2);
+    buffer[count++] = '"';
+    final int stop = offset + length;
+    for (int i = offset; i < stop; ++i) {
+      if (buffer.length - count < MAX_BYTES_PER_CHAR) {
+        require(MAX_BYTES_PER_CHAR);
+      }
+      final int b = utf8[i] & 0xFF;
+      if (b < 0x80) {
+        final byte escape = ASCII_ESCAPES[b];
+        if (escape == 0) {
+          buffer[count++] = (byte) b;
+        } else if (escape == 'u') {
+          writeUnicodeEscape((char) b);
+        } else {
+          buffer[count++] = '\\';
+          buffer[count++] = escape;
+        }
+      } else if (b == 0xC2 && i + 1 < stop && (utf8[i + 1] & 0xFF) <= 0x9F) {
+        // U+0080 to U+009F.
+        writeUnicodeEscape((char) (utf8[++i] & 0xFF));
+      } else if (b == 0xE2 && i + 2 < stop && (utf8[i + 1] & 0xFF) <= 0x83) {
+        // U+2000 to U+20FF.
+        final int c = ((utf8[i + 1] & 0x3F) << 6) | (utf8[i + 2] & 0x3F);
+        writeUnicodeEscape((char) (0x2000 | c));
+        i += 2;
+      } else {
+        buffer[count++] = (byte) b;
+      }
+    }
+    writeByte('"');
+    return this;
+  }
+
+  /**
+   * Write a value that is already serialized as JSON.
+   */
+  public JSONWriter rawValue(byte[] json) throws IOException {
+    beforeValue();
+    writeBytes(json);
+    return this;
+  }
+
+  public JSONWriter value(long value) throws IOException {
+    beforeValue();
+    writeLong(value);
+    return this;
+  }
+
+  public JSONWriter value(double value) throws IOException {
+    beforeValue();
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      writeBytes(NULL);
+    } else {
+      writeASCII(Double.toString(value));
+    }
+    return this;
+  }
+
+  public JSONWriter value(boolean value) throws IOException {
+    beforeValue();
+    writeBytes(value ? TRUE : FALSE);
+    return this;
+  }
+
+  /**
+   * Write any value json-simple can serialize.
+   */
+  @SuppressWarnings("rawtypes")
+  public JSONWriter value(Object value) throws IOException {
+    if (value == null) {
+      beforeValue();
+      writeBytes(NULL);
+    } else if (value instanceof String) {
+      value((String) value);
+    } else if (value instanceof Long || value instanceof Integer ||
+               value instanceof Short || value instanceof Byte) {
+      value(((Number) value).longValue());
+    } else if (value instanceof Double) {
+      value(((Double) value).doubleValue());
+    } else if (value instanceof Float) {
+      final Float f = (Float) value;
+      beforeValue();
+      if (f.isNaN() || f.isInfinite()) {
+        writeBytes(NULL);
+      } else {
+        writeASCII(f.toString());
+      }
+    } else if (value instanceof Boolean) {
+      value(((Boolean) value).booleanValue());
+    } else if (value instanceof CompactJSONObject) {
+      ((CompactJSONObject) value).writeTo(this);
+    } else if (value instanceof ExtendedJSONObject) {
+      value(((ExtendedJSONObject) value).object);
+    } else if (value instanceof Map) {
+      writeMap((Map) value);
+    } else if (value instanceof List) {
+      writeList((List) value);
+    } else if (value instanceof JSONAware) {
+      beforeValue();
+      writeRaw(((JSONAware) value).toJSONString());
+    } else {
+      // Numbers other than the above, and anything else json-simple would
+      // write with toString.
+      beforeValue();
+      writeRaw(value.toString());
+    }
+    return this;
+  }
+
+  public JSONWriter writeMap(Map<?, ?> map) throws IOException {
+    beginObject();
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      name(String.valueOf(entry.getKey()));
+      value(entry.getValue());
+    }
+    return endObject();
+  }
+
+  public JSONWriter writeList(List<?> list) throws IOException {
+    beginArray();
+    for (Object o : list) {
+      value(o);
+    }
+    return endArray();
+  }
+
+  private void push() {
+    if (depth == nonEmpty.length) {
+      nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+    }
+    nonEmpty[depth++] = false;
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (depth > 0) {
+      if (nonEmpty[depth - 1]) {
+        writeByte(',');
+      }
+      nonEmpty[depth - 1] = true;
+    }
+  }
+
+  /**
+   * Make room for at least <code>needed</code> more bytes in the buffer.
+   */
+  protected void require(int needed) throws IOException {
+    if (buffer.length - count >= needed) {
+      return;
+    }
+    if (out != null) {
+      out.write(buffer, 0, count);
+      count = 0;
+      if (buffer.length >= needed) {
+        return;
+      }
+    }
+    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + needed));
+  }
+
+  protected void writeByte(int b) throws IOException {
+    if (count == buffer.length) {
+      require(1);
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  protected void writeBytes(byte[] bytes) throws IOException {
+    require(bytes.length);
+    System.arraycopy(bytes, 0, buffer, count, bytes.length);
+    count += bytes.length;
+  }
+
+  /**
+   * Append the UTF-8 bytes of a string that needs no escaping.
+   */
+  protected void writeASCII(String s) throws IOException {
+    final int length = s.length();
+    require(length);
+    for (int i = 0; i < length; ++i) {
+      buffer[count++] = (byte) s.charAt(i);
+    }
+  }
+
+  protected void writeRaw(String s) throws IOException {
+    writeBytes(s.getBytes(UTF8));
+  }
+
+  protected void writeLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      writeASCII(Long.toString(value));
+      return;
+    }
+    require(20);
+    if (value < 0) {
+      buffer[count++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value / 10; v > 0; v /= 10) {
+      ++digits;
+    }
+    int i = count + digits;
+    count = i;
+    do {
+      buffer[--i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+  }
+
+  /**
+   * Write a quoted, escaped string as UTF-8.
+   */
+  protected void writeQuoted(String s) throws IOException {
+    final int length = s.length();
+    require(2);
+    buffer[count++] = '"';
+    for (int i = 0; i < length; ++i) {
+      if (buffer.length - count < MAX_BYTES_PER_CHAR) {
+        require(MAX_BYTES_PER_CHAR);
+      }
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        final byte escape = ASCII_ESCAPES[c];
+        if (escape == 0) {
+          buffer[count++] = (byte) c;
+        } else if (escape == 'u') {
+          writeUnicodeEscape(c);
+        } else {
+          buffer[count++] = '\\';
+          buffer[count++] = escape;
+        }
+      } else if (c <= 0x9F || (c >= 0x2000 && c <= 0x20FF)) {
+        writeUnicodeEscape(c);
+      } else if (c < 0x800) {
+        buffer[count++] = (byte) (0xC0 | (c >> 6));
+        buffer[count++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // Unpaired surrogates become '?', as with String.getBytes.
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+          buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+          buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+          buffer[count++] = '?';
+        }
+      } else {
+        buffer[count++] = (byte) (0xE0 | (c >> 12));
+        buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[count++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    writeByte('"');
+  }
+
+  private void writeUnicodeEscape(char c) {
+    buffer[count++] = '\\';
+    buffer[count++] = 'u';
+    buffer[count++] = HEX[(c >> 12) & 0xF];
+    buffer[count++] = HEX[(c >> 8) & 0xF];
+    buffer[count++] = HEX[(c >> 4) & 0xF];
+    buffer[count++] = HEX[c & 0xF];
+  }
+}
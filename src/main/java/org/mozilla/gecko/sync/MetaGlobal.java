@@ -51,11 +51,24 @@ public class MetaGlobal implements SyncStorageRequestDelegate {
   }
 
   public void fetch(MetaGlobalDelegate delegate) {
+    fetch(delegate, -1);
+  }
+
+  /**
+   * Fetch meta/global if it has changed since <code>ifModifiedSince</code>.
+   * If it hasn't, the delegate's <code>handleFailure</code> is called with a
+   * 304 response.
+   *
+   * @param ifModifiedSince milliseconds since the epoch; non-positive values
+   *        make the fetch unconditional.
+   */
+  public void fetch(MetaGlobalDelegate delegate, long ifModifiedSince) {
     this.callback = delegate;
     try {
       this.isUploading = false;
       SyncStorageRecordRequest r = new SyncStorageRecordRequest(this.metaURL);
       r.delegate = this;
+      r.setIfModifiedSince(ifModifiedSince);
       r.deferGet();
     } catch (URISyntaxException e) {
       this.callback.handleError(e);
@@ -0,0 +1,92 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the last <code>info/collections</code> record we fetched, so that
+ * we can fetch it conditionally and reuse it when the server says it hasn't
+ * changed.
+ * <p>
+ * The record is stored with the URL it was fetched from: timestamps from one
+ * storage node mean nothing to another.
+ */
+public class PersistedInfoCollections {
+  public static final String LOG_TAG = "PersistedInfoColls";
+
+  public static final String INFO_COLLECTIONS_SERVER_RESPONSE_BODY = "infoCollectionsServerResponseBody";
+  public static final String INFO_COLLECTIONS_LAST_MODIFIED        = "infoCollectionsLastModified";
+  public static final String INFO_COLLECTIONS_URL                  = "infoCollectionsURL";
+
+  protected SharedPreferences prefs;
+
+  public PersistedInfoCollections(SharedPreferences prefs) {
+    this.prefs = prefs;
+  }
+
+  protected boolean persistedFor(String url) {
+    return url != null && url.equals(prefs.getString(INFO_COLLECTIONS_URL, null));
+  }
+
+  /**
+   * @param url
+   *          info/collections server URL.
+   * @return the persisted record fetched from <code>url</code>, or
+   *         <code>null</code> if there isn't one.
+   */
+  public ExtendedJSONObject infoCollections(String url) {
+    if (!persistedFor(url)) {
+      return null;
+    }
+    String json = prefs.getString(INFO_COLLECTIONS_SERVER_RESPONSE_BODY, null);
+    if (json == null) {
+      return null;
+    }
+    try {
+      return ExtendedJSONObject.parseJSONObject(json);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Got exception parsing persisted info/collections.", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param url
+   *          info/collections server URL.
+   * @return the timestamp of the persisted record fetched from
+   *         <code>url</code>, or -1 if there isn't one.
+   */
+  public long lastModified(String url) {
+    if (!persistedFor(url)) {
+      return -1;
+    }
+    return prefs.getLong(INFO_COLLECTIONS_LAST_MODIFIED, -1);
+  }
+
+  public void persistInfoCollections(String url, ExtendedJSONObject body, long lastModified) {
+    if (url == null || body == null || lastModified <= 0) {
+      purge();
+      return;
+    }
+    Logger.debug(LOG_TAG, "Persisting info/collections with last modified timestamp " + lastModified + ".");
+    prefs.edit()
+         .putString(INFO_COLLECTIONS_URL, url)
+         .putString(INFO_COLLECTIONS_SERVER_RESPONSE_BODY, body.toJSONString())
+         .putLong(INFO_COLLECTIONS_LAST_MODIFIED, lastModified)
+         .commit();
+  }
+
+  public void purge() {
+    Logger.debug(LOG_TAG, "Clearing persisted info/collections.");
+    prefs.edit()
+         .remove(INFO_COLLECTIONS_URL)
+         .remove(INFO_COLLECTIONS_SERVER_RESPONSE_BODY)
+         .remove(INFO_COLLECTIONS_LAST_MODIFIED)
+         .commit();
+  }
+}
@@ -183,6 +183,7 @@ public class SyncConfiguration {
 
   public CollectionKeys  collectionKeys;
   public InfoCollections infoCollections;
+  public InfoConfiguration infoConfiguration;
   public MetaGlobal      metaGlobal;
   public String          syncID;
 
@@ -517,6 +518,10 @@ public class SyncConfiguration {
     return infoBaseURL() + "collections";
   }
 
+  public String infoConfigurationURL() {
+    return infoBaseURL() + "configuration";
+  }
+
   public String infoCollectionCountsURL() {
     return infoBaseURL() + "collection_counts";
   }
@@ -615,6 +620,10 @@ public class SyncConfiguration {
     persistedMetaGlobal().purge();
   }
 
+  public void purgeInfoCollections() {
+    persistedInfoCollections().purge();
+  }
+
   public PersistedCrypto5Keys persistedCryptoKeys() {
     return new PersistedCrypto5Keys(getPrefs(), syncKeyBundle);
   }
@@ -622,4 +631,8 @@ public class SyncConfiguration {
   public PersistedMetaGlobal persistedMetaGlobal() {
     return new PersistedMetaGlobal(getPrefs());
   }
+
+  public PersistedInfoCollections persistedInfoCollections() {
+    return new PersistedInfoCollections(getPrefs());
+  }
 }
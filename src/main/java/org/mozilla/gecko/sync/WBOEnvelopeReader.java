@@ -0,0 +1,466 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+/**
+ * Single-pass reader for Sync 1.1 WBO envelopes, such as
+ *
+ *   {"id": "abc", "modified": 1326254123.65, "sortindex": 5, "payload": "{\"ciphertext\": ...}"}
+ *
+ * <code>CryptoRecord.fromJSONRecord</code> parses the envelope into a map,
+ * parses the payload string into a second map, and then copies each of
+ * ciphertext, IV and HMAC out as a <code>String</code>. This reader instead
+ * walks the UTF-8 bytes once: metadata fields are read directly, the payload
+ * string is unescaped into a single buffer, and the positions of the
+ * encrypted fields within that buffer are handed to the returned
+ * {@link CryptoRecord} as a {@link CryptoRecord.EncryptedPayload}.
+ * <p>
+ * Payloads that are not in the usual encrypted shape (for example, an
+ * encrypted field containing escape sequences) are parsed into an
+ * <code>ExtendedJSONObject</code> as before.
+ * <p>
+ * Instances are not thread-safe; use {@link #read(byte[], int, int)}.
+ */
+public class WBOEnvelopeReader {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] KEY_ID         = asciiBytes("id");
+  private static final byte[] KEY_COLLECTION = asciiBytes("collection");
+  private static final byte[] KEY_PAYLOAD    = asciiBytes("payload");
+  private static final byte[] KEY_MODIFIED   = asciiBytes("modified");
+  private static final byte[] KEY_SORTINDEX  = asciiBytes("sortindex");
+  private static final byte[] KEY_TTL        = asciiBytes("ttl");
+  private static final byte[] KEY_CIPHERTEXT = asciiBytes("ciphertext");
+  private static final byte[] KEY_IV         = asciiBytes("IV");
+  private static final byte[] KEY_HMAC       = asciiBytes("hmac");
+
+  private byte[] buf;
+  private int pos;
+  private int end;
+
+  // Set by scanString.
+  private boolean lastStringHadEscapes;
+
+  protected WBOEnvelopeReader(byte[] buf, int offset, int length) {
+    this.buf = buf;
+    this.pos = offset;
+    this.end = offset + length;
+  }
+
+  private static byte[] asciiBytes(String s) {
+    final byte[] out = new byte[s.length()];
+    for (int i = 0; i < out.length; ++i) {
+      out[i] = (byte) s.charAt(i);
+    }
+    return out;
+  }
+
+  /**
+   * Parse a complete WBO from <code>length</code> UTF-8 bytes of
+   * <code>in</code>, starting at <code>offset</code>.
+   */
+  public static CryptoRecord read(byte[] in, int offset, int length)
+      throws RecordParseException, IOException, ParseException, NonObjectJSONException {
+    return new WBOEnvelopeReader(in, offset, length).readEnvelope();
+  }
+
+  public static CryptoRecord read(byte[] in) throws RecordParseException, IOException, ParseException, NonObjectJSONException {
+    return read(in, 0, in.length);
+  }
+
+  protected CryptoRecord readEnvelope() throws RecordParseException, IOException, ParseException, NonObjectJSONException {
+    final CryptoRecord record = new CryptoRecord();
+    boolean sawPayload = false;
+
+    skipWhitespace();
+    expect('{');
+    skipWhitespace();
+    if (peek() == '}') {
+      ++pos;
+    } else {
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        final int keyStart = pos;
+        final int keyEnd = scanString();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+
+        if (keyEquals(keyStart, keyEnd, KEY_PAYLOAD)) {
+          readPayload(record);
+          sawPayload = true;
+        } else if (keyEquals(keyStart, keyEnd, KEY_ID)) {
+          record.guid = readNullableString();
+        } else if (keyEquals(keyStart, keyEnd, KEY_COLLECTION)) {
+          record.collection = readNullableString();
+        } else if (keyEquals(keyStart, keyEnd, KEY_MODIFIED)) {
+          record.lastModified = readMilliseconds();
+        } else if (keyEquals(keyStart, keyEnd, KEY_SORTINDEX)) {
+          record.sortIndex = readInteger("sortindex could not be parsed");
+        } else if (keyEquals(keyStart, keyEnd, KEY_TTL)) {
+          record.ttl = readInteger("TTL could not be parsed");
+        } else {
+          skipValue();
+        }
+
+        skipWhitespace();
+        final byte b = next();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          throw malformed("expected ',' or '}'");
+        }
+      }
+    }
+    skipWhitespace();
+    if (pos != end) {
+      throw malformed("trailing data after record");
+    }
+    if (!sawPayload) {
+      throw new RecordParseException("Record has no payload.");
+    }
+    return record;
+  }
+
+  /**
+   * Unescape the payload string into a fresh buffer, then locate the
+   * encrypted fields within it.
+   */
+  protected void readPayload(CryptoRecord record) throws RecordParseException, IOException, ParseException, NonObjectJSONException {
+    if (peek() != '"') {
+      throw new RecordParseException("payload is not a string.");
+    }
+    ++pos;
+    final int start = pos;
+    final int stop = scanString();
+
+    // Unescaping never makes the string longer.
+    final byte[] payload = new byte[stop - start];
+    final int payloadLength = unescape(buf, start, stop, payload, 0);
+
+    final CryptoRecord.EncryptedPayload encrypted = locateEncryptedFields(payload, payloadLength);
+    if (encrypted != null) {
+      record.encryptedPayload = encrypted;
+      record.payload = null;
+      return;
+    }
+
+    // Unusual shape: fall back to a general parse.
+    final byte[] exact;
+    if (payloadLength == payload.length) {
+      exact = payload;
+    } else {
+      exact = new byte[payloadLength];
+      System.arraycopy(payload, 0, exact, 0, payloadLength);
+    }
+    record.payload = ExtendedJSONObject.parseUTF8AsJSONObject(exact);
+    record.encryptedPayload = null;
+  }
+
+  /**
+   * Scan <code>payload</code> for a flat object containing unescaped string
+   * values for ciphertext, IV and HMAC.
+   *
+   * @return the located fields, or null if the payload is not in that shape.
+   */
+  protected static CryptoRecord.EncryptedPayload locateEncryptedFields(byte[] payload, int length) {
+    final WBOEnvelopeReader inner = new WBOEnvelopeReader(payload, 0, length);
+    int ciphertextStart = -1, ciphertextEnd = -1;
+    int ivStart = -1, ivEnd = -1;
+    int hmacStart = -1, hmacEnd = -1;
+
+    try {
+      inner.skipWhitespace();
+      inner.expect('{');
+      inner.skipWhitespace();
+      if (inner.peek() == '}') {
+        return null;
+      }
+      while (true) {
+        inner.skipWhitespace();
+        inner.expect('"');
+        final int keyStart = inner.pos;
+        final int keyEnd = inner.scanString();
+        inner.skipWhitespace();
+        inner.expect(':');
+        inner.skipWhitespace();
+
+        final boolean isCiphertext = inner.keyEquals(keyStart, keyEnd, KEY_CIPHERTEXT);
+        final boolean isIV = !isCiphertext && inner.keyEquals(keyStart, keyEnd, KEY_IV);
+        final boolean isHMAC = !isCiphertext && !isIV && inner.keyEquals(keyStart, keyEnd, KEY_HMAC);
+        if (isCiphertext || isIV || isHMAC) {
+          if (inner.peek() != '"') {
+            return null;
+          }
+          ++inner.pos;
+          final int valueStart = inner.pos;
+          final int valueEnd = inner.scanString();
+          if (inner.lastStringHadEscapes) {
+            return null;
+          }
+          if (isCiphertext) {
+            ciphertextStart = valueStart;
+            ciphertextEnd = valueEnd;
+          } else if (isIV) {
+            ivStart = valueStart;
+            ivEnd = valueEnd;
+          } else {
+            hmacStart = valueStart;
+            hmacEnd = valueEnd;
+          }
+        } else {
+          inner.skipValue();
+        }
+
+        inner.skipWhitespace();
+        final byte b = inner.next();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          return null;
+        }
+      }
+      inner.skipWhitespace();
+      if (inner.pos != inner.end) {
+        return null;
+      }
+    } catch (RecordParseException e) {
+      return null;
+    }
+
+    if (ciphertextStart < 0 || ivStart < 0 || hmacStart < 0) {
+      return null;
+    }
+    return new CryptoRecord.EncryptedPayload(payload, length,
+        ciphertextStart, ciphertextEnd - ciphertextStart,
+        ivStart, ivEnd - ivStart,
+        hmacStart, hmacEnd - hmacStart);
+  }
+
+  protected byte peek() throws RecordParseException {
+    if (pos >= end) {
+      throw malformed("unexpected end of input");
+    }
+    return buf[pos];
+  }
+
+  protected byte next() throws RecordParseException {
+    if (pos >= end) {
+      throw malformed("unexpected end of input");
+    }
+    return buf[pos++];
+  }
+
+  protected void expect(char c) throws RecordParseException {
+    if (next() != c) {
+      throw malformed("expected '" + c + "'");
+    }
+  }
+
+  protected void skipWhitespace() {
+    while (pos < end) {
+      final byte b = buf[pos];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return;
+      }
+      ++pos;
+    }
+  }
+
+  protected boolean keyEquals(int start, int stop, byte[] key) {
+    if (stop - start != key.length) {
+      return false;
+    }
+    for (int i = 0; i < key.length; ++i) {
+      if (buf[start + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Advance past a string whose opening quote has already been consumed.
+   *
+   * @return the index of the closing quote.
+   */
+  protected int scanString() throws RecordParseException {
+    lastStringHadEscapes = false;
+    while (pos < end) {
+      final byte b = buf[pos++];
+      if (b == '"') {
+        return pos - 1;
+      }
+      if (b == '\\') {
+        lastStringHadEscapes = true;
+        ++pos;
+      }
+    }
+    throw malformed("unterminated string");
+  }
+
+  protected String readNullableString() throws RecordParseException {
+    if (peek() == 'n') {
+      expectLiteral("null");
+      return null;
+    }
+    expect('"');
+    final int start = pos;
+    final int stop = scanString();
+    if (!lastStringHadEscapes) {
+      return new String(buf, start, stop - start, UTF8);
+    }
+    final byte[] out = new byte[stop - start];
+    final int length = unescape(buf, start, stop, out, 0);
+    return new String(out, 0, length, UTF8);
+  }
+
+  protected void expectLiteral(String literal) throws RecordParseException {
+    for (int i = 0; i < literal.length(); ++i) {
+      if (next() != literal.charAt(i)) {
+        throw malformed("expected " + literal);
+      }
+    }
+  }
+
+  /**
+   * Read a decimal seconds value, such as a server timestamp, as
+   * milliseconds. Digits beyond the millisecond are truncated.
+   */
+  protected long readMilliseconds() throws RecordParseException {
+    final int start = pos;
+    boolean negative = false;
+    if (pos < end && buf[pos] == '-') {
+      negative = true;
+      ++pos;
+    }
+    long whole = 0;
+    int digits = 0;
+    while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+      whole = whole * 10 + (buf[pos++] - '0');
+      ++digits;
+    }
+    if (digits == 0) {
+      throw new RecordParseException("timestamp could not be parsed");
+    }
+    long millis = 0;
+    if (pos < end && buf[pos] == '.') {
+      ++pos;
+      int fractionDigits = 0;
+      while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+        if (fractionDigits < 3) {
+          millis = millis * 10 + (buf[pos] - '0');
+        }
+        ++fractionDigits;
+        ++pos;
+      }
+      if (fractionDigits == 0) {
+        throw new RecordParseException("timestamp could not be parsed");
+      }
+      for (int i = fractionDigits; i < 3; ++i) {
+        millis *= 10;
+      }
+    }
+    if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+      // Rare enough not to be worth handling by hand.
+      pos = start;
+      skipValue();
+      try {
+        final double seconds = Double.parseDouble(new String(buf, start, pos - start, UTF8));
+        return (long) (seconds * 1000);
+      } catch (NumberFormatException e) {
+        throw new RecordParseException("timestamp could not be parsed");
+      }
+    }
+    final long result = whole * 1000 + millis;
+    return negative ? -result : result;
+  }
+
+  /**
+   * Read an integral value. Non-integers and nulls are errors.
+   */
+  protected long readInteger(String errorMessage) throws RecordParseException {
+    boolean negative = false;
+    if (pos < end && buf[pos] == '-') {
+      negative = true;
+      ++pos;
+    }
+    long value = 0;
+    int digits = 0;
+    while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+      value = value * 10 + (buf[pos++] - '0');
+      ++digits;
+    }
+    if (digits == 0 || digits > 18) {
+      throw new RecordParseException(errorMessage);
+    }
+    if (pos < end && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E')) {
+      throw new RecordParseException(errorMessage);
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Skip over any JSON value.
+   */
+  protected void skipValue() throws RecordParseException {
+    byte b = peek();
+    if (b == '"') {
+      ++pos;
+      scanString();
+      return;
+    }
+    if (b == '{' || b == '[') {
+      int depth = 0;
+      do {
+        b = next();
+        if (b == '"') {
+          scanString();
+        } else if (b == '{' || b == '[') {
+          ++depth;
+        } else if (b == '}' || b == ']') {
+          --depth;
+        }
+      } while (depth > 0);
+      return;
+    }
+    // A number or literal.
+    while (pos < end) {
+      b = buf[pos];
+      if (b == ',' || b == '}' || b == ']' ||
+          b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+        return;
+      }
+      ++pos;
+    }
+  }
+
+  /**
+   * Decode the JSON string escapes in <code>in[start, stop)</code>, writing
+   * UTF-8 to <code>out</code> starting at <code>outPos</code>.
+   *
+   * @return the index in <code>out</code> after the last byte written.
+   */
+  protected static int unescape(byte[] in, int start, int stop, byte[] out, int outPos) throws RecordParseException {
+    try {
+      return JSONTokenizer.unescape(in, start, stop, out, outPos);
+    } catch (ParseException e) {
+      throw new RecordParseException("Malformed record: bad escape at byte " + e.getPosition() + ".");
+    }
+  }
+
+  protected RecordParseException malformed(String detail) {
+    return new RecordParseException("Malformed record at byte " + pos + ": " + detail + ".");
+  }
+}
@@ -0,0 +1,96 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+/**
+ * Decode base64 from a slice of a byte array into a caller-supplied buffer.
+ * <p>
+ * <code>Base64.decodeBase64</code> needs its input as a whole array and
+ * allocates its output (plus internal working buffers). When decoding
+ * ciphertext that sits inside a larger payload buffer, that means copying
+ * the text out first and throwing away several arrays per record. This
+ * decoder does neither.
+ * <p>
+ * Decoding is as lenient as commons-codec: both the standard and URL-safe
+ * alphabets are accepted, characters outside the alphabet (such as
+ * whitespace) are ignored, and decoding stops at the first pad character.
+ */
+public class Base64Decoder {
+  private static final byte PAD = '=';
+
+  private static final byte[] DECODE_TABLE = new byte[128];
+  static {
+    for (int i = 0; i < DECODE_TABLE.length; ++i) {
+      DECODE_TABLE[i] = -1;
+    }
+    final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); ++i) {
+      DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+    }
+    DECODE_TABLE['-'] = 62;
+    DECODE_TABLE['_'] = 63;
+  }
+
+  private Base64Decoder() {
+  }
+
+  /**
+   * An upper bound on the number of bytes that decoding <code>length</code>
+   * characters can produce.
+   */
+  public static int maxDecodedLength(int length) {
+    return ((length + 3) / 4) * 3;
+  }
+
+  /**
+   * Decode <code>length</code> characters of <code>in</code>, starting at
+   * <code>offset</code>, into <code>out</code> starting at
+   * <code>outOffset</code>. <code>out</code> must have room for
+   * {@link #maxDecodedLength(int)} bytes.
+   *
+   * @return the number of bytes written.
+   */
+  public static int decode(byte[] in, int offset, int length, byte[] out, int outOffset) {
+    final int end = offset + length;
+    int o = outOffset;
+    int accumulator = 0;
+    int bits = 0;
+    for (int i = offset; i < end; ++i) {
+      final byte b = in[i];
+      if (b == PAD) {
+        break;
+      }
+      if (b < 0) {
+        continue;
+      }
+      final int value = DECODE_TABLE[b];
+      if (value < 0) {
+        continue;
+      }
+      accumulator = (accumulator << 6) | value;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        out[o++] = (byte) (accumulator >> bits);
+        accumulator &= (1 << bits) - 1;
+      }
+    }
+    return o - outOffset;
+  }
+
+  /**
+   * Decode into a new array of exactly the right size.
+   */
+  public static byte[] decode(byte[] in, int offset, int length) {
+    final byte[] buffer = new byte[maxDecodedLength(length)];
+    final int decoded = decode(in, offset, length, buffer, 0);
+    if (decoded == buffer.length) {
+      return buffer;
+    }
+    final byte[] out = new byte[decoded];
+    System.arraycopy(buffer, 0, out, 0, decoded);
+    return out;
+  }
+}
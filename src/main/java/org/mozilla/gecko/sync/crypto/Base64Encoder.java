@@ -0,0 +1,85 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+/**
+ * Encode a slice of a byte array as base64 into a caller-supplied buffer.
+ * <p>
+ * <code>Base64.encodeBase64</code> allocates an 8KB working buffer on every
+ * call, on top of its output, which dwarfs the ciphertext of a typical
+ * record. This encoder allocates nothing, or only its exact-size output.
+ * <p>
+ * Output is the same as commons-codec's non-chunked encoding: the standard
+ * alphabet, with padding.
+ *
+ * @see Base64Decoder
+ */
+public class Base64Encoder {
+  private static final byte PAD = '=';
+
+  private static final byte[] ENCODE_TABLE = {
+    'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+    'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+    'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+    'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+    '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+  };
+
+  private Base64Encoder() {
+  }
+
+  /**
+   * The number of characters that encoding <code>length</code> bytes
+   * produces.
+   */
+  public static int encodedLength(int length) {
+    return ((length + 2) / 3) * 4;
+  }
+
+  /**
+   * Encode <code>length</code> bytes of <code>in</code>, starting at
+   * <code>offset</code>, into <code>out</code> starting at
+   * <code>outOffset</code>. <code>out</code> must have room for
+   * {@link #encodedLength(int)} bytes.
+   *
+   * @return the number of bytes written.
+   */
+  public static int encode(byte[] in, int offset, int length, byte[] out, int outOffset) {
+    final int end = offset + length;
+    final int wholeEnd = end - (length % 3);
+    int o = outOffset;
+    int i = offset;
+    while (i < wholeEnd) {
+      final int triple = ((in[i] & 0xFF) << 16) | ((in[i + 1] & 0xFF) << 8) | (in[i + 2] & 0xFF);
+      i += 3;
+      out[o++] = ENCODE_TABLE[(triple >> 18) & 0x3F];
+      out[o++] = ENCODE_TABLE[(triple >> 12) & 0x3F];
+      out[o++] = ENCODE_TABLE[(triple >> 6) & 0x3F];
+      out[o++] = ENCODE_TABLE[triple & 0x3F];
+    }
+    if (i < end) {
+      final int b0 = in[i] & 0xFF;
+      final int b1 = (i + 1 < end) ? (in[i + 1] & 0xFF) : 0;
+      out[o++] = ENCODE_TABLE[b0 >> 2];
+      out[o++] = ENCODE_TABLE[((b0 << 4) | (b1 >> 4)) & 0x3F];
+      out[o++] = (i + 1 < end) ? ENCODE_TABLE[(b1 << 2) & 0x3F] : PAD;
+      out[o++] = PAD;
+    }
+    return o - outOffset;
+  }
+
+  /**
+   * Encode into a new array of exactly the right size.
+   */
+  public static byte[] encode(byte[] in, int offset, int length) {
+    final byte[] out = new byte[encodedLength(length)];
+    encode(in, offset, length, out, 0);
+    return out;
+  }
+
+  public static byte[] encode(byte[] in) {
+    return encode(in, 0, in.length);
+  }
+}
@@ -0,0 +1,157 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread cache of the JCE objects needed to encrypt, decrypt and HMAC
+ * Sync records with a particular {@link KeyBundle}.
+ * <p>
+ * <code>Cipher.getInstance</code> and <code>Mac.getInstance</code> perform a
+ * provider lookup, and <code>Mac.init</code> runs the HMAC key schedule. For
+ * small records those costs dominate the actual cryptography, so we do them
+ * once per thread and key bundle rather than once per record.
+ * <p>
+ * JCE objects are not thread-safe; an engine must only be used on the thread
+ * that obtained it from {@link #forKeyBundle(KeyBundle)}, and should not be
+ * retained across calls.
+ */
+public class CryptoEngine {
+  public static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
+  public static final String KEY_ALGORITHM_SPEC = "AES";
+
+  private static final ThreadLocal<CryptoEngine> engines = new ThreadLocal<CryptoEngine>() {
+    @Override
+    protected CryptoEngine initialValue() {
+      return new CryptoEngine();
+    }
+  };
+
+  // The key material our cached objects were initialized with. We compare
+  // array references rather than contents: KeyBundle hands out its own arrays,
+  // so a different reference means a different (or mutated) bundle.
+  private byte[] encryptionKey;
+  private byte[] hmacKey;
+
+  private Cipher cipher;
+  private SecretKeySpec encryptionKeySpec;
+  private Mac hmacHasher;
+
+  // Reused across records; see scratchBuffer.
+  private byte[] scratch;
+
+  protected CryptoEngine() {
+  }
+
+  /**
+   * Return this thread's engine, initialized for <code>keys</code>.
+   */
+  public static CryptoEngine forKeyBundle(KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
+    final CryptoEngine engine = engines.get();
+    engine.setKeys(keys);
+    return engine;
+  }
+
+  protected void setKeys(KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
+    final byte[] newEncryptionKey = keys.getEncryptionKey();
+    final byte[] newHMACKey = keys.getHMACKey();
+
+    if (newEncryptionKey != encryptionKey) {
+      encryptionKeySpec = new SecretKeySpec(newEncryptionKey, KEY_ALGORITHM_SPEC);
+      encryptionKey = newEncryptionKey;
+    }
+
+    if (newHMACKey != hmacKey || hmacHasher == null) {
+      // Invalidate first, in case init throws.
+      hmacKey = null;
+      if (hmacHasher == null) {
+        hmacHasher = Mac.getInstance(HKDF.HMAC_ALGORITHM);
+      }
+      hmacHasher.init(HKDF.makeHMACKey(newHMACKey));
+      hmacKey = newHMACKey;
+    }
+  }
+
+  protected Cipher getCipher() throws CryptoException {
+    if (cipher == null) {
+      try {
+        cipher = Cipher.getInstance(TRANSFORMATION);
+      } catch (GeneralSecurityException e) {
+        throw new CryptoException(e);
+      }
+    }
+    return cipher;
+  }
+
+  /**
+   * Return a buffer of at least <code>minLength</code> bytes, owned by this
+   * thread's engine. The contents are only valid until the next call.
+   */
+  public byte[] scratchBuffer(int minLength) {
+    if (scratch == null || scratch.length < minLength) {
+      // Grow geometrically so that slowly increasing sizes don't reallocate
+      // every time.
+      scratch = new byte[Math.max(minLength, scratch == null ? 0 : scratch.length * 2)];
+    }
+    return scratch;
+  }
+
+  /**
+   * Return the HMAC of <code>input</code>. The underlying <code>Mac</code> is
+   * reset and ready for reuse afterwards.
+   */
+  public byte[] hmac(byte[] input) {
+    return hmacHasher.doFinal(input);
+  }
+
+  /**
+   * Return the HMAC of a slice of <code>input</code>.
+   */
+  public byte[] hmac(byte[] input, int offset, int length) {
+    hmacHasher.update(input, offset, length);
+    return hmacHasher.doFinal();
+  }
+
+  /**
+   * Return this thread's cipher, initialized for encryption.
+   *
+   * @param iv the initialization vector to use, or null to have the cipher
+   *           generate a random one.
+   */
+  public Cipher encryptingCipher(byte[] iv) throws CryptoException {
+    final Cipher c = getCipher();
+    try {
+      if (iv == null || iv.length == 0) {
+        c.init(Cipher.ENCRYPT_MODE, encryptionKeySpec);
+      } else {
+        c.init(Cipher.ENCRYPT_MODE, encryptionKeySpec, new IvParameterSpec(iv));
+      }
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+    return c;
+  }
+
+  /**
+   * Return this thread's cipher, initialized for decryption.
+   */
+  public Cipher decryptingCipher(byte[] iv) throws CryptoException {
+    final Cipher c = getCipher();
+    try {
+      c.init(Cipher.DECRYPT_MODE, encryptionKeySpec, new IvParameterSpec(iv));
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+    return c;
+  }
+}
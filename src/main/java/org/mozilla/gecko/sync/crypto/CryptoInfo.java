@@ -4,7 +4,6 @@
 
 package org.mozilla.gecko.sync.crypto;
 
-import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -12,10 +11,6 @@ import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.mozilla.apache.commons.codec.binary.Base64;
 
@@ -23,10 +18,9 @@ import org.mozilla.apache.commons.codec.binary.Base64;
  * All info in these objects should be decoded (i.e. not BaseXX encoded).
  */
 public class CryptoInfo {
-  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
-
   private byte[] message;
+  // After encrypt(), the base64 encoding of message, as HMACed.
+  private byte[] encodedMessage;
   private byte[] iv;
   private byte[] hmac;
   private KeyBundle keys;
@@ -40,6 +34,32 @@ public class CryptoInfo {
     return info;
   }
 
+  /**
+   * Return a CryptoInfo with a slice of the given buffer encrypted using
+   * given keys. The plaintext is not retained, so the buffer can be reused.
+   */
+  public static CryptoInfo encrypt(byte[] plaintext, int offset, int length, KeyBundle keys) throws CryptoException {
+    final CryptoEngine engine;
+    try {
+      engine = CryptoEngine.forKeyBundle(keys);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new CryptoException(e);
+    }
+
+    final Cipher cipher = engine.encryptingCipher(null);
+    final byte[] encryptedBytes;
+    try {
+      encryptedBytes = cipher.doFinal(plaintext, offset, length);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new CryptoException(e);
+    }
+
+    final byte[] encoded = Base64Encoder.encode(encryptedBytes);
+    final CryptoInfo info = new CryptoInfo(encryptedBytes, cipher.getIV(), engine.hmac(encoded), keys);
+    info.encodedMessage = encoded;
+    return info;
+  }
+
   /**
    * Return a CryptoInfo with given plaintext encrypted using given keys and initial vector.
    */
@@ -58,6 +78,43 @@ public class CryptoInfo {
     return info;
   }
 
+  /**
+   * Verify and decrypt base64-encoded ciphertext, without re-encoding it.
+   * <p>
+   * Crypto5 HMACs the base64 text of the ciphertext, so we HMAC the bytes we
+   * were given directly, and decode them only once, into a per-thread
+   * buffer, for the cipher.
+   *
+   * @param encoded buffer containing the base64-encoded ciphertext.
+   * @return a CryptoInfo whose message is the decrypted plaintext.
+   */
+  public static CryptoInfo decryptEncoded(byte[] encoded, int offset, int length, byte[] iv, byte[] hmac, KeyBundle keys) throws CryptoException {
+    final CryptoEngine engine;
+    try {
+      engine = CryptoEngine.forKeyBundle(keys);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new CryptoException(e);
+    }
+
+    // Check HMAC.
+    if (!Arrays.equals(engine.hmac(encoded, offset, length), hmac)) {
+      throw new HMACVerificationException();
+    }
+
+    final byte[] ciphertext = engine.scratchBuffer(Base64Decoder.maxDecodedLength(length));
+    final int ciphertextLength = Base64Decoder.decode(encoded, offset, length, ciphertext, 0);
+
+    final Cipher cipher = engine.decryptingCipher(iv);
+    final byte[] decryptedBytes;
+    try {
+      decryptedBytes = cipher.doFinal(ciphertext, 0, ciphertextLength);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new CryptoException(e);
+    }
+
+    return new CryptoInfo(decryptedBytes, cipher.getIV(), null, keys);
+  }
+
   /*
    * Constructor typically used when encrypting.
    */
@@ -82,6 +139,15 @@ public class CryptoInfo {
 
   public void setMessage(byte[] message) {
     this.message = message;
+    this.encodedMessage = null;
+  }
+
+  /**
+   * The base64 encoding of an encrypted message, exactly as it was HMACed.
+   * Only available after {@link #encrypt()}; null otherwise.
+   */
+  public byte[] getEncodedMessage() {
+    return encodedMessage;
   }
 
   public byte[] getIV() {
@@ -112,8 +178,7 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    return CryptoEngine.forKeyBundle(keys).hmac(Base64.encodeBase64(message));
   }
 
   /*
@@ -151,37 +216,30 @@ public class CryptoInfo {
    */
   public void encrypt() throws CryptoException {
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    final CryptoEngine engine;
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-
-      // If no IV is provided, we allow the cipher to provide one.
-      if (getIV() == null || getIV().length == 0) {
-        cipher.init(Cipher.ENCRYPT_MODE, spec);
-      } else {
-        cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(getIV()));
-      }
-    } catch (GeneralSecurityException ex) {
-      throw new CryptoException(ex);
+      engine = CryptoEngine.forKeyBundle(getKeys());
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new CryptoException(e);
     }
 
+    // If no IV is provided, we allow the cipher to provide one.
+    Cipher cipher = engine.encryptingCipher(getIV());
+
     // Encrypt.
     byte[] encryptedBytes = commonCrypto(cipher, getMessage());
     byte[] iv = cipher.getIV();
 
-    byte[] hmac;
-    // Generate HMAC.
-    try {
-      hmac = generatedHMACFor(encryptedBytes, keys);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new CryptoException(e);
-    }
+    // Generate HMAC. We keep the encoding so that callers can put it on the
+    // wire without encoding the ciphertext again.
+    byte[] encoded = Base64Encoder.encode(encryptedBytes);
+    byte[] hmac = engine.hmac(encoded);
 
     // Update in place.  keys is already set.
     this.setHMAC(hmac);
     this.setIV(iv);
     this.setMessage(encryptedBytes);
+    this.encodedMessage = encoded;
   }
 
   /**
@@ -200,13 +258,11 @@ public class CryptoInfo {
       throw new CryptoException(e);
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    Cipher cipher;
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-      cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
-    } catch (GeneralSecurityException ex) {
-      throw new CryptoException(ex);
+      cipher = CryptoEngine.forKeyBundle(getKeys()).decryptingCipher(getIV());
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new CryptoException(e);
     }
     byte[] decryptedBytes = commonCrypto(cipher, getMessage());
     byte[] iv = cipher.getIV();
@@ -216,17 +272,4 @@ public class CryptoInfo {
     this.setIV(iv);
     this.setMessage(decryptedBytes);
   }
-
-  /**
-   * Helper to get a Cipher object.
-   *
-   * @param transformation The type of Cipher to get.
-   */
-  private static Cipher getCipher(String transformation) throws CryptoException {
-    try {
-      return Cipher.getInstance(transformation);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-      throw new CryptoException(e);
-    }
-  }
 }
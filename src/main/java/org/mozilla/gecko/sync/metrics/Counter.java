@@ -0,0 +1,32 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of things that have happened: requests made, bytes sent, records
+ * stored. Safe to update from any thread.
+ */
+public class Counter {
+  protected final AtomicLong value = new AtomicLong(0);
+
+  public void increment() {
+    value.incrementAndGet();
+  }
+
+  public void add(long delta) {
+    value.addAndGet(delta);
+  }
+
+  public long get() {
+    return value.get();
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(get());
+  }
+}
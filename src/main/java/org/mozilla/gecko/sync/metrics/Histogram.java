@@ -0,0 +1,134 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The distribution of a measured value: a duration, a size, a queue depth.
+ * Safe to update from any thread.
+ * <p>
+ * Values are counted in power-of-two buckets, so percentiles are only
+ * accurate to within a factor of two; the count, sum, minimum and maximum are
+ * exact. The maximum of a sampled queue depth is its high-water mark.
+ * <p>
+ * Negative values are recorded as zero.
+ */
+public class Histogram {
+  // Bucket 0 holds 0; bucket i > 0 holds [2^(i-1), 2^i).
+  protected static final int BUCKETS = 64;
+
+  protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  protected final AtomicLong count = new AtomicLong(0);
+  protected final AtomicLong sum = new AtomicLong(0);
+  protected final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  protected final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+  protected static int bucketFor(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(Math.min(bucketFor(value), BUCKETS - 1));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current;
+    while (value < (current = min.get())) {
+      if (min.compareAndSet(current, value)) {
+        break;
+      }
+    }
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Record the time elapsed since <code>startNanos</code>, in milliseconds.
+   *
+   * @param startNanos a value of <code>System.nanoTime()</code>.
+   */
+  public void recordMillisSince(long startNanos) {
+    record((System.nanoTime() - startNanos) / 1000000L);
+  }
+
+  /**
+   * Record the time elapsed since <code>startNanos</code>, in microseconds.
+   *
+   * @param startNanos a value of <code>System.nanoTime()</code>.
+   */
+  public void recordMicrosSince(long startNanos) {
+    record((System.nanoTime() - startNanos) / 1000L);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * @return the smallest value recorded, or 0 if none have been.
+   */
+  public long getMin() {
+    return getCount() == 0 ? 0 : min.get();
+  }
+
+  /**
+   * @return the largest value recorded, or 0 if none have been.
+   */
+  public long getMax() {
+    return getCount() == 0 ? 0 : max.get();
+  }
+
+  public double getMean() {
+    final long n = getCount();
+    return n == 0 ? 0 : (double) getSum() / n;
+  }
+
+  /**
+   * Estimate a percentile from the buckets.
+   *
+   * @param percentile between 0 and 100.
+   * @return an upper bound for the value below which <code>percentile</code>
+   *         percent of recorded values fall, or 0 if none have been recorded.
+   */
+  public long getPercentile(double percentile) {
+    final long n = getCount();
+    if (n == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        final long upper = (i == 0) ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+        return Math.min(upper, getMax());
+      }
+    }
+    return getMax();
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() +
+        " sum=" + getSum() +
+        " min=" + getMin() +
+        " mean=" + Math.round(getMean()) +
+        " p50=" + getPercentile(50) +
+        " p95=" + getPercentile(95) +
+        " max=" + getMax();
+  }
+}
@@ -0,0 +1,34 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import android.util.Log;
+
+/**
+ * Write metrics to the debug log.
+ */
+public class LoggingMetricsSink implements MetricsSink {
+  private static final String LOG_TAG = "SyncMetrics";
+
+  /**
+   * @return true if exported metrics would actually be written; there's no
+   *         point collecting them otherwise.
+   */
+  public static boolean isEnabled() {
+    return Logger.shouldLog(LOG_TAG, Log.DEBUG);
+  }
+
+  @Override
+  public void exportCounter(String name, long value) {
+    Logger.debug(LOG_TAG, "{} = {}", name, value);
+  }
+
+  @Override
+  public void exportHistogram(String name, Histogram histogram) {
+    Logger.debug(LOG_TAG, "{}: {}", name, histogram);
+  }
+}
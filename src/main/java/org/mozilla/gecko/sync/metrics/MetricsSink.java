@@ -0,0 +1,16 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+/**
+ * Somewhere to send the metrics of a sync when it ends: a log, a telemetry
+ * payload, a test.
+ * <p>
+ * Metrics are exported in name order, counters first.
+ */
+public interface MetricsSink {
+  public void exportCounter(String name, long value);
+  public void exportHistogram(String name, Histogram histogram);
+}
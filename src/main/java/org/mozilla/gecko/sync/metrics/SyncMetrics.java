@@ -0,0 +1,108 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.metrics;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters and histograms describing a sync, so that we can tell where
+ * a slow sync spends its time: on the network, in crypto, or in local
+ * storage.
+ * <p>
+ * A <code>GlobalSession</code> owns one of these, and hands scoped views of
+ * it to the parts of a sync that measure things; for example, the history
+ * stage records its decrypt times as <code>history.crypto.decrypt.micros</code>.
+ * By convention, names end with the unit of the values they measure.
+ * <p>
+ * Metrics are created on first use, and are safe to update from any thread.
+ * Components should look up the metrics they update once, rather than for
+ * each record.
+ */
+public class SyncMetrics {
+  protected final ConcurrentHashMap<String, Counter> counters;
+  protected final ConcurrentHashMap<String, Histogram> histograms;
+  protected final String prefix;
+
+  public SyncMetrics() {
+    this(new ConcurrentHashMap<String, Counter>(), new ConcurrentHashMap<String, Histogram>(), "");
+  }
+
+  protected SyncMetrics(ConcurrentHashMap<String, Counter> counters, ConcurrentHashMap<String, Histogram> histograms, String prefix) {
+    this.counters = counters;
+    this.histograms = histograms;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Return a view of this registry that prefixes names with
+   * <code>scope</code> and a dot.
+   */
+  public SyncMetrics scope(String scope) {
+    return new SyncMetrics(counters, histograms, prefix + scope + ".");
+  }
+
+  /**
+   * @return the counter with this name, creating it if necessary.
+   */
+  public Counter counter(String name) {
+    final String key = prefix + name;
+    Counter counter = counters.get(key);
+    if (counter != null) {
+      return counter;
+    }
+    counter = new Counter();
+    final Counter existing = counters.putIfAbsent(key, counter);
+    return (existing != null) ? existing : counter;
+  }
+
+  /**
+   * @return the histogram with this name, creating it if necessary.
+   */
+  public Histogram histogram(String name) {
+    final String key = prefix + name;
+    Histogram histogram = histograms.get(key);
+    if (histogram != null) {
+      return histogram;
+    }
+    histogram = new Histogram();
+    final Histogram existing = histograms.putIfAbsent(key, histogram);
+    return (existing != null) ? existing : histogram;
+  }
+
+  /**
+   * @return the value of the counter with this name, or 0 if there is none.
+   */
+  public long getCount(String name) {
+    final Counter counter = counters.get(prefix + name);
+    return (counter == null) ? 0 : counter.get();
+  }
+
+  /**
+   * @return the histogram with this name, or <code>null</code> if nothing
+   *         has been recorded in it.
+   */
+  public Histogram getHistogram(String name) {
+    return histograms.get(prefix + name);
+  }
+
+  /**
+   * Send every metric in this registry (or, for a scoped view, in its scope)
+   * to <code>sink</code>, in name order, counters first.
+   */
+  public void export(MetricsSink sink) {
+    for (Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        sink.exportCounter(entry.getKey(), entry.getValue().get());
+      }
+    }
+    for (Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        sink.exportHistogram(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
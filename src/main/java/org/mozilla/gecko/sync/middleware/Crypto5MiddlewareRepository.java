@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.middleware;
 
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.IdentityRecordFactory;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
@@ -25,6 +26,24 @@ public class Crypto5MiddlewareRepository extends MiddlewareRepository {
 
   public RecordFactory recordFactory = new IdentityRecordFactory();
 
+  /**
+   * Number of threads used to decrypt and transform fetched records. With a
+   * single worker, records are processed synchronously on the fetching thread.
+   */
+  public int decryptWorkers = 1;
+
+  /**
+   * Whether fetched records must reach the next delegate in the order in
+   * which the server returned them. Only relevant with more than one worker.
+   */
+  public boolean preserveFetchOrder = true;
+
+  /**
+   * If set, sessions record how long each record takes to decrypt and to
+   * encrypt, in <code>decrypt.micros</code> and <code>encrypt.micros</code>.
+   */
+  public SyncMetrics metrics = null;
+
   public class Crypto5MiddlewareRepositorySessionCreationDelegate extends MiddlewareRepository.SessionCreationDelegate {
     private final Crypto5MiddlewareRepository repository;
     private final RepositorySessionCreationDelegate outerDelegate;
@@ -4,17 +4,20 @@
 
 package org.mozilla.gecko.sync.middleware;
 
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.metrics.Histogram;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
@@ -60,11 +63,26 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
   private final KeyBundle keyBundle;
   private final RecordFactory recordFactory;
+  private final int decryptWorkers;
+  private final boolean preserveFetchOrder;
+
+  // Null unless metrics are being recorded.
+  private final Histogram decryptTimes;
+  private final Histogram encryptTimes;
+
+  // Parallel fetch delegates handed out by this session, so that their
+  // worker threads can be released when the session ends.
+  private final ArrayList<ParallelDecryptingTransformingFetchDelegate> parallelDelegates =
+      new ArrayList<ParallelDecryptingTransformingFetchDelegate>();
 
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.decryptWorkers = repository.decryptWorkers;
+    this.preserveFetchOrder = repository.preserveFetchOrder;
+    this.decryptTimes = (repository.metrics == null) ? null : repository.metrics.histogram("decrypt.micros");
+    this.encryptTimes = (repository.metrics == null) ? null : repository.metrics.histogram("encrypt.micros");
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
@@ -85,25 +103,11 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
 
     @Override
     public void onFetchedRecord(Record record) {
-      CryptoRecord r;
+      final Record transformed;
       try {
-        r = (CryptoRecord) record;
-      } catch (ClassCastException e) {
-        next.onFetchFailed(e, record);
-        return;
-      }
-      r.keyBundle = keyBundle;
-      try {
-        r.decrypt();
-      } catch (Exception e) {
-        next.onFetchFailed(e, r);
-        return;
-      }
-      Record transformed;
-      try {
-        transformed = this.recordFactory.createRecord(r);
-      } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        transformed = decryptAndTransform(record, keyBundle, recordFactory, decryptTimes);
+      } catch (RecordTransformationException e) {
+        next.onFetchFailed(e.getCause(), e.record);
         return;
       }
       next.onFetchedRecord(transformed);
@@ -122,13 +126,105 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
   }
 
-  private DecryptingTransformingFetchDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
+  /**
+   * Thrown by {@link #decryptAndTransform(Record, KeyBundle, RecordFactory, Histogram)}
+   * to report which record -- the input or the decrypted envelope -- failed.
+   */
+  protected static class RecordTransformationException extends Exception {
+    private static final long serialVersionUID = -1480717165622339466L;
+
+    public final Record record;
+
+    public RecordTransformationException(Exception cause, Record record) {
+      super(cause);
+      this.record = record;
+    }
+
+    @Override
+    public synchronized Exception getCause() {
+      return (Exception) super.getCause();
+    }
+  }
+
+  /**
+   * Decrypt a fetched <code>CryptoRecord</code> and turn it into a local
+   * record with the provided factory.
+   * <p>
+   * This is pure CPU work and touches no shared state, so it is safe to call
+   * concurrently from several threads.
+   * <p>
+   * The decryption time is recorded in <code>decryptTimes</code> if it isn't
+   * <code>null</code>.
+   */
+  protected static Record decryptAndTransform(Record record, KeyBundle keyBundle, RecordFactory recordFactory, Histogram decryptTimes)
+      throws RecordTransformationException {
+    CryptoRecord r;
+    try {
+      r = (CryptoRecord) record;
+    } catch (ClassCastException e) {
+      throw new RecordTransformationException(e, record);
+    }
+    r.keyBundle = keyBundle;
+    final long startNanos = System.nanoTime();
+    try {
+      r.decrypt();
+      if (decryptTimes != null) {
+        decryptTimes.recordMicrosSince(startNanos);
+      }
+    } catch (Exception e) {
+      throw new RecordTransformationException(e, r);
+    }
+    try {
+      return recordFactory.createRecord(r);
+    } catch (Exception e) {
+      throw new RecordTransformationException(e, r);
+    }
+  }
+
+  private RepositorySessionFetchRecordsDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
     if (inner == null) {
       throw new IllegalArgumentException("Inner delegate cannot be null!");
     }
+    if (decryptWorkers > 1) {
+      final ParallelDecryptingTransformingFetchDelegate parallel =
+          new ParallelDecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory,
+                                                          decryptWorkers, preserveFetchOrder);
+      parallel.setDecryptTimes(decryptTimes);
+      synchronized (parallelDelegates) {
+        parallelDelegates.add(parallel);
+      }
+      return parallel;
+    }
     return new DecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory);
   }
 
+  protected void closeParallelDelegates() {
+    synchronized (parallelDelegates) {
+      for (ParallelDecryptingTransformingFetchDelegate parallel : parallelDelegates) {
+        parallel.close();
+      }
+      parallelDelegates.clear();
+    }
+  }
+
+  @Override
+  public void abort() {
+    closeParallelDelegates();
+    super.abort();
+  }
+
+  @Override
+  public void abort(RepositorySessionFinishDelegate delegate) {
+    closeParallelDelegates();
+    super.abort(delegate);
+  }
+
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    closeParallelDelegates();
+    super.finish(delegate);
+  }
+
   @Override
   public void fetchSince(long timestamp,
                          RepositorySessionFetchRecordsDelegate delegate) {
@@ -158,15 +254,42 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     if (delegate == null) {
       throw new NoStoreDelegateException();
     }
-    CryptoRecord rec = record.getEnvelope();
-    rec.keyBundle = this.keyBundle;
+    final long startNanos = System.nanoTime();
+    final CryptoRecord rec;
     try {
-      rec.encrypt();
-    } catch (UnsupportedEncodingException | CryptoException e) {
+      rec = CryptoRecord.encrypt(record, this.keyBundle);
+    } catch (CryptoException e) {
       delegate.onRecordStoreFailed(e, record.guid);
       return;
     }
+    if (encryptTimes != null) {
+      encryptTimes.recordMicrosSince(startNanos);
+    }
     // Allow the inner session to do delegate handling.
     inner.store(rec);
   }
+
+  @Override
+  public void storeBatch(List<Record> records) throws NoStoreDelegateException {
+    if (delegate == null) {
+      throw new NoStoreDelegateException();
+    }
+    final ArrayList<Record> encrypted = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      final long startNanos = System.nanoTime();
+      final CryptoRecord rec;
+      try {
+        rec = CryptoRecord.encrypt(record, this.keyBundle);
+      } catch (CryptoException e) {
+        delegate.onRecordStoreFailed(e, record.guid);
+        continue;
+      }
+      if (encryptTimes != null) {
+        encryptTimes.recordMicrosSince(startNanos);
+      }
+      encrypted.add(rec);
+    }
+    // Allow the inner session to do delegate handling.
+    inner.storeBatch(encrypted);
+  }
 }
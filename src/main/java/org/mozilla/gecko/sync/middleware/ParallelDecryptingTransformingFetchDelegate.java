@@ -0,0 +1,287 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.middleware;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.DelayedWorkTracker;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.metrics.Histogram;
+import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepositorySession.RecordTransformationException;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * A fetch delegate that moves HMAC verification, decryption, payload parsing
+ * and record transformation off the thread that is reading the HTTP response.
+ * <p>
+ * Incoming records are handed to a small pool of worker threads. At most
+ * <code>maxInFlight</code> records are outstanding -- received but not yet
+ * delivered -- at any time; once that limit is reached,
+ * <code>onFetchedRecord</code> blocks, which in turn stops the HTTP line
+ * reader. Memory use is therefore bounded regardless of the size of the
+ * collection being fetched, even when records finished out of order are
+ * waiting behind a slow one.
+ * <p>
+ * If <code>preserveOrder</code> is true, transformed records (and per-record
+ * failures) are delivered to the next delegate in exactly the order in which
+ * they arrived. Otherwise they are delivered as soon as they are ready.
+ * Either way, the next delegate is only ever invoked by one thread at a time,
+ * and <code>onFetchCompleted</code> and terminal <code>onFetchFailed</code>
+ * calls are delayed until every in-flight record has been delivered.
+ * <p>
+ * The worker threads are daemons, and are shut down when the fetch completes
+ * or fails, or when {@link #close()} is called because the session is going
+ * away.
+ */
+public class ParallelDecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+  private static final String LOG_TAG = "ParallelDecryptDelegate";
+
+  /**
+   * How many records each worker may have queued before the producer blocks.
+   */
+  protected static final int IN_FLIGHT_PER_WORKER = 32;
+
+  private final RepositorySessionFetchRecordsDelegate next;
+  private final KeyBundle keyBundle;
+  private final RecordFactory recordFactory;
+  private final int workers;
+  private final boolean preserveOrder;
+  private volatile Histogram decryptTimes = null;
+
+  private final Semaphore inFlight;
+  private final DelayedWorkTracker workTracker = new DelayedWorkTracker();
+
+  // Lazily created, so that unused delegates don't hold threads.
+  private ExecutorService executor;
+  private boolean closed = false;
+  private final ArrayList<ParallelDecryptingTransformingFetchDelegate> deferredDelegates =
+      new ArrayList<ParallelDecryptingTransformingFetchDelegate>();
+
+  // Guarded by deliveryMonitor.
+  private final Object deliveryMonitor = new Object();
+  private final HashMap<Long, Outcome> completed = new HashMap<Long, Outcome>();
+  private long nextSequenceToDeliver = 0;
+
+  // Only touched by the producing thread.
+  private long nextSequence = 0;
+
+  /**
+   * The result of processing one incoming record: either a transformed record
+   * or a failure.
+   */
+  private static class Outcome {
+    public final Record record;
+    public final Exception failure;
+    public final boolean holdsPermit;
+
+    public Outcome(Record record, Exception failure, boolean holdsPermit) {
+      this.record = record;
+      this.failure = failure;
+      this.holdsPermit = holdsPermit;
+    }
+  }
+
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, LOG_TAG);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  public ParallelDecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next,
+                                                     KeyBundle keyBundle,
+                                                     RecordFactory recordFactory,
+                                                     int workers,
+                                                     boolean preserveOrder) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("Must have at least one worker.");
+    }
+    this.next = next;
+    this.keyBundle = keyBundle;
+    this.recordFactory = recordFactory;
+    this.workers = workers;
+    this.preserveOrder = preserveOrder;
+    this.inFlight = new Semaphore(workers * IN_FLIGHT_PER_WORKER);
+  }
+
+  /**
+   * Record how long each record takes to decrypt in <code>decryptTimes</code>.
+   * Call before the fetch begins.
+   */
+  public void setDecryptTimes(Histogram decryptTimes) {
+    this.decryptTimes = decryptTimes;
+  }
+
+  protected synchronized ExecutorService getExecutor() {
+    if (closed) {
+      throw new RejectedExecutionException("Delegate is closed.");
+    }
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(workers, DAEMON_THREADS);
+    }
+    return executor;
+  }
+
+  protected synchronized void shutdownExecutor() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  /**
+   * Release the worker threads without waiting for the fetch to end, for
+   * example because the session was aborted. Records already queued are
+   * still processed; any that arrive afterwards are processed inline.
+   */
+  public synchronized void close() {
+    closed = true;
+    shutdownExecutor();
+    for (ParallelDecryptingTransformingFetchDelegate deferred : deferredDelegates) {
+      deferred.close();
+    }
+  }
+
+  @Override
+  public void onFetchedRecord(final Record record) {
+    final long sequence = nextSequence++;
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted waiting for decrypt capacity; processing record inline.");
+      Thread.currentThread().interrupt();
+      workTracker.incrementOutstanding();
+      process(sequence, record, false);
+      return;
+    }
+
+    workTracker.incrementOutstanding();
+    try {
+      getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          process(sequence, record, true);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Logger.warn(LOG_TAG, "Decrypt executor rejected record; processing inline.");
+      process(sequence, record, true);
+    }
+  }
+
+  /**
+   * Decrypt and transform a single record, then hand it (and any other
+   * records now eligible for delivery) to the next delegate.
+   */
+  protected void process(long sequence, Record record, boolean holdsPermit) {
+    Outcome outcome;
+    try {
+      outcome = new Outcome(Crypto5MiddlewareRepositorySession.decryptAndTransform(record, keyBundle, recordFactory, decryptTimes), null, holdsPermit);
+    } catch (RecordTransformationException e) {
+      outcome = new Outcome(e.record, e.getCause(), holdsPermit);
+    }
+
+    // Permits are released as records are delivered, not as they finish
+    // processing, so that records waiting in the reorder map count against
+    // the in-flight limit.
+    int delivered = 0;
+    synchronized (deliveryMonitor) {
+      if (!preserveOrder) {
+        deliver(outcome);
+        delivered = 1;
+      } else {
+        completed.put(sequence, outcome);
+        Outcome ready;
+        while ((ready = completed.remove(nextSequenceToDeliver)) != null) {
+          deliver(ready);
+          ++nextSequenceToDeliver;
+          ++delivered;
+        }
+      }
+    }
+
+    // Decrement outside the lock: the last decrement runs any delayed
+    // completion callback.
+    for (int i = 0; i < delivered; ++i) {
+      workTracker.decrementOutstanding();
+    }
+  }
+
+  // Must be called with deliveryMonitor held.
+  private void deliver(Outcome outcome) {
+    try {
+      if (outcome.failure != null) {
+        next.onFetchFailed(outcome.failure, outcome.record);
+      } else {
+        next.onFetchedRecord(outcome.record);
+      }
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Next delegate threw delivering record.", e);
+    } finally {
+      if (outcome.holdsPermit) {
+        inFlight.release();
+      }
+    }
+  }
+
+  @Override
+  public void onFetchFailed(final Exception ex, final Record record) {
+    if (record != null) {
+      // A per-record failure from upstream; nothing to wait for.
+      synchronized (deliveryMonitor) {
+        next.onFetchFailed(ex, record);
+      }
+      return;
+    }
+
+    // The fetch as a whole failed. Let outstanding work drain first.
+    workTracker.delayWorkItem(new Runnable() {
+      @Override
+      public void run() {
+        shutdownExecutor();
+        next.onFetchFailed(ex, null);
+      }
+    });
+  }
+
+  @Override
+  public void onFetchCompleted(final long fetchEnd) {
+    Logger.debug(LOG_TAG, "Fetch completed with " + workTracker.getOutstandingOperations() +
+                          " records still being decrypted.");
+    workTracker.delayWorkItem(new Runnable() {
+      @Override
+      public void run() {
+        shutdownExecutor();
+        next.onFetchCompleted(fetchEnd);
+      }
+    });
+  }
+
+  @Override
+  public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+    RepositorySessionFetchRecordsDelegate deferredNext = next.deferredFetchDelegate(executor);
+    final ParallelDecryptingTransformingFetchDelegate deferred =
+        new ParallelDecryptingTransformingFetchDelegate(deferredNext, keyBundle, recordFactory, workers, preserveOrder);
+    deferred.setDecryptTimes(decryptTimes);
+    synchronized (this) {
+      deferredDelegates.add(deferred);
+      if (closed) {
+        deferred.close();
+      }
+    }
+    return deferred;
+  }
+}
@@ -5,7 +5,10 @@
 package org.mozilla.gecko.sync.net;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.URI;
@@ -14,6 +17,8 @@ import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 
@@ -21,9 +26,17 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
+import org.mozilla.gecko.sync.metrics.Counter;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 
 import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HttpConnection;
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpEntityEnclosingRequest;
+import ch.boye.httpclientandroidlib.HttpHost;
+import ch.boye.httpclientandroidlib.HttpRequest;
+import ch.boye.httpclientandroidlib.HttpRequestInterceptor;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpVersion;
 import ch.boye.httpclientandroidlib.client.AuthCache;
@@ -36,18 +49,24 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
 import ch.boye.httpclientandroidlib.client.protocol.ClientContext;
 import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
+import ch.boye.httpclientandroidlib.conn.ConnectionKeepAliveStrategy;
 import ch.boye.httpclientandroidlib.conn.scheme.PlainSocketFactory;
 import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
 import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
 import ch.boye.httpclientandroidlib.impl.client.BasicAuthCache;
+import ch.boye.httpclientandroidlib.impl.client.BasicCookieStore;
+import ch.boye.httpclientandroidlib.impl.client.DefaultConnectionKeepAliveStrategy;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.impl.conn.tsccm.ThreadSafeClientConnManager;
 import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
 import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
 import ch.boye.httpclientandroidlib.protocol.BasicHttpContext;
+import ch.boye.httpclientandroidlib.protocol.ExecutionContext;
 import ch.boye.httpclientandroidlib.protocol.HttpContext;
 import ch.boye.httpclientandroidlib.util.EntityUtils;
 
@@ -60,8 +79,15 @@ import ch.boye.httpclientandroidlib.util.EntityUtils;
 public class BaseResource implements Resource {
   private static final String ANDROID_LOOPBACK_IP = "10.0.2.2";
 
-  private static final int MAX_TOTAL_CONNECTIONS     = 20;
-  private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+  public static final int DEFAULT_MAX_TOTAL_CONNECTIONS     = 20;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+
+  /**
+   * Keep idle connections open for this long, unless the server asks for
+   * less. Sync servers and their load balancers time idle connections out
+   * after a minute or so; closing ours first avoids reusing dead sockets.
+   */
+  public static final long DEFAULT_KEEP_ALIVE_MSEC = 30 * 1000;
 
   private boolean retryOnFailedRequest = true;
 
@@ -77,6 +103,8 @@ public class BaseResource implements Resource {
   public final String charset = "utf-8";
 
   protected static WeakReference<HttpResponseObserver> httpResponseObserver = null;
+  protected static WeakReference<HttpConnectionObserver> httpConnectionObserver = null;
+  protected static WeakReference<SyncMetrics> metrics = null;
 
   public BaseResource(String uri) throws URISyntaxException {
     this(uri, rewriteLocalhost);
@@ -122,6 +150,118 @@ public class BaseResource implements Resource {
     httpResponseObserver = new WeakReference<HttpResponseObserver>(newHttpResponseObserver);
   }
 
+  public static synchronized HttpConnectionObserver getHttpConnectionObserver() {
+    if (httpConnectionObserver == null) {
+      return null;
+    }
+    return httpConnectionObserver.get();
+  }
+
+  public static synchronized void setHttpConnectionObserver(HttpConnectionObserver newHttpConnectionObserver) {
+    if (httpConnectionObserver != null) {
+      httpConnectionObserver.clear();
+    }
+    httpConnectionObserver = new WeakReference<HttpConnectionObserver>(newHttpConnectionObserver);
+  }
+
+  public static synchronized SyncMetrics getMetrics() {
+    if (metrics == null) {
+      return null;
+    }
+    return metrics.get();
+  }
+
+  /**
+   * Record the count, latency and size of every request in
+   * <code>newMetrics</code>, or stop recording if it's <code>null</code>.
+   * <p>
+   * Latency is measured until the response headers arrive. Response bytes are
+   * counted as they are read off the wire, before any decompression.
+   */
+  public static synchronized void setMetrics(SyncMetrics newMetrics) {
+    if (metrics != null) {
+      metrics.clear();
+    }
+    metrics = (newMetrics == null) ? null : new WeakReference<SyncMetrics>(newMetrics);
+  }
+
+  /**
+   * Counts the bytes read from the entity it wraps.
+   */
+  protected static class MeteredEntity extends HttpEntityWrapper {
+    protected final Counter bytes;
+
+    public MeteredEntity(HttpEntity wrapped, Counter bytes) {
+      super(wrapped);
+      this.bytes = bytes;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(wrappedEntity.getContent()) {
+        @Override
+        public int read() throws IOException {
+          final int b = super.read();
+          if (b >= 0) {
+            bytes.increment();
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          final int read = super.read(buffer, offset, length);
+          if (read > 0) {
+            bytes.add(read);
+          }
+          return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+          final long skipped = super.skip(n);
+          if (skipped > 0) {
+            bytes.add(skipped);
+          }
+          return skipped;
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      final InputStream content = getContent();
+      try {
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+          outstream.write(buffer, 0, read);
+        }
+      } finally {
+        content.close();
+      }
+    }
+  }
+
+  protected static void recordRequest(SyncMetrics metrics, HttpRequestBase request) {
+    metrics.counter("requests").increment();
+    if (request instanceof HttpEntityEnclosingRequest) {
+      final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      if (entity != null && entity.getContentLength() > 0) {
+        metrics.counter("request.bytes").add(entity.getContentLength());
+      }
+    }
+  }
+
+  protected static void recordResponse(SyncMetrics metrics, HttpResponse response, long startNanos) {
+    metrics.histogram("latency.millis").recordMillisSince(startNanos);
+    metrics.counter("status." + response.getStatusLine().getStatusCode()).increment();
+    final HttpEntity entity = response.getEntity();
+    if (entity != null) {
+      response.setEntity(new MeteredEntity(entity, metrics.counter("response.bytes")));
+    }
+  }
+
   @Override
   public URI getURI() {
     return this.uri;
@@ -153,10 +293,13 @@ public class BaseResource implements Resource {
    */
   protected void prepareClient() throws KeyManagementException, NoSuchAlgorithmException, GeneralSecurityException {
     context = new BasicHttpContext();
+    // Don't let cookies leak between requests through the shared client.
+    context.setAttribute(ClientContext.COOKIE_STORE, new BasicCookieStore());
 
-    // We could reuse these client instances, except that we mess around
-    // with their parameters… so we'd need a pool of some kind.
-    client = new DefaultHttpClient(getConnectionManager());
+    // The client is shared with every other request to this endpoint, so
+    // that they can share connections. Per-request state goes on the request
+    // and the context, never on the client.
+    client = getSharedClient(uri);
 
     // TODO: Eventually we should use Apache HttpAsyncClient. It's not out of alpha yet.
     // Until then, we synchronously make the request, then invoke our delegate's callback.
@@ -171,12 +314,11 @@ public class BaseResource implements Resource {
 
     addAuthCacheToContext(request, context);
 
-    HttpParams params = client.getParams();
+    // Request parameters take precedence over the client's.
+    HttpParams params = request.getParams();
     HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
     HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
-    HttpConnectionParams.setStaleCheckingEnabled(params, false);
     HttpProtocolParams.setContentCharset(params, charset);
-    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
     final String userAgent = delegate.getUserAgent();
     if (userAgent != null) {
       HttpProtocolParams.setUserAgent(params, userAgent);
@@ -187,6 +329,98 @@ public class BaseResource implements Resource {
   private static final Object connManagerMonitor = new Object();
   private static ClientConnectionManager connManager;
 
+  // Keyed by scheme, host, and port. Guarded by connManagerMonitor.
+  private static final HashMap<String, DefaultHttpClient> sharedClients = new HashMap<String, DefaultHttpClient>();
+
+  private static volatile int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+  private static volatile int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+  private static volatile long keepAliveMsec = DEFAULT_KEEP_ALIVE_MSEC;
+
+  /**
+   * Set the size of the connection pool. Takes effect when the connection
+   * manager is next created.
+   */
+  public static void setConnectionLimits(int maxTotal, int maxPerRoute) {
+    if (maxTotal < 1 || maxPerRoute < 1) {
+      throw new IllegalArgumentException("Connection limits must be positive.");
+    }
+    maxTotalConnections = maxTotal;
+    maxConnectionsPerRoute = maxPerRoute;
+  }
+
+  /**
+   * Set the longest time an idle connection is kept open for reuse.
+   */
+  public static void setKeepAlive(long msec) {
+    if (msec < 0) {
+      throw new IllegalArgumentException("Keep-alive must not be negative.");
+    }
+    keepAliveMsec = msec;
+  }
+
+  /**
+   * Keep connections alive for as long as the server says, up to our own limit.
+   */
+  protected static final ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      final long serverDuration = super.getKeepAliveDuration(response, context);
+      final long ourDuration = keepAliveMsec;
+      if (serverDuration < 0 || serverDuration > ourDuration) {
+        return ourDuration;
+      }
+      return serverDuration;
+    }
+  };
+
+  /**
+   * Tell any <code>HttpConnectionObserver</code> whether each request gets a
+   * fresh connection. A connection's request count is still zero when its
+   * first request is being prepared.
+   */
+  protected static final HttpRequestInterceptor connectionObservingInterceptor = new HttpRequestInterceptor() {
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+      final HttpConnectionObserver observer = getHttpConnectionObserver();
+      if (observer == null) {
+        return;
+      }
+      final Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+      if (!(connection instanceof HttpConnection)) {
+        return;
+      }
+      final boolean reused = ((HttpConnection) connection).getMetrics().getRequestCount() > 0;
+      final Object target = context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+      final String host = (target instanceof HttpHost) ? ((HttpHost) target).getHostName() : null;
+      observer.observeHttpConnection(host, reused);
+    }
+  };
+
+  /**
+   * Return the long-lived client for the endpoint <code>uri</code> belongs to,
+   * creating it if necessary.
+   */
+  protected static DefaultHttpClient getSharedClient(URI uri) throws KeyManagementException, NoSuchAlgorithmException {
+    final String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    synchronized (connManagerMonitor) {
+      DefaultHttpClient client = sharedClients.get(key);
+      if (client != null) {
+        return client;
+      }
+      Logger.debug(LOG_TAG, "Creating shared HTTP client for " + key + ".");
+      client = new DefaultHttpClient(getConnectionManager());
+      HttpParams params = client.getParams();
+      // Idle connections are closed before the server is likely to have
+      // closed them, so we don't pay for a stale check on every request.
+      HttpConnectionParams.setStaleCheckingEnabled(params, false);
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+      client.setKeepAliveStrategy(keepAliveStrategy);
+      client.addRequestInterceptor(connectionObservingInterceptor);
+      sharedClients.put(key, client);
+      return client;
+    }
+  }
+
   // Call within a synchronized block on connManagerMonitor.
   private static ClientConnectionManager enableTLSConnectionManager() throws KeyManagementException, NoSuchAlgorithmException  {
     SSLContext sslContext = SSLContext.getInstance("TLS");
@@ -197,8 +431,8 @@ public class BaseResource implements Resource {
     schemeRegistry.register(new Scheme("http", 80, new PlainSocketFactory()));
     ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry);
 
-    cm.setMaxTotal(MAX_TOTAL_CONNECTIONS);
-    cm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+    cm.setMaxTotal(maxTotalConnections);
+    cm.setDefaultMaxPerRoute(maxConnectionsPerRoute);
     connManager = cm;
     return cm;
   }
@@ -215,7 +449,9 @@ public class BaseResource implements Resource {
   }
 
   /**
-   * Do some cleanup, so we don't need the stale connection check.
+   * Do some cleanup, so we don't need the stale connection check: close
+   * connections whose keep-alive has expired, and any that have been idle for
+   * longer than our keep-alive limit.
    */
   public static void closeExpiredConnections() {
     ClientConnectionManager connectionManager;
@@ -227,6 +463,7 @@ public class BaseResource implements Resource {
     }
     Logger.trace(LOG_TAG, "Closing expired connections.");
     connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(keepAliveMsec, TimeUnit.MILLISECONDS);
   }
 
   public static void shutdownConnectionManager() {
@@ -234,6 +471,8 @@ public class BaseResource implements Resource {
     synchronized (connManagerMonitor) {
       connectionManager = connManager;
       connManager = null;
+      // Shared clients hold on to the connection manager.
+      sharedClients.clear();
     }
     if (connectionManager == null) {
       return;
@@ -243,14 +482,25 @@ public class BaseResource implements Resource {
   }
 
   private void execute() {
+    final SyncMetrics metrics = getMetrics();
+    final long startNanos = System.nanoTime();
+    if (metrics != null) {
+      recordRequest(metrics, request);
+    }
     HttpResponse response;
     try {
       response = client.execute(request, context);
       Logger.debug(LOG_TAG, "Response: " + response.getStatusLine().toString());
     } catch (ClientProtocolException e) {
+      if (metrics != null) {
+        metrics.counter("failures").increment();
+      }
       delegate.handleHttpProtocolException(e);
       return;
     } catch (IOException e) {
+      if (metrics != null) {
+        metrics.counter("failures").increment();
+      }
       Logger.debug(LOG_TAG, "I/O exception returned from execute.");
       if (!retryOnFailedRequest) {
         delegate.handleHttpIOException(e);
@@ -259,6 +509,9 @@ public class BaseResource implements Resource {
       }
       return;
     } catch (Exception e) {
+      if (metrics != null) {
+        metrics.counter("failures").increment();
+      }
       // Bug 740731: Don't let an exception fall through. Wrapping isn't
       // optimal, but often the exception is treated as an Exception anyway.
       if (!retryOnFailedRequest) {
@@ -272,6 +525,10 @@ public class BaseResource implements Resource {
       return;
     }
 
+    if (metrics != null) {
+      recordResponse(metrics, response, startNanos);
+    }
+
     // Don't retry if the observer or delegate throws!
     HttpResponseObserver observer = getHttpResponseObserver();
     if (observer != null) {
@@ -355,20 +612,29 @@ public class BaseResource implements Resource {
     return e;
   }
 
+  /**
+   * Helper for turning serialized JSON into a payload.
+   */
+  protected static ByteArrayEntity jsonEntity(byte[] body) {
+    ByteArrayEntity e = new ByteArrayEntity(body);
+    e.setContentType("application/json");
+    return e;
+  }
+
   /**
    * Helper for turning a JSON object into a payload.
    * @throws UnsupportedEncodingException
    */
-  protected static StringEntity jsonEntity(JSONObject body) throws UnsupportedEncodingException {
-    return stringEntityWithContentTypeApplicationJSON(body.toJSONString());
+  protected static HttpEntity jsonEntity(JSONObject body) throws UnsupportedEncodingException {
+    return jsonEntity(JSONWriter.toJSONBytes(body));
   }
 
   /**
    * Helper for turning an extended JSON object into a payload.
    * @throws UnsupportedEncodingException
    */
-  protected static StringEntity jsonEntity(ExtendedJSONObject body) throws UnsupportedEncodingException {
-    return stringEntityWithContentTypeApplicationJSON(body.toJSONString());
+  protected static HttpEntity jsonEntity(ExtendedJSONObject body) throws UnsupportedEncodingException {
+    return jsonEntity(body.toJSONBytes());
   }
 
   /**
@@ -376,7 +642,7 @@ public class BaseResource implements Resource {
    * @throws UnsupportedEncodingException
    */
   protected static HttpEntity jsonEntity(JSONArray toPOST) throws UnsupportedEncodingException {
-    return stringEntityWithContentTypeApplicationJSON(toPOST.toJSONString());
+    return jsonEntity(JSONWriter.toJSONBytes(toPOST));
   }
 
   /**
@@ -0,0 +1,38 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count how many requests opened a new connection, and how many reused an
+ * existing one.
+ */
+public class ConnectionReuseCounter implements HttpConnectionObserver {
+  protected final AtomicLong newConnections = new AtomicLong(0);
+  protected final AtomicLong reusedConnections = new AtomicLong(0);
+
+  @Override
+  public void observeHttpConnection(String host, boolean reused) {
+    if (reused) {
+      reusedConnections.incrementAndGet();
+    } else {
+      newConnections.incrementAndGet();
+    }
+  }
+
+  public long getNewConnections() {
+    return newConnections.get();
+  }
+
+  public long getReusedConnections() {
+    return reusedConnections.get();
+  }
+
+  @Override
+  public String toString() {
+    return getNewConnections() + " new connections, " + getReusedConnections() + " reused";
+  }
+}
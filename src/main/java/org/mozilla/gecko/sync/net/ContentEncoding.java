@@ -0,0 +1,245 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+
+/**
+ * Compress request bodies and decompress response bodies, counting the bytes
+ * on either side so that we can tell how much compression saves.
+ * <p>
+ * Record payloads are base64 ciphertext: the ciphertext itself doesn't
+ * compress, but its base64 encoding and the surrounding JSON do.
+ */
+public class ContentEncoding {
+  private static final String LOG_TAG = "ContentEncoding";
+
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  public static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+  // Response bytes as read from the network, and after decoding.
+  protected static final AtomicLong responseBytesReceived = new AtomicLong(0);
+  protected static final AtomicLong responseBytesDecoded = new AtomicLong(0);
+
+  // Bytes of request bodies we compressed, before and after compression.
+  protected static final AtomicLong requestBytesEncoded = new AtomicLong(0);
+  protected static final AtomicLong requestBytesSent = new AtomicLong(0);
+
+  public static long getResponseBytesReceived() {
+    return responseBytesReceived.get();
+  }
+
+  public static long getResponseBytesDecoded() {
+    return responseBytesDecoded.get();
+  }
+
+  public static long getRequestBytesEncoded() {
+    return requestBytesEncoded.get();
+  }
+
+  public static long getRequestBytesSent() {
+    return requestBytesSent.get();
+  }
+
+  public static void resetCounters() {
+    responseBytesReceived.set(0);
+    responseBytesDecoded.set(0);
+    requestBytesEncoded.set(0);
+    requestBytesSent.set(0);
+  }
+
+  /**
+   * An input stream that adds the number of bytes read through it to a counter.
+   */
+  protected static class CountingInputStream extends FilterInputStream {
+    protected final AtomicLong counter;
+
+    public CountingInputStream(InputStream in, AtomicLong counter) {
+      super(in);
+      this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b >= 0) {
+        counter.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        counter.addAndGet(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      if (skipped > 0) {
+        counter.addAndGet(skipped);
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Presents the decoded content of a possibly compressed entity.
+   */
+  protected static class DecodingEntity extends HttpEntityWrapper {
+    protected final String encoding;
+
+    public DecodingEntity(HttpEntity wrapped, String encoding) {
+      super(wrapped);
+      this.encoding = encoding;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      InputStream content = new CountingInputStream(wrappedEntity.getContent(), responseBytesReceived);
+      if (GZIP.equals(encoding)) {
+        content = new GZIPInputStream(content);
+      } else if (DEFLATE.equals(encoding)) {
+        content = inflate(content);
+      }
+      return new CountingInputStream(content, responseBytesDecoded);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return null;
+    }
+
+    @Override
+    public long getContentLength() {
+      return (encoding == null) ? wrappedEntity.getContentLength() : -1;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      final InputStream content = getContent();
+      try {
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+          outstream.write(buffer, 0, read);
+        }
+      } finally {
+        content.close();
+      }
+    }
+  }
+
+  /**
+   * HTTP "deflate" should be zlib-wrapped, but some servers send raw deflate
+   * data. Tell them apart by the zlib header.
+   */
+  protected static InputStream inflate(InputStream in) throws IOException {
+    final PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    final byte[] header = new byte[2];
+    int read = 0;
+    while (read < 2) {
+      final int n = pushback.read(header, read, 2 - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+    if (read > 0) {
+      pushback.unread(header, 0, read);
+    }
+    final int cmf = header[0] & 0xff;
+    final int flg = header[1] & 0xff;
+    final boolean zlib = read == 2 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    return new InflaterInputStream(pushback, new Inflater(!zlib));
+  }
+
+  /**
+   * Replace the entity of <code>response</code> with one that decodes its
+   * <code>Content-Encoding</code> and counts bytes. Does nothing if the
+   * response has no entity, or has already been decoded.
+   *
+   * @throws IOException if the content encoding isn't one we understand.
+   */
+  public static void decodeResponse(HttpResponse response) throws IOException {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null || entity instanceof DecodingEntity) {
+      return;
+    }
+    final Header header = entity.getContentEncoding();
+    String encoding = null;
+    if (header != null) {
+      encoding = header.getValue().trim().toLowerCase();
+      if ("identity".equals(encoding)) {
+        encoding = null;
+      } else if (!GZIP.equals(encoding) &&
+                 !DEFLATE.equals(encoding)) {
+        throw new IOException("Unsupported Content-Encoding: " + encoding);
+      }
+    }
+    response.setEntity(new DecodingEntity(entity, encoding));
+    response.removeHeaders("Content-Encoding");
+    response.removeHeaders("Content-Length");
+  }
+
+  /**
+   * Gzip the content of <code>entity</code>.
+   * <p>
+   * The result holds the compressed bytes, so it's repeatable: auth header
+   * providers that hash the payload, like Hawk, hash the bytes we send.
+   *
+   * @return a gzipped entity with the same content type.
+   */
+  public static HttpEntity gzipEntity(HttpEntity entity) throws IOException {
+    final long length = entity.getContentLength();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 ? (int) Math.min(length / 2, Integer.MAX_VALUE) : 4096);
+    final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+    try {
+      entity.writeTo(gzip);
+    } finally {
+      gzip.close();
+    }
+
+    final byte[] compressed = bytes.toByteArray();
+    if (length > 0) {
+      requestBytesEncoded.addAndGet(length);
+    }
+    requestBytesSent.addAndGet(compressed.length);
+    Logger.trace(LOG_TAG, "Gzipped {} bytes to {}.", length, compressed.length);
+
+    final ByteArrayEntity out = new ByteArrayEntity(compressed);
+    out.setContentType(entity.getContentType());
+    out.setContentEncoding(GZIP);
+    return out;
+  }
+}
@@ -0,0 +1,18 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+public interface HttpConnectionObserver {
+  /**
+   * Observe the connection an HTTP request is about to be sent over.
+   *
+   * @param host
+   *          The host the request is for.
+   * @param reused
+   *          true if the connection has already carried a request, false if
+   *          it was opened (and, for HTTPS, handshaken) for this one.
+   */
+  public void observeHttpConnection(String host, boolean reused);
+}
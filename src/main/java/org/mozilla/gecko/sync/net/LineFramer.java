@@ -0,0 +1,130 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Split a stream of bytes into newline-terminated lines without decoding
+ * them.
+ * <p>
+ * Lines are read into a single buffer that is reused for the whole stream,
+ * and exposed as a slice of it. A slice is only valid until the next call to
+ * <code>next</code>: callers that keep a line must copy it.
+ * <p>
+ * As with <code>BufferedReader.readLine</code>, a line ends at
+ * <code>\n</code>, a trailing <code>\r</code> is dropped, and a final line
+ * without a newline is still returned. The buffer grows to hold a line that
+ * doesn't fit.
+ */
+public class LineFramer {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  protected final InputStream in;
+  protected byte[] buffer;
+
+  // Bytes buffer[start, limit) have been read but not yet returned.
+  protected int start = 0;
+  protected int limit = 0;
+  protected boolean eof = false;
+
+  // The current line.
+  protected int lineOffset = 0;
+  protected int lineLength = 0;
+
+  public LineFramer(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public LineFramer(InputStream in, int bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be positive.");
+    }
+    this.in = in;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Advance to the next line.
+   *
+   * @return false at the end of the stream.
+   * @throws IOException
+   */
+  public boolean next() throws IOException {
+    int scanned = start;
+    while (true) {
+      for (int i = scanned; i < limit; ++i) {
+        if (buffer[i] == '\n') {
+          setLine(start, i);
+          start = i + 1;
+          return true;
+        }
+      }
+      scanned = limit;
+
+      if (eof) {
+        if (start == limit) {
+          return false;
+        }
+        setLine(start, limit);
+        start = limit;
+        return true;
+      }
+
+      // Make room: first by discarding lines we've returned, then by growing.
+      if (limit == buffer.length) {
+        if (start > 0) {
+          System.arraycopy(buffer, start, buffer, 0, limit - start);
+          scanned -= start;
+          limit -= start;
+          start = 0;
+        } else {
+          final byte[] grown = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, grown, 0, limit);
+          buffer = grown;
+        }
+      }
+
+      final int read = in.read(buffer, limit, buffer.length - limit);
+      if (read < 0) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+  }
+
+  // Drop a trailing carriage return.
+  protected void setLine(int from, int to) {
+    if (to > from && buffer[to - 1] == '\r') {
+      --to;
+    }
+    lineOffset = from;
+    lineLength = to - from;
+  }
+
+  /**
+   * @return the buffer holding the current line.
+   */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the offset of the current line in <code>buffer()</code>.
+   */
+  public int offset() {
+    return lineOffset;
+  }
+
+  /**
+   * @return the length in bytes of the current line, excluding the line
+   *         terminator.
+   */
+  public int length() {
+    return lineLength;
+  }
+}
@@ -4,11 +4,9 @@
 
 package org.mozilla.gecko.sync.net;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.Scanner;
 
 import org.json.simple.parser.ParseException;
@@ -49,6 +47,14 @@ public class SyncResponse {
     return this.getStatusCode() == 200;
   }
 
+  /**
+   * @return true if this is a 304 response to a conditional request: our
+   *         copy of the resource is current.
+   */
+  public boolean isNotModified() {
+    return this.getStatusCode() == 304;
+  }
+
   /**
    * Fetch the content type of the HTTP response body.
    *
@@ -99,8 +105,7 @@ public class SyncResponse {
 
     InputStream content = entity.getContent();
     try {
-      Reader in = new BufferedReader(new InputStreamReader(content, "UTF-8"));
-      return ExtendedJSONObject.parseJSONObject(in);
+      return ExtendedJSONObject.parseJSONObject(content);
     } finally {
       content.close();
     }
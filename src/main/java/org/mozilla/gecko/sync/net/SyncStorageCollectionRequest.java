@@ -4,10 +4,8 @@
 
 package org.mozilla.gecko.sync.net;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URI;
 
 import org.mozilla.gecko.background.common.log.Logger;
@@ -59,7 +57,7 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       SyncStorageResourceDelegate {
 
     private static final String CONTENT_TYPE_INCREMENTAL = "application/newlines";
-    private static final int FETCH_BUFFER_SIZE = 16 * 1024;   // 16K chars.
+    private static final int FETCH_BUFFER_SIZE = 16 * 1024;   // 16KB.
 
     SyncCollectionResourceDelegate(SyncStorageCollectionRequest request) {
       super(request);
@@ -83,6 +81,11 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
         return;
       }
 
+      // Compressed responses are decoded as we read lines.
+      if (!decodeResponse(response)) {
+        return;
+      }
+
       HttpEntity entity = response.getEntity();
       Header contentType = entity.getContentType();
       if (!contentType.getValue().startsWith(CONTENT_TYPE_INCREMENTAL)) {
@@ -100,17 +103,16 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       // Line-by-line processing, then invoke success.
       SyncStorageCollectionRequestDelegate delegate = (SyncStorageCollectionRequestDelegate) this.request.delegate;
       InputStream content = null;
-      BufferedReader br = null;
       try {
         content = entity.getContent();
-        br = new BufferedReader(new InputStreamReader(content), FETCH_BUFFER_SIZE);
-        String line;
+        // Lines are handed over as UTF-8 bytes, without decoding.
+        final LineFramer lines = new LineFramer(content, FETCH_BUFFER_SIZE);
 
         // This relies on connection timeouts at the HTTP layer.
         while (!aborting &&
-               null != (line = br.readLine())) {
+               lines.next()) {
           try {
-            delegate.handleRequestProgress(line);
+            delegate.handleRequestProgress(lines.buffer(), lines.offset(), lines.length());
           } catch (Exception ex) {
             delegate.handleRequestError(new HandleProgressException(ex));
             BaseResource.consumeEntity(entity);
@@ -128,10 +130,10 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
         BaseResource.consumeEntity(entity);
         return;
       } finally {
-        // Attempt to close the stream and reader.
-        if (br != null) {
+        // Attempt to close the stream.
+        if (content != null) {
           try {
-            br.close();
+            content.close();
           } catch (IOException e) {
             // We don't care if this fails.
           }
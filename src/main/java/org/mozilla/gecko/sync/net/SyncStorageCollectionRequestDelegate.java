@@ -4,6 +4,20 @@
 
 package org.mozilla.gecko.sync.net;
 
+import java.nio.charset.Charset;
+
+/**
+ * Lines of a collection response are delivered as bytes. Subclasses that
+ * can work with bytes should override
+ * {@link #handleRequestProgress(byte[], int, int)}; by default each line is
+ * decoded as UTF-8 and passed to {@link #handleRequestProgress(String)}.
+ */
 public abstract class SyncStorageCollectionRequestDelegate implements
-    SyncStorageRequestIncrementalDelegate, SyncStorageRequestDelegate {
-}
\ No newline at end of file
+    SyncStorageRequestIncrementalDelegate, SyncStorageRequestIncrementalBytesDelegate, SyncStorageRequestDelegate {
+  protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Override
+  public void handleRequestProgress(byte[] buffer, int offset, int length) {
+    handleRequestProgress(new String(buffer, offset, length, UTF_8));
+  }
+}
@@ -12,6 +12,7 @@ import java.util.HashMap;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.SyncConstants;
+import org.mozilla.gecko.sync.Utils;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpResponse;
@@ -60,6 +61,33 @@ public class SyncStorageRequest implements Resource {
     return body;
   }
 
+  private static volatile boolean acceptCompressedResponses = false;
+  private static volatile boolean compressRequestBodies = false;
+
+  /**
+   * Opt in to compressed storage traffic.
+   * <p>
+   * Response compression is negotiated, so it's safe to enable against any
+   * server. Request compression isn't: only enable it for servers known to
+   * accept gzipped request bodies.
+   *
+   * @param responses send <code>Accept-Encoding</code>, and decode gzip or
+   *        deflate responses.
+   * @param requests gzip POST bodies.
+   */
+  public static void setCompression(boolean responses, boolean requests) {
+    acceptCompressedResponses = responses;
+    compressRequestBodies = requests;
+  }
+
+  public static boolean shouldAcceptCompressedResponses() {
+    return acceptCompressedResponses;
+  }
+
+  public static boolean shouldCompressRequestBodies() {
+    return compressRequestBodies;
+  }
+
   /**
    * @param uri
    * @throws URISyntaxException
@@ -114,14 +142,39 @@ public class SyncStorageRequest implements Resource {
       return SyncConstants.USER_AGENT;
     }
 
+    /**
+     * Make the response entity present decoded content.
+     *
+     * @return false if the response can't be decoded; the request delegate
+     *         has been told.
+     */
+    protected boolean decodeResponse(HttpResponse response) {
+      try {
+        ContentEncoding.decodeResponse(response);
+        return true;
+      } catch (IOException e) {
+        BaseResource.consumeEntity(response);
+        this.request.delegate.handleRequestError(e);
+        return false;
+      }
+    }
+
     @Override
     public void handleHttpResponse(HttpResponse response) {
       Logger.debug(LOG_TAG, "SyncStorageResourceDelegate handling response: " + response.getStatusLine() + ".");
+      if (!decodeResponse(response)) {
+        return;
+      }
       SyncStorageRequestDelegate d = this.request.delegate;
       SyncStorageResponse res = new SyncStorageResponse(response);
       // It is the responsibility of the delegate handlers to completely consume the response.
-      if (res.wasSuccessful()) {
+      // 202 Accepted is how the server acknowledges records added to a batch upload.
+      if (res.wasSuccessful() || res.getStatusCode() == 202) {
         d.handleRequestSuccess(res);
+      } else if (res.isNotModified()) {
+        // Not an error: the delegate asked for a conditional request.
+        Logger.debug(LOG_TAG, "Resource not modified.");
+        d.handleRequestFailure(res);
       } else {
         Logger.warn(LOG_TAG, "HTTP request failed.");
         try {
@@ -156,9 +209,24 @@ public class SyncStorageRequest implements Resource {
         Logger.debug(LOG_TAG, "Making request with X-If-Unmodified-Since = " + ifUnmodifiedSince);
         request.setHeader("x-if-unmodified-since", ifUnmodifiedSince);
       }
+      // Conditional GETs: the server responds 304 if our copy is current.
+      final long ifModifiedSince = this.request.ifModifiedSince;
+      if (ifModifiedSince > 0) {
+        final String since = Utils.millisecondsToDecimalSecondsString(ifModifiedSince);
+        Logger.debug(LOG_TAG, "Making request with X-If-Modified-Since = " + since);
+        request.setHeader("x-if-modified-since", since);
+      }
+      final String ifNoneMatch = this.request.ifNoneMatch;
+      if (ifNoneMatch != null) {
+        Logger.debug(LOG_TAG, "Making request with If-None-Match = " + ifNoneMatch);
+        request.setHeader("if-none-match", ifNoneMatch);
+      }
       if (request.getMethod().equalsIgnoreCase("DELETE")) {
         request.addHeader("x-confirm-delete", "1");
       }
+      if (acceptCompressedResponses) {
+        request.setHeader("Accept-Encoding", ContentEncoding.ACCEPT_ENCODING);
+      }
     }
   }
 
@@ -166,6 +234,32 @@ public class SyncStorageRequest implements Resource {
   public SyncStorageRequestDelegate delegate;
   protected BaseResource resource;
 
+  protected volatile long ifModifiedSince = -1;
+  protected volatile String ifNoneMatch = null;
+
+  /**
+   * Make this a conditional request: the server will respond 304 Not Modified
+   * if the resource hasn't changed since <code>timestamp</code>. That response
+   * is delivered to <code>handleRequestFailure</code>.
+   *
+   * @param timestamp milliseconds since the epoch, as returned by the server;
+   *        non-positive values send no header.
+   */
+  public void setIfModifiedSince(long timestamp) {
+    this.ifModifiedSince = timestamp;
+  }
+
+  /**
+   * Make this a conditional request: the server will respond 304 Not Modified
+   * if the resource's entity tag matches <code>etag</code>.
+   *
+   * @param etag an entity tag, quoted as the server sent it, or
+   *        <code>null</code> to send no header.
+   */
+  public void setIfNoneMatch(String etag) {
+    this.ifNoneMatch = etag;
+  }
+
   public SyncStorageRequest() {
     super();
   }
@@ -187,6 +281,14 @@ public class SyncStorageRequest implements Resource {
 
   @Override
   public void post(HttpEntity body) {
+    if (compressRequestBodies && body != null && body.getContentEncoding() == null) {
+      try {
+        body = ContentEncoding.gzipEntity(body);
+      } catch (IOException e) {
+        this.delegate.handleRequestError(e);
+        return;
+      }
+    }
     this.resource.post(body);
   }
 
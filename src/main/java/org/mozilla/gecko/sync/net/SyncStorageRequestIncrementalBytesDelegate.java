@@ -0,0 +1,15 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+/**
+ * Receives each line of an incremental response as undecoded UTF-8 bytes.
+ * <p>
+ * The bytes are only valid for the duration of the call: the buffer is
+ * reused for the next line.
+ */
+public interface SyncStorageRequestIncrementalBytesDelegate {
+  void handleRequestProgress(byte[] buffer, int offset, int length);
+}
@@ -23,8 +23,17 @@ implements KeyBundleProvider {
 
   @Override
   public void handleRequestProgress(String progress) {
+    final byte[] bytes = progress.getBytes(UTF_8);
+    handleRequestProgress(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public void handleRequestProgress(byte[] buffer, int offset, int length) {
     try {
-      CryptoRecord record = CryptoRecord.fromJSONRecord(progress);
+      // Parse straight from bytes: this avoids building JSON objects for the
+      // envelope and the still-encrypted payload. The record copies what it
+      // keeps, so the buffer can be reused.
+      CryptoRecord record = CryptoRecord.fromJSONRecord(buffer, offset, length);
       record.keyBundle = this.keyBundle();
       this.handleWBO(record);
     } catch (Exception e) {
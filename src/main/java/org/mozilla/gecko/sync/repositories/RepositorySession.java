@@ -7,6 +7,7 @@ package org.mozilla.gecko.sync.repositories;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -126,6 +127,26 @@ public abstract class RepositorySession {
   }
   public abstract void store(Record record) throws NoStoreDelegateException;
 
+  /**
+   * Store several records at once.
+   * <p>
+   * Results are reported to the store delegate exactly as for
+   * {@link #store(Record)}, except that sessions may report a group of
+   * successes with a single call to
+   * {@link RepositorySessionStoreDelegate#onRecordsStoreSucceeded(Collection)}.
+   * <p>
+   * The default implementation stores records one at a time. Sessions that
+   * can apply a batch more cheaply should override it.
+   *
+   * @param records the records to store, in order.
+   * @throws NoStoreDelegateException
+   */
+  public void storeBatch(List<Record> records) throws NoStoreDelegateException {
+    for (Record record : records) {
+      store(record);
+    }
+  }
+
   public void storeDone() {
     // Our default behavior will be to assume that the Runnable is
     // executed as soon as all the stores synchronously finish, so
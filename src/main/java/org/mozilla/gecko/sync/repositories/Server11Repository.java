@@ -9,7 +9,9 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 
@@ -27,6 +29,16 @@ public class Server11Repository extends Repository {
   protected final AuthHeaderProvider authHeaderProvider;
   protected final InfoCollections infoCollections;
 
+  protected int pagedFetchWindowSize = -1;
+  protected int pagedFetchConnections = 1;
+  protected long pagedFetchLimit = -1;
+
+  protected int uploadConnections = 1;
+
+  protected SyncMetrics metrics = null;
+
+  protected InfoConfiguration infoConfiguration = null;
+
   /**
    * Construct a new repository that fetches and stores against the Sync 1.1. API.
    *
@@ -112,6 +124,92 @@ public class Server11Repository extends Repository {
     return null;
   }
 
+  /**
+   * Make <code>fetchSince</code> page through the whole collection rather
+   * than issuing a single (possibly limited) request: the session fetches
+   * the matching IDs, then downloads the records in windows of
+   * <code>windowSize</code> IDs over up to <code>connections</code>
+   * concurrent connections.
+   * <p>
+   * The default fetch limit does not apply to paged fetches: use
+   * <code>limit</code> to cap the number of IDs listed instead.
+   *
+   * @param windowSize IDs per request; non-positive disables paging.
+   * @param connections maximum number of concurrent requests.
+   * @param limit maximum number of records to fetch; non-positive for no limit.
+   */
+  public void setPagedFetch(int windowSize, int connections, long limit) {
+    this.pagedFetchWindowSize = windowSize;
+    this.pagedFetchConnections = connections;
+    this.pagedFetchLimit = limit;
+  }
+
+  public void setPagedFetch(int windowSize, int connections) {
+    setPagedFetch(windowSize, connections, -1);
+  }
+
+  protected int getPagedFetchWindowSize() {
+    return pagedFetchWindowSize;
+  }
+
+  protected int getPagedFetchConnections() {
+    return pagedFetchConnections;
+  }
+
+  protected long getPagedFetchLimit() {
+    return pagedFetchLimit;
+  }
+
+  /**
+   * Allow up to <code>connections</code> record POSTs in flight at once when
+   * storing. Outside a server batch every POST is independent; within one,
+   * the POST that opens the batch and the POST that commits it are still
+   * sent alone.
+   *
+   * @param connections maximum number of concurrent POSTs; 1 uploads serially.
+   */
+  public void setUploadConnections(int connections) {
+    this.uploadConnections = connections;
+  }
+
+  protected int getUploadConnections() {
+    return uploadConnections;
+  }
+
+  /**
+   * Record fetch and upload request times, and the size and concurrency of
+   * uploads, for sessions created afterwards.
+   */
+  public void setMetrics(SyncMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  protected SyncMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Upload using the server's batch semantics, within the given limits.
+   *
+   * @param infoConfiguration server limits; <code>null</code> uploads each
+   *        POST independently, as servers without batch support expect.
+   */
+  public void setInfoConfiguration(InfoConfiguration infoConfiguration) {
+    this.infoConfiguration = infoConfiguration;
+  }
+
+  protected InfoConfiguration getInfoConfiguration() {
+    return infoConfiguration;
+  }
+
+  /**
+   * @return the last modified time of the collection on the server, in
+   *         milliseconds, or <code>null</code> if it is not known.
+   */
+  protected Long getCollectionLastModified() {
+    return infoCollections.getTimestamp(collection);
+  }
+
   public AuthHeaderProvider getAuthHeaderProvider() {
     return authHeaderProvider;
   }
@@ -9,10 +9,17 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
@@ -21,17 +28,23 @@ import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.DelayedWorkTracker;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.Server11PreviousPostFailedException;
 import org.mozilla.gecko.sync.Server11RecordPostFailedException;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
@@ -100,12 +113,19 @@ public class Server11RepositorySession extends RepositorySession {
   @Override
   public void abort() {
     super.abort();
+    closeUploadExecutor(true);
     for (SyncStorageCollectionRequest request : pending) {
       request.abort();
     }
     pending.clear();
   }
 
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    closeUploadExecutor(false);
+    super.finish(delegate);
+  }
+
   /**
    * Convert HTTP request delegate callbacks into fetch callbacks within the
    * context of this RepositorySession.
@@ -224,6 +244,23 @@ public class Server11RepositorySession extends RepositorySession {
   public Server11RepositorySession(Repository repository) {
     super(repository);
     serverRepository = (Server11Repository) repository;
+
+    uploadLimits = (serverRepository == null) ? null : serverRepository.getInfoConfiguration();
+    if (uploadLimits == null) {
+      maxPostRecords  = UPLOAD_ITEM_THRESHOLD;
+      maxPostBytes    = UPLOAD_BYTE_THRESHOLD;
+      maxTotalRecords = Long.MAX_VALUE;
+      maxTotalBytes   = Long.MAX_VALUE;
+    } else {
+      maxPostRecords  = uploadLimits.maxPostRecords;
+      maxPostBytes    = Math.min(uploadLimits.maxPostBytes, uploadLimits.maxRequestBytes);
+      maxTotalRecords = uploadLimits.maxTotalRecords;
+      maxTotalBytes   = uploadLimits.maxTotalBytes;
+    }
+
+    uploadConnections = (serverRepository == null) ? 1 : Math.max(1, serverRepository.getUploadConnections());
+    uploadPermits = new Semaphore(uploadConnections);
+    metrics = (serverRepository == null) ? null : serverRepository.getMetrics();
   }
 
   private String flattenIDs(String[] guids) {
@@ -265,7 +302,11 @@ public class Server11RepositorySession extends RepositorySession {
     // So it can clean up.
     delegate.setRequest(request);
     pending.add(request);
+    final long startNanos = System.nanoTime();
     request.get();
+    if (metrics != null) {
+      metrics.histogram("fetch.request.millis").recordMillisSince(startNanos);
+    }
   }
 
   public void fetchSince(long timestamp, long limit, String sort, RepositorySessionFetchRecordsDelegate delegate) {
@@ -280,6 +321,10 @@ public class Server11RepositorySession extends RepositorySession {
   public void fetchSince(long timestamp,
                          RepositorySessionFetchRecordsDelegate delegate) {
     try {
+      if (serverRepository.getPagedFetchWindowSize() > 0) {
+        this.fetchPaged(timestamp, serverRepository.getDefaultSort(), delegate);
+        return;
+      }
       long limit = serverRepository.getDefaultFetchLimit();
       String sort = serverRepository.getDefaultSort();
       this.fetchWithParameters(timestamp, limit, true, sort, null, new RequestFetchDelegateAdapter(delegate));
@@ -305,6 +350,292 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Fetch records modified after <code>newer</code> without a per-request
+   * limit: ask the server for the matching IDs, then download the records in
+   * windows of IDs over several connections.
+   * <p>
+   * The fetch end timestamp is that of the ID listing, so records modified
+   * while the windows are being downloaded will be fetched again next time.
+   * The listing is capped at <code>getPagedFetchLimit()</code> IDs, if set.
+   */
+  protected void fetchPaged(final long newer, final String sort, final RepositorySessionFetchRecordsDelegate delegate) throws URISyntaxException {
+    URI idsURI = serverRepository.collectionURI(false, newer, serverRepository.getPagedFetchLimit(), sort, null);
+    final SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(idsURI);
+    request.delegate = new SyncStorageCollectionRequestDelegate() {
+      private final ArrayList<String> guids = new ArrayList<String>();
+
+      @Override
+      public AuthHeaderProvider getAuthHeaderProvider() {
+        return serverRepository.getAuthHeaderProvider();
+      }
+
+      @Override
+      public String ifUnmodifiedSince() {
+        return null;
+      }
+
+      @Override
+      public void handleRequestProgress(String progress) {
+        // Each line is a JSON string. GUIDs never need escaping.
+        String line = progress.trim();
+        if (line.length() < 2 || line.charAt(0) != '"' || line.charAt(line.length() - 1) != '"' || line.indexOf('\\') >= 0) {
+          // Fail the fetch, and stop reading: nothing else will be delivered.
+          this.handleRequestError(new UnexpectedJSONException("Unexpected line in ID listing: " + line));
+          request.abort();
+          return;
+        }
+        guids.add(line.substring(1, line.length() - 1));
+      }
+
+      @Override
+      public void handleRequestSuccess(SyncStorageResponse response) {
+        pending.remove(request);
+        if (guids.isEmpty()) {
+          // The server didn't stream the response; it might be a plain JSON array.
+          try {
+            JSONArray body = ExtendedJSONObject.parseJSONArray(response.body());
+            for (Object guid : body) {
+              guids.add((String) guid);
+            }
+          } catch (Exception e) {
+            // An empty listing is not JSON at all if streamed.
+            Logger.debug(LOG_TAG, "ID listing body is not a JSON array; assuming no records.");
+          }
+        }
+        final long fetchEnd = getNormalizedTimestamp(response);
+        Logger.debug(LOG_TAG, "Fetched " + guids.size() + " IDs for paged fetch. Timestamp is " + fetchEnd);
+        fetchWindows(guids, fetchEnd, sort, delegate);
+      }
+
+      @Override
+      public void handleRequestFailure(SyncStorageResponse response) {
+        this.handleRequestError(new HTTPFailureException(response));
+      }
+
+      @Override
+      public void handleRequestError(Exception ex) {
+        pending.remove(request);
+        Logger.warn(LOG_TAG, "Got error fetching IDs for paged fetch.", ex);
+        delegate.onFetchFailed(ex, null);
+      }
+    };
+    pending.add(request);
+    request.get();
+  }
+
+  /**
+   * Download the given records in windows of at most
+   * <code>getPagedFetchWindowSize()</code> IDs, using up to
+   * <code>getPagedFetchConnections()</code> connections at once.
+   * <p>
+   * Records are delivered to <code>delegate</code> in the order of
+   * <code>guids</code> (assuming the server sorts each window the same way as
+   * it sorted the ID listing), from one thread at a time.
+   * <code>delegate.onFetchCompleted(fetchEnd)</code> is called once all
+   * windows have been delivered.
+   */
+  public void fetchWindows(List<String> guids, long fetchEnd, String sort, RepositorySessionFetchRecordsDelegate delegate) {
+    final int windowSize = Math.max(1, serverRepository.getPagedFetchWindowSize());
+    final int connections = Math.max(1, serverRepository.getPagedFetchConnections());
+    new PagedFetcher(guids, windowSize, connections, fetchEnd, sort, delegate).start();
+  }
+
+  /**
+   * Synchronously fetch one window of records.
+   */
+  protected List<CryptoRecord> fetchWindow(List<String> guids, String sort) throws Exception {
+    final ArrayList<CryptoRecord> records = new ArrayList<CryptoRecord>(guids.size());
+    final Exception[] failure = new Exception[1];
+    final boolean[] succeeded = new boolean[1];
+
+    URI uri = serverRepository.collectionURI(true, -1, -1, sort, flattenIDs(guids.toArray(new String[guids.size()])));
+    final SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(uri);
+    request.delegate = new WBOCollectionRequestDelegate() {
+      @Override
+      public AuthHeaderProvider getAuthHeaderProvider() {
+        return serverRepository.getAuthHeaderProvider();
+      }
+
+      @Override
+      public String ifUnmodifiedSince() {
+        return null;
+      }
+
+      @Override
+      public void handleWBO(CryptoRecord record) {
+        records.add(record);
+      }
+
+      @Override
+      public void handleRequestSuccess(SyncStorageResponse response) {
+        succeeded[0] = true;
+      }
+
+      @Override
+      public void handleRequestFailure(SyncStorageResponse response) {
+        failure[0] = new HTTPFailureException(response);
+      }
+
+      @Override
+      public void handleRequestError(Exception ex) {
+        failure[0] = ex;
+      }
+
+      @Override
+      public KeyBundle keyBundle() {
+        return null;
+      }
+    };
+
+    pending.add(request);
+    try {
+      // Synchronous: all delegate callbacks have run when this returns.
+      request.get();
+    } finally {
+      pending.remove(request);
+    }
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    if (!succeeded[0]) {
+      // The request was aborted, so we don't have the whole window.
+      throw new FetchFailedException();
+    }
+    return records;
+  }
+
+  /**
+   * Runs the windows of a paged fetch on a small pool of threads, and
+   * reassembles their results in order.
+   * <p>
+   * At most <code>2 * connections</code> windows are fetched but not yet
+   * delivered at any time, which bounds the number of records held in memory.
+   */
+  protected class PagedFetcher {
+    private final List<String> guids;
+    private final int windowSize;
+    private final int windowCount;
+    private final int connections;
+    private final long fetchEnd;
+    private final String sort;
+    private final RepositorySessionFetchRecordsDelegate delegate;
+
+    private final Semaphore undelivered;
+    private final AtomicInteger nextWindow = new AtomicInteger(0);
+    private ExecutorService executor;
+
+    // Guarded by deliveryMonitor.
+    private final Object deliveryMonitor = new Object();
+    private final HashMap<Integer, List<CryptoRecord>> fetched = new HashMap<Integer, List<CryptoRecord>>();
+    private int nextWindowToDeliver = 0;
+    private boolean finished = false;
+
+    public PagedFetcher(List<String> guids, int windowSize, int connections, long fetchEnd, String sort, RepositorySessionFetchRecordsDelegate delegate) {
+      this.guids = guids;
+      this.windowSize = windowSize;
+      this.windowCount = (guids.size() + windowSize - 1) / windowSize;
+      this.connections = Math.min(connections, Math.max(1, windowCount));
+      this.fetchEnd = fetchEnd;
+      this.sort = sort;
+      this.delegate = delegate;
+      this.undelivered = new Semaphore(2 * this.connections);
+    }
+
+    public void start() {
+      if (windowCount == 0) {
+        delegate.onFetchCompleted(fetchEnd);
+        return;
+      }
+      Logger.debug(LOG_TAG, "Fetching " + guids.size() + " records in " + windowCount +
+                            " windows over " + connections + " connections.");
+      executor = Executors.newFixedThreadPool(connections);
+      for (int i = 0; i < connections; ++i) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            fetchWindows();
+          }
+        });
+      }
+    }
+
+    protected void fetchWindows() {
+      while (true) {
+        try {
+          undelivered.acquire();
+        } catch (InterruptedException e) {
+          fail(e);
+          return;
+        }
+        final int window = nextWindow.getAndIncrement();
+        if (window >= windowCount || isFinished()) {
+          undelivered.release();
+          return;
+        }
+
+        final int start = window * windowSize;
+        final List<String> windowGUIDs = guids.subList(start, Math.min(start + windowSize, guids.size()));
+        final List<CryptoRecord> records;
+        try {
+          records = fetchWindow(windowGUIDs, sort);
+        } catch (Exception e) {
+          fail(e);
+          return;
+        }
+        windowFetched(window, records);
+      }
+    }
+
+    private boolean isFinished() {
+      synchronized (deliveryMonitor) {
+        return finished;
+      }
+    }
+
+    protected void windowFetched(int window, List<CryptoRecord> records) {
+      synchronized (deliveryMonitor) {
+        if (finished) {
+          return;
+        }
+        fetched.put(window, records);
+        List<CryptoRecord> ready;
+        while ((ready = fetched.remove(nextWindowToDeliver)) != null) {
+          for (CryptoRecord record : ready) {
+            try {
+              delegate.onFetchedRecord(record);
+            } catch (Exception ex) {
+              Logger.warn(LOG_TAG, "Got exception calling onFetchedRecord with WBO.", ex);
+            }
+          }
+          ++nextWindowToDeliver;
+          undelivered.release();
+        }
+        if (nextWindowToDeliver < windowCount) {
+          return;
+        }
+        finished = true;
+      }
+      executor.shutdown();
+      delegate.onFetchCompleted(fetchEnd);
+    }
+
+    protected void fail(Exception e) {
+      synchronized (deliveryMonitor) {
+        if (finished) {
+          return;
+        }
+        finished = true;
+        fetched.clear();
+      }
+      Logger.warn(LOG_TAG, "Paged fetch failed.", e);
+      // Wake any workers waiting for a window; they'll see we're finished.
+      undelivered.release(windowCount);
+      executor.shutdown();
+      delegate.onFetchFailed(e, null);
+    }
+  }
+
   @Override
   public void wipe(RepositorySessionWipeDelegate delegate) {
     if (!isActive()) {
@@ -316,6 +647,22 @@ public class Server11RepositorySession extends RepositorySession {
 
   protected Object recordsBufferMonitor = new Object();
 
+  /**
+   * Server upload limits, or <code>null</code> if the server doesn't support
+   * batch uploads.
+   * <p>
+   * With limits, records are uploaded in batches: each POST adds to a batch
+   * on the server, and nothing is visible to other clients until the last
+   * POST commits the batch. Every POST carries
+   * <code>X-If-Unmodified-Since</code>, so that a concurrent write by another
+   * client fails the upload rather than interleaving with it.
+   */
+  protected final InfoConfiguration uploadLimits;
+  protected final long maxPostRecords;
+  protected final long maxPostBytes;
+  protected final long maxTotalRecords;
+  protected final long maxTotalBytes;
+
   /**
    * Data of outbound records.
    * <p>
@@ -336,6 +683,19 @@ public class Server11RepositorySession extends RepositorySession {
   protected ArrayList<String> recordGuidsBuffer = new ArrayList<String>();
   protected int byteCount = PER_BATCH_OVERHEAD;
 
+  /**
+   * Serializes outbound records. Access should be synchronized on the writer.
+   */
+  protected final JSONWriter recordWriter = new JSONWriter();
+
+  /**
+   * Records and bytes in the current server batch, including the buffer.
+   * <p>
+   * Access should be synchronized on <code>recordsBufferMonitor</code>.
+   */
+  protected long batchRecordCount = 0;
+  protected long batchByteCount = 0;
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -345,52 +705,82 @@ public class Server11RepositorySession extends RepositorySession {
   }
 
   /**
-   * Batch incoming records until some reasonable threshold (e.g., 50),
-   * some size limit is hit (probably way less than 3MB!), or storeDone
-   * is received.
+   * Batch incoming records until the server's per-POST record or size limit
+   * is hit, or storeDone is received. In batch mode, also commit the batch
+   * before it exceeds the server's per-batch limits.
    * @param record
    */
   protected void enqueue(Record record) {
-    // JSONify and store the bytes, rather than the record.
-    byte[] json = record.toJSONBytes();
+    // JSONify and store the bytes, rather than the record. Each record is
+    // written through the same in-memory writer, so the only allocation is
+    // the array that goes into the request body.
+    final byte[] json;
+    synchronized (recordWriter) {
+      recordWriter.reset();
+      try {
+        record.writeTo(recordWriter);
+      } catch (IOException e) {
+        // In-memory writers don't throw.
+        throw new IllegalStateException(e);
+      }
+      json = recordWriter.toByteArray();
+    }
     int delta   = json.length;
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if ((batchRecordCount + 1     > maxTotalRecords) ||
+          (batchByteCount + delta   > maxTotalBytes)) {
+
+        // Commit the batch so far, then enqueue into a new one.
+        flush(true);
+      } else if ((delta + byteCount     > maxPostBytes) ||
+                 (recordsBuffer.size() >= maxPostRecords)) {
 
         // POST the existing contents, then enqueue.
-        flush();
+        flush(false);
       }
       recordsBuffer.add(json);
       recordGuidsBuffer.add(record.guid);
       byteCount += PER_RECORD_OVERHEAD + delta;
+      batchRecordCount += 1;
+      batchByteCount += delta;
     }
   }
 
   // Asynchronously upload records.
   // Must be locked!
-  protected void flush() {
+  protected void flush(boolean commit) {
     if (recordsBuffer.size() > 0) {
       final ArrayList<byte[]> outgoing = recordsBuffer;
       final ArrayList<String> outgoingGuids = recordGuidsBuffer;
       RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount));
+      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount, commit));
 
       recordsBuffer = new ArrayList<byte[]>();
       recordGuidsBuffer = new ArrayList<String>();
       byteCount = PER_BATCH_OVERHEAD;
     }
+    if (commit) {
+      batchRecordCount = 0;
+      batchByteCount = 0;
+    }
   }
 
   @Override
   public void storeDone() {
     Logger.debug(LOG_TAG, "storeDone().");
     synchronized (recordsBufferMonitor) {
-      flush();
+      flush(true);
       // Do this in a Runnable so that the timestamp is grabbed after any upload.
       final Runnable r = new Runnable() {
         @Override
         public void run() {
+          awaitUploads();
+          synchronized (uploadExecutorMonitor) {
+            if (uploadExecutor != null) {
+              uploadExecutor.shutdown();
+              uploadExecutor = null;
+            }
+          }
           synchronized (recordsBufferMonitor) {
             final long end = uploadTimestamp.get();
             Logger.debug(LOG_TAG, "Calling storeDone with " + end);
@@ -402,18 +792,134 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Maximum number of record POSTs in flight at once.
+   * <p>
+   * <code>RecordUploadRunnable</code>s are dispatched in order on the store
+   * work queue. Each takes a permit from <code>uploadPermits</code> before
+   * sending its POST and returns it once the response has been handled, so
+   * taking every permit waits for all outstanding uploads.
+   */
+  protected final int uploadConnections;
+  protected final Semaphore uploadPermits;
+  protected final AtomicInteger uploadsInFlight = new AtomicInteger(0);
+
+  // Null unless metrics are being recorded.
+  protected final SyncMetrics metrics;
+
+  /**
+   * Sends POSTs when <code>uploadConnections</code> is more than one.
+   * <p>
+   * Created on the store work queue when first needed, and shut down by
+   * <code>storeDone</code>, <code>abort</code>, or <code>finish</code>.
+   * Guarded by <code>uploadExecutorMonitor</code>.
+   */
+  protected ExecutorService uploadExecutor;
+  protected boolean uploadExecutorClosed = false;
+  protected final Object uploadExecutorMonitor = new Object();
+
+  /**
+   * @return the executor to send a POST on, or null if the session has been
+   *         aborted or finished.
+   */
+  protected ExecutorService getUploadExecutor() {
+    synchronized (uploadExecutorMonitor) {
+      if (uploadExecutorClosed) {
+        return null;
+      }
+      if (uploadExecutor == null) {
+        uploadExecutor = Executors.newFixedThreadPool(uploadConnections);
+      }
+      return uploadExecutor;
+    }
+  }
+
+  /**
+   * Shut down the upload executor, and don't create another. The store work
+   * queue is shut down at the same time, so this can't be done there.
+   *
+   * @param now if true, interrupt POSTs in flight.
+   */
+  protected void closeUploadExecutor(boolean now) {
+    synchronized (uploadExecutorMonitor) {
+      uploadExecutorClosed = true;
+      if (uploadExecutor == null) {
+        return;
+      }
+      if (now) {
+        uploadExecutor.shutdownNow();
+      } else {
+        uploadExecutor.shutdown();
+      }
+      uploadExecutor = null;
+    }
+  }
+
+  /**
+   * Block until every POST in flight has been handled.
+   */
+  protected void awaitUploads() {
+    uploadPermits.acquireUninterruptibly(uploadConnections);
+    uploadPermits.release(uploadConnections);
+  }
+
   /**
    * <code>true</code> if a record upload has failed this session.
    * <p>
    * This is only set in begin and possibly by <code>RecordUploadRunnable</code>.
-   * Since those are executed serially, we can use an unsynchronized
-   * volatile boolean here.
+   * Once set it is never cleared until the next session, so an unsynchronized
+   * volatile boolean is enough even with concurrent uploads.
    */
   protected volatile boolean recordUploadFailed;
 
+  /**
+   * The batch we're adding to, or <code>null</code> to start a new one.
+   * <p>
+   * Only written by an upload running alone: the POST that opens a batch and
+   * the POST that commits it wait for every other upload to finish.
+   */
+  protected volatile String batchId;
+
+  /**
+   * GUIDs accepted into the current batch. They aren't stored until the
+   * batch is committed.
+   * <p>
+   * Access should be synchronized on <code>batchGuids</code>.
+   */
+  protected final ArrayList<String> batchGuids = new ArrayList<String>();
+
+  /**
+   * Fail every record accepted into the current batch: it will never be
+   * committed.
+   */
+  protected void failBatch(Exception ex) {
+    final ArrayList<String> failed;
+    synchronized (batchGuids) {
+      failed = new ArrayList<String>(batchGuids);
+      batchGuids.clear();
+      batchId = null;
+    }
+    for (String guid : failed) {
+      delegate.onRecordStoreFailed(ex, guid);
+    }
+  }
+
+  /**
+   * The last known modified time of the collection on the server, in
+   * milliseconds, or -1 if unknown. Sent as <code>X-If-Unmodified-Since</code>
+   * in batch mode.
+   */
+  protected volatile long collectionLastModified = -1;
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     recordUploadFailed = false;
+    synchronized (batchGuids) {
+      batchId = null;
+      batchGuids.clear();
+    }
+    final Long lastModified = serverRepository.getCollectionLastModified();
+    collectionLastModified = (lastModified == null) ? -1 : lastModified;
     super.begin(delegate);
   }
 
@@ -430,17 +936,20 @@ public class Server11RepositorySession extends RepositorySession {
     private final ArrayList<byte[]> outgoing;
     private ArrayList<String> outgoingGuids;
     private final long byteCount;
+    private final boolean commit;
 
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
                                 ArrayList<byte[]> outgoing,
                                 ArrayList<String> outgoingGuids,
-                                long byteCount) {
+                                long byteCount,
+                                boolean commit) {
       Logger.debug(LOG_TAG, "Preparing record upload for " +
                   outgoing.size() + " records (" +
                   byteCount + " bytes).");
       this.outgoing = outgoing;
       this.outgoingGuids = outgoingGuids;
       this.byteCount = byteCount;
+      this.commit = commit;
     }
 
     @Override
@@ -450,7 +959,10 @@ public class Server11RepositorySession extends RepositorySession {
 
     @Override
     public String ifUnmodifiedSince() {
-      return null;
+      if (uploadLimits == null || collectionLastModified < 0) {
+        return null;
+      }
+      return Utils.millisecondsToDecimalSecondsString(collectionLastModified);
     }
 
     @Override
@@ -466,38 +978,75 @@ public class Server11RepositorySession extends RepositorySession {
         return;
       }
 
+      // The server accepted these records into a batch, but hasn't stored
+      // them yet.
+      final boolean accepted = response.getStatusCode() == 202;
+      if (accepted) {
+        final String id = body.getString("batch");
+        if (id == null) {
+          Logger.error(LOG_TAG, "Got 202 without a batch ID.");
+          this.handleRequestError(new HTTPFailureException(response));
+          return;
+        }
+        batchId = id;
+      }
+
       // Be defensive when logging timestamp.
+      Long modified = null;
       if (body.containsKey("modified")) {
-        Long modified = body.getTimestamp("modified");
+        modified = body.getTimestamp("modified");
         if (modified != null) {
           Logger.trace(LOG_TAG, "POST request success. Modified timestamp: " + modified);
         } else {
           Logger.warn(LOG_TAG, "POST success body contains malformed 'modified': " + body.toJSONString());
         }
-      } else {
+      } else if (!accepted) {
         Logger.warn(LOG_TAG, "POST success body does not contain key 'modified': " + body.toJSONString());
       }
 
       try {
         JSONArray          success = body.getArray("success");
-        if ((success != null) &&
-            (success.size() > 0)) {
+        final ArrayList<String> succeeded = new ArrayList<String>();
+        if (success != null) {
           Logger.trace(LOG_TAG, "Successful records: " + success.toString());
           for (Object o : success) {
             try {
-              delegate.onRecordStoreSucceeded((String) o);
+              succeeded.add((String) o);
             } catch (ClassCastException e) {
               Logger.error(LOG_TAG, "Got exception parsing POST success guid.", e);
               // Not much to be done.
             }
           }
-
-          long normalizedTimestamp = getNormalizedTimestamp(response);
-          Logger.trace(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
-          bumpUploadTimestamp(normalizedTimestamp);
         }
         success = null; // Want to GC this ASAP.
 
+        if (accepted) {
+          // Report these once the batch is committed.
+          synchronized (batchGuids) {
+            batchGuids.addAll(succeeded);
+          }
+        } else {
+          // Stored: either we committed a batch, or the server doesn't do
+          // batches and stored this POST on its own.
+          synchronized (batchGuids) {
+            if (!batchGuids.isEmpty()) {
+              succeeded.addAll(0, batchGuids);
+              batchGuids.clear();
+            }
+            batchId = null;
+          }
+          if (uploadLimits != null) {
+            collectionLastModified = (modified != null) ? modified : getNormalizedTimestamp(response);
+          }
+          if (succeeded.size() > 0) {
+            delegate.onRecordsStoreSucceeded(succeeded);
+
+            long normalizedTimestamp = getNormalizedTimestamp(response);
+            Logger.trace(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
+            bumpUploadTimestamp(normalizedTimestamp);
+          }
+        }
+
         ExtendedJSONObject failed  = body.getObject("failed");
         if ((failed != null) &&
             (failed.object.size() > 0)) {
@@ -529,6 +1078,8 @@ public class Server11RepositorySession extends RepositorySession {
       recordUploadFailed = true;
       ArrayList<String> failedOutgoingGuids = outgoingGuids;
       outgoingGuids = null; // Want to GC this ASAP.
+      // Records already in the batch will never be committed.
+      failBatch(ex);
       for (String guid : failedOutgoingGuids) {
         delegate.onRecordStoreFailed(ex, guid);
       }
@@ -580,13 +1131,44 @@ public class Server11RepositorySession extends RepositorySession {
       return body;
     }
 
+    protected URI batchURI(URI collectionURI) throws URISyntaxException, UnsupportedEncodingException {
+      final StringBuilder uri = new StringBuilder(collectionURI.toString());
+      uri.append("?batch=");
+      uri.append(batchId == null ? "true" : URLEncoder.encode(batchId, "UTF-8"));
+      if (commit) {
+        uri.append("&commit=true");
+      }
+      return new URI(uri.toString());
+    }
+
+    /**
+     * Runs on the store work queue, which dispatches uploads in order.
+     * <p>
+     * A POST that opens or commits a server batch waits for every other
+     * upload and is sent alone: later POSTs need the batch ID from the first,
+     * and the commit must come after everything else in the batch. Any other
+     * POST waits only for a free connection, and is sent on
+     * <code>uploadExecutor</code> so that the queue can dispatch the next.
+     */
     @Override
     public void run() {
+      final boolean alone = uploadLimits != null && (batchId == null || commit);
+      final int permits = alone ? uploadConnections : 1;
+      uploadPermits.acquireUninterruptibly(permits);
+
+      // Checked after waiting, so that we see any failure of the uploads we
+      // waited for.
       if (recordUploadFailed) {
-        Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
-        Exception ex = new Server11PreviousPostFailedException();
-        for (String guid : outgoingGuids) {
-          delegate.onRecordStoreFailed(ex, guid);
+        try {
+          Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
+          Exception ex = new Server11PreviousPostFailedException();
+          // Concurrent POSTs might have added to a batch after it failed.
+          failBatch(ex);
+          for (String guid : outgoingGuids) {
+            delegate.onRecordStoreFailed(ex, guid);
+          }
+        } finally {
+          uploadPermits.release(permits);
         }
         return;
       }
@@ -594,19 +1176,69 @@ public class Server11RepositorySession extends RepositorySession {
       if (outgoing == null ||
           outgoing.size() == 0) {
         Logger.debug(LOG_TAG, "No items: RecordUploadRunnable returning immediately.");
+        uploadPermits.release(permits);
+        return;
+      }
+
+      if (permits == uploadConnections) {
+        // Nothing else is in flight; BaseResource is synchronous, so the
+        // queue won't proceed until this request completes.
+        try {
+          post();
+        } finally {
+          uploadPermits.release(permits);
+        }
         return;
       }
 
+      final ExecutorService executor = getUploadExecutor();
+      if (executor == null) {
+        Logger.info(LOG_TAG, "Session ended; not uploading " + outgoing.size() + " records.");
+        uploadPermits.release(permits);
+        return;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            post();
+          } finally {
+            uploadPermits.release(permits);
+          }
+        }
+      });
+    }
+
+    protected void post() {
       URI u = serverRepository.collectionURI();
+      if (uploadLimits != null) {
+        try {
+          u = batchURI(u);
+        } catch (URISyntaxException | UnsupportedEncodingException e) {
+          this.handleRequestError(e);
+          return;
+        }
+      }
       SyncStorageRequest request = new SyncStorageRequest(u);
 
       request.delegate = this;
 
-      // We don't want the task queue to proceed until this request completes.
-      // Fortunately, BaseResource is currently synchronous.
-      // If that ever changes, you'll need to block here.
       ByteArraysEntity body = getBodyEntity();
-      request.post(body);
+      if (metrics == null) {
+        request.post(body);
+        return;
+      }
+
+      metrics.histogram("upload.in.flight").record(uploadsInFlight.incrementAndGet());
+      metrics.histogram("upload.post.bytes").record(byteCount);
+      metrics.histogram("upload.post.records").record(outgoing.size());
+      final long startNanos = System.nanoTime();
+      try {
+        request.post(body);
+      } finally {
+        uploadsInFlight.decrementAndGet();
+        metrics.histogram("upload.post.millis").recordMillisSince(startNanos);
+      }
     }
   }
 
@@ -661,6 +661,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     }
 
     // Success For All!
+    final ArrayList<String> succeededGuids = new ArrayList<String>(toStores.size());
     for (Record succeeded : toStores) {
       try {
         updateBookkeeping(succeeded);
@@ -668,8 +669,9 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
         Logger.warn(LOG_TAG, "Got exception updating bookkeeping of non-folder with guid " + succeeded.guid + ".", e);
       }
       trackRecord(succeeded);
-      delegate.onRecordStoreSucceeded(succeeded.guid);
+      succeededGuids.add(succeeded.guid);
     }
+    delegate.onRecordsStoreSucceeded(succeededGuids);
   }
 
   @Override
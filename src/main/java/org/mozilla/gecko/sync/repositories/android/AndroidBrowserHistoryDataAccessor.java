@@ -12,13 +12,17 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.sync.CompactJSONObject;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public class AndroidBrowserHistoryDataAccessor extends
     AndroidBrowserRepositoryDataAccessor {
@@ -51,8 +55,7 @@ public class AndroidBrowserHistoryDataAccessor extends
       long mostRecent = 0;
       for (int i = 0; i < visits.size(); i++) {
         JSONObject visit = (JSONObject) visits.get(i);
-        long visitDate = (Long) visit
-            .get(AndroidBrowserHistoryRepositorySession.KEY_DATE);
+        long visitDate = CompactJSONObject.getLong(visit, AndroidBrowserHistoryRepositorySession.KEY_DATE, 0);
         if (visitDate > mostRecent) {
           mostRecent = visitDate;
         }
@@ -83,11 +86,36 @@ public class AndroidBrowserHistoryDataAccessor extends
     HistoryRecord rec = (HistoryRecord) newRecord;
     String newGUID = newRecord.guid;
     Logger.debug(LOG_TAG, "Storing visits for " + newGUID + ", replacing " + oldGUID);
-    dataExtender.delete(oldGUID);
-    dataExtender.store(newGUID, rec.visits);
+    replaceVisits(oldGUID, newGUID, rec.visits);
     super.update(oldGUID, newRecord);
   }
 
+  /**
+   * Stored visits are only ever added to, so there's no need to rewrite them
+   * unless the GUID changes.
+   */
+  protected void replaceVisits(String oldGUID, String newGUID, JSONArray visits) {
+    if (!newGUID.equals(oldGUID)) {
+      dataExtender.delete(oldGUID);
+    }
+    dataExtender.store(newGUID, visits);
+  }
+
+  /**
+   * Fetch the records with the given URL.
+   * <p>
+   * The caller is responsible for closing the cursor.
+   *
+   * @param url the URL to look up.
+   * @return A cursor. You <b>must</b> close this when you're done with it.
+   * @throws NullCursorException
+   */
+  public Cursor fetchByURL(String url) throws NullCursorException {
+    return queryHelper.safeQuery(".fetchByURL", getAllColumns(),
+                                 BrowserContract.History.URL + " = ?",
+                                 new String[] { url }, null);
+  }
+
   @Override
   public int purgeGuid(String guid) {
     Logger.debug(LOG_TAG, "Purging record with " + guid);
@@ -95,6 +123,53 @@ public class AndroidBrowserHistoryDataAccessor extends
     return super.purgeGuid(guid);
   }
 
+  /**
+   * Visits live in a separate database, so they are written after the
+   * history rows themselves.
+   */
+  public class HistoryStoreBatch extends StoreBatch {
+    protected final ArrayList<HistoryRecord> updatedRecords = new ArrayList<HistoryRecord>();
+    protected final ArrayList<String> replacedGUIDs = new ArrayList<String>();
+    protected final ArrayList<String> purgedGUIDs = new ArrayList<String>();
+
+    @Override
+    public void update(String guid, Record newRecord) {
+      super.update(guid, newRecord);
+      replacedGUIDs.add(guid);
+      updatedRecords.add((HistoryRecord) newRecord);
+    }
+
+    @Override
+    public void purge(String guid) {
+      super.purge(guid);
+      purgedGUIDs.add(guid);
+    }
+
+    @Override
+    public void apply() throws RemoteException, OperationApplicationException {
+      try {
+        super.apply();
+        for (String guid : purgedGUIDs) {
+          dataExtender.delete(guid);
+        }
+        for (int i = 0; i < updatedRecords.size(); ++i) {
+          final HistoryRecord rec = updatedRecords.get(i);
+          Logger.debug(LOG_TAG, "Storing visits for " + rec.guid + ", replacing " + replacedGUIDs.get(i));
+          replaceVisits(replacedGUIDs.get(i), rec.guid, rec.visits);
+        }
+      } finally {
+        updatedRecords.clear();
+        replacedGUIDs.clear();
+        purgedGUIDs.clear();
+      }
+    }
+  }
+
+  @Override
+  public StoreBatch newStoreBatch() {
+    return new HistoryStoreBatch();
+  }
+
   public void closeExtender() {
     dataExtender.close();
   }
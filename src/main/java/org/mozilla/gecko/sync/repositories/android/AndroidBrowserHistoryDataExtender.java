@@ -5,94 +5,234 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CompactJSONObject;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
+/**
+ * Stores the Sync visits for each history GUID, which Fennec's own history
+ * database doesn't track.
+ * <p>
+ * Visits are stored one per row, so storing a record's visits only writes
+ * the visits that are new, and reading them needs no JSON parsing.
+ */
 public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
   public static final String LOG_TAG = "SyncHistoryVisits";
 
   // Database Specifications.
   protected static final String DB_NAME = "history_extension_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
 
-  // History Table.
-  public static final String   TBL_HISTORY_EXT = "HistoryExtension";
+  // Visits Table: one row per visit.
+  public static final String   TBL_VISITS = "HistoryVisits";
   public static final String   COL_GUID = "guid";
+  public static final String   COL_DATE = "date";
+  public static final String   COL_TYPE = "type";
   public static final String   GUID_IS = COL_GUID + " = ?";
-  public static final String   COL_VISITS = "visits";
-  public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS };
+  public static final String[] TBL_COLUMNS = { COL_GUID, COL_DATE, COL_TYPE };
+
+  // The schema version 1 table, which held a JSON array of visits per GUID.
+  // Only read when migrating.
+  protected static final String TBL_HISTORY_EXT = "HistoryExtension";
+  protected static final String COL_VISITS = "visits";
+
+  // Newest first, as Sync clients expect.
+  protected static final String VISITS_ORDER = COL_DATE + " DESC";
+
+  // The keys of a visit in a history record.
+  public static final String KEY_DATE = "date";
+  public static final String KEY_TYPE = "type";
+
+  /**
+   * By default, retain only the most recent this-many visits for each GUID.
+   */
+  public static final int DEFAULT_MAX_VISITS_PER_GUID = 100;
 
   private final RepoUtils.QueryHelper queryHelper;
 
+  protected volatile int maxVisitsPerGUID = DEFAULT_MAX_VISITS_PER_GUID;
+
   public AndroidBrowserHistoryDataExtender(Context context) {
     super(context, DB_NAME, null, SCHEMA_VERSION);
     this.queryHelper = new RepoUtils.QueryHelper(context, null, LOG_TAG);
   }
 
+  /**
+   * Set the number of most recent visits retained for each GUID. Older
+   * visits are dropped as new ones are stored.
+   */
+  public void setMaxVisitsPerGUID(int maxVisitsPerGUID) {
+    if (maxVisitsPerGUID < 1) {
+      throw new IllegalArgumentException("maxVisitsPerGUID must be positive.");
+    }
+    this.maxVisitsPerGUID = maxVisitsPerGUID;
+  }
+
+  public int getMaxVisitsPerGUID() {
+    return maxVisitsPerGUID;
+  }
+
   @Override
   public void onCreate(SQLiteDatabase db) {
-    String createTableSql = "CREATE TABLE " + TBL_HISTORY_EXT + " ("
-        + COL_GUID + " TEXT PRIMARY KEY, "
-        + COL_VISITS + " TEXT)";
+    // A visit is identified by its date; storing a visit that's already
+    // present is a no-op.
+    String createTableSql = "CREATE TABLE " + TBL_VISITS + " ("
+        + COL_GUID + " TEXT NOT NULL, "
+        + COL_DATE + " INTEGER NOT NULL, "
+        + COL_TYPE + " INTEGER, "
+        + "UNIQUE (" + COL_GUID + ", " + COL_DATE + ") ON CONFLICT IGNORE)";
     db.execSQL(createTableSql);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // For now we'll just drop and recreate the tables.
-    db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
+    if (oldVersion == 1) {
+      onCreate(db);
+      migrateFromVersion1(db);
+      db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
+      return;
+    }
+    // Otherwise, we'll just drop and recreate the tables.
+    dropTables(db);
     onCreate(db);
   }
 
+  protected static void dropTables(SQLiteDatabase db) {
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_VISITS);
+  }
+
+  /**
+   * Copy the JSON visits of schema version 1 into the visits table. Rows that
+   * don't parse are dropped: their visits will be recreated from Fennec's
+   * history on the next upload, as for any record without stored visits.
+   */
+  protected void migrateFromVersion1(SQLiteDatabase db) {
+    Logger.info(LOG_TAG, "Migrating history visits from schema version 1.");
+    final SQLiteStatement insert = compileInsert(db);
+    Cursor cur = db.query(TBL_HISTORY_EXT, new String[] { COL_GUID, COL_VISITS }, null, null, null, null, null);
+    int migrated = 0;
+    try {
+      while (cur.moveToNext()) {
+        final String guid = cur.getString(0);
+        final String visits = cur.getString(1);
+        if (guid == null || visits == null) {
+          continue;
+        }
+        try {
+          insertVisits(db, insert, guid, ExtendedJSONObject.parseJSONArray(visits));
+          migrated++;
+        } catch (Exception e) {
+          Logger.warn(LOG_TAG, "Dropping unparseable visits for GUID " + guid + ".", e);
+        }
+      }
+    } finally {
+      cur.close();
+      insert.close();
+    }
+    Logger.info(LOG_TAG, "Migrated visits for " + migrated + " GUIDs.");
+  }
+
   public void wipe() {
     SQLiteDatabase db = this.getCachedWritableDatabase();
-    onUpgrade(db, SCHEMA_VERSION, SCHEMA_VERSION);
+    dropTables(db);
+    onCreate(db);
+  }
+
+  protected static SQLiteStatement compileInsert(SQLiteDatabase db) {
+    return db.compileStatement("INSERT INTO " + TBL_VISITS + " (" +
+        COL_GUID + ", " + COL_DATE + ", " + COL_TYPE + ") VALUES (?, ?, ?)");
+  }
+
+  /**
+   * Insert those of <code>visits</code> not already stored for
+   * <code>guid</code>, then drop all but the most recent
+   * <code>maxVisitsPerGUID</code>.
+   */
+  protected void insertVisits(SQLiteDatabase db, SQLiteStatement insert, String guid, JSONArray visits) {
+    if (visits == null || visits.isEmpty()) {
+      return;
+    }
+    for (Object o : visits) {
+      if (!(o instanceof JSONObject)) {
+        continue;
+      }
+      final JSONObject visit = (JSONObject) o;
+      final Object date = visit.get(KEY_DATE);
+      if (!(date instanceof Number)) {
+        Logger.debug(LOG_TAG, "Skipping visit without date for GUID " + guid);
+        continue;
+      }
+      final Object type = visit.get(KEY_TYPE);
+      insert.clearBindings();
+      insert.bindString(1, guid);
+      insert.bindLong(2, ((Number) date).longValue());
+      if (type instanceof Number) {
+        insert.bindLong(3, ((Number) type).longValue());
+      } else {
+        insert.bindNull(3);
+      }
+      insert.executeInsert();
+    }
+
+    // Deletes nothing if there are no more than maxVisitsPerGUID visits: the
+    // subquery is then NULL.
+    final String[] args = new String[] { guid, guid };
+    db.execSQL("DELETE FROM " + TBL_VISITS + " WHERE " + COL_GUID + " = ? AND " + COL_DATE + " < " +
+        "(SELECT " + COL_DATE + " FROM " + TBL_VISITS + " WHERE " + COL_GUID + " = ?" +
+        " ORDER BY " + VISITS_ORDER + " LIMIT 1 OFFSET " + (maxVisitsPerGUID - 1) + ")", args);
   }
 
   /**
    * Store visit data.
    *
-   * If a row with GUID `guid` does not exist, insert a new row.
-   * If a row with GUID `guid` does exist, replace the visits column.
+   * Visits not already stored for `guid` are added; visits already stored
+   * are kept. Only the most recent visits are retained: see
+   * {@link #setMaxVisitsPerGUID(int)}.
    *
    * @param db The database to write to; must not be null.
    * @param guid The GUID to store to; must not be null.
    * @param visits New visits data.
    */
   protected void store(SQLiteDatabase db, String guid, JSONArray visits) {
-    ContentValues cv = new ContentValues();
-    cv.put(COL_GUID, guid);
-    if (visits == null) {
-      cv.put(COL_VISITS, "[]");
-    } else {
-      cv.put(COL_VISITS, visits.toJSONString());
+    if (visits == null || visits.isEmpty()) {
+      return;
     }
-
-    String[] args = new String[] { guid };
-    int rowsUpdated = db.update(TBL_HISTORY_EXT, cv, GUID_IS, args);
-    if (rowsUpdated >= 1) {
-      Logger.debug(LOG_TAG, "Replaced history extension record for row with GUID " + guid);
-    } else {
-      long rowId = db.insert(TBL_HISTORY_EXT, null, cv);
-      Logger.debug(LOG_TAG, "Inserted history extension record into row: " + rowId);
+    final SQLiteStatement insert = compileInsert(db);
+    try {
+      db.beginTransaction();
+      try {
+        insertVisits(db, insert, guid, visits);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      Logger.debug(LOG_TAG, "Stored history visits for GUID " + guid);
+    } finally {
+      insert.close();
     }
   }
 
   /**
    * Store visit data.
    *
-   * If a row with GUID `guid` does not exist, insert a new row.
-   * If a row with GUID `guid` does exist, replace the visits column.
+   * Visits not already stored for `guid` are added; visits already stored
+   * are kept.
    *
    * @param guid the GUID to store; must not be null.
    * @param visits new visits data.
@@ -103,15 +243,16 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   }
 
   /**
-   * Store (update or insert) visit data in a single database transaction.
+   * Store visit data in a single database transaction.
    */
   public void bulkInsert(ArrayList<HistoryRecord> records) {
     SQLiteDatabase db = this.getCachedWritableDatabase();
+    final SQLiteStatement insert = compileInsert(db);
     try {
       db.beginTransaction();
 
       for (HistoryRecord record : records) {
-        store(db, record.guid, record.visits);
+        insertVisits(db, insert, record.guid, record.visits);
       }
 
       db.setTransactionSuccessful();
@@ -119,14 +260,15 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
       Logger.error(LOG_TAG, "Caught exception in bulkInsert new history visits.", e);
     } finally {
       db.endTransaction();
+      insert.close();
     }
   }
 
   /**
-   * Fetch a row.
+   * Fetch the visits stored for a GUID, newest first.
    *
-   * @param guid The GUID of the row to fetch.
-   * @return A Cursor.
+   * @param guid The GUID of the visits to fetch.
+   * @return A Cursor over <code>TBL_COLUMNS</code>.
    * @throws NullCursorException
    */
   public Cursor fetch(String guid) throws NullCursorException {
@@ -134,10 +276,23 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
     SQLiteDatabase db = this.getCachedReadableDatabase();
     Cursor cur = queryHelper.safeQuery(db, ".fetch",
-        TBL_HISTORY_EXT, TBL_COLUMNS, GUID_IS, args);
+        TBL_VISITS, TBL_COLUMNS, GUID_IS, args, null, null, VISITS_ORDER, null);
     return cur;
   }
 
+  /**
+   * Append the visit at the cursor's position to <code>visits</code>.
+   */
+  @SuppressWarnings("unchecked")
+  protected static void addVisitFromCursor(JSONArray visits, Cursor cur) {
+    CompactJSONObject visit = new CompactJSONObject();
+    visit.putLong(KEY_DATE, cur.getLong(1));
+    if (!cur.isNull(2)) {
+      visit.putLong(KEY_TYPE, cur.getLong(2));
+    }
+    visits.add(visit);
+  }
+
   public JSONArray visitsForGUID(String guid) throws NullCursorException {
     if (guid == null) {
       Logger.warn(LOG_TAG, "Asked for visits for null GUID.");
@@ -145,41 +300,78 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
     }
 
     Logger.debug(LOG_TAG, "Fetching visits for GUID " + guid);
-    Cursor visits = fetch(guid);
+    final JSONArray visits = new JSONArray();
+    Cursor cur = fetch(guid);
     try {
-      if (!visits.moveToFirst()) {
-        // Cursor is empty.
-        return new JSONArray();
-      } else {
-        return RepoUtils.getJSONArrayFromCursor(visits, COL_VISITS);
+      while (cur.moveToNext()) {
+        addVisitFromCursor(visits, cur);
+      }
+    } finally {
+      cur.close();
+    }
+    return visits;
+  }
+
+  /**
+   * Fetch visits for several GUIDs with a single query.
+   *
+   * @param guids The GUIDs to fetch visits for; at most 999, SQLite's limit on
+   *        query parameters.
+   * @return A map from GUID to visits, newest first. GUIDs with no stored
+   *         visits are absent.
+   * @throws NullCursorException
+   */
+  public Map<String, JSONArray> visitsForGUIDs(Collection<String> guids) throws NullCursorException {
+    final HashMap<String, JSONArray> visits = new HashMap<String, JSONArray>(guids.size());
+    if (guids.isEmpty()) {
+      return visits;
+    }
+
+    Logger.debug(LOG_TAG, "Fetching visits for " + guids.size() + " GUIDs.");
+    final String[] args = guids.toArray(new String[guids.size()]);
+    final String where = RepoUtils.computeSQLInClause(args.length, COL_GUID);
+
+    SQLiteDatabase db = this.getCachedReadableDatabase();
+    Cursor cur = queryHelper.safeQuery(db, ".visitsForGUIDs",
+        TBL_VISITS, TBL_COLUMNS, where, args, null, null, VISITS_ORDER, null);
+    try {
+      while (cur.moveToNext()) {
+        final String guid = cur.getString(0);
+        JSONArray forGUID = visits.get(guid);
+        if (forGUID == null) {
+          forGUID = new JSONArray();
+          visits.put(guid, forGUID);
+        }
+        addVisitFromCursor(forGUID, cur);
       }
     } finally {
-      visits.close();
+      cur.close();
     }
+    return visits;
   }
 
   /**
-   * Delete a row.
+   * Delete the visits stored for a GUID.
    *
-   * @param guid the GUID of the row to delete.
-   * @return The number of rows deleted, either 0 (if a row with this GUID does not exist) or 1.
+   * @param guid the GUID whose visits to delete.
+   * @return The number of visits deleted.
    */
   public int delete(String guid) {
     String[] args = new String[] { guid };
 
     SQLiteDatabase db = this.getCachedWritableDatabase();
-    return db.delete(TBL_HISTORY_EXT, GUID_IS, args);
+    return db.delete(TBL_VISITS, GUID_IS, args);
   }
 
   /**
-   * Fetch all rows.
+   * Fetch all visits.
    *
-   * @return a <code>Cursor</code>.
+   * @return a <code>Cursor</code> over <code>TBL_COLUMNS</code>.
    * @throws NullCursorException
    */
   public Cursor fetchAll() throws NullCursorException {
     SQLiteDatabase db = this.getCachedReadableDatabase();
-    Cursor cur = queryHelper.safeQuery(db, ".fetchAll", TBL_HISTORY_EXT,
+    Cursor cur = queryHelper.safeQuery(db, ".fetchAll", TBL_VISITS,
         TBL_COLUMNS,
         null, null);
     return cur;
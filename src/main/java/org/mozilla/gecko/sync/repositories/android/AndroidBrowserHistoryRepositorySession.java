@@ -5,6 +5,8 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -36,6 +38,16 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
    */
   public static final int INSERT_RECORD_THRESHOLD = 50;
 
+  /**
+   * The number of incoming records to look up and apply together.
+   */
+  public static final int STORE_BATCH_SIZE = 100;
+
+  /**
+   * The number of outgoing records to look up visits for together.
+   */
+  public static final int FETCH_WINDOW_SIZE = 100;
+
   public AndroidBrowserHistoryRepositorySession(Repository repository, Context context) {
     super(repository);
     dbHelper = new AndroidBrowserHistoryDataAccessor(context);
@@ -53,6 +65,16 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     super.begin(delegate);
   }
 
+  @Override
+  protected int getStoreBatchSize() {
+    return STORE_BATCH_SIZE;
+  }
+
+  @Override
+  protected int getFetchWindowSize() {
+    return FETCH_WINDOW_SIZE;
+  }
+
   @Override
   protected Record retrieveDuringStore(Cursor cur) {
     return RepoUtils.historyFromMirrorCursor(cur);
@@ -69,6 +91,62 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return hist.histURI;
   }
 
+  private static final String[] RECORD_STRING_COLUMNS = new String[] {
+    BrowserContract.SyncColumns.GUID,
+    BrowserContract.History.URL,
+    BrowserContract.History.VISITS,
+  };
+
+  @Override
+  protected String[] getRecordStringColumns() {
+    return RECORD_STRING_COLUMNS;
+  }
+
+  /**
+   * Matches <code>buildRecordString(Record)</code> for exactly those rows
+   * that <code>RepoUtils.historyFromMirrorCursor</code> doesn't skip.
+   */
+  @Override
+  protected String buildRecordString(Cursor cur) {
+    final String historyURI = RepoUtils.getStringFromCursor(cur, BrowserContract.History.URL);
+    if (!RepoUtils.isValidHistoryURI(historyURI)) {
+      return null;
+    }
+    if (RepoUtils.getLongFromCursor(cur, BrowserContract.History.VISITS) <= 0) {
+      return null;
+    }
+    return historyURI;
+  }
+
+  /**
+   * Record strings are URLs, which are indexed: query for the URL rather than
+   * scanning every record.
+   */
+  @Override
+  protected Record findByRecordString(String recordString) throws NullCursorException {
+    final Cursor cur = ((AndroidBrowserHistoryDataAccessor) dbHelper).fetchByURL(recordString);
+    try {
+      while (cur.moveToNext()) {
+        final Record record = retrieveDuringStore(cur);
+        if (record != null && recordString.equals(buildRecordString(record))) {
+          return record;
+        }
+      }
+      return null;
+    } finally {
+      cur.close();
+    }
+  }
+
+  /**
+   * A history record's URL never changes, so a snapshot stays valid between
+   * sessions.
+   */
+  @Override
+  protected String getRecordStringSnapshotName() {
+    return "history-1";
+  }
+
   @Override
   public boolean shouldIgnore(Record record) {
     if (super.shouldIgnore(record)) {
@@ -86,6 +164,29 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return addVisitsToRecord(record);
   }
 
+  /**
+   * Fetch visits for the whole window in one query, rather than one query
+   * per record.
+   */
+  @Override
+  protected List<Record> transformRecords(List<Record> records) throws NullCursorException {
+    final ArrayList<String> guids = new ArrayList<String>(records.size());
+    for (Record record : records) {
+      guids.add(record.guid);
+    }
+    final Map<String, JSONArray> visits = getDataExtender().visitsForGUIDs(guids);
+
+    final ArrayList<Record> transformed = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      JSONArray visitsArray = visits.get(record.guid);
+      if (visitsArray == null) {
+        visitsArray = new JSONArray();
+      }
+      transformed.add(addVisitsToRecord(record, visitsArray));
+    }
+    return transformed;
+  }
+
   @SuppressWarnings("unchecked")
   private void addVisit(JSONArray visits, long date, long visitType) {
     JSONObject visit = new JSONObject();
@@ -104,8 +205,15 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
 
   private Record addVisitsToRecord(Record record) throws NullCursorException {
     Logger.debug(LOG_TAG, "Adding visits for GUID " + record.guid);
+    return addVisitsToRecord(record, getDataExtender().visitsForGUID(record.guid));
+  }
+
+  /**
+   * @param visitsArray The stored visits for <code>record</code>; will be
+   *        modified and attached to the record.
+   */
+  private Record addVisitsToRecord(Record record, JSONArray visitsArray) {
     HistoryRecord hist = (HistoryRecord) record;
-    JSONArray visitsArray = getDataExtender().visitsForGUID(hist.guid);
     long missingRecords = hist.fennecVisitCount - visitsArray.size();
 
     // Note that Fennec visit times are milliseconds, and we are working
@@ -113,7 +221,12 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
 
     // Add (missingRecords - 1) fake visits...
     if (missingRecords > 0) {
+      // ... unless we've dropped old visits to stay under the cap, in which
+      // case Fennec's count includes visits we deliberately don't keep.
       long fakes = missingRecords - 1;
+      if (visitsArray.size() >= getDataExtender().getMaxVisitsPerGUID()) {
+        fakes = 0;
+      }
       for (int j = 0; j < fakes; j++) {
         // Set fake visit timestamp to be just previous to
         // the real one we are about to add.
@@ -219,6 +332,7 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     }
 
     // All good, everybody succeeded.
+    final ArrayList<String> succeededGuids = new ArrayList<String>(outgoing.size());
     for (HistoryRecord succeeded : outgoing) {
       try {
         // Does not use androidID -- just GUID -> String map.
@@ -230,8 +344,9 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
         throw e;
       }
       trackRecord(succeeded);
-      delegate.onRecordStoreSucceeded(succeeded.guid); // At this point, we are really inserted.
+      succeededGuids.add(succeeded.guid);
     }
+    delegate.onRecordsStoreSucceeded(succeededGuids); // At this point, we are really inserted.
   }
 
   @Override
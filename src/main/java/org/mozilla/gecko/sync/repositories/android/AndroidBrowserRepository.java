@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCleanDelegate;
@@ -12,6 +13,19 @@ import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDe
 import android.content.Context;
 
 public abstract class AndroidBrowserRepository extends Repository {
+  protected SyncMetrics metrics = null;
+
+  /**
+   * Record how long incoming records take to be applied, for sessions
+   * created afterwards.
+   */
+  public void setMetrics(SyncMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  protected SyncMetrics getMetrics() {
+    return metrics;
+  }
 
   @Override
   public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
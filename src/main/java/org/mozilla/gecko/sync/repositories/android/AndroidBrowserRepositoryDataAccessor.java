@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.mozilla.gecko.background.common.log.Logger;
@@ -12,10 +14,14 @@ import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public abstract class AndroidBrowserRepositoryDataAccessor {
 
@@ -156,6 +162,24 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
                                  null, null);
   }
 
+  /**
+   * Fetch only the given columns of records modified since the provided
+   * timestamp.
+   * <p>
+   * The caller is responsible for closing the cursor.
+   *
+   * @param columns The columns to fetch.
+   * @param timestamp A timestamp in milliseconds, or -1 for all records.
+   * @return A cursor. You <b>must</b> close this when you're done with it.
+   * @throws NullCursorException
+   */
+  public Cursor fetchColumnsSince(String[] columns, long timestamp) throws NullCursorException {
+    return queryHelper.safeQuery(".fetchColumnsSince",
+                                 columns,
+                                 dateModifiedWhere(timestamp),
+                                 null, null);
+  }
+
   /**
    * Fetch records for the provided GUIDs.
    * <p>
@@ -229,4 +253,75 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
     }
     return inserted;
   }
+
+  /**
+   * A set of updates and purges to be applied together, in a single
+   * <code>ContentProvider.applyBatch</code> call (and thus a single database
+   * transaction), rather than one <code>ContentResolver</code> round-trip
+   * each.
+   * <p>
+   * Nothing is written until {@link #apply()} is called.
+   */
+  public class StoreBatch {
+    protected final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    protected final HashSet<String> touchedGUIDs = new HashSet<String>();
+
+    /**
+     * Queue the equivalent of {@link AndroidBrowserRepositoryDataAccessor#update(String, Record)}.
+     */
+    public void update(String guid, Record newRecord) {
+      operations.add(ContentProviderOperation.newUpdate(getUri())
+          .withSelection(BrowserContract.SyncColumns.GUID + " = ?", new String[] { guid })
+          .withValues(getContentValues(newRecord))
+          .build());
+      touchedGUIDs.add(guid);
+      touchedGUIDs.add(newRecord.guid);
+    }
+
+    /**
+     * Queue the equivalent of {@link AndroidBrowserRepositoryDataAccessor#purgeGuid(String)}.
+     */
+    public void purge(String guid) {
+      operations.add(ContentProviderOperation.newDelete(getUri())
+          .withSelection(BrowserContract.SyncColumns.GUID + " = ?", new String[] { guid })
+          .build());
+      touchedGUIDs.add(guid);
+    }
+
+    /**
+     * @return true if a queued operation will modify the record with this GUID.
+     */
+    public boolean touches(String guid) {
+      return touchedGUIDs.contains(guid);
+    }
+
+    public int size() {
+      return operations.size();
+    }
+
+    /**
+     * Write all queued operations. The batch is empty afterwards.
+     */
+    public void apply() throws RemoteException, OperationApplicationException {
+      if (operations.isEmpty()) {
+        return;
+      }
+      try {
+        ContentProviderResult[] results = context.getContentResolver().applyBatch(getUri().getAuthority(), operations);
+        for (int i = 0; i < results.length; ++i) {
+          if (results[i].count == null || results[i].count != 1) {
+            Logger.warn(LOG_TAG, "Unexpectedly modified " + results[i].count + " rows in batch operation " + i + ".");
+          }
+        }
+        Logger.debug(LOG_TAG, "Applied " + results.length + " operations in one batch.");
+      } finally {
+        operations.clear();
+        touchedGUIDs.clear();
+      }
+    }
+  }
+
+  public StoreBatch newStoreBatch() {
+    return new StoreBatch();
+  }
 }
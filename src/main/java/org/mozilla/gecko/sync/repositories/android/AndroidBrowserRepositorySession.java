@@ -4,9 +4,19 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidRequestException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
@@ -29,7 +39,6 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 import android.content.ContentUris;
 import android.database.Cursor;
 import android.net.Uri;
-import android.util.SparseArray;
 
 /**
  * You'll notice that all delegate calls *either*:
@@ -67,14 +76,35 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
    * The "record string" above is a "record identifying unique key" produced by
    * <code>buildRecordString</code>.
    * <p>
-   * Since we hash each "record string", this map may produce a false positive.
-   * In this case, we search the database for a matching record explicitly using
-   * <code>findByRecordString</code>.
+   * Since we hash each "record string", and since a snapshot of the map can
+   * be out of date, this map may produce a false positive or a stale entry.
+   * Each match is verified against the stored record; if that fails, we
+   * search the database explicitly using <code>findByRecordString</code>.
+   * The map is built on first use; subclasses can make that cheaper by
+   * overriding <code>getRecordStringColumns</code> and
+   * <code>getRecordStringSnapshotName</code>.
    */
-  protected SparseArray<String> recordToGuid;
+  protected RecordStringIndex recordToGuid;
+
+  /**
+   * Whether <code>recordToGuid</code> has been refreshed from the database
+   * this session, and so is worth writing out as a snapshot.
+   */
+  protected boolean recordToGuidRefreshed = false;
+
+  /**
+   * Records purged from the database leave entries in a snapshot until they
+   * are looked up; rebuild snapshots older than this so they don't
+   * accumulate.
+   */
+  public static final long RECORD_STRING_SNAPSHOT_MAX_AGE_MSEC = 7 * 24 * 60 * 60 * 1000L;
+
+  // Null unless metrics are being recorded.
+  protected final SyncMetrics metrics;
 
   public AndroidBrowserRepositorySession(Repository repository) {
     super(repository);
+    metrics = (repository instanceof AndroidBrowserRepository) ? ((AndroidBrowserRepository) repository).getMetrics() : null;
   }
 
   /**
@@ -141,6 +171,35 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     return record;
   }
 
+  /**
+   * Transform a window of fetched records, in order.
+   * <p>
+   * Override in subclass to look up, in bulk, whatever
+   * <code>transformRecord</code> would otherwise look up one record at a time.
+   *
+   * @param records
+   *        The records to transform, of at most <code>getFetchWindowSize</code>
+   *        records. Not null.
+   * @return The transformed records, in the same order. Elements can be null.
+   * @throws NullCursorException
+   */
+  protected List<Record> transformRecords(List<Record> records) throws NullCursorException {
+    final ArrayList<Record> transformed = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      transformed.add(transformRecord(record));
+    }
+    return transformed;
+  }
+
+  /**
+   * The number of fetched records to pass to <code>transformRecords</code> at
+   * once. By default, records are transformed one at a time.
+   */
+  @SuppressWarnings("static-method")
+  protected int getFetchWindowSize() {
+    return 1;
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
@@ -165,8 +224,10 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   @Override
   public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    writeRecordStringSnapshot();
     dbHelper = null;
     recordToGuid = null;
+    recordToGuidRefreshed = false;
     super.finish(delegate);
   }
 
@@ -265,18 +326,24 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
             delegate.onFetchCompleted(end);
             return;
           }
+          final int windowSize = getFetchWindowSize();
+          final ArrayList<Record> window = new ArrayList<Record>(windowSize);
           while (!cursor.isAfterLast()) {
             Record r = retrieveDuringFetch(cursor);
             if (r != null) {
               if (filter == null || !filter.excludeRecord(r)) {
-                Logger.trace(LOG_TAG, "Processing record " + r.guid);
-                delegate.onFetchedRecord(transformRecord(r));
+                Logger.trace(LOG_TAG, "Processing record {}", r.guid);
+                window.add(r);
+                if (window.size() >= windowSize) {
+                  deliverWindow(window);
+                }
               } else {
-                Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
+                Logger.debug(LOG_TAG, "Skipping filtered record {}", r.guid);
               }
             }
             cursor.moveToNext();
           }
+          deliverWindow(window);
           delegate.onFetchCompleted(end);
         } catch (NoGuidForIdException e) {
           Logger.warn(LOG_TAG, "No GUID for ID.", e);
@@ -291,6 +358,19 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         cursor.close();
       }
     }
+
+    /**
+     * Transform and deliver the records in <code>window</code>, then empty it.
+     */
+    protected void deliverWindow(List<Record> window) throws NullCursorException {
+      if (window.isEmpty()) {
+        return;
+      }
+      for (Record record : transformRecords(window)) {
+        delegate.onFetchedRecord(record);
+      }
+      window.clear();
+    }
   }
 
   public class FetchRunnable extends FetchingRunnable {
@@ -381,6 +461,60 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   protected int storeCount = 0;
 
+  /**
+   * Incoming records waiting to be processed on <code>storeWorkQueue</code>.
+   * <p>
+   * Guarded by <code>incomingMonitor</code>.
+   */
+  private final ArrayDeque<Record> incoming = new ArrayDeque<Record>();
+  private boolean incomingDrainScheduled = false;
+  private final Object incomingMonitor = new Object();
+
+  /**
+   * Writes deferred until the end of the current store batch, or null if
+   * writes are being made immediately.
+   * <p>
+   * Only touched on the <code>storeWorkQueue</code> thread.
+   */
+  protected AndroidBrowserRepositoryDataAccessor.StoreBatch pendingWrites;
+  protected final ArrayList<String> pendingWriteGUIDs = new ArrayList<String>();
+
+  /**
+   * Records written by <code>pendingWrites</code>. Their record strings are
+   * only added to the record string map once the writes have been applied.
+   * <p>
+   * Only touched on the <code>storeWorkQueue</code> thread.
+   */
+  protected final ArrayList<Record> pendingBookkeeping = new ArrayList<Record>();
+  protected final HashSet<String> pendingRecordStrings = new HashSet<String>();
+
+  /**
+   * GUIDs of local records already considered in the current store batch.
+   * Records prefetched for the batch may be stale for these.
+   * <p>
+   * Only touched on the <code>storeWorkQueue</code> thread.
+   */
+  protected final HashSet<String> storeBatchTouchedGUIDs = new HashSet<String>();
+
+  /**
+   * The maximum number of queued incoming records to process together.
+   * <p>
+   * Records in a batch have their existing local versions fetched with a
+   * single query. If the batch size is greater than one, updates and
+   * deletions made by this class (but not by subclass overrides of
+   * <code>insert</code>, <code>replace</code> or
+   * <code>storeRecordDeletion</code>) are also deferred and applied in a
+   * single transaction at the end of the batch, and their store success
+   * callbacks are delayed until then.
+   * <p>
+   * Override to enable batching; one means "process each record on its own".
+   * Must not exceed the SQLite limit of 999 query parameters.
+   */
+  @SuppressWarnings("static-method")
+  protected int getStoreBatchSize() {
+    return 1;
+  }
+
   @Override
   public void store(final Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -392,154 +526,372 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
 
     storeCount += 1;
-    Logger.debug(LOG_TAG, "Storing record with GUID " + record.guid + " (stored " + storeCount + " records this session).");
+    Logger.debug(LOG_TAG, "Storing record with GUID {} (stored {} records this session).", record.guid, storeCount);
 
     // Store Runnables *must* complete synchronously. It's OK, they
     // run on a background thread.
-    Runnable command = new Runnable() {
+    // We schedule at most one drain at a time. It keeps going until the
+    // queue is empty, so records that arrive while it runs are batched, and
+    // are all processed before anything (such as storeDone) that is
+    // scheduled after them.
+    synchronized (incomingMonitor) {
+      incoming.add(record);
+    }
+    scheduleDrainIncoming();
+  }
+
+  /**
+   * Queue every record in the batch with one lock acquisition and at most one
+   * scheduled drain, rather than one of each per record.
+   */
+  @Override
+  public void storeBatch(final List<Record> records) throws NoStoreDelegateException {
+    if (delegate == null) {
+      throw new NoStoreDelegateException();
+    }
+    for (Record record : records) {
+      if (record == null) {
+        Logger.error(LOG_TAG, "Record sent to store was null");
+        throw new IllegalArgumentException("Null record passed to AndroidBrowserRepositorySession.storeBatch().");
+      }
+    }
 
+    storeCount += records.size();
+    Logger.debug(LOG_TAG, "Storing batch of {} records.", records.size());
+
+    synchronized (incomingMonitor) {
+      incoming.addAll(records);
+    }
+    scheduleDrainIncoming();
+  }
+
+  protected void scheduleDrainIncoming() {
+    synchronized (incomingMonitor) {
+      if (incomingDrainScheduled) {
+        return;
+      }
+      incomingDrainScheduled = true;
+    }
+    storeWorkQueue.execute(new Runnable() {
       @Override
       public void run() {
-        if (!isActive()) {
-          Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
-          delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
-          return;
-        }
-
-        // Check that the record is a valid type.
-        // Fennec only supports bookmarks and folders. All other types of records,
-        // including livemarks and queries, are simply ignored.
-        // See Bug 708149. This might be resolved by Fennec changing its database
-        // schema, or by Sync storing non-applied records in its own private database.
-        if (shouldIgnore(record)) {
-          Logger.debug(LOG_TAG, "Ignoring record " + record.guid);
+        drainIncoming();
+      }
+    });
+  }
 
-          // Don't throw: we don't want to abort the entire sync when we get a livemark!
-          // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
+  /**
+   * Process queued incoming records in batches until none remain.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void drainIncoming() {
+    final int batchSize = Math.max(1, getStoreBatchSize());
+    while (true) {
+      final ArrayList<Record> batch = new ArrayList<Record>(batchSize);
+      synchronized (incomingMonitor) {
+        while (batch.size() < batchSize && !incoming.isEmpty()) {
+          batch.add(incoming.poll());
+        }
+        if (batch.isEmpty()) {
+          incomingDrainScheduled = false;
           return;
         }
+      }
+      final long startNanos = System.nanoTime();
+      storeIncomingBatch(batch);
+      if (metrics != null) {
+        // Reconciling and writing, up to reporting each record stored.
+        metrics.histogram("store.millis").recordMillisSince(startNanos);
+      }
+    }
+  }
 
+  /**
+   * Store a batch of incoming records.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void storeIncomingBatch(List<Record> records) {
+    if (!isActive()) {
+      Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
+      for (Record record : records) {
+        delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+      }
+      return;
+    }
 
-        // TODO: lift these into the session.
-        // Temporary: this matches prior syncing semantics, in which only
-        // the relationship between the local and remote record is considered.
-        // In the future we'll track these two timestamps and use them to
-        // determine which records have changed, and thus process incoming
-        // records more efficiently.
-        long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
-        long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
-        boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
+    // Check that the record is a valid type.
+    // Fennec only supports bookmarks and folders. All other types of records,
+    // including livemarks and queries, are simply ignored.
+    // See Bug 708149. This might be resolved by Fennec changing its database
+    // schema, or by Sync storing non-applied records in its own private database.
+    final ArrayList<Record> toStore = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      if (shouldIgnore(record)) {
+        Logger.debug(LOG_TAG, "Ignoring record {}", record.guid);
+
+        // Don't throw: we don't want to abort the entire sync when we get a livemark!
+        // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
+        continue;
+      }
+      toStore.add(record);
+    }
+    if (toStore.isEmpty()) {
+      return;
+    }
 
-        Record existingRecord;
-        try {
-          // GUID matching only: deleted records don't have a payload with which to search.
-          existingRecord = retrieveByGUIDDuringStore(record.guid);
-          if (record.deleted) {
-            if (existingRecord == null) {
-              // We're done. Don't bother with a callback. That can change later
-              // if we want it to.
-              trace("Incoming record " + record.guid + " is deleted, and no local version. Bye!");
-              return;
-            }
+    // One query for the local versions of every record in the batch.
+    final HashMap<String, Record> existingRecords = new HashMap<String, Record>();
+    final HashSet<String> multipleRecords = new HashSet<String>();
+    try {
+      retrieveByGUIDsDuringStore(toStore, existingRecords, multipleRecords);
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Store failed fetching existing records for batch.", e);
+      for (Record record : toStore) {
+        delegate.onRecordStoreFailed(e, record.guid);
+      }
+      return;
+    }
 
-            if (existingRecord.deleted) {
-              trace("Local record already deleted. Bye!");
-              return;
-            }
+    storeBatchTouchedGUIDs.clear();
+    if (getStoreBatchSize() > 1) {
+      pendingWrites = dbHelper.newStoreBatch();
+    }
+    try {
+      for (Record record : toStore) {
+        // If we've already seen this GUID in this batch, what we prefetched
+        // might be out of date.
+        final boolean lookUp = storeBatchTouchedGUIDs.contains(record.guid);
+        storeBatchTouchedGUIDs.add(record.guid);
+        storeRecord(record, lookUp ? null : existingRecords.get(record.guid), lookUp, multipleRecords.contains(record.guid));
+      }
+    } finally {
+      flushPendingWrites();
+      pendingWrites = null;
+      storeBatchTouchedGUIDs.clear();
+    }
+  }
 
-            // Which one wins?
-            if (!remotelyModified) {
-              trace("Ignoring deleted record from the past.");
-              return;
-            }
+  /**
+   * Fetch the local records with the same GUIDs as <code>records</code>.
+   *
+   * @param existing filled with a map from GUID to existing local record. A
+   *                 GUID may map to null if there is a local row that should
+   *                 not be processed.
+   * @param multiple filled with GUIDs for which there is more than one local record.
+   */
+  protected void retrieveByGUIDsDuringStore(List<Record> records, Map<String, Record> existing, Set<String> multiple)
+      throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final String[] guids = new String[records.size()];
+    for (int i = 0; i < guids.length; ++i) {
+      guids[i] = records.get(i).guid;
+    }
+    Cursor cursor = dbHelper.fetch(guids);
+    try {
+      if (!cursor.moveToFirst()) {
+        return;
+      }
+      while (!cursor.isAfterLast()) {
+        final String guid = RepoUtils.getStringFromCursor(cursor, BrowserContract.SyncColumns.GUID);
+        if (existing.containsKey(guid)) {
+          multiple.add(guid);
+        } else {
+          existing.put(guid, retrieveDuringStore(cursor)); // Not transformed.
+        }
+        cursor.moveToNext();
+      }
+    } finally {
+      cursor.close();
+    }
+  }
 
-            boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
-            if (!locallyModified) {
-              trace("Remote modified, local not. Deleting.");
-              storeRecordDeletion(record, existingRecord);
-              return;
-            }
+  /**
+   * Report that a record was stored, or will be once pending writes are
+   * flushed.
+   */
+  protected void storeSucceeded(String guid) {
+    if (pendingWrites != null) {
+      pendingWriteGUIDs.add(guid);
+      return;
+    }
+    delegate.onRecordStoreSucceeded(guid);
+  }
 
-            trace("Both local and remote records have been modified.");
-            if (record.lastModified > existingRecord.lastModified) {
-              trace("Remote is newer, and deleted. Deleting local.");
-              storeRecordDeletion(record, existingRecord);
-              return;
-            }
+  /**
+   * Apply any deferred writes, and report their outcome.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void flushPendingWrites() {
+    if (pendingWrites == null) {
+      return;
+    }
+    try {
+      pendingWrites.apply();
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Failed to apply batch of " + pendingWriteGUIDs.size() + " stores.", e);
+      for (String guid : pendingWriteGUIDs) {
+        delegate.onRecordStoreFailed(e, guid);
+      }
+      pendingWriteGUIDs.clear();
+      pendingBookkeeping.clear();
+      pendingRecordStrings.clear();
+      return;
+    }
+    for (Record record : pendingBookkeeping) {
+      try {
+        updateBookkeeping(record);
+      } catch (Exception e) {
+        // The record was stored; we just won't be able to match it by record string.
+        Logger.warn(LOG_TAG, "Failed to update bookkeeping for " + record.guid + ".", e);
+      }
+    }
+    pendingBookkeeping.clear();
+    pendingRecordStrings.clear();
+    for (String guid : pendingWriteGUIDs) {
+      delegate.onRecordStoreSucceeded(guid);
+    }
+    pendingWriteGUIDs.clear();
+  }
 
-            trace("Remote is older, local is not deleted. Ignoring.");
-            if (!locallyModified) {
-              Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
-              // Ensure that this is tracked for upload.
-            }
-            return;
-          }
-          // End deletion logic.
+  /**
+   * Reconcile a single incoming record with its local version, if any, and
+   * store the result.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   *
+   * @param existingRecord the local record with the same GUID, if known.
+   * @param lookUp if true, ignore <code>existingRecord</code> and query for it.
+   * @param multipleForGUID true if there is more than one local record with this GUID.
+   */
+  protected void storeRecord(final Record record, Record existingRecord, boolean lookUp, boolean multipleForGUID) {
+    // TODO: lift these into the session.
+    // Temporary: this matches prior syncing semantics, in which only
+    // the relationship between the local and remote record is considered.
+    // In the future we'll track these two timestamps and use them to
+    // determine which records have changed, and thus process incoming
+    // records more efficiently.
+    long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
+    long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
+    boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
 
-          // Now we're processing a non-deleted incoming record.
-          // Apply any changes we need in order to correctly find existing records.
-          fixupRecord(record);
+    try {
+      // GUID matching only: deleted records don't have a payload with which to search.
+      if (lookUp) {
+        existingRecord = retrieveByGUIDDuringStore(record.guid);
+      } else if (multipleForGUID) {
+        throw new MultipleRecordsForGuidException(null);
+      }
+      if (existingRecord != null) {
+        storeBatchTouchedGUIDs.add(existingRecord.guid);
+      }
+      if (record.deleted) {
+        if (existingRecord == null) {
+          // We're done. Don't bother with a callback. That can change later
+          // if we want it to.
+          trace("Incoming record " + record.guid + " is deleted, and no local version. Bye!");
+          return;
+        }
 
-          if (existingRecord == null) {
-            trace("Looking up match for record " + record.guid);
-            existingRecord = findExistingRecord(record);
-          }
+        if (existingRecord.deleted) {
+          trace("Local record already deleted. Bye!");
+          return;
+        }
 
-          if (existingRecord == null) {
-            // The record is new.
-            trace("No match. Inserting.");
-            insert(record);
-            return;
-          }
+        // Which one wins?
+        if (!remotelyModified) {
+          trace("Ignoring deleted record from the past.");
+          return;
+        }
 
-          // We found a local dupe.
-          trace("Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+        boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
+        if (!locallyModified) {
+          trace("Remote modified, local not. Deleting.");
+          storeRecordDeletion(record, existingRecord);
+          return;
+        }
 
-          // Populate more expensive fields prior to reconciling.
-          existingRecord = transformRecord(existingRecord);
-          Record toStore = reconcileRecords(record, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+        trace("Both local and remote records have been modified.");
+        if (record.lastModified > existingRecord.lastModified) {
+          trace("Remote is newer, and deleted. Deleting local.");
+          storeRecordDeletion(record, existingRecord);
+          return;
+        }
 
-          if (toStore == null) {
-            Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
-            return;
-          }
+        trace("Remote is older, local is not deleted. Ignoring.");
+        if (!locallyModified) {
+          Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
+          // Ensure that this is tracked for upload.
+        }
+        return;
+      }
+      // End deletion logic.
 
-          // TODO: pass in timestamps?
-
-          // This section of code will only run if the incoming record is not
-          // marked as deleted, so we never want to just drop ours from the database:
-          // we need to upload it later.
-          // Allowing deleted items to propagate through `replace` allows normal
-          // logging and side-effects to occur, and is no more expensive than simply
-          // bumping the modified time.
-          Logger.debug(LOG_TAG, "Replacing existing " + existingRecord.guid +
-                       (toStore.deleted ? " with deleted record " : " with record ") +
-                       toStore.guid);
-          Record replaced = replace(toStore, existingRecord);
-
-          // Note that we don't track records here; deciding that is the job
-          // of reconcileRecords.
-          Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
-                                "(" + replaced.androidID + ")");
-          delegate.onRecordStoreSucceeded(replaced.guid);
-          return;
+      // Now we're processing a non-deleted incoming record.
+      // Apply any changes we need in order to correctly find existing records.
+      fixupRecord(record);
 
-        } catch (MultipleRecordsForGuidException e) {
-          Logger.error(LOG_TAG, "Multiple records returned for given guid: " + record.guid);
-          delegate.onRecordStoreFailed(e, record.guid);
-          return;
-        } catch (NoGuidForIdException e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
-          return;
-        } catch (Exception e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
-          return;
+      if (existingRecord == null) {
+        trace("Looking up match for record " + record.guid);
+        existingRecord = findExistingRecord(record);
+        if (existingRecord != null) {
+          storeBatchTouchedGUIDs.add(existingRecord.guid);
         }
       }
-    };
-    storeWorkQueue.execute(command);
+
+      if (existingRecord == null) {
+        // The record is new.
+        trace("No match. Inserting.");
+        insert(record);
+        return;
+      }
+
+      // We found a local dupe.
+      trace("Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+
+      // Populate more expensive fields prior to reconciling.
+      existingRecord = transformRecord(existingRecord);
+      Record toStore = reconcileRecords(record, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+
+      if (toStore == null) {
+        Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
+        return;
+      }
+
+      // TODO: pass in timestamps?
+
+      // This section of code will only run if the incoming record is not
+      // marked as deleted, so we never want to just drop ours from the database:
+      // we need to upload it later.
+      // Allowing deleted items to propagate through `replace` allows normal
+      // logging and side-effects to occur, and is no more expensive than simply
+      // bumping the modified time.
+      Logger.debug(LOG_TAG, "Replacing existing " + existingRecord.guid +
+                   (toStore.deleted ? " with deleted record " : " with record ") +
+                   toStore.guid);
+      Record replaced = replace(toStore, existingRecord);
+
+      // Note that we don't track records here; deciding that is the job
+      // of reconcileRecords.
+      Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
+                            "(" + replaced.androidID + ")");
+      storeSucceeded(replaced.guid);
+      return;
+
+    } catch (MultipleRecordsForGuidException e) {
+      Logger.error(LOG_TAG, "Multiple records returned for given guid: " + record.guid);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (NoGuidForIdException e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    }
   }
 
   /**
@@ -552,8 +904,12 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected void storeRecordDeletion(final Record record, final Record existingRecord) {
     // TODO: we ought to mark the record as deleted rather than purging it,
     // in order to support syncing to multiple destinations. Bug 722607.
-    dbHelper.purgeGuid(record.guid);
-    delegate.onRecordStoreSucceeded(record.guid);
+    if (pendingWrites != null) {
+      pendingWrites.purge(record.guid);
+    } else {
+      dbHelper.purgeGuid(record.guid);
+    }
+    storeSucceeded(record.guid);
   }
 
   protected void insert(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
@@ -575,8 +931,17 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     Record toStore = prepareRecord(newRecord);
 
     // newRecord should already have suitable androidID and guid.
-    dbHelper.update(existingRecord.guid, toStore);
-    updateBookkeeping(toStore);
+    if (pendingWrites != null) {
+      pendingWrites.update(existingRecord.guid, toStore);
+      pendingBookkeeping.add(toStore);
+      final String recordString = buildRecordString(toStore);
+      if (recordString != null) {
+        pendingRecordStrings.add(recordString);
+      }
+    } else {
+      dbHelper.update(existingRecord.guid, toStore);
+      updateBookkeeping(toStore);
+    }
     Logger.debug(LOG_TAG, "replace() returning record " + toStore.guid);
     return toStore;
   }
@@ -595,6 +960,10 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
                                              NullCursorException,
                                              ParentNotFoundException,
                                              MultipleRecordsForGuidException {
+    if (pendingWrites != null && pendingWrites.touches(guid)) {
+      // Make sure we read our own writes.
+      flushPendingWrites();
+    }
     Cursor cursor = dbHelper.fetch(new String[] { guid });
     try {
       if (!cursor.moveToFirst()) {
@@ -632,10 +1001,10 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected Record findExistingRecord(Record record) throws MultipleRecordsForGuidException,
     NoGuidForIdException, NullCursorException, ParentNotFoundException {
 
-    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID " + record.guid);
+    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID {}", record.guid);
     String recordString = buildRecordString(record);
     if (recordString == null) {
-      Logger.debug(LOG_TAG, "No record string for incoming record " + record.guid);
+      Logger.debug(LOG_TAG, "No record string for incoming record {}", record.guid);
       return null;
     }
 
@@ -644,9 +1013,14 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     } else {
       Logger.debug(LOG_TAG, "Searching with record string.");
     }
+    if (pendingRecordStrings.contains(recordString)) {
+      // A record earlier in this batch has this record string: apply its
+      // write, so that we match against it.
+      flushPendingWrites();
+    }
     String guid = getGuidForString(recordString);
     if (guid == null) {
-      Logger.debug(LOG_TAG, "Failed to find existing record for " + record.guid);
+      Logger.debug(LOG_TAG, "Failed to find existing record for {}", record.guid);
       return null;
     }
 
@@ -655,67 +1029,74 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     // verify our positive.
     Logger.debug(LOG_TAG, "Found one. Checking stored record.");
     Record stored = retrieveByGUIDDuringStore(guid);
-    String storedRecordString = buildRecordString(record);
-    if (recordString.equals(storedRecordString)) {
+    if (stored != null && recordString.equals(buildRecordString(stored))) {
       Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
       return stored;
     }
 
-    // Oh no, we got a false positive! (This should be *very* rare --
-    // essentially, we got a hash collision.) Search the DB for this record
-    // explicitly by hand.
+    // The entry is stale: the record it names has been removed or changed
+    // since the map was built or snapshotted, and another record might now
+    // have this record string. (Or, far less likely, we got a hash
+    // collision.) Drop the entry and search the DB for this record explicitly.
     Logger.debug(LOG_TAG, "Existing record does not match incoming record.  Trying to find record by record string.");
-    return findByRecordString(recordString);
+    recordToGuid.remove(recordString, guid);
+    final Record found = findByRecordString(recordString);
+    if (found != null) {
+      recordToGuid.put(recordString, found.guid);
+    }
+    return found;
   }
 
   protected String getGuidForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     if (recordToGuid == null) {
       createRecordToGuidMap();
     }
-    return recordToGuid.get(recordString.hashCode());
+    return recordToGuid.get(recordString);
   }
 
-  protected void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
-    recordToGuid = new SparseArray<String>();
+  /**
+   * The columns from which <code>buildRecordString(Cursor)</code> can compute
+   * a record string, including the GUID column.
+   * <p>
+   * Return null (the default) to build record strings from complete records,
+   * as retrieved by <code>retrieveDuringStore</code>.
+   */
+  @SuppressWarnings("static-method")
+  protected String[] getRecordStringColumns() {
+    return null;
+  }
 
-    // TODO: we should be able to do this entire thing with string concatenations within SQL.
-    // Also consider whether it's better to fetch and process every record in the DB into
-    // memory, or run a query per record to do the same thing.
-    Cursor cur = dbHelper.fetchAll();
-    try {
-      if (!cur.moveToFirst()) {
-        return;
-      }
-      while (!cur.isAfterLast()) {
-        Record record = retrieveDuringStore(cur);
-        if (record != null) {
-          final String recordString = buildRecordString(record);
-          if (recordString != null) {
-            recordToGuid.put(recordString.hashCode(), record.guid);
-          }
-        }
-        cur.moveToNext();
-      }
-    } finally {
-      cur.close();
+  /**
+   * Produce a "record string" from the current row of a cursor over
+   * <code>getRecordStringColumns</code>, or over complete rows if that is null.
+   * <p>
+   * By default, this is the record string of the record that
+   * <code>retrieveDuringStore</code> reads from the row, which needs complete
+   * rows: subclasses that override <code>getRecordStringColumns</code> must
+   * override this too.
+   *
+   * @return a <code>String</code> instance, or null if the row should not be
+   *         matched against.
+   */
+  protected String buildRecordString(Cursor cur) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final Record record = retrieveDuringStore(cur);
+    if (record == null) {
+      return null;
     }
-    Logger.info(LOG_TAG, "END: creating record -> GUID map.");
+    return buildRecordString(record);
   }
 
   /**
    * Search the local database for a record with the same "record string".
    * <p>
-   * We expect to do this only in the unlikely event of a hash
-   * collision, so we iterate the database completely.  Since we want
-   * to include information about the parents of bookmarks, it is
-   * difficult to do better purely using the
-   * <code>ContentProvider</code> interface.
+   * This scans every local record, so it is only used when the record string
+   * map gives a wrong answer. Subclasses whose record strings correspond to
+   * indexed columns should override this with a direct query.
    *
    * @param recordString
-   *          the "record string" to search for; must be n
-   * @return a <code>Record</code> with the same "record string", or
-   *         <code>null</code> if none is present.
+   *        the "record string" to search for.
+   * @return a <code>Record</code> with the same "record string", or null if
+   *         none is present.
    * @throws ParentNotFoundException
    * @throws NullCursorException
    * @throws NoGuidForIdException
@@ -723,10 +1104,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected Record findByRecordString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Cursor cur = dbHelper.fetchAll();
     try {
-      if (!cur.moveToFirst()) {
-        return null;
-      }
-      while (!cur.isAfterLast()) {
+      while (cur.moveToNext()) {
         Record record = retrieveDuringStore(cur);
         if (record != null) {
           final String storedRecordString = buildRecordString(record);
@@ -734,7 +1112,6 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
             return record;
           }
         }
-        cur.moveToNext();
       }
       return null;
     } finally {
@@ -742,6 +1119,134 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
+  /**
+   * The name under which to persist the record string map between sessions,
+   * or null (the default) to build it afresh each session.
+   * <p>
+   * A snapshot is refreshed from records modified since it was written, so
+   * only override this if a record's record string changes only when that
+   * record's modified time does. Entries for refreshed records are replaced;
+   * entries for purged records remain until looked up, or until the snapshot
+   * expires. Change the name when <code>buildRecordString</code> changes.
+   */
+  @SuppressWarnings("static-method")
+  protected String getRecordStringSnapshotName() {
+    return null;
+  }
+
+  protected File getRecordStringSnapshotFile() {
+    final String name = getRecordStringSnapshotName();
+    if (name == null || dbHelper == null) {
+      return null;
+    }
+    return new File(dbHelper.context.getCacheDir(), "sync-recordstrings-" + name);
+  }
+
+  protected void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
+    // Anything modified from now on will be picked up by the next refresh.
+    final long refreshStarted = System.currentTimeMillis();
+
+    RecordStringIndex index = null;
+    final File snapshot = getRecordStringSnapshotFile();
+    if (snapshot != null) {
+      try {
+        index = RecordStringIndex.readFrom(snapshot);
+      } catch (IOException e) {
+        Logger.warn(LOG_TAG, "Unable to read record string snapshot; rebuilding.", e);
+        snapshot.delete();
+      }
+    }
+    long since = -1;
+    if (index != null) {
+      since = index.getTimestamp();
+      final long created = index.getCreated();
+      // Also distrust snapshots from the future: the clock has moved.
+      if (created < 0 || created > refreshStarted || since > refreshStarted ||
+          refreshStarted - created > RECORD_STRING_SNAPSHOT_MAX_AGE_MSEC) {
+        since = -1;
+      }
+    }
+    if (since < 0) {
+      Logger.debug(LOG_TAG, "No usable record string snapshot; building from scratch.");
+      index = new RecordStringIndex();
+      index.setCreated(refreshStarted);
+    } else {
+      Logger.debug(LOG_TAG, "Read " + index.size() + " record strings from snapshot; refreshing since " + since + ".");
+    }
+
+    final String[] columns = getRecordStringColumns();
+    Cursor cur;
+    if (columns != null) {
+      cur = dbHelper.fetchColumnsSince(columns, since);
+    } else if (since >= 0) {
+      cur = dbHelper.fetchSince(since);
+    } else {
+      cur = dbHelper.fetchAll();
+    }
+    // When refreshing a snapshot, a modified record's old record string, if
+    // it had one, is now wrong: remove those before adding the new ones.
+    final boolean refreshing = since >= 0;
+    final HashSet<String> modifiedGUIDs = new HashSet<String>();
+    final ArrayList<String> modifiedStrings = new ArrayList<String>();
+    final ArrayList<String> modifiedStringGUIDs = new ArrayList<String>();
+    try {
+      final int guidColumn = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.GUID);
+      while (cur.moveToNext()) {
+        final String guid = cur.getString(guidColumn);
+        if (guid == null) {
+          continue;
+        }
+        final String recordString = buildRecordString(cur);
+        if (!refreshing) {
+          if (recordString != null) {
+            index.put(recordString, guid);
+          }
+          continue;
+        }
+        modifiedGUIDs.add(guid);
+        if (recordString != null) {
+          modifiedStrings.add(recordString);
+          modifiedStringGUIDs.add(guid);
+        }
+      }
+    } finally {
+      cur.close();
+    }
+    if (refreshing) {
+      final int removed = index.removeGUIDs(modifiedGUIDs);
+      Logger.debug(LOG_TAG, "Removed " + removed + " record strings for " + modifiedGUIDs.size() + " modified records.");
+      for (int i = 0; i < modifiedStrings.size(); ++i) {
+        index.put(modifiedStrings.get(i), modifiedStringGUIDs.get(i));
+      }
+    }
+    index.setTimestamp(refreshStarted);
+    recordToGuid = index;
+    recordToGuidRefreshed = true;
+    Logger.info(LOG_TAG, "END: creating record -> GUID map with " + index.size() + " entries.");
+  }
+
+  /**
+   * Persist the record string map, if this session built or refreshed it and
+   * the subclass asked for snapshots.
+   */
+  protected void writeRecordStringSnapshot() {
+    if (recordToGuid == null || !recordToGuidRefreshed) {
+      return;
+    }
+    final File snapshot = getRecordStringSnapshotFile();
+    if (snapshot == null) {
+      return;
+    }
+    try {
+      recordToGuid.writeTo(snapshot);
+      Logger.debug(LOG_TAG, "Wrote " + recordToGuid.size() + " record strings to snapshot.");
+    } catch (IOException e) {
+      Logger.warn(LOG_TAG, "Unable to write record string snapshot.", e);
+      snapshot.delete();
+    }
+  }
+
   public void putRecordToGuidMap(String recordString, String guid) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     if (recordString == null) {
       return;
@@ -750,7 +1255,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     if (recordToGuid == null) {
       createRecordToGuidMap();
     }
-    recordToGuid.put(recordString.hashCode(), guid);
+    recordToGuid.put(recordString, guid);
   }
 
   protected abstract Record prepareRecord(Record record);
@@ -785,6 +1290,12 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         return;
       }
       dbHelper.wipe();
+      recordToGuid = null;
+      recordToGuidRefreshed = false;
+      final File snapshot = getRecordStringSnapshotFile();
+      if (snapshot != null) {
+        snapshot.delete();
+      }
       delegate.onWipeSucceeded();
     }
   }
@@ -0,0 +1,292 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Map "record strings" (see
+ * <code>AndroidBrowserRepositorySession.buildRecordString</code>) to local
+ * record GUIDs.
+ * <p>
+ * Record strings are not stored: each is reduced to a 64-bit hash, and the
+ * table is an open-addressing (linear probing) array of those hashes with a
+ * parallel array of GUIDs. Lookups can therefore return a false positive, so
+ * callers must verify a match against the stored record. With 64 bits the
+ * chance of any collision among a hundred thousand records is below one in a
+ * billion, so callers can treat a failed verification as a stale entry.
+ * <p>
+ * An index can be written to and read from a file, stamped with the local
+ * time at which it was last known to be complete, so that it can be
+ * refreshed with only the records modified since.
+ * <p>
+ * Not thread-safe.
+ */
+public class RecordStringIndex {
+  private static final int SNAPSHOT_VERSION = 1;
+
+  private static final int MINIMUM_CAPACITY = 16;
+
+  // A zero key marks an empty slot; hash() never returns zero.
+  private long[] keys;
+  private String[] guids;
+  private int size;
+  private int resizeAt;
+
+  private long timestamp = -1;
+  private long created = -1;
+
+  public RecordStringIndex() {
+    this(MINIMUM_CAPACITY);
+  }
+
+  public RecordStringIndex(int expectedSize) {
+    int capacity = MINIMUM_CAPACITY;
+    while (capacity * 3 / 4 < expectedSize) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    guids = new String[capacity];
+    resizeAt = capacity * 3 / 4;
+  }
+
+  /**
+   * A 64-bit hash of <code>recordString</code>: FNV-1a over its characters,
+   * finished with a mixing step so that the low bits used to pick a slot are
+   * well distributed. Never zero.
+   */
+  public static long hash(String recordString) {
+    long h = 0xcbf29ce484222325L;
+    final int length = recordString.length();
+    for (int i = 0; i < length; ++i) {
+      h ^= recordString.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (h == 0) ? 1 : h;
+  }
+
+  private int slotFor(long key) {
+    final int mask = keys.length - 1;
+    int slot = (int) key & mask;
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The local time, in milliseconds, at which every local record was last
+   * known to be in this index; -1 if never.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * The local time, in milliseconds, at which this index was built from
+   * every local record, as opposed to refreshed; -1 if never.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  public void setCreated(long created) {
+    this.created = created;
+  }
+
+  /**
+   * @return the GUID of a record whose record string has the same hash as
+   *         <code>recordString</code>, or null.
+   */
+  public String get(String recordString) {
+    return guids[slotFor(hash(recordString))];
+  }
+
+  /**
+   * Map <code>recordString</code> to <code>guid</code>, replacing any
+   * existing mapping.
+   */
+  public void put(String recordString, String guid) {
+    put(hash(recordString), guid);
+  }
+
+  protected void put(long key, String guid) {
+    if (guid == null) {
+      throw new IllegalArgumentException("guid must not be null.");
+    }
+    int slot = slotFor(key);
+    if (keys[slot] == 0) {
+      if (size >= resizeAt) {
+        resize(keys.length << 1);
+        slot = slotFor(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    guids[slot] = guid;
+  }
+
+  /**
+   * Remove the mapping for <code>recordString</code>, but only if it maps to
+   * <code>guid</code>.
+   *
+   * @return true if a mapping was removed.
+   */
+  public boolean remove(String recordString, String guid) {
+    final int mask = keys.length - 1;
+    int slot = slotFor(hash(recordString));
+    if (keys[slot] == 0 || !guids[slot].equals(guid)) {
+      return false;
+    }
+
+    // Backward-shift deletion: move later entries of the probe run into the
+    // hole, so that lookups never need tombstones.
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != 0) {
+      final int home = (int) keys[next] & mask;
+      // Can the entry at next move back to hole without passing its home?
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        guids[hole] = guids[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = 0;
+    guids[hole] = null;
+    size--;
+    return true;
+  }
+
+  /**
+   * Remove every mapping to one of <code>toRemove</code>.
+   *
+   * @return the number of mappings removed.
+   */
+  public int removeGUIDs(Set<String> toRemove) {
+    if (toRemove.isEmpty() || size == 0) {
+      return 0;
+    }
+    final long[] oldKeys = keys;
+    final String[] oldGUIDs = guids;
+    final int oldSize = size;
+    allocate(keys.length);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != 0 && !toRemove.contains(oldGUIDs[i])) {
+        final int slot = slotFor(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        guids[slot] = oldGUIDs[i];
+        size++;
+      }
+    }
+    return oldSize - size;
+  }
+
+  private void resize(int capacity) {
+    final long[] oldKeys = keys;
+    final String[] oldGUIDs = guids;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != 0) {
+        final int slot = slotFor(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        guids[slot] = oldGUIDs[i];
+      }
+    }
+  }
+
+  /**
+   * Write this index to <code>file</code>, replacing it atomically.
+   */
+  public void writeTo(File file) throws IOException {
+    final File temp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeLong(timestamp);
+      out.writeLong(created);
+      out.writeInt(size);
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] != 0) {
+          out.writeLong(keys[i]);
+          out.writeUTF(guids[i]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Unable to rename " + temp + " to " + file + ".");
+    }
+  }
+
+  /**
+   * Read an index written by {@link #writeTo(File)}.
+   *
+   * @return the index, or null if <code>file</code> does not exist.
+   * @throws IOException
+   *           if the file cannot be read or is not a valid snapshot.
+   */
+  public static RecordStringIndex readFrom(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      final int version = in.readInt();
+      if (version != SNAPSHOT_VERSION) {
+        throw new IOException("Unknown record string snapshot version " + version + ".");
+      }
+      final long timestamp = in.readLong();
+      final long created = in.readLong();
+      final int count = in.readInt();
+      // Each entry takes at least ten bytes.
+      if (count < 0 || count > file.length() / 10) {
+        throw new IOException("Invalid record string snapshot size " + count + ".");
+      }
+      final RecordStringIndex index = new RecordStringIndex(count);
+      for (int i = 0; i < count; ++i) {
+        final long key = in.readLong();
+        if (key == 0) {
+          throw new IOException("Invalid record string snapshot entry.");
+        }
+        index.put(key, in.readUTF());
+      }
+      index.timestamp = timestamp;
+      index.created = created;
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories.delegates;
 
+import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 public class DeferredRepositorySessionStoreDelegate implements
@@ -27,6 +28,16 @@ public class DeferredRepositorySessionStoreDelegate implements
     });
   }
 
+  @Override
+  public void onRecordsStoreSucceeded(final Collection<String> guids) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inner.onRecordsStoreSucceeded(guids);
+      }
+    });
+  }
+
   @Override
   public void onRecordStoreFailed(final Exception ex, final String guid) {
     executor.execute(new Runnable() {
@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories.delegates;
 
+import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -18,6 +19,10 @@ public interface RepositorySessionStoreDelegate {
 
   // Called with a GUID when store has succeeded.
   public void onRecordStoreSucceeded(String guid);
+
+  // Called with the GUIDs of several records that have all been stored.
+  // Equivalent to calling onRecordStoreSucceeded for each GUID in turn.
+  public void onRecordsStoreSucceeded(Collection<String> guids);
   public void onStoreCompleted(long storeEnd);
   public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor);
 }
@@ -4,12 +4,14 @@
 
 package org.mozilla.gecko.sync.repositories.domain;
 
+import java.io.IOException;
 import java.util.HashMap;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
@@ -84,6 +86,17 @@ public class HistoryRecord extends Record {
     payload.put("visits",  this.visits);
   }
 
+  @Override
+  protected void writePayloadFields(JSONWriter writer) throws IOException {
+    if (this.title != null) {
+      writer.name("title").value(this.title);
+    }
+    if (this.histURI != null) {
+      writer.name("histUri").value(this.histURI);
+    }
+    writer.name("visits").value(this.visits);
+  }
+
   @Override
   protected void initFromPayload(ExtendedJSONObject payload) {
     this.histURI = (String) payload.get("histUri");
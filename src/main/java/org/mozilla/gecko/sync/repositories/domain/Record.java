@@ -4,10 +4,13 @@
 
 package org.mozilla.gecko.sync.repositories.domain;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Map.Entry;
 
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
 
 /**
  * Record is the abstract base class for all entries that Sync processes:
@@ -239,6 +242,39 @@ public abstract class Record {
     return rec;
   }
 
+  /**
+   * Write the cleartext payload that {@link #getEnvelope()} would produce,
+   * without building it as a JSON object first.
+   */
+  public void writePayload(JSONWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("id").value(this.guid);
+    if (this.deleted) {
+      writer.name("deleted").value(true);
+    } else {
+      writePayloadFields(writer);
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Write the members of a non-deleted payload, other than the ID, in the
+   * order <code>populatePayload</code> adds them.
+   * <p>
+   * By default this goes through <code>populatePayload</code>; records that
+   * are uploaded in bulk override it to write their fields directly.
+   */
+  protected void writePayloadFields(JSONWriter writer) throws IOException {
+    final ExtendedJSONObject payload = new ExtendedJSONObject();
+    populatePayload(payload);
+    for (Entry<String, Object> entry : payload.entrySet()) {
+      if ("id".equals(entry.getKey())) {
+        continue;
+      }
+      writer.name(entry.getKey()).value(entry.getValue());
+    }
+  }
+
   @SuppressWarnings("static-method")
   public String toJSONString() {
     throw new RuntimeException("Cannot JSONify non-CryptoRecord Records.");
@@ -253,6 +289,13 @@ public abstract class Record {
     }
   }
 
+  /**
+   * Write the same JSON as {@link #toJSONBytes()}.
+   */
+  public void writeTo(JSONWriter writer) throws IOException {
+    writer.rawValue(this.toJSONBytes());
+  }
+
   /**
    * Utility for safely populating an output CryptoRecord.
    *
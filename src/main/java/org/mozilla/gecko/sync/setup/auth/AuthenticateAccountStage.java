@@ -103,7 +103,6 @@ public class AuthenticateAccountStage implements AuthenticatorStage {
       public void addHeaders(HttpRequestBase request, DefaultHttpClient client) {
         // Make reference to request, to abort if necessary.
         httpRequest = request;
-        client.log.enableDebug(true);
         // Host header is not set for some reason, so do it explicitly.
         try {
           URI authServerUri = new URI(authRequestUrl);
@@ -22,6 +22,18 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   private static final String HISTORY_SORT          = "index";
   private static final long   HISTORY_REQUEST_LIMIT = 250;
 
+  // History is fetched by paging through IDs, so that a first sync doesn't
+  // take dozens of sessions. The server accepts at most 100 IDs per request.
+  // Paging replaces HISTORY_REQUEST_LIMIT with a much larger cap on the ID
+  // listing: sorted by index, this is the most frecent history, and it keeps
+  // a first sync of a huge collection from running for hours on a phone.
+  private static final int    HISTORY_FETCH_WINDOW_SIZE = 100;
+  private static final int    HISTORY_FETCH_CONNECTIONS = 4;
+  private static final long   HISTORY_PAGED_FETCH_LIMIT = 5000;
+
+  // A first sync also uploads every local visit; keep several POSTs in flight.
+  private static final int    HISTORY_UPLOAD_CONNECTIONS = 4;
+
   @Override
   protected String getCollection() {
     return "history";
@@ -45,13 +57,16 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   @Override
   protected Repository getRemoteRepository() throws URISyntaxException {
     String collection = getCollection();
-    return new ConstrainedServer11Repository(
+    ConstrainedServer11Repository repository = new ConstrainedServer11Repository(
                                              collection,
                                              session.config.storageURL(),
                                              session.getAuthHeaderProvider(),
                                              session.config.infoCollections,
                                              HISTORY_REQUEST_LIMIT,
                                              HISTORY_SORT);
+    repository.setPagedFetch(HISTORY_FETCH_WINDOW_SIZE, HISTORY_FETCH_CONNECTIONS, HISTORY_PAGED_FETCH_LIMIT);
+    repository.setUploadConnections(HISTORY_UPLOAD_CONNECTIONS);
+    return repository;
   }
 
   @Override
@@ -59,6 +74,12 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
     return new HistoryRecordFactory();
   }
 
+  @Override
+  protected boolean fetchOrderIsSignificant() {
+    // Each record is applied independently.
+    return false;
+  }
+
   @Override
   protected boolean isEnabled() throws MetaGlobalException {
     if (session == null || session.getContext() == null) {
@@ -17,6 +17,7 @@ import org.mozilla.gecko.sync.NoCollectionKeysSetException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.crypto.PersistedCrypto5Keys;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
@@ -28,6 +29,8 @@ implements SyncStorageRequestDelegate {
   private static final String LOG_TAG = "EnsureC5KeysStage";
   private static final String CRYPTO_COLLECTION = "crypto";
   protected boolean retrying = false;
+  // True if we asked for crypto/keys only if it had changed.
+  protected boolean conditional = false;
 
   @Override
   public void execute() throws NoSuchStageException {
@@ -52,11 +55,22 @@ implements SyncStorageRequestDelegate {
       Logger.trace(LOG_TAG, "Failed to use persisted collection keys for this session.");
     }
 
-    // We need an update: fetch fresh keys.
+    // We need an update: fetch fresh keys. If we have keys, only fetch
+    // crypto/keys if it has changed.
     Logger.debug(LOG_TAG, "Fetching fresh collection keys for this session.");
+    fetch((!retrying && pck.persistedKeysExist()) ? lastModified : -1);
+  }
+
+  /**
+   * Fetch crypto/keys, only if it has changed since <code>lastModified</code>
+   * if that is positive.
+   */
+  protected void fetch(long lastModified) {
     try {
       SyncStorageRecordRequest request = new SyncStorageRecordRequest(session.wboURI(CRYPTO_COLLECTION, "keys"));
       request.delegate = this;
+      conditional = lastModified > 0;
+      request.setIfModifiedSince(lastModified);
       request.get();
     } catch (URISyntaxException e) {
       session.abort(e, "Invalid URI.");
@@ -169,6 +183,30 @@ implements SyncStorageRequestDelegate {
 
   @Override
   public void handleRequestFailure(SyncStorageResponse response) {
+    if (response.isNotModified()) {
+      BaseResource.consumeEntity(response);
+      PersistedCrypto5Keys pck = session.config.persistedCryptoKeys();
+      CollectionKeys keys = pck.keys();
+      if (keys != null) {
+        Logger.debug(LOG_TAG, "crypto/keys not modified; using persisted collection keys for this session.");
+        session.config.setCollectionKeys(keys);
+        long timestamp = response.normalizedWeaveTimestamp();
+        if (timestamp > 0) {
+          pck.persistLastModified(timestamp);
+        }
+        session.advance();
+        return;
+      }
+      // Our persisted keys have gone or are unreadable: fetch afresh.
+      if (conditional) {
+        Logger.warn(LOG_TAG, "crypto/keys not modified, but no persisted collection keys; refetching.");
+        pck.purge();
+        fetch(-1);
+        return;
+      }
+      Logger.warn(LOG_TAG, "crypto/keys not modified, but we didn't ask conditionally.");
+    }
+
     if (retrying) {
       // Should happen very rarely -- this means we uploaded our crypto/keys
       // successfully, but failed to re-download.
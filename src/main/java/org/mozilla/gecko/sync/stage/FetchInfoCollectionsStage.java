@@ -6,22 +6,53 @@ package org.mozilla.gecko.sync.stage;
 
 import java.net.URISyntaxException;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.PersistedInfoCollections;
 import org.mozilla.gecko.sync.delegates.JSONRecordFetchDelegate;
+import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 
 public class FetchInfoCollectionsStage extends AbstractNonRepositorySyncStage {
+  private static final String LOG_TAG = "FetchInfoCollsStage";
+
   public class StageInfoCollectionsDelegate implements JSONRecordFetchDelegate {
+    // True if we asked for info/collections only if it had changed.
+    protected final boolean conditional;
+
+    public StageInfoCollectionsDelegate(boolean conditional) {
+      this.conditional = conditional;
+    }
 
     @Override
     public void handleSuccess(ExtendedJSONObject global) {
-      session.config.infoCollections = new InfoCollections(global);
+      final InfoCollections infoCollections = new InfoCollections(global);
+      session.config.persistedInfoCollections().persistInfoCollections(session.config.infoCollectionsURL(), global, infoCollections.getLastModified());
+      session.config.infoCollections = infoCollections;
       session.advance();
     }
 
     @Override
     public void handleFailure(SyncStorageResponse response) {
+      if (response.isNotModified()) {
+        BaseResource.consumeEntity(response);
+        final ExtendedJSONObject persisted = session.config.persistedInfoCollections().infoCollections(session.config.infoCollectionsURL());
+        if (persisted != null) {
+          Logger.info(LOG_TAG, "info/collections not modified; using persisted info/collections.");
+          session.config.infoCollections = new InfoCollections(persisted);
+          session.advance();
+          return;
+        }
+        // Our persisted copy has gone or is unreadable: fetch afresh.
+        if (conditional) {
+          Logger.warn(LOG_TAG, "info/collections not modified, but no persisted info/collections; refetching.");
+          session.config.purgeInfoCollections();
+          fetch(-1);
+          return;
+        }
+        Logger.warn(LOG_TAG, "info/collections not modified, but we didn't ask conditionally.");
+      }
       session.handleHTTPError(response, "Failure fetching info/collections.");
     }
 
@@ -34,8 +65,22 @@ public class FetchInfoCollectionsStage extends AbstractNonRepositorySyncStage {
 
   @Override
   public void execute() throws NoSuchStageException {
+    final String url = session.config.infoCollectionsURL();
+    final PersistedInfoCollections pic = session.config.persistedInfoCollections();
+    long lastModified = -1;
+    if (pic.infoCollections(url) != null) {
+      lastModified = pic.lastModified(url);
+    }
+    fetch(lastModified);
+  }
+
+  /**
+   * Fetch info/collections, only if it has changed since
+   * <code>lastModified</code> if that is positive.
+   */
+  protected void fetch(long lastModified) {
     try {
-      session.fetchInfoCollections(new StageInfoCollectionsDelegate());
+      session.fetchInfoCollections(new StageInfoCollectionsDelegate(lastModified > 0), lastModified);
     } catch (URISyntaxException e) {
       session.abort(e, "Invalid URI.");
     }
@@ -10,6 +10,7 @@ import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.MetaGlobal;
 import org.mozilla.gecko.sync.PersistedMetaGlobal;
 import org.mozilla.gecko.sync.delegates.MetaGlobalDelegate;
+import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 
 public class FetchMetaGlobalStage extends AbstractNonRepositorySyncStage {
@@ -19,8 +20,16 @@ public class FetchMetaGlobalStage extends AbstractNonRepositorySyncStage {
   public class StageMetaGlobalDelegate implements MetaGlobalDelegate {
 
     private final GlobalSession session;
+    // True if we asked for meta/global only if it had changed.
+    private final boolean conditional;
+
     public StageMetaGlobalDelegate(GlobalSession session) {
+      this(session, false);
+    }
+
+    public StageMetaGlobalDelegate(GlobalSession session, boolean conditional) {
       this.session = session;
+      this.conditional = conditional;
     }
 
     @Override
@@ -36,6 +45,29 @@ public class FetchMetaGlobalStage extends AbstractNonRepositorySyncStage {
 
     @Override
     public void handleFailure(SyncStorageResponse response) {
+      if (response.isNotModified()) {
+        BaseResource.consumeEntity(response);
+        PersistedMetaGlobal pmg = session.config.persistedMetaGlobal();
+        MetaGlobal global = pmg.metaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
+        if (global != null) {
+          Logger.info(LOG_TAG, "meta/global not modified; using persisted meta/global for this session.");
+          // Our copy is current as of the response, so we needn't ask again until meta/global changes.
+          long timestamp = response.normalizedWeaveTimestamp();
+          if (timestamp > 0) {
+            pmg.persistLastModified(timestamp);
+          }
+          session.processMetaGlobal(global);
+          return;
+        }
+        // Our persisted copy has gone or is unreadable: fetch afresh.
+        if (conditional) {
+          Logger.warn(LOG_TAG, "meta/global not modified, but no persisted meta/global; refetching.");
+          pmg.purge();
+          fetch(session, -1);
+          return;
+        }
+        Logger.warn(LOG_TAG, "meta/global not modified, but we didn't ask conditionally.");
+      }
       session.handleHTTPError(response, "Failure fetching meta/global.");
     }
 
@@ -59,21 +91,31 @@ public class FetchMetaGlobalStage extends AbstractNonRepositorySyncStage {
     }
 
     long lastModified = session.config.persistedMetaGlobal().lastModified();
+    MetaGlobal persisted = session.config.persistedMetaGlobal().metaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
     if (!infoCollections.updateNeeded(META_COLLECTION, lastModified)) {
       // Try to use our local collection keys for this session.
       Logger.info(LOG_TAG, "Trying to use persisted meta/global for this session.");
-      MetaGlobal global = session.config.persistedMetaGlobal().metaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
-      if (global != null) {
+      if (persisted != null) {
         Logger.info(LOG_TAG, "Using persisted meta/global for this session.");
-        session.processMetaGlobal(global); // Calls session.advance().
+        session.processMetaGlobal(persisted); // Calls session.advance().
         return;
       }
       Logger.info(LOG_TAG, "Failed to use persisted meta/global for this session.");
     }
 
-    // We need an update: fetch or upload meta/global as necessary.
+    // We need an update: fetch or upload meta/global as necessary. Other
+    // records in the meta collection can change its timestamp, so if we have
+    // a persisted copy, only fetch meta/global itself if it has changed.
     Logger.info(LOG_TAG, "Fetching fresh meta/global for this session.");
+    fetch(session, (persisted != null) ? lastModified : -1);
+  }
+
+  /**
+   * Fetch meta/global, only if it has changed since <code>lastModified</code>
+   * if that is positive.
+   */
+  protected void fetch(GlobalSession session, long lastModified) {
     MetaGlobal global = new MetaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
-    global.fetch(new StageMetaGlobalDelegate(session));
+    global.fetch(new StageMetaGlobalDelegate(session, lastModified > 0), lastModified);
   }
 }
@@ -68,4 +68,10 @@ public class FormHistoryServerSyncStage extends ServerSyncStage {
   protected RecordFactory getRecordFactory() {
     return new FormHistoryRecordFactory();
   }
+
+  @Override
+  protected boolean fetchOrderIsSignificant() {
+    // Each record is applied independently.
+    return false;
+  }
 }
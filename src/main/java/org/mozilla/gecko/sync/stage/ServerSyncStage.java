@@ -21,6 +21,7 @@ import org.mozilla.gecko.sync.SynchronizerConfiguration;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.delegates.WipeServerDelegate;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
@@ -34,6 +35,7 @@ import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.android.AndroidBrowserRepository;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -56,6 +58,8 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
 
   protected static final String LOG_TAG = "ServerSyncStage";
 
+  protected static final int MAX_DECRYPT_WORKERS = 4;
+
   protected long stageStartTimestamp = -1;
   protected long stageCompleteTimestamp = -1;
 
@@ -158,11 +162,47 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
   protected Repository wrappedServerRepo() throws NoCollectionKeysSetException, URISyntaxException {
     String collection = this.getCollection();
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
-    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
+    Repository remote = getRemoteRepository();
+    if (remote instanceof Server11Repository) {
+      final Server11Repository serverRepo = (Server11Repository) remote;
+      serverRepo.setInfoConfiguration(session.config.infoConfiguration);
+      serverRepo.setMetrics(getMetrics().scope("server"));
+    }
+    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
+    cryptoRepo.decryptWorkers = getDecryptWorkerCount();
+    cryptoRepo.preserveFetchOrder = fetchOrderIsSignificant();
+    cryptoRepo.metrics = getMetrics().scope("crypto");
     return cryptoRepo;
   }
 
+  /**
+   * @return where this engine records its metrics: under its collection name.
+   */
+  protected SyncMetrics getMetrics() {
+    return session.getMetrics().scope(getCollection());
+  }
+
+  /**
+   * Override this in subclasses to change how many threads decrypt incoming
+   * records. By default we leave one core for the network reader.
+   *
+   * @return number of decrypting threads; 1 means decrypt inline.
+   */
+  protected int getDecryptWorkerCount() {
+    return Math.max(1, Math.min(MAX_DECRYPT_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+  }
+
+  /**
+   * Override this in subclasses whose local repository doesn't care about the
+   * order in which fetched records arrive.
+   *
+   * @return true if records must be applied in server order.
+   */
+  protected boolean fetchOrderIsSignificant() {
+    return true;
+  }
+
   protected String bundlePrefix() {
     return this.getCollection() + ".";
   }
@@ -181,6 +221,10 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     Synchronizer synchronizer = new ServerLocalSynchronizer();
     synchronizer.repositoryA = remote;
     synchronizer.repositoryB = this.getLocalRepository();
+    if (synchronizer.repositoryB instanceof AndroidBrowserRepository) {
+      ((AndroidBrowserRepository) synchronizer.repositoryB).setMetrics(getMetrics().scope("local"));
+    }
+    synchronizer.setMetrics(getMetrics());
     synchronizer.load(getConfig());
 
     return synchronizer;
@@ -480,7 +524,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     try {
       if (!this.isEnabled()) {
         Logger.info(LOG_TAG, "Skipping stage " + name + ".");
-        session.advance();
+        session.advance(this);
         return;
       }
     } catch (MetaGlobalException.MetaGlobalMalformedSyncIDException e) {
@@ -491,7 +535,8 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
         wipeServer(session);
         Logger.info(LOG_TAG, "Wiped server after malformed engine sync ID found in meta/global.");
       } catch (Exception ex) {
-        session.abort(ex, "Failed to wipe server after malformed engine sync ID found in meta/global.");
+        session.abort(this, ex, "Failed to wipe server after malformed engine sync ID found in meta/global.");
+        return;
       }
     } catch (MetaGlobalException.MetaGlobalMalformedVersionException e) {
       // Bad engine version. This should never happen. Wipe the server.
@@ -501,7 +546,8 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
         wipeServer(session);
         Logger.info(LOG_TAG, "Wiped server after malformed engine version found in meta/global.");
       } catch (Exception ex) {
-        session.abort(ex, "Failed to wipe server after malformed engine version found in meta/global.");
+        session.abort(this, ex, "Failed to wipe server after malformed engine version found in meta/global.");
+        return;
       }
     } catch (MetaGlobalException.MetaGlobalStaleClientSyncIDException e) {
       // Our syncID is wrong. Reset client and take the server syncID.
@@ -513,9 +559,14 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
       if (!isEnabled) {
         // Engine has been disabled; update meta/global with engine removal for upload.
         session.removeEngineFromMetaGlobal(name);
-        session.config.declinedEngineNames.add(name);
+        // Engine stages run concurrently.
+        synchronized (session.config.declinedEngineNames) {
+          session.config.declinedEngineNames.add(name);
+        }
       } else {
-        session.config.declinedEngineNames.remove(name);
+        synchronized (session.config.declinedEngineNames) {
+          session.config.declinedEngineNames.remove(name);
+        }
         // Add engine with new syncID to meta/global for upload.
         String newSyncID = Utils.generateGuid();
         session.recordForMetaGlobalUpdate(name, new EngineSettings(newSyncID, this.getStorageVersion()));
@@ -528,15 +579,16 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
         wipeServer(session);
         Logger.warn(LOG_TAG, "Wiped server because engine sync state changed.");
       } catch (Exception ex) {
-        session.abort(ex, "Failed to wipe server after engine sync state changed");
+        session.abort(this, ex, "Failed to wipe server after engine sync state changed");
+        return;
       }
       if (!isEnabled) {
         Logger.warn(LOG_TAG, "Stage has been disabled. Advancing to next stage.");
-        session.advance();
+        session.advance(this);
         return;
       }
     } catch (MetaGlobalException e) {
-      session.abort(e, "Inappropriate meta/global; refusing to execute " + name + " stage.");
+      session.abort(this, e, "Inappropriate meta/global; refusing to execute " + name + " stage.");
       return;
     }
 
@@ -544,13 +596,13 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     try {
       synchronizer = this.getConfiguredSynchronizer(session);
     } catch (NoCollectionKeysSetException e) {
-      session.abort(e, "No CollectionKeys.");
+      session.abort(this, e, "No CollectionKeys.");
       return;
     } catch (URISyntaxException e) {
-      session.abort(e, "Invalid URI syntax for server repository.");
+      session.abort(this, e, "Invalid URI syntax for server repository.");
       return;
     } catch (NonObjectJSONException | ParseException | IOException e) {
-      session.abort(e, "Invalid persisted JSON for config.");
+      session.abort(this, e, "Invalid persisted JSON for config.");
       return;
     }
 
@@ -588,11 +640,12 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     final SynchronizerSession synchronizerSession = synchronizer.getSynchronizerSession();
     int inboundCount = synchronizerSession.getInboundCount();
     int outboundCount = synchronizerSession.getOutboundCount();
+    getMetrics().histogram("stage.millis").record(stageCompleteTimestamp - stageStartTimestamp);
     Logger.info(LOG_TAG, "Stage " + getEngineName() +
         " received " + inboundCount + " and sent " + outboundCount +
         " records in " + getStageDurationString() + ".");
     Logger.info(LOG_TAG, "Advancing session.");
-    session.advance();
+    session.advance(this);
   }
 
   /**
@@ -607,13 +660,15 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
                                   Exception lastException, String reason) {
     stageCompleteTimestamp = System.currentTimeMillis();
     Logger.warn(LOG_TAG, "Synchronize failed: " + reason, lastException);
+    getMetrics().histogram("stage.millis").record(stageCompleteTimestamp - stageStartTimestamp);
+    getMetrics().counter("stage.failed").increment();
 
     // This failure could be due to a 503 or a 401 and it could have headers.
     // Interrogate the headers but only abort the global session if Retry-After header is set.
     if (lastException instanceof HTTPFailureException) {
       SyncStorageResponse response = ((HTTPFailureException)lastException).response;
       if (response.retryAfterInSeconds() > 0) {
-        session.handleHTTPError(response, reason); // Calls session.abort().
+        session.handleHTTPError(this, response, reason); // Calls session.abort().
         return;
       } else {
         session.interpretHTTPFailure(response.httpResponse()); // Does not call session.abort().
@@ -622,6 +677,6 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
 
     Logger.info(LOG_TAG, "Advancing session even though stage failed (took " + getStageDurationString() +
         "). Timestamps not persisted.");
-    session.advance();
+    session.advance(this);
   }
 }
@@ -37,8 +37,10 @@ import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.delegates.BaseGlobalSessionCallback;
 import org.mozilla.gecko.sync.delegates.ClientsDataDelegate;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
 import org.mozilla.gecko.sync.net.ConnectionMonitorThread;
+import org.mozilla.gecko.sync.net.ConnectionReuseCounter;
 import org.mozilla.gecko.sync.receivers.SyncAccountDeletedService;
 import org.mozilla.gecko.sync.setup.Constants;
 import org.mozilla.gecko.sync.setup.SyncAccounts;
@@ -393,6 +395,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements BaseGlob
       ConnectionMonitorThread stale = new ConnectionMonitorThread();
       stale.start();
 
+      // Track how many TLS handshakes connection reuse saves us.
+      ConnectionReuseCounter connectionReuse = new ConnectionReuseCounter();
+      BaseResource.setHttpConnectionObserver(connectionReuse);
+
       Logger.trace(LOG_TAG, "Waiting on sync monitor.");
       try {
         syncMonitor.wait();
@@ -413,6 +419,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements BaseGlob
       } catch (InterruptedException e) {
         Logger.warn(LOG_TAG, "Waiting on sync monitor interrupted.", e);
       } finally {
+        Logger.info(LOG_TAG, "Sync made " + connectionReuse + ".");
         // And we're done with HTTP stuff.
         stale.shutdown();
       }
@@ -4,13 +4,19 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 /**
  * Consume records from a queue inside a RecordsChannel, as fast as we can.
- * TODO: rewrite this in terms of an ExecutorService and a CompletionService.
- * See Bug 713483.
+ * <p>
+ * Records are taken off the queue in batches, which frees room for the fetch
+ * to continue while the batch is stored.
  *
  * @author rnewman
  *
@@ -18,104 +24,139 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 class ConcurrentRecordConsumer extends RecordConsumer {
   private static final String LOG_TAG = "CRecordConsumer";
 
+  /**
+   * The most records to take off the queue at once.
+   */
+  protected static final int MAX_BATCH_SIZE = 100;
+
+  /**
+   * Never stored: queued only to wake a consumer waiting for records, so that
+   * it notices that it has been halted or that no more records will come.
+   */
+  private static final Record WAKE = new Record(null, null, 0, false) {
+    @Override
+    protected void populatePayload(ExtendedJSONObject payload) {
+    }
+
+    @Override
+    protected void initFromPayload(ExtendedJSONObject payload) {
+    }
+
+    @Override
+    public Record copyWithIDs(String guid, long androidID) {
+      return this;
+    }
+  };
+
   /**
    * When this is true and all records have been processed, the consumer
    * will notify its delegate.
    */
-  protected boolean allRecordsQueued = false;
-  private long counter = 0;
+  protected volatile boolean allRecordsQueued = false;
+  private final AtomicLong counter = new AtomicLong(0);
 
   public ConcurrentRecordConsumer(RecordsConsumerDelegate delegate) {
     this.delegate = delegate;
   }
 
-  private final Object monitor = new Object();
+  /**
+   * Wake the consumer if it is waiting for records. If the queue is full, the
+   * consumer isn't waiting, and will check its flags once it has drained it.
+   */
+  protected void wake() {
+    delegate.getQueue().offer(WAKE);
+  }
+
   @Override
   public void doNotify() {
-    synchronized (monitor) {
-      monitor.notify();
-    }
+    wake();
   }
 
   @Override
   public void queueFilled() {
     Logger.debug(LOG_TAG, "Queue filled.");
-    synchronized (monitor) {
-      this.allRecordsQueued = true;
-      monitor.notify();
-    }
+    this.allRecordsQueued = true;
+    wake();
   }
 
   @Override
   public void halt() {
-    synchronized (monitor) {
-      this.stopImmediately = true;
-      monitor.notify();
-    }
+    this.stopImmediately = true;
+    wake();
   }
 
-  private final Object countMonitor = new Object();
   @Override
   public void stored() {
-    Logger.trace(LOG_TAG, "Record stored. Notifying.");
-    synchronized (countMonitor) {
-      counter++;
-    }
+    Logger.trace(LOG_TAG, "Record stored.");
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void stored(int count) {
+    Logger.trace(LOG_TAG, "{} records stored.", count);
+    counter.addAndGet(count);
   }
 
   private void consumerIsDone() {
-    Logger.debug(LOG_TAG, "Consumer is done. Processed " + counter + ((counter == 1) ? " record." : " records."));
+    final long processed = counter.get();
+    Logger.debug(LOG_TAG, "Consumer is done. Processed " + processed + ((processed == 1) ? " record." : " records."));
     delegate.consumerIsDone(!allRecordsQueued);
   }
 
   @Override
   public void run() {
-    Record record;
+    final BlockingQueue<Record> queue = delegate.getQueue();
+    final ArrayList<Record> batch = new ArrayList<Record>(MAX_BATCH_SIZE);
 
     while (true) {
-      // The queue is concurrent-safe.
-      while ((record = delegate.getQueue().poll()) != null) {
-        synchronized (monitor) {
-          Logger.trace(LOG_TAG, "run() took monitor.");
-          if (stopImmediately) {
-            Logger.debug(LOG_TAG, "Stopping immediately. Clearing queue.");
-            delegate.getQueue().clear();
-            Logger.debug(LOG_TAG, "Notifying consumer.");
+      if (stopImmediately) {
+        Logger.debug(LOG_TAG, "Stopping immediately. Clearing queue.");
+        queue.clear();
+        consumerIsDone();
+        return;
+      }
+
+      if (queue.drainTo(batch, MAX_BATCH_SIZE) == 0) {
+        // Check the flag before waiting: queueFilled sets it before waking us,
+        // so if it's not set, a wake-up is still to come.
+        if (allRecordsQueued) {
+          if (queue.isEmpty()) {
+            Logger.debug(LOG_TAG, "Done with records and no more to come. Notifying consumerIsDone.");
             consumerIsDone();
             return;
           }
-          Logger.debug(LOG_TAG, "run() dropped monitor.");
+          continue;
         }
-
-        Logger.trace(LOG_TAG, "Storing record with guid " + record.guid + ".");
         try {
-          delegate.store(record);
-        } catch (Exception e) {
-          // TODO: Bug 709371: track records that failed to apply.
-          Logger.error(LOG_TAG, "Caught error in store.", e);
+          Logger.debug(LOG_TAG, "Not told to stop but no records. Waiting.");
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          Logger.warn(LOG_TAG, "Interrupted waiting for records. Stopping.");
+          Thread.currentThread().interrupt();
+          this.stopImmediately = true;
+          continue;
         }
-        Logger.trace(LOG_TAG, "Done with record.");
       }
-      synchronized (monitor) {
-        Logger.trace(LOG_TAG, "run() took monitor.");
 
-        if (allRecordsQueued) {
-          Logger.debug(LOG_TAG, "Done with records and no more to come. Notifying consumerIsDone.");
-          consumerIsDone();
-          return;
-        }
-        if (stopImmediately) {
-          Logger.debug(LOG_TAG, "Done with records and told to stop immediately. Notifying consumerIsDone.");
-          consumerIsDone();
-          return;
+      // The sink may hold on to the batch, so give it a list of its own.
+      final ArrayList<Record> toStore = new ArrayList<Record>(batch.size());
+      for (Record record : batch) {
+        if (record != WAKE) {
+          toStore.add(record);
         }
-        try {
-          Logger.debug(LOG_TAG, "Not told to stop but no records. Waiting.");
-          monitor.wait(10000);
-        } catch (InterruptedException e) {
-          // TODO
-        }
-        Logger.trace(LOG_TAG, "run() dropped monitor.");
+      }
+      batch.clear();
+      if (toStore.isEmpty() || stopImmediately) {
+        continue;
+      }
+
+      // The sink gets the whole batch at once, so it can apply it together.
+      Logger.trace(LOG_TAG, "Storing batch of {} records.", toStore.size());
+      try {
+        delegate.storeBatch(toStore);
+      } catch (Exception e) {
+        // TODO: Bug 709371: track records that failed to apply.
+        Logger.error(LOG_TAG, "Caught error in store.", e);
       }
     }
   }
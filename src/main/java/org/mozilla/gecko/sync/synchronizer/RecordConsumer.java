@@ -8,6 +8,15 @@ public abstract class RecordConsumer implements Runnable {
 
   public abstract void stored();
 
+  /**
+   * Several records have been stored at once.
+   */
+  public void stored(int count) {
+    for (int i = 0; i < count; i++) {
+      stored();
+    }
+  }
+
   /**
    * There are no more store items to arrive at the delegate.
    * When you're done, take care of finishing up.
@@ -17,7 +26,7 @@ public abstract class RecordConsumer implements Runnable {
 
   public abstract void doNotify();
 
-  protected boolean stopImmediately = false;
+  protected volatile boolean stopImmediately = false;
   protected RecordsConsumerDelegate delegate;
 
   public RecordConsumer() {
@@ -4,12 +4,18 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.metrics.Histogram;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -77,27 +83,75 @@ public class RecordsChannel implements
   protected final AtomicInteger numStored = new AtomicInteger();
   protected final AtomicInteger numStoreFailed = new AtomicInteger();
 
+  // Null unless metrics are being recorded.
+  protected SyncMetrics metrics;
+  protected Histogram queueDepth;
+  protected long flowStartNanos;
+
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
     this.source    = source;
     this.sink      = sink;
     this.delegate  = delegate;
   }
 
+  /**
+   * Record this channel's flow time, record counts, and queue depth in
+   * <code>metrics</code>. Call before the flow begins.
+   * <p>
+   * Sinks apply stores asynchronously, so how long stores take is up to the
+   * sink to record.
+   */
+  public void setMetrics(SyncMetrics metrics) {
+    this.metrics = metrics;
+    this.queueDepth = (metrics == null) ? null : metrics.histogram("queue.depth");
+  }
+
+  /**
+   * The default maximum number of fetched records waiting to be stored.
+   */
+  public static final int DEFAULT_HIGH_WATER_MARK = 500;
+
+  private static volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+  /**
+   * How long a fetch waits for room in the queue before checking whether the
+   * consumer has been halted.
+   */
+  protected static final long OFFER_WAIT_MSEC = 1000;
+
+  /**
+   * Limit how many fetched records can wait to be stored. When the queue is
+   * full, the fetch waits for the consumer to catch up. Applies to channels
+   * created afterwards.
+   */
+  public static void setHighWaterMark(int records) {
+    if (records < 1) {
+      throw new IllegalArgumentException("records must be positive.");
+    }
+    highWaterMark = records;
+  }
+
+  protected static int getHighWaterMark() {
+    return highWaterMark;
+  }
+
   /*
-   * We push fetched records into a queue.
-   * A separate thread is waiting for us to notify it of work to do.
-   * When we tell it to stop, it'll stop. We do that when the fetch
-   * is completed.
+   * We push fetched records into a bounded queue.
+   * A separate thread takes them off the queue and stores them.
+   * When the queue is full, fetching waits, so a fast fetch can't
+   * outrun a slow store by more than the queue's capacity.
+   * When we tell the consumer to stop, it'll stop. We do that when the
+   * fetch is completed.
    * When it stops, we tell the sink that there are no more records,
    * and wait for the sink to tell us that storing is done.
    * Then we notify our delegate of completion.
    */
   private RecordConsumer consumer;
   private boolean waitingForQueueDone = false;
-  private final ConcurrentLinkedQueue<Record> toProcess = new ConcurrentLinkedQueue<Record>();
+  private final BlockingQueue<Record> toProcess = new ArrayBlockingQueue<Record>(getHighWaterMark());
 
   @Override
-  public ConcurrentLinkedQueue<Record> getQueue() {
+  public BlockingQueue<Record> getQueue() {
     return toProcess;
   }
 
@@ -161,6 +215,7 @@ public class RecordsChannel implements
       return;
     }
 
+    flowStartNanos = System.nanoTime();
     sink.setStoreDelegate(this);
     numFetched.set(0);
     numFetchFailed.set(0);
@@ -193,19 +248,51 @@ public class RecordsChannel implements
     }
   }
 
+  @Override
+  public void storeBatch(List<Record> records) {
+    numStored.addAndGet(records.size());
+    try {
+      sink.storeBatch(records);
+    } catch (NoStoreDelegateException e) {
+      Logger.error(LOG_TAG, "Got NoStoreDelegateException in RecordsChannel.storeBatch(). This should not occur. Aborting.", e);
+      for (Record record : records) {
+        delegate.onFlowStoreFailed(this, e, record.guid);
+      }
+    }
+  }
+
   @Override
   public void onFetchFailed(Exception ex, Record record) {
     Logger.warn(LOG_TAG, "onFetchFailed. Calling for immediate stop.", ex);
     numFetchFailed.incrementAndGet();
-    this.consumer.halt();
+    // Tell the delegate first: once halted, the consumer can finish the flow
+    // at any moment.
     delegate.onFlowFetchFailed(this, ex);
+    this.consumer.halt();
   }
 
+  /**
+   * Queue a fetched record for the consumer, blocking the fetch while the
+   * queue is full.
+   */
   @Override
   public void onFetchedRecord(Record record) {
     numFetched.incrementAndGet();
-    this.toProcess.add(record);
-    this.consumer.doNotify();
+    try {
+      while (!this.toProcess.offer(record, OFFER_WAIT_MSEC, TimeUnit.MILLISECONDS)) {
+        if (this.consumer.stopImmediately) {
+          // Nobody will take it: the flow has already failed.
+          Logger.debug(LOG_TAG, "Consumer halted; dropping fetched record {}.", record.guid);
+          return;
+        }
+      }
+      if (queueDepth != null) {
+        queueDepth.record(this.toProcess.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.onFetchFailed(e, record);
+    }
   }
 
   @Override
@@ -218,7 +305,7 @@ public class RecordsChannel implements
 
   @Override
   public void onRecordStoreFailed(Exception ex, String recordGuid) {
-    Logger.trace(LOG_TAG, "Failed to store record with guid " + recordGuid);
+    Logger.trace(LOG_TAG, "Failed to store record with guid {}", recordGuid);
     numStoreFailed.incrementAndGet();
     this.consumer.stored();
     delegate.onFlowStoreFailed(this, ex, recordGuid);
@@ -227,10 +314,15 @@ public class RecordsChannel implements
 
   @Override
   public void onRecordStoreSucceeded(String guid) {
-    Logger.trace(LOG_TAG, "Stored record with guid " + guid);
+    Logger.trace(LOG_TAG, "Stored record with guid {}", guid);
     this.consumer.stored();
   }
 
+  @Override
+  public void onRecordsStoreSucceeded(Collection<String> guids) {
+    Logger.trace(LOG_TAG, "Stored {} records.", guids.size());
+    this.consumer.stored(guids.size());
+  }
 
   @Override
   public void consumerIsDone(boolean allRecordsQueued) {
@@ -245,6 +337,13 @@ public class RecordsChannel implements
   public void onStoreCompleted(long storeEnd) {
     Logger.trace(LOG_TAG, "onStoreCompleted. Notifying delegate of onFlowCompleted. " +
                           "Fetch end is " + fetchEnd + ", store end is " + storeEnd);
+    if (metrics != null) {
+      metrics.histogram("flow.millis").recordMillisSince(flowStartNanos);
+      metrics.counter("fetched").add(numFetched.get());
+      metrics.counter("fetch.failed").add(numFetchFailed.get());
+      metrics.counter("stored").add(numStored.get());
+      metrics.counter("store.failed").add(numStoreFailed.get());
+    }
     // TODO: synchronize on consumer callback?
     delegate.onFlowCompleted(this, fetchEnd, storeEnd);
   }
@@ -4,12 +4,13 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 interface RecordsConsumerDelegate {
-  public abstract ConcurrentLinkedQueue<Record> getQueue();
+  public abstract BlockingQueue<Record> getQueue();
 
   /**
    * Called when no more items will be processed.
@@ -20,4 +21,9 @@ interface RecordsConsumerDelegate {
    */
   public abstract void consumerIsDone(boolean forced);
   public abstract void store(Record record);
-}
\ No newline at end of file
+
+  /**
+   * Store several records at once, in order.
+   */
+  public abstract void storeBatch(List<Record> records);
+}
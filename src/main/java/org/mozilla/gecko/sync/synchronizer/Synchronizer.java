@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.synchronizer;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.SynchronizerConfiguration;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 
@@ -70,6 +71,21 @@ public class Synchronizer implements SynchronizerSessionDelegate {
   public RepositorySessionBundle bundleA;
   public RepositorySessionBundle bundleB;
 
+  protected SyncMetrics metrics;
+
+  /**
+   * Record metrics for both flows in <code>metrics</code>: records flowing
+   * from A to B under <code>inbound</code>, and from B to A under
+   * <code>outbound</code>.
+   */
+  public void setMetrics(SyncMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public SyncMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Fetch a synchronizer session appropriate for this <code>Synchronizer</code>
    */
@@ -228,10 +228,19 @@ public class TokenServerClient {
 
     Logger.debug(LOG_TAG, "Successful token response: " + result.getString(JSON_KEY_ID));
 
+    // The token is valid for duration seconds from when the server issued it;
+    // counting from now errs on the early side by the request's latency.
+    long expiresAt = -1;
+    final Object duration = result.get(JSON_KEY_DURATION);
+    if (duration instanceof Number && ((Number) duration).longValue() > 0) {
+      expiresAt = System.currentTimeMillis() + 1000 * ((Number) duration).longValue();
+    }
+
     return new TokenServerToken(result.getString(JSON_KEY_ID),
         result.getString(JSON_KEY_KEY),
         result.get(JSON_KEY_UID).toString(),
-        result.getString(JSON_KEY_API_ENDPOINT));
+        result.getString(JSON_KEY_API_ENDPOINT),
+        expiresAt);
   }
 
   public static class TokenFetchResourceDelegate extends BaseResourceDelegate {
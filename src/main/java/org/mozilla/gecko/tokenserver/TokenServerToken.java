@@ -10,10 +10,29 @@ public class TokenServerToken {
   public final String uid;
   public final String endpoint;
 
+  /**
+   * When the token expires, in milliseconds since the epoch, or -1 if the
+   * token server didn't say.
+   */
+  public final long expiresAt;
+
   public TokenServerToken(String id, String key, String uid, String endpoint) {
+    this(id, key, uid, endpoint, -1);
+  }
+
+  public TokenServerToken(String id, String key, String uid, String endpoint, long expiresAt) {
     this.id = id;
     this.key = key;
     this.uid = uid;
     this.endpoint = endpoint;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * @return true if the token is known to be valid for at least
+   *         <code>marginMillis</code> after <code>now</code>.
+   */
+  public boolean isValidFor(long now, long marginMillis) {
+    return expiresAt > 0 && now + marginMillis < expiresAt;
   }
-}
\ No newline at end of file
+}
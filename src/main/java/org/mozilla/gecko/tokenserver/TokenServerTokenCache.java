@@ -0,0 +1,87 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.tokenserver;
+
+import java.util.HashMap;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Remember token server tokens between syncs, so that a sync can skip
+ * signing an assertion and fetching a token while its last token is still
+ * valid.
+ * <p>
+ * Tokens are keyed by account, token server, and client state: a new sync
+ * key changes the client state, and must not reuse a token issued for the
+ * old one.
+ * <p>
+ * Tokens are credentials, so they're only kept in memory.
+ */
+public class TokenServerTokenCache {
+  private static final String LOG_TAG = TokenServerTokenCache.class.getSimpleName();
+
+  /**
+   * Don't hand out a token that expires sooner than this: it needs to last
+   * for the whole sync.
+   */
+  public static final long DEFAULT_EXPIRY_MARGIN_MILLIS = 5 * 60 * 1000;     // 5 minutes.
+
+  protected final long expiryMarginMillis;
+
+  // Guarded by this.
+  protected final HashMap<String, TokenServerToken> tokens = new HashMap<String, TokenServerToken>();
+
+  public TokenServerTokenCache() {
+    this(DEFAULT_EXPIRY_MARGIN_MILLIS);
+  }
+
+  public TokenServerTokenCache(long expiryMarginMillis) {
+    this.expiryMarginMillis = expiryMarginMillis;
+  }
+
+  protected static String key(String uid, String tokenServerEndpoint, String clientState) {
+    return uid + " " + tokenServerEndpoint + " " + clientState;
+  }
+
+  /**
+   * @return a token that is valid for at least the expiry margin, or
+   *         <code>null</code>.
+   */
+  public synchronized TokenServerToken get(String uid, String tokenServerEndpoint, String clientState, long now) {
+    final String key = key(uid, tokenServerEndpoint, clientState);
+    final TokenServerToken token = tokens.get(key);
+    if (token == null) {
+      return null;
+    }
+    if (!token.isValidFor(now, expiryMarginMillis)) {
+      Logger.debug(LOG_TAG, "Cached token has expired or will expire soon.");
+      tokens.remove(key);
+      return null;
+    }
+    return token;
+  }
+
+  /**
+   * Remember <code>token</code>. Tokens without an expiry time aren't cached.
+   */
+  public synchronized void put(String uid, String tokenServerEndpoint, String clientState, TokenServerToken token) {
+    if (token.expiresAt <= 0) {
+      return;
+    }
+    tokens.put(key(uid, tokenServerEndpoint, clientState), token);
+  }
+
+  /**
+   * Forget any token for this account; for example, because the storage
+   * server rejected it.
+   */
+  public synchronized void invalidate(String uid, String tokenServerEndpoint, String clientState) {
+    tokens.remove(key(uid, tokenServerEndpoint, clientState));
+  }
+
+  public synchronized void clear() {
+    tokens.clear();
+  }
+}
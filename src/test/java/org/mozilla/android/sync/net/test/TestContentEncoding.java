@@ -0,0 +1,111 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.gecko.sync.net.ContentEncoding;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.HttpVersion;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.entity.StringEntity;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+import ch.boye.httpclientandroidlib.util.EntityUtils;
+
+public class TestContentEncoding {
+  // Repetitive, like the base64 payloads of a page of records.
+  protected static String makeBody() {
+    final StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < 100; i++) {
+      sb.append("{\"id\":\"record").append(i).append("\",\"payload\":\"eyJjaXBoZXJ0ZXh0IjoiYWJjZGVm\"},");
+    }
+    sb.append("{}]");
+    return sb.toString();
+  }
+
+  protected static HttpResponse makeResponse(HttpEntity entity) {
+    final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(entity);
+    return response;
+  }
+
+  @Before
+  public void setUp() {
+    ContentEncoding.resetCounters();
+  }
+
+  @Test
+  public void testGzipRoundTrip() throws Exception {
+    final String body = makeBody();
+    final StringEntity entity = new StringEntity(body, "UTF-8");
+    entity.setContentType("application/json");
+
+    final HttpEntity gzipped = ContentEncoding.gzipEntity(entity);
+    assertEquals("gzip", gzipped.getContentEncoding().getValue());
+    assertEquals("application/json", gzipped.getContentType().getValue());
+    // Payload hashing needs to read the body more than once.
+    assertTrue(gzipped.isRepeatable());
+    assertEquals(body.length(), ContentEncoding.getRequestBytesEncoded());
+    assertEquals(gzipped.getContentLength(), ContentEncoding.getRequestBytesSent());
+    assertTrue(ContentEncoding.getRequestBytesSent() < body.length() / 4);
+
+    final HttpResponse response = makeResponse(gzipped);
+    ContentEncoding.decodeResponse(response);
+    assertNull(response.getEntity().getContentEncoding());
+    assertEquals(body, EntityUtils.toString(response.getEntity(), "UTF-8"));
+    assertEquals(gzipped.getContentLength(), ContentEncoding.getResponseBytesReceived());
+    assertEquals(body.length(), ContentEncoding.getResponseBytesDecoded());
+
+    // Decoding twice is harmless.
+    ContentEncoding.decodeResponse(response);
+  }
+
+  @Test
+  public void testDeflate() throws Exception {
+    final String body = makeBody();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DeflaterOutputStream deflater = new DeflaterOutputStream(bytes);
+    deflater.write(body.getBytes("UTF-8"));
+    deflater.close();
+
+    final ByteArrayEntity entity = new ByteArrayEntity(bytes.toByteArray());
+    entity.setContentEncoding("deflate");
+    final HttpResponse response = makeResponse(entity);
+    ContentEncoding.decodeResponse(response);
+    assertEquals(body, EntityUtils.toString(response.getEntity(), "UTF-8"));
+    assertEquals(bytes.size(), ContentEncoding.getResponseBytesReceived());
+  }
+
+  @Test
+  public void testIdentity() throws Exception {
+    final HttpResponse response = makeResponse(new StringEntity("plain", "UTF-8"));
+    ContentEncoding.decodeResponse(response);
+    assertEquals("plain", EntityUtils.toString(response.getEntity(), "UTF-8"));
+    assertEquals(5, ContentEncoding.getResponseBytesReceived());
+    assertEquals(5, ContentEncoding.getResponseBytesDecoded());
+  }
+
+  @Test
+  public void testUnsupportedEncoding() throws Exception {
+    final StringEntity entity = new StringEntity("compressed", "UTF-8");
+    entity.setContentEncoding("br");
+    try {
+      ContentEncoding.decodeResponse(makeResponse(entity));
+      fail("Expected IOException.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -3,6 +3,7 @@
 
 package org.mozilla.android.sync.net.test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -11,6 +12,7 @@ import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
@@ -18,8 +20,10 @@ import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.ContentEncoding;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequestDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
@@ -50,6 +54,32 @@ public class TestLineByLineHandling {
     }
   }
 
+  /**
+   * Failures on the server thread don't fail the test, so they're recorded for
+   * the test to check.
+   */
+  public class GzipLineByLineMockServer extends MockServer {
+    public volatile String acceptEncoding;
+    public volatile IOException error;
+
+    public void handle(Request request, Response response) {
+      try {
+        acceptEncoding = request.getValue("Accept-Encoding");
+        PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+        response.set("Content-Encoding", "gzip");
+
+        PrintStream gzipStream = new PrintStream(new GZIPOutputStream(bodyStream));
+        gzipStream.print("First line.\n");
+        gzipStream.print("Second line.\n");
+        gzipStream.print("Third line.\n");
+        gzipStream.print("Fourth line.\n");
+        gzipStream.close();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+  }
+
   public class BaseLineByLineDelegate extends
       SyncStorageCollectionRequestDelegate {
 
@@ -108,4 +138,26 @@ public class TestLineByLineHandling {
     r.get();
     // Server is stopped in the callback.
   }
+
+  @Test
+  public void testGzipLineByLine() throws URISyntaxException {
+    BaseResource.rewriteLocalhost = false;
+    SyncStorageRequest.setCompression(true, false);
+    ContentEncoding.resetCounters();
+    final GzipLineByLineMockServer server = new GzipLineByLineMockServer();
+    try {
+      data.startHTTPServer(server);
+      SyncStorageCollectionRequest r = new SyncStorageCollectionRequest(new URI(STORAGE_URL));
+      r.delegate = new BaseLineByLineDelegate();
+      r.get();
+      // Server is stopped in the callback.
+    } finally {
+      SyncStorageRequest.setCompression(false, false);
+    }
+    assertNull(server.error);
+    assertTrue(server.acceptEncoding != null && server.acceptEncoding.contains("gzip"));
+    assertEquals(4, lines.size());
+    assertEquals("First line.\nSecond line.\nThird line.\nFourth line.\n".length(), ContentEncoding.getResponseBytesDecoded());
+    assertTrue(ContentEncoding.getResponseBytesReceived() > 0);
+  }
 }
@@ -0,0 +1,72 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.net.LineFramer;
+
+public class TestLineFramer {
+  // Returns at most one byte per read, like a slow network.
+  protected static class TrickleInputStream extends FilterInputStream {
+    public TrickleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      return super.read(buffer, offset, Math.min(1, length));
+    }
+  }
+
+  protected static List<String> frame(InputStream in, int bufferSize) throws IOException {
+    final LineFramer framer = new LineFramer(in, bufferSize);
+    final ArrayList<String> lines = new ArrayList<String>();
+    while (framer.next()) {
+      lines.add(new String(framer.buffer(), framer.offset(), framer.length(), "UTF-8"));
+    }
+    return lines;
+  }
+
+  protected static List<String> frame(String input, int bufferSize) throws IOException {
+    return frame(new ByteArrayInputStream(input.getBytes("UTF-8")), bufferSize);
+  }
+
+  @Test
+  public void testLines() throws IOException {
+    final String input = "{\"id\":\"abc\"}\n{\"id\":\"déf\"}\r\n\nlast";
+    final List<String> expected = Arrays.asList("{\"id\":\"abc\"}", "{\"id\":\"déf\"}", "", "last");
+    assertEquals(expected, frame(input, 1024));
+    // Lines longer than the buffer, and lines split across reads.
+    assertEquals(expected, frame(input, 1));
+    assertEquals(expected, frame(input, 5));
+    assertEquals(expected, frame(new TrickleInputStream(new ByteArrayInputStream(input.getBytes("UTF-8"))), 4));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    assertEquals(0, frame("", 16).size());
+    assertEquals(Arrays.asList(""), frame("\n", 16));
+    assertEquals(Arrays.asList("a"), frame("a\n", 16));
+  }
+
+  @Test
+  public void testBufferIsReused() throws IOException {
+    final LineFramer framer = new LineFramer(new ByteArrayInputStream("one\ntwo\nthree\n".getBytes("UTF-8")), 64);
+    framer.next();
+    final byte[] buffer = framer.buffer();
+    while (framer.next()) {
+      assertEquals(buffer, framer.buffer());
+    }
+  }
+}
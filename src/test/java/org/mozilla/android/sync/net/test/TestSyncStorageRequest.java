@@ -262,4 +262,43 @@ public class TestSyncStorageRequest {
     r.delete();
     // Server is stopped in the callback.
   }
+
+  public class NotModifiedMockServer extends MockServer {
+    @Override
+    public void handle(Request request, Response response) {
+      try {
+        assertEquals("1234567890.120", request.getValue("x-if-modified-since"));
+        assertEquals("\"abc\"", request.getValue("if-none-match"));
+        this.handleBasicHeaders(request, response, 304, "application/json").close();
+      } catch (IOException e) {
+        fail("Unexpected exception: " + e);
+      }
+    }
+  }
+
+  public class TestNotModifiedSyncStorageRequestDelegate extends BaseTestStorageRequestDelegate {
+    public TestNotModifiedSyncStorageRequestDelegate(AuthHeaderProvider authHeaderProvider) {
+      super(authHeaderProvider);
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse res) {
+      assertTrue(res.isNotModified());
+      assertTrue(res.httpResponse().containsHeader("X-Weave-Timestamp"));
+      BaseResource.consumeEntity(res);
+      data.stopHTTPServer();
+    }
+  }
+
+  @Test
+  public void testConditionalGet() throws URISyntaxException {
+    BaseResource.rewriteLocalhost = false;
+    data.startHTTPServer(new NotModifiedMockServer());
+    SyncStorageRecordRequest r = new SyncStorageRecordRequest(new URI(LOCAL_META_URL));
+    r.delegate = new TestNotModifiedSyncStorageRequestDelegate(authHeaderProvider);
+    r.setIfModifiedSince(1234567890120L);
+    r.setIfNoneMatch("\"abc\"");
+    r.get();
+    // Server is stopped in the callback.
+  }
 }
@@ -19,10 +19,12 @@ import org.junit.Test;
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
 import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -291,4 +293,90 @@ public class TestCryptoRecord {
     o = cryptoRecord.toJSONObject();
     assertNull(o.get("ttl"));
   }
+
+  @SuppressWarnings("unchecked")
+  protected static Record[] recordsToUpload() {
+    HistoryRecord history = new HistoryRecord("abcdefghijkl");
+    history.title = "Sync | MDN — été";
+    history.histURI = "https://developer.mozilla.org/en-US/docs/Sync?a=1&b=\"2\"";
+    history.visits = new JSONArray();
+    for (int i = 0; i < 3; ++i) {
+      JSONObject visit = new JSONObject();
+      visit.put("date", 1326254123650000L - i);
+      visit.put("type", 1L);
+      history.visits.add(visit);
+    }
+
+    HistoryRecord untitled = new HistoryRecord("bcdefghijklm");
+    untitled.histURI = "http://example.com/";
+
+    HistoryRecord deleted = new HistoryRecord("cdefghijklmn");
+    deleted.deleted = true;
+
+    BookmarkRecord bookmark = new BookmarkRecord("defghijklmno");
+    bookmark.type = "bookmark";
+    bookmark.title = "Example";
+    bookmark.bookmarkURI = "http://example.com/";
+    bookmark.parentID = "toolbar";
+
+    ClientRecord client = new ClientRecord("efghijklmnop");
+    client.ttl = -1;
+
+    return new Record[] { history, untitled, deleted, bookmark, client };
+  }
+
+  @Test
+  public void testWritePayload() throws Exception {
+    JSONWriter writer = new JSONWriter();
+    for (Record record : recordsToUpload()) {
+      writer.reset();
+      record.writePayload(writer);
+      assertEquals(record.getEnvelope().payload.toJSONString(), new String(writer.toByteArray(), "UTF-8"));
+    }
+  }
+
+  @Test
+  public void testEncryptFromBuffer() throws Exception {
+    KeyBundle keyBundle = KeyBundle.withRandomKeys();
+    for (Record record : recordsToUpload()) {
+      CryptoRecord encrypted = CryptoRecord.encrypt(record, keyBundle);
+      assertNull(encrypted.payload);
+      assertEquals(record.guid, encrypted.guid);
+      assertEquals(record.ttl, encrypted.ttl);
+
+      // The upload bytes are exactly what toJSONString would produce.
+      byte[] bytes = encrypted.toJSONBytes();
+      assertEquals(encrypted.toJSONString(), new String(bytes, "UTF-8"));
+      if (record.ttl > 0) {
+        assertEquals(record.ttl, encrypted.toJSONObject().get("ttl"));
+      } else {
+        assertNull(encrypted.toJSONObject().get("ttl"));
+      }
+
+      // Round trip through the wire format.
+      CryptoRecord downloaded = CryptoRecord.fromJSONRecord(bytes, 0, bytes.length);
+      downloaded.keyBundle = keyBundle;
+      assertEquals(record.getEnvelope().payload, downloaded.decrypt().payload);
+
+      // And through the legacy parser.
+      CryptoRecord parsed = CryptoRecord.fromJSONRecord(new String(bytes, "UTF-8"));
+      parsed.keyBundle = keyBundle;
+      assertEquals(record.getEnvelope().payload, parsed.decrypt().payload);
+    }
+  }
+
+  @Test
+  public void testWriteEnvelopeMatchesToJSONString() throws Exception {
+    KeyBundle keyBundle = KeyBundle.withRandomKeys();
+    for (Record record : recordsToUpload()) {
+      CryptoRecord cleartext = record.getEnvelope();
+      assertEquals(cleartext.toJSONString(), new String(cleartext.toJSONBytes(), "UTF-8"));
+
+      cleartext.keyBundle = keyBundle;
+      CryptoRecord encrypted = cleartext.encrypt();
+      JSONWriter writer = new JSONWriter();
+      encrypted.writeTo(writer);
+      assertEquals(encrypted.toJSONString(), new String(writer.toByteArray(), "UTF-8"));
+    }
+  }
 }
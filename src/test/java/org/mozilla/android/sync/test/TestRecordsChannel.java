@@ -7,6 +7,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -16,15 +18,21 @@ import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionCreat
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFinishDelegate;
 import org.mozilla.gecko.background.testhelpers.WBORepository;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
 
+import android.content.Context;
+
 public class TestRecordsChannel {
 
   protected WBORepository remote;
@@ -33,12 +41,14 @@ public class TestRecordsChannel {
   protected RepositorySession source;
   protected RepositorySession sink;
   protected RecordsChannelDelegate rcDelegate;
+  protected RecordsChannel channel;
 
   protected AtomicInteger numFlowFetchFailed;
   protected AtomicInteger numFlowStoreFailed;
   protected AtomicInteger numFlowCompleted;
   protected AtomicBoolean flowBeginFailed;
   protected AtomicBoolean flowFinishFailed;
+  protected SyncMetrics metrics = null;
 
   public void doFlow(final Repository remote, final Repository local) throws Exception {
     WaitHelper.getTestWaiter().performWait(new Runnable() {
@@ -118,6 +128,8 @@ public class TestRecordsChannel {
     };
 
     final RecordsChannel rc = new RecordsChannel(source,  sink, rcDelegate);
+    rc.setMetrics(metrics);
+    channel = rc;
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
       public void run() {
@@ -179,6 +191,21 @@ public class TestRecordsChannel {
     assertEquals(source.wbos, sink.wbos);
   }
 
+  @Test
+  public void testMetrics() throws Exception {
+    metrics = new SyncMetrics();
+    WBORepository source = full();
+    WBORepository sink = empty();
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(outbounds.length, metrics.getCount("fetched"));
+    assertEquals(outbounds.length, metrics.getCount("stored"));
+    assertEquals(0, metrics.getCount("store.failed"));
+    assertEquals(1, metrics.getHistogram("flow.millis").getCount());
+    assertEquals(outbounds.length, metrics.getHistogram("queue.depth").getCount());
+    assertTrue(metrics.getHistogram("queue.depth").getMax() <= outbounds.length);
+  }
+
   @Test
   public void testFetchFail() throws Exception {
     WBORepository source = failingFetch();
@@ -223,4 +250,96 @@ public class TestRecordsChannel {
     assertEquals(6, numFlowStoreFailed.get()); // One (big) batch fails.
     assertEquals(0, sink.wbos.size()); // No batches succeed.
   }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    final int HIGH_WATER_MARK = 5;
+    final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+    WBORepository source = new SynchronizerHelpers.TrackingWBORepository();
+    for (int i = 0; i < 300; i++) {
+      BookmarkRecord record = new BookmarkRecord("bookmark" + i, "bookmarks", 1, false);
+      source.wbos.put(record.guid, record);
+    }
+    // Stores slowly, and checks how far the fetch has got ahead.
+    WBORepository sink = new SynchronizerHelpers.TrackingWBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void store(final Record record) throws NoStoreDelegateException {
+            final int inFlight = channel.getFetchCount() - channel.getStoreCount();
+            if (inFlight > maxInFlight.get()) {
+              maxInFlight.set(inFlight);
+            }
+            try {
+              Thread.sleep(1);
+            } catch (InterruptedException e) {
+              // Carry on.
+            }
+            super.store(record);
+          }
+        });
+      }
+    };
+
+    RecordsChannel.setHighWaterMark(HIGH_WATER_MARK);
+    try {
+      doFlow(source, sink);
+    } finally {
+      RecordsChannel.setHighWaterMark(RecordsChannel.DEFAULT_HIGH_WATER_MARK);
+    }
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(source.wbos, sink.wbos);
+    // At most a queue's worth waiting, a queue's worth drained by the
+    // consumer, and the record the fetch is trying to queue.
+    assertTrue(maxInFlight.get() <= 2 * HIGH_WATER_MARK + 1);
+  }
+
+  @Test
+  public void testStoreInBatches() throws Exception {
+    final AtomicInteger batches = new AtomicInteger(0);
+    final AtomicInteger singles = new AtomicInteger(0);
+
+    WBORepository source = new SynchronizerHelpers.TrackingWBORepository();
+    for (int i = 0; i < 300; i++) {
+      BookmarkRecord record = new BookmarkRecord("bookmark" + i, "bookmarks", 1, false);
+      source.wbos.put(record.guid, record);
+    }
+    // Applies each batch together and reports it with one callback.
+    WBORepository sink = new SynchronizerHelpers.TrackingWBORepository() {
+      @Override
+      public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+        delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+          @Override
+          public void store(final Record record) throws NoStoreDelegateException {
+            singles.incrementAndGet();
+            super.store(record);
+          }
+
+          @Override
+          public void storeBatch(final List<Record> records) throws NoStoreDelegateException {
+            batches.incrementAndGet();
+            final List<String> guids = new ArrayList<String>(records.size());
+            for (Record record : records) {
+              wbos.put(record.guid, record);
+              guids.add(record.guid);
+            }
+            delegate.deferredStoreDelegate(delegateExecutor).onRecordsStoreSucceeded(guids);
+          }
+        });
+      }
+    };
+
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(300, channel.getStoreCount());
+    assertEquals(source.wbos.keySet(), sink.wbos.keySet());
+    assertEquals(0, singles.get());
+    assertTrue(batches.get() > 0);
+  }
 }
@@ -4,23 +4,40 @@
 package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 import org.mozilla.android.sync.test.SynchronizerHelpers.TrackingWBORepository;
 import org.mozilla.android.sync.test.helpers.BaseTestStorageRequestDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionBeginDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFinishDelegate;
+import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionStoreDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.MockRecord;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.JSONRecordFetcher;
+import org.mozilla.gecko.sync.UnexpectedJSONException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
@@ -36,6 +53,7 @@ import org.mozilla.gecko.sync.repositories.Server11Repository;
 import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
 import org.mozilla.gecko.sync.repositories.StoreFailedException;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -96,7 +114,7 @@ public class TestServer11RepositorySession {
 
     public RecordUploadRunnable getRecordUploadRunnable() {
       // TODO: implement upload delegate in the class, too!
-      return new RecordUploadRunnable(null, recordsBuffer, recordGuidsBuffer, byteCount);
+      return new RecordUploadRunnable(null, recordsBuffer, recordGuidsBuffer, byteCount, true);
     }
 
     public void enqueueRecord(Record r) {
@@ -269,4 +287,371 @@ public class TestServer11RepositorySession {
       data.stopHTTPServer();
     }
   }
+
+  /**
+   * Accepts records into batches, and stores them on commit. POSTs that
+   * don't ask for a batch are stored immediately.
+   */
+  public class BatchMockServer extends MockServer {
+    public final AtomicInteger posts = new AtomicInteger(0);
+    public final AtomicInteger batches = new AtomicInteger(0);
+    public final AtomicInteger commits = new AtomicInteger(0);
+    public final AtomicInteger conditionalPosts = new AtomicInteger(0);
+    public final AtomicInteger inFlight = new AtomicInteger(0);
+    public final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+    // Milliseconds to hold each POST, so that concurrent POSTs overlap.
+    protected final long latency;
+
+    public BatchMockServer() {
+      this(0);
+    }
+
+    public BatchMockServer(long latency) {
+      this.latency = latency;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      if (!request.getMethod().equals("POST")) {
+        this.handle(request, response, 404, "missing");
+        return;
+      }
+      final int concurrent = inFlight.incrementAndGet();
+      int max;
+      while ((max = maxInFlight.get()) < concurrent && !maxInFlight.compareAndSet(max, concurrent)) {
+      }
+      try {
+        if (latency > 0) {
+          Thread.sleep(latency);
+        }
+        handlePOST(request, response);
+      } catch (InterruptedException e) {
+        this.handle(request, response, 500, "interrupted");
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void handlePOST(Request request, Response response) {
+      posts.incrementAndGet();
+      if (request.getValue("X-If-Unmodified-Since") != null) {
+        conditionalPosts.incrementAndGet();
+      }
+
+      final JSONArray ids = new JSONArray();
+      try {
+        for (Object o : (JSONArray) new JSONParser().parse(request.getContent())) {
+          ids.add(((JSONObject) o).get("id"));
+        }
+      } catch (Exception e) {
+        this.handle(request, response, 400, "bad body");
+        return;
+      }
+
+      String batch = request.getQuery().get("batch");
+      if ("true".equals(batch)) {
+        batch = "batch" + batches.incrementAndGet();
+      }
+      final JSONObject body = new JSONObject();
+      body.put("success", ids);
+      body.put("failed", new JSONObject());
+      final boolean commit = "true".equals(request.getQuery().get("commit"));
+      if (commit || batch == null) {
+        if (commit) {
+          commits.incrementAndGet();
+        }
+        body.put("modified", Utils.millisecondsToDecimalSeconds(System.currentTimeMillis()).doubleValue());
+        this.handle(request, response, 200, body.toJSONString());
+      } else {
+        body.put("batch", batch);
+        this.handle(request, response, 202, body.toJSONString());
+      }
+    }
+  }
+
+  /**
+   * Store <code>count</code> new records into <code>remote</code>, served by
+   * <code>server</code>.
+   *
+   * @return the number of records stored.
+   */
+  protected int storeRecords(final Server11Repository remote, final MockServer server, final int count) throws Exception {
+    final AtomicInteger stored = new AtomicInteger(0);
+    final RepositorySession[] sessions = new RepositorySession[1];
+    remote.createSession(new RepositorySessionCreationDelegate() {
+      @Override
+      public void onSessionCreated(RepositorySession session) {
+        sessions[0] = session;
+      }
+
+      @Override
+      public void onSessionCreateFailed(Exception ex) {
+      }
+
+      @Override
+      public RepositorySessionCreationDelegate deferredCreationDelegate() {
+        return this;
+      }
+    }, null);
+    final RepositorySession session = sessions[0];
+    assertNotNull(session);
+
+    BaseResource.rewriteLocalhost = false;
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.begin(new ExpectSuccessRepositorySessionBeginDelegate(WaitHelper.getTestWaiter()));
+          } catch (Exception e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+
+      session.setStoreDelegate(new ExpectSuccessRepositorySessionStoreDelegate(WaitHelper.getTestWaiter()) {
+        @Override
+        public void onRecordStoreSucceeded(String guid) {
+          stored.incrementAndGet();
+        }
+
+        @Override
+        public void onStoreCompleted(long storeEnd) {
+          performNotify();
+        }
+      });
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < count; i++) {
+              session.store(new MockRecord(Utils.generateGuid(), null, 0, false));
+            }
+          } catch (Exception e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+            return;
+          }
+          session.storeDone();
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    return stored.get();
+  }
+
+  @Test
+  public void testBatchUpload() throws Exception {
+    final BatchMockServer server = new BatchMockServer();
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setInfoConfiguration(new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": 10, \"max_total_records\": 30}")));
+
+    assertEquals(100, storeRecords(remote, server, 100));
+    // Ten records per POST, thirty per batch.
+    assertEquals(10, server.posts.get());
+    assertEquals(4, server.batches.get());
+    assertEquals(4, server.commits.get());
+    // Once the first batch has been committed, we know the collection's
+    // timestamp, and every POST is conditional on it.
+    assertEquals(7, server.conditionalPosts.get());
+  }
+
+  @Test
+  public void testConcurrentUpload() throws Exception {
+    final BatchMockServer server = new BatchMockServer(100);
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setUploadConnections(4);
+
+    assertEquals(400, storeRecords(remote, server, 400));
+    // Fifty records per POST, up to four at once.
+    assertEquals(8, server.posts.get());
+    assertEquals(0, server.batches.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertTrue(server.maxInFlight.get() <= 4);
+  }
+
+  @Test
+  public void testConcurrentBatchUpload() throws Exception {
+    final BatchMockServer server = new BatchMockServer(50);
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setInfoConfiguration(new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": 10, \"max_total_records\": 50}")));
+    remote.setUploadConnections(3);
+
+    assertEquals(100, storeRecords(remote, server, 100));
+    // Every POST after the first in a batch uses its ID, rather than
+    // starting a new batch.
+    assertEquals(10, server.posts.get());
+    assertEquals(2, server.batches.get());
+    assertEquals(2, server.commits.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertTrue(server.maxInFlight.get() <= 3);
+  }
+
+  public static class UploadExecutorSession extends Server11RepositorySession {
+    public UploadExecutorSession(Repository repository) {
+      super(repository);
+    }
+
+    public ExecutorService uploadExecutor() {
+      return getUploadExecutor();
+    }
+  }
+
+  @Test
+  public void testAbortShutsDownUploadExecutor() throws Exception {
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setUploadConnections(2);
+    final UploadExecutorSession session = new UploadExecutorSession(remote);
+
+    final ExecutorService executor = session.uploadExecutor();
+    assertNotNull(executor);
+    session.abort();
+    assertTrue(executor.isShutdown());
+    // Stores still queued don't start another.
+    assertEquals(null, session.uploadExecutor());
+  }
+
+  @Test
+  public void testFinishShutsDownUploadExecutor() throws Exception {
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setUploadConnections(2);
+    final UploadExecutorSession session = new UploadExecutorSession(remote);
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          session.begin(new ExpectSuccessRepositorySessionBeginDelegate(WaitHelper.getTestWaiter()));
+        } catch (Exception e) {
+          WaitHelper.getTestWaiter().performNotify(e);
+        }
+      }
+    });
+
+    final ExecutorService executor = session.uploadExecutor();
+    assertNotNull(executor);
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          session.finish(new ExpectSuccessRepositorySessionFinishDelegate(WaitHelper.getTestWaiter()));
+        } catch (Exception e) {
+          WaitHelper.getTestWaiter().performNotify(e);
+        }
+      }
+    });
+    assertTrue(executor.isShutdown());
+    assertEquals(null, session.uploadExecutor());
+  }
+
+  /**
+   * Serves a paged fetch: the ID listing is <code>listing</code>, and each
+   * window returns an empty record for each requested ID.
+   */
+  public class PagedFetchMockServer extends MockServer {
+    public final String listing;
+    public volatile String listingLimit;
+
+    public PagedFetchMockServer(String listing) {
+      this.listing = listing;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      try {
+        final PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+        final String ids = request.getQuery().get("ids");
+        if (ids == null) {
+          listingLimit = request.getQuery().get("limit");
+          bodyStream.print(listing);
+        } else {
+          for (String id : ids.split(",")) {
+            bodyStream.print("{\"id\":\"" + id + "\",\"payload\":\"{}\",\"modified\":1.5}\n");
+          }
+        }
+        bodyStream.close();
+      } catch (IOException e) {
+        this.handle(request, response, 500, "error");
+      }
+    }
+  }
+
+  protected void doPagedFetch(final MockServer server, final Server11Repository remote, final FetchCollectingDelegate delegate) throws Exception {
+    final Server11RepositorySession session = new Server11RepositorySession(remote);
+    BaseResource.rewriteLocalhost = false;
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(SHORT_TIMEOUT, new Runnable() {
+        @Override
+        public void run() {
+          session.fetchSince(-1, delegate);
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
+
+  public static class FetchCollectingDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final List<String> guids = Collections.synchronizedList(new ArrayList<String>());
+    public volatile Exception failure;
+    public volatile boolean completed;
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      failure = ex;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      guids.add(record.guid);
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      completed = true;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  @Test
+  public void testPagedFetchLimitsIDListing() throws Exception {
+    final PagedFetchMockServer server = new PagedFetchMockServer("\"aaa\"\n\"bbb\"\n\"ccc\"\n");
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setPagedFetch(2, 2, 3);
+
+    final FetchCollectingDelegate delegate = new FetchCollectingDelegate();
+    doPagedFetch(server, remote, delegate);
+
+    assertEquals(null, delegate.failure);
+    assertTrue(delegate.completed);
+    assertEquals("3", server.listingLimit);
+    assertEquals(Arrays.asList("aaa", "bbb", "ccc"), delegate.guids);
+  }
+
+  @Test
+  public void testPagedFetchUnexpectedIDListing() throws Exception {
+    final PagedFetchMockServer server = new PagedFetchMockServer("\"aaa\"\n{\"id\":\"bbb\"}\n\"ccc\"\n");
+    final Server11Repository remote = new Server11Repository("test", getCollectionURL("test"), authHeaderProvider, infoCollections);
+    remote.setPagedFetch(2, 2);
+
+    final FetchCollectingDelegate delegate = new FetchCollectingDelegate();
+    doPagedFetch(server, remote, delegate);
+
+    assertEquals(UnexpectedJSONException.class, delegate.failure.getClass());
+    assertFalse(delegate.completed);
+    assertEquals(null, server.listingLimit);
+    assertEquals(0, delegate.guids.size());
+  }
 }
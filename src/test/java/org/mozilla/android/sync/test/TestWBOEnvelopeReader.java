@@ -0,0 +1,126 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.simple.JSONArray;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.WBOEnvelopeReader;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+public class TestWBOEnvelopeReader {
+  // The same record as TestCryptoRecord.testEntireRecord.
+  private static final String ENCRYPTED_RECORD = "{\"sortindex\": 131, \"payload\": \"{\\\"ciphertext\\\":\\\"YJB4dr0vZEIWPirfU2FCJvfzeSLiOP5QWasol2R6ILUxdHsJWuUuvTZVhxYQfTVNou6hVV67jfAvi5Cs+bqhhQsv7icZTiZhPTiTdVGt+uuMotxauVA5OryNGVEZgCCTvT3upzhDFdDbJzVd9O3/gU/b7r/CmAHykX8bTlthlbWeZ8oz6gwHJB5tPRU15nM/m/qW1vyKIw5pw/ZwtAy630AieRehGIGDk+33PWqsfyuT4EUFY9/Ly+8JlnqzxfiBCunIfuXGdLuqTjJOxgrK8mI4wccRFEdFEnmHvh5x7fjl1ID52qumFNQl8zkB75C8XK25alXqwvRR6/AQSP+BgQ==\\\",\\\"IV\\\":\\\"v/0BFgicqYQsd70T39rraA==\\\",\\\"hmac\\\":\\\"59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac\\\"}\", \"id\": \"0-P9fabp9vJD\", \"modified\": 1326254123.65}";
+  private static final String B64_ENCRYPTION_KEY = "0A7mU5SZ/tu7ZqwXW1og4qHVHN+zgEi4Xwfwjw+vEJw=";
+  private static final String B64_HMAC_KEY = "11GN34O9QWXkjR06g8t0gWE1sGgQeWL0qxxWwl8Dmxs=";
+
+  protected static CryptoRecord read(String json) throws Exception {
+    return WBOEnvelopeReader.read(json.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testEncryptedRecord() throws Exception {
+    CryptoRecord record = read(ENCRYPTED_RECORD);
+    assertEquals("0-P9fabp9vJD", record.guid);
+    assertEquals(1326254123650L, record.lastModified);
+    assertEquals(131, record.sortIndex);
+
+    // The payload hasn't been parsed.
+    assertNull(record.payload);
+    assertNotNull(record.encryptedPayload);
+
+    record.keyBundle = KeyBundle.fromBase64EncodedKeys(B64_ENCRYPTION_KEY, B64_HMAC_KEY);
+    record.decrypt();
+    assertNull(record.encryptedPayload);
+    assertEquals("Customize Firefox", record.payload.get("title"));
+    assertEquals("0-P9fabp9vJD", record.payload.get("id"));
+    assertTrue(record.payload.get("tags") instanceof JSONArray);
+  }
+
+  @Test
+  public void testMatchesFromJSONRecord() throws Exception {
+    CryptoRecord expected = CryptoRecord.fromJSONRecord(ENCRYPTED_RECORD);
+    CryptoRecord actual = read(ENCRYPTED_RECORD);
+    assertEquals(expected.guid, actual.guid);
+    assertEquals(expected.lastModified, actual.lastModified);
+    assertEquals(expected.sortIndex, actual.sortIndex);
+    assertEquals(expected.payload, actual.getPayload());
+    assertEquals(expected.toJSONString(), actual.toJSONString());
+  }
+
+  @Test
+  public void testSliceOfBuffer() throws Exception {
+    byte[] record = ENCRYPTED_RECORD.getBytes("UTF-8");
+    byte[] buffer = new byte[record.length + 10];
+    System.arraycopy(record, 0, buffer, 5, record.length);
+    CryptoRecord parsed = CryptoRecord.fromJSONRecord(buffer, 5, record.length);
+    parsed.keyBundle = KeyBundle.fromBase64EncodedKeys(B64_ENCRYPTION_KEY, B64_HMAC_KEY);
+    parsed.decrypt();
+    assertEquals("Customize Firefox", parsed.payload.get("title"));
+  }
+
+  @Test
+  public void testUnencryptedPayloadFallsBack() throws Exception {
+    CryptoRecord record = read("{\"id\":\"global\",\"collection\":\"meta\",\"ttl\":60,\"unknown\":[1,{\"a\":\"}\"}],\"payload\":\"{\\\"syncID\\\":\\\"abc\\\\u00e9\\\",\\\"storageVersion\\\":5}\"}");
+    assertEquals("global", record.guid);
+    assertEquals("meta", record.collection);
+    assertEquals(60, record.ttl);
+    assertNull(record.encryptedPayload);
+    assertEquals("abcé", record.payload.get("syncID"));
+    assertEquals(5L, record.payload.get("storageVersion"));
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    CryptoRecord record = read("{\"id\":\"a\\\"b\\u00e9\\ud83d\\ude00\",\"payload\":\"{\\\"x\\\":\\\"\\\\n\\\"}\"}");
+    assertEquals("a\"bé😀", record.guid);
+    assertEquals("\n", record.payload.get("x"));
+  }
+
+  @Test
+  public void testTimestamps() throws Exception {
+    assertEquals(1326254123000L, read("{\"payload\":\"{}\",\"modified\":1326254123}").lastModified);
+    assertEquals(1326254123100L, read("{\"payload\":\"{}\",\"modified\":1326254123.1}").lastModified);
+    assertEquals(1326254123123L, read("{\"payload\":\"{}\",\"modified\":1326254123.12345}").lastModified);
+    assertEquals(1500L, read("{\"payload\":\"{}\",\"modified\":1.5e0}").lastModified);
+  }
+
+  protected static void assertParseFails(String json) throws Exception {
+    try {
+      read(json);
+      fail("Expected RecordParseException for " + json);
+    } catch (RecordParseException e) {
+      // Good.
+    }
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    assertParseFails("{\"payload\":\"{}\",\"sortindex\":1.5}");
+    assertParseFails("{\"payload\":\"{}\",\"ttl\":null}");
+    assertParseFails("{\"payload\":\"{}\",\"modified\":null}");
+    assertParseFails("{\"payload\":\"{}\"");
+    assertParseFails("{\"payload\":\"{}\"} trailing");
+    assertParseFails("{\"id\":\"abc\"}");
+    assertParseFails("[]");
+  }
+
+  @Test
+  public void testToJSONObjectBeforeDecrypt() throws Exception {
+    CryptoRecord record = read(ENCRYPTED_RECORD);
+    ExtendedJSONObject roundTripped = new ExtendedJSONObject(record.toJSONObject());
+    CryptoRecord again = CryptoRecord.fromJSONRecord(roundTripped);
+    again.keyBundle = KeyBundle.fromBase64EncodedKeys(B64_ENCRYPTION_KEY, B64_HMAC_KEY);
+    again.decrypt();
+    assertEquals("Customize Firefox", again.payload.get("title"));
+  }
+}
@@ -3,6 +3,7 @@
 
 package org.mozilla.android.sync.test.helpers;
 
+import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 import junit.framework.AssertionFailedError;
@@ -28,6 +29,13 @@ public class ExpectSuccessRepositorySessionStoreDelegate extends
     log("Record store succeeded.");
   }
 
+  @Override
+  public void onRecordsStoreSucceeded(Collection<String> guids) {
+    for (String guid : guids) {
+      onRecordStoreSucceeded(guid);
+    }
+  }
+
   @Override
   public void onStoreCompleted(long storeEnd) {
     log("Record store completed at " + storeEnd);
@@ -0,0 +1,41 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test.helpers;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Responds 304 Not Modified to conditional requests, and with
+ * <code>body</code> to the rest.
+ */
+public class MockNotModifiedServer extends MockServer {
+  public static final String LOG_TAG = "MockNotModifiedServer";
+
+  public final AtomicInteger conditionalRequests = new AtomicInteger(0);
+  public final AtomicInteger unconditionalRequests = new AtomicInteger(0);
+
+  public MockNotModifiedServer(String body) {
+    super(200, body);
+  }
+
+  @Override
+  public void handle(Request request, Response response) {
+    if (request.getValue("X-If-Modified-Since") == null) {
+      unconditionalRequests.incrementAndGet();
+      super.handle(request, response);
+      return;
+    }
+    conditionalRequests.incrementAndGet();
+    try {
+      this.handleBasicHeaders(request, response, 304, "application/json").close();
+    } catch (IOException e) {
+      Logger.error(LOG_TAG, "Oops.");
+    }
+  }
+}
@@ -1,28 +1,649 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
 package org.mozilla.android.sync.test.helpers;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
-import org.simpleframework.http.Path;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.Utils;
+import org.simpleframework.http.Query;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 
 /**
- * A trivial server that collects and returns WBOs.
- *
- * @author rnewman
- *
+ * A stateful, in-process stand-in for a Sync 1.1 storage server.
+ * <p>
+ * Serves <code>info/collections</code> and the <code>storage</code> tree for
+ * any user: GET of collections with <code>full</code>, <code>newer</code>,
+ * <code>limit</code>, <code>sort</code> and <code>ids</code>, as a JSON array
+ * or as <code>application/newlines</code>; POST of records, answered with
+ * <code>success</code> and <code>failed</code>; and GET, PUT and DELETE of
+ * single records, collections, and the whole of storage. Conditional requests
+ * are honored with 304 and 412 responses. There is no
+ * <code>info/configuration</code>, so clients don't batch uploads.
+ * <p>
+ * Records are stored as the server would return them, serialized once when
+ * they're written. Timestamps are server-assigned, in hundredths of a second,
+ * and strictly increase with every write. <code>X-Weave-Timestamp</code> is
+ * the time of a write, or is taken together with a read, so a client that
+ * next asks for records newer than it misses none.
+ * <p>
+ * The public fields add per-request latency, limit bandwidth, ask clients to
+ * back off, and fail uploads, so that tests and load runs can exercise the
+ * client against a slow or unhappy server.
  */
 public class MockWBOServer extends MockServer {
-  public HashMap<String, HashMap<String, String> > collections;
+  public static final String LOG_TAG = "MockWBOServer";
+
+  public static final String CONTENT_TYPE_JSON = "application/json";
+  public static final String CONTENT_TYPE_NEWLINES = "application/newlines";
+
+  /**
+   * Stats key for requests outside <code>storage</code>.
+   */
+  public static final String INFO = "info";
+
+  /**
+   * Milliseconds to wait before answering each request.
+   */
+  public volatile long latencyMillis = 0;
+
+  /**
+   * Bytes per second at which request and response bodies travel; zero or
+   * less for no limit.
+   */
+  public volatile long bandwidthBytesPerSecond = 0;
+
+  /**
+   * If positive, every storage response carries this
+   * <code>X-Weave-Backoff</code>.
+   */
+  public volatile long weaveBackoffSeconds = 0;
+
+  /**
+   * If positive, every storage request fails with a 503 carrying this
+   * <code>Retry-After</code>.
+   */
+  public volatile long retryAfterSeconds = 0;
+
+  /**
+   * If positive, every <code>failEvery</code>th uploaded record is reported
+   * in <code>failed</code> rather than stored.
+   */
+  public volatile int failEvery = 0;
+
+  /**
+   * A stored record, kept only as the server returns it, so that a large
+   * collection costs one copy of each record.
+   */
+  public static class WBO {
+    public final String id;
+    public final long modified;
+    public final long sortindex;
+    public final byte[] json;
+
+    public WBO(String id, long modified, long sortindex, String payload) {
+      this.id = id;
+      this.modified = modified;
+      this.sortindex = sortindex;
+
+      final StringBuilder sb = new StringBuilder(payload.length() + id.length() + 64);
+      sb.append("{\"id\":").append(JSONValue.toJSONString(id));
+      sb.append(",\"modified\":").append(Utils.millisecondsToDecimalSecondsString(modified));
+      sb.append(",\"sortindex\":").append(sortindex);
+      sb.append(",\"payload\":").append(JSONValue.toJSONString(payload));
+      sb.append("}");
+      this.json = utf8(sb.toString());
+    }
+  }
+
+  public static class ServerCollection {
+    public final LinkedHashMap<String, WBO> wbos = new LinkedHashMap<String, WBO>();
+    public long modified = -1;
+  }
+
+  /**
+   * Requests handled, and body bytes received and sent.
+   */
+  public static class Stats {
+    public long requests;
+    public long bytesIn;
+    public long bytesOut;
+
+    public Stats copy() {
+      final Stats out = new Stats();
+      out.requests = requests;
+      out.bytesIn = bytesIn;
+      out.bytesOut = bytesOut;
+      return out;
+    }
+  }
+
+  protected static class Reply {
+    public final int code;
+    public final byte[] body;
+    public String contentType = CONTENT_TYPE_JSON;
+    // X-Weave-Timestamp: the time of the write, or of the read.
+    public long timestamp = -1;
+    public final HashMap<String, String> headers = new HashMap<String, String>();
+
+    public Reply(int code, byte[] body) {
+      this.code = code;
+      this.body = body;
+    }
+
+    public Reply(int code, String body) {
+      this(code, utf8(body));
+    }
+  }
+
+  // Guarded by this.
+  public final HashMap<String, ServerCollection> collections = new HashMap<String, ServerCollection>();
+  protected final HashMap<String, Stats> stats = new HashMap<String, Stats>();
+  protected long lastTimestamp = 0;
+  protected long uploaded = 0;
 
   public MockWBOServer() {
-    collections = new HashMap<String, HashMap<String, String> >();
+    super();
+  }
+
+  protected static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return a timestamp for a write: now, rounded down to a hundredth of a
+   *         second, and later than any timestamp issued before.
+   */
+  protected synchronized long nextTimestamp() {
+    final long now = (System.currentTimeMillis() / 10) * 10;
+    lastTimestamp = Math.max(now, lastTimestamp + 10);
+    return lastTimestamp;
+  }
+
+  /**
+   * @return a timestamp for a read: no earlier than the last write.
+   */
+  protected synchronized long currentTimestamp() {
+    final long now = (System.currentTimeMillis() / 10) * 10;
+    return Math.max(now, lastTimestamp);
+  }
+
+  public synchronized Stats getStats(String collection) {
+    final Stats s = stats.get(collection);
+    return (s == null) ? new Stats() : s.copy();
+  }
+
+  public synchronized Stats getTotalStats() {
+    final Stats total = new Stats();
+    for (Stats s : stats.values()) {
+      total.requests += s.requests;
+      total.bytesIn += s.bytesIn;
+      total.bytesOut += s.bytesOut;
+    }
+    return total;
+  }
+
+  public synchronized void resetStats() {
+    stats.clear();
+  }
+
+  protected synchronized void recordStats(String collection, long bytesIn, long bytesOut) {
+    Stats s = stats.get(collection);
+    if (s == null) {
+      s = new Stats();
+      stats.put(collection, s);
+    }
+    s.requests += 1;
+    s.bytesIn += bytesIn;
+    s.bytesOut += bytesOut;
+  }
+
+  public synchronized int recordCount(String collection) {
+    final ServerCollection c = collections.get(collection);
+    return (c == null) ? 0 : c.wbos.size();
+  }
+
+  public synchronized WBO getWBO(String collection, String id) {
+    final ServerCollection c = collections.get(collection);
+    return (c == null) ? null : c.wbos.get(id);
   }
 
   @Override
   public void handle(Request request, Response response) {
-    Path path = request.getPath();
-    path.getPath(0);
-    // TODO
+    String collection = INFO;
+    try {
+      final byte[] in = readBody(request);
+      final String path = request.getPath().getPath();
+
+      final Reply reply;
+      final int storage = path.indexOf("/storage");
+      final int info = path.indexOf("/info/");
+      if (storage >= 0) {
+        final String[] parts = splitPath(path.substring(storage + "/storage".length()));
+        if (parts.length > 0) {
+          collection = parts[0];
+        }
+        reply = handleStorage(request, parts, in);
+      } else if (info >= 0) {
+        reply = handleInfo(request, path.substring(info + "/info/".length()));
+      } else {
+        reply = new Reply(404, "0");
+      }
+      if (reply.timestamp < 0) {
+        reply.timestamp = currentTimestamp();
+      }
+
+      simulateTransfer(in.length + reply.body.length);
+
+      final PrintStream bodyStream = handleBasicHeaders(request, response, reply.code, reply.contentType, reply.timestamp);
+      for (Entry<String, String> header : reply.headers.entrySet()) {
+        response.set(header.getKey(), header.getValue());
+      }
+      bodyStream.write(reply.body, 0, reply.body.length);
+      bodyStream.close();
+
+      recordStats(collection, in.length, reply.body.length);
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Got exception handling request.", e);
+      try {
+        final PrintStream bodyStream = handleBasicHeaders(request, response, 500, CONTENT_TYPE_JSON, currentTimestamp());
+        bodyStream.println("0");
+        bodyStream.close();
+      } catch (IOException ex) {
+        Logger.error(LOG_TAG, "Couldn't send error response.", ex);
+      }
+    }
+  }
+
+  protected static String[] splitPath(String path) {
+    final ArrayList<String> parts = new ArrayList<String>();
+    for (String part : path.split("/")) {
+      if (part.length() > 0) {
+        parts.add(part);
+      }
+    }
+    return parts.toArray(new String[parts.size()]);
+  }
+
+  protected static byte[] readBody(Request request) throws IOException {
+    InputStream in = request.getInputStream();
+    if ("gzip".equalsIgnoreCase(request.getValue("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int read;
+    try {
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  protected void simulateTransfer(long bytes) throws InterruptedException {
+    long delay = latencyMillis;
+    final long bandwidth = bandwidthBytesPerSecond;
+    if (bandwidth > 0) {
+      delay += (bytes * 1000) / bandwidth;
+    }
+    if (delay > 0) {
+      Thread.sleep(delay);
+    }
+  }
+
+  protected static long headerTimestamp(Request request, String name) {
+    final String value = request.getValue(name);
+    if (value == null) {
+      return -1;
+    }
+    return Utils.decimalSecondsToMilliseconds(value);
+  }
+
+  protected Reply notModified(Request request, long modified) {
+    final long since = headerTimestamp(request, "X-If-Modified-Since");
+    if (since > 0 && modified <= since) {
+      return new Reply(304, new byte[0]);
+    }
+    return null;
+  }
+
+  protected Reply preconditionFailed(Request request, long modified) {
+    final long since = headerTimestamp(request, "X-If-Unmodified-Since");
+    if (since > 0 && modified > since) {
+      return new Reply(412, "0");
+    }
+    return null;
+  }
+
+  protected synchronized Reply handleInfo(Request request, String what) {
+    if (!"GET".equals(request.getMethod()) || !"collections".equals(what)) {
+      return new Reply(404, "0");
+    }
+    long modified = -1;
+    final StringBuilder body = new StringBuilder("{");
+    for (Entry<String, ServerCollection> entry : collections.entrySet()) {
+      final long collectionModified = entry.getValue().modified;
+      if (collectionModified < 0) {
+        continue;
+      }
+      modified = Math.max(modified, collectionModified);
+      if (body.length() > 1) {
+        body.append(",");
+      }
+      body.append(JSONValue.toJSONString(entry.getKey()));
+      body.append(":").append(Utils.millisecondsToDecimalSecondsString(collectionModified));
+    }
+    body.append("}");
+
+    final Reply unchanged = notModified(request, modified);
+    final Reply reply = (unchanged != null) ? unchanged : new Reply(200, body.toString());
+    reply.timestamp = currentTimestamp();
+    return reply;
+  }
+
+  protected Reply handleStorage(Request request, String[] parts, byte[] body) throws Exception {
+    final long retryAfter = retryAfterSeconds;
+    if (retryAfter > 0) {
+      final Reply reply = new Reply(503, "\"server issue: unavailable\"");
+      reply.headers.put("Retry-After", Long.toString(retryAfter));
+      return reply;
+    }
+
+    final Reply reply;
+    synchronized (this) {
+      final String method = request.getMethod();
+      if (parts.length == 0) {
+        reply = "DELETE".equals(method) ? deleteStorage() : new Reply(405, "0");
+      } else if (parts.length == 1) {
+        if ("GET".equals(method)) {
+          reply = getCollection(request, parts[0]);
+        } else if ("POST".equals(method)) {
+          reply = postCollection(request, parts[0], body);
+        } else if ("DELETE".equals(method)) {
+          reply = deleteCollection(request, parts[0]);
+        } else {
+          reply = new Reply(405, "0");
+        }
+      } else if (parts.length == 2) {
+        if ("GET".equals(method)) {
+          reply = getWBO(request, parts[0], parts[1]);
+        } else if ("PUT".equals(method)) {
+          reply = putWBO(request, parts[0], parts[1], body);
+        } else if ("DELETE".equals(method)) {
+          reply = deleteWBO(request, parts[0], parts[1]);
+        } else {
+          reply = new Reply(405, "0");
+        }
+      } else {
+        reply = new Reply(404, "0");
+      }
+      if (reply.timestamp < 0) {
+        reply.timestamp = currentTimestamp();
+      }
+    }
+
+    final long backoff = weaveBackoffSeconds;
+    if (backoff > 0) {
+      reply.headers.put("X-Weave-Backoff", Long.toString(backoff));
+    }
+    return reply;
+  }
+
+  protected ServerCollection collection(String name) {
+    ServerCollection c = collections.get(name);
+    if (c == null) {
+      c = new ServerCollection();
+      collections.put(name, c);
+    }
+    return c;
+  }
+
+  protected Reply timestampReply(long timestamp) {
+    final Reply reply = new Reply(200, Utils.millisecondsToDecimalSecondsString(timestamp));
+    reply.timestamp = timestamp;
+    return reply;
+  }
+
+  protected Reply deleteStorage() {
+    collections.clear();
+    return timestampReply(nextTimestamp());
+  }
+
+  protected Reply getCollection(Request request, String name) {
+    final ServerCollection c = collections.get(name);
+    final long modified = (c == null) ? -1 : c.modified;
+    final Reply unchanged = notModified(request, modified);
+    if (unchanged != null) {
+      return unchanged;
+    }
+
+    final Query query = request.getQuery();
+    final boolean full = query.get("full") != null;
+    final String newerValue = query.get("newer");
+    final long newer = (newerValue == null) ? -1 : Utils.decimalSecondsToMilliseconds(newerValue);
+    final String limitValue = query.get("limit");
+    final int limit = (limitValue == null) ? -1 : Integer.parseInt(limitValue);
+    final String sort = query.get("sort");
+    final String idsValue = query.get("ids");
+    final Set<String> ids = (idsValue == null) ? null : new HashSet<String>(Arrays.asList(idsValue.split(",")));
+
+    final List<WBO> matching = new ArrayList<WBO>();
+    if (c != null) {
+      for (WBO wbo : c.wbos.values()) {
+        if (wbo.modified <= newer) {
+          continue;
+        }
+        if (ids != null && !ids.contains(wbo.id)) {
+          continue;
+        }
+        matching.add(wbo);
+      }
+    }
+    sortWBOs(matching, sort);
+    if (limit >= 0 && matching.size() > limit) {
+      matching.subList(limit, matching.size()).clear();
+    }
+
+    final boolean newlines = CONTENT_TYPE_NEWLINES.equals(request.getValue("Accept"));
+    int size = 2;
+    for (WBO wbo : matching) {
+      size += (full ? wbo.json.length : wbo.id.length() + 2) + 1;
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+    if (!newlines) {
+      out.write('[');
+    }
+    boolean first = true;
+    for (WBO wbo : matching) {
+      if (!newlines && !first) {
+        out.write(',');
+      }
+      first = false;
+      final byte[] item = full ? wbo.json : utf8(JSONValue.toJSONString(wbo.id));
+      out.write(item, 0, item.length);
+      if (newlines) {
+        out.write('\n');
+      }
+    }
+    if (!newlines) {
+      out.write(']');
+    }
+
+    final Reply reply = new Reply(200, out.toByteArray());
+    reply.contentType = newlines ? CONTENT_TYPE_NEWLINES : CONTENT_TYPE_JSON;
+    reply.headers.put("X-Weave-Records", Integer.toString(matching.size()));
+    return reply;
+  }
+
+  protected static void sortWBOs(List<WBO> wbos, String sort) {
+    if ("oldest".equals(sort)) {
+      Collections.sort(wbos, new Comparator<WBO>() {
+        @Override
+        public int compare(WBO a, WBO b) {
+          return Long.compare(a.modified, b.modified);
+        }
+      });
+    } else if ("newest".equals(sort)) {
+      Collections.sort(wbos, new Comparator<WBO>() {
+        @Override
+        public int compare(WBO a, WBO b) {
+          return Long.compare(b.modified, a.modified);
+        }
+      });
+    } else if ("index".equals(sort)) {
+      Collections.sort(wbos, new Comparator<WBO>() {
+        @Override
+        public int compare(WBO a, WBO b) {
+          return Long.compare(b.sortindex, a.sortindex);
+        }
+      });
+    }
+  }
+
+  protected static long sortindex(Map<?, ?> object) {
+    final Object value = object.get("sortindex");
+    return (value instanceof Number) ? ((Number) value).longValue() : 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  protected Reply postCollection(Request request, String name, byte[] body) throws Exception {
+    final ServerCollection c = collection(name);
+    final Reply conflict = preconditionFailed(request, c.modified);
+    if (conflict != null) {
+      return conflict;
+    }
+
+    final JSONArray records = ExtendedJSONObject.parseJSONArray(new String(body, "UTF-8"));
+    final long modified = nextTimestamp();
+    final JSONArray success = new JSONArray();
+    final JSONObject failed = new JSONObject();
+    final int failEvery = this.failEvery;
+
+    for (Object o : records) {
+      if (!(o instanceof Map)) {
+        continue;
+      }
+      final Map<?, ?> record = (Map<?, ?>) o;
+      final Object id = record.get("id");
+      final Object payload = record.get("payload");
+      if (!(id instanceof String) || !(payload instanceof String)) {
+        if (id instanceof String) {
+          failed.put(id, Collections.singletonList("invalid record"));
+        }
+        continue;
+      }
+      uploaded += 1;
+      if (failEvery > 0 && (uploaded % failEvery) == 0) {
+        failed.put(id, Collections.singletonList("simulated failure"));
+        continue;
+      }
+      c.wbos.put((String) id, new WBO((String) id, modified, sortindex(record), (String) payload));
+      success.add(id);
+    }
+    if (!success.isEmpty()) {
+      c.modified = modified;
+    }
+
+    final StringBuilder out = new StringBuilder();
+    out.append("{\"modified\":").append(Utils.millisecondsToDecimalSecondsString(modified));
+    out.append(",\"success\":").append(success.toJSONString());
+    out.append(",\"failed\":").append(failed.toJSONString());
+    out.append("}");
+    final Reply reply = new Reply(200, out.toString());
+    reply.timestamp = modified;
+    return reply;
+  }
+
+  protected Reply deleteCollection(Request request, String name) {
+    final ServerCollection c = collections.get(name);
+    final long modified = nextTimestamp();
+    if (c == null) {
+      return timestampReply(modified);
+    }
+    final String idsValue = request.getQuery().get("ids");
+    if (idsValue == null) {
+      collections.remove(name);
+      return timestampReply(modified);
+    }
+    final Set<String> ids = new HashSet<String>(Arrays.asList(idsValue.split(",")));
+    final Iterator<String> it = c.wbos.keySet().iterator();
+    while (it.hasNext()) {
+      if (ids.contains(it.next())) {
+        it.remove();
+      }
+    }
+    c.modified = modified;
+    return timestampReply(modified);
+  }
+
+  protected Reply getWBO(Request request, String name, String id) {
+    final ServerCollection c = collections.get(name);
+    final WBO wbo = (c == null) ? null : c.wbos.get(id);
+    if (wbo == null) {
+      return new Reply(404, "0");
+    }
+    final Reply unchanged = notModified(request, wbo.modified);
+    if (unchanged != null) {
+      return unchanged;
+    }
+    return new Reply(200, wbo.json);
+  }
+
+  protected Reply putWBO(Request request, String name, String id, byte[] body) throws Exception {
+    final ServerCollection c = collection(name);
+    final WBO existing = c.wbos.get(id);
+    final Reply conflict = preconditionFailed(request, (existing == null) ? -1 : existing.modified);
+    if (conflict != null) {
+      return conflict;
+    }
+
+    final ExtendedJSONObject record = ExtendedJSONObject.parseUTF8AsJSONObject(body);
+    final String payload = record.getString("payload");
+    if (payload == null) {
+      return new Reply(400, "8");
+    }
+    final long modified = nextTimestamp();
+    c.wbos.put(id, new WBO(id, modified, sortindex(record.object), payload));
+    c.modified = modified;
+    return timestampReply(modified);
+  }
+
+  protected Reply deleteWBO(Request request, String name, String id) {
+    final ServerCollection c = collections.get(name);
+    if (c == null || c.wbos.remove(id) == null) {
+      return new Reply(404, "0");
+    }
+    final long modified = nextTimestamp();
+    c.modified = modified;
+    return timestampReply(modified);
   }
 }
@@ -0,0 +1,247 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.test.helpers.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.json.simple.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockWBOServer;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.Utils;
+
+public class TestMockWBOServer {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String STORAGE_URL = "http://localhost:" + TEST_PORT + "/1.1/user/storage/";
+  private static final String INFO_URL    = "http://localhost:" + TEST_PORT + "/1.1/user/info/collections";
+
+  private HTTPServerTestHelper data;
+  private MockWBOServer server;
+
+  protected static class Result {
+    public int code;
+    public String body;
+    public HttpURLConnection connection;
+  }
+
+  @Before
+  public void setUp() {
+    data = new HTTPServerTestHelper();
+    server = new MockWBOServer();
+    data.startHTTPServer(server);
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  protected static Result request(String method, String url, String body, String... headers) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod(method);
+    for (int i = 0; i < headers.length; i += 2) {
+      connection.setRequestProperty(headers[i], headers[i + 1]);
+    }
+    if (body != null) {
+      connection.setDoOutput(true);
+      final OutputStream out = connection.getOutputStream();
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+    }
+
+    final Result result = new Result();
+    result.connection = connection;
+    result.code = connection.getResponseCode();
+    final InputStream in = (result.code >= 400) ? connection.getErrorStream() : connection.getInputStream();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (in != null) {
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, read);
+      }
+      in.close();
+    }
+    result.body = new String(bytes.toByteArray(), "UTF-8");
+    return result;
+  }
+
+  protected static String wbo(String id, int sortindex) {
+    return "{\"id\":\"" + id + "\",\"sortindex\":" + sortindex + ",\"payload\":\"{\\\"value\\\":\\\"" + id + "\\\"}\"}";
+  }
+
+  protected Result post(String collection, String... wbos) throws IOException {
+    final StringBuilder body = new StringBuilder("[");
+    for (int i = 0; i < wbos.length; ++i) {
+      body.append(i == 0 ? "" : ",").append(wbos[i]);
+    }
+    body.append("]");
+    return request("POST", STORAGE_URL + collection, body.toString());
+  }
+
+  protected static JSONArray array(Result result) throws Exception {
+    return ExtendedJSONObject.parseJSONArray(result.body);
+  }
+
+  @Test
+  public void testPostAndGet() throws Exception {
+    final Result first = post("history", wbo("aaaaaaaaaaaa", 1), wbo("bbbbbbbbbbbb", 3));
+    assertEquals(200, first.code);
+    final ExtendedJSONObject firstBody = ExtendedJSONObject.parseJSONObject(first.body);
+    assertEquals(2, firstBody.getArray("success").size());
+    assertEquals(0, firstBody.getObject("failed").object.size());
+    final long firstModified = firstBody.getTimestamp("modified");
+    assertEquals(firstModified, Utils.decimalSecondsToMilliseconds(first.connection.getHeaderField("X-Weave-Timestamp")));
+
+    final Result second = post("history", wbo("cccccccccccc", 2), "{\"id\":\"dddddddddddd\"}");
+    final ExtendedJSONObject secondBody = ExtendedJSONObject.parseJSONObject(second.body);
+    assertEquals(1, secondBody.getArray("success").size());
+    assertTrue(secondBody.getObject("failed").containsKey("dddddddddddd"));
+    assertTrue(secondBody.getTimestamp("modified") > firstModified);
+    assertEquals(3, server.recordCount("history"));
+
+    // IDs only, by default.
+    Result result = request("GET", STORAGE_URL + "history", null);
+    assertEquals(200, result.code);
+    assertEquals("3", result.connection.getHeaderField("X-Weave-Records"));
+    assertTrue(array(result).contains("aaaaaaaaaaaa"));
+
+    // Full records, newest first.
+    result = request("GET", STORAGE_URL + "history?full=1&sort=newest", null);
+    JSONArray records = array(result);
+    assertEquals(3, records.size());
+    ExtendedJSONObject record = new ExtendedJSONObject((org.json.simple.JSONObject) records.get(0));
+    assertEquals("cccccccccccc", record.getString("id"));
+    assertEquals("{\"value\":\"cccccccccccc\"}", record.getString("payload"));
+
+    // By sortindex, limited.
+    result = request("GET", STORAGE_URL + "history?sort=index&limit=2", null);
+    records = array(result);
+    assertEquals(2, records.size());
+    assertEquals("bbbbbbbbbbbb", records.get(0));
+    assertEquals("cccccccccccc", records.get(1));
+
+    // Newer than the first POST.
+    result = request("GET", STORAGE_URL + "history?newer=" + Utils.millisecondsToDecimalSecondsString(firstModified), null);
+    records = array(result);
+    assertEquals(1, records.size());
+    assertEquals("cccccccccccc", records.get(0));
+
+    // Selected IDs, one per line.
+    result = request("GET", STORAGE_URL + "history?full=1&sort=oldest&ids=aaaaaaaaaaaa,cccccccccccc", null, "Accept", "application/newlines");
+    final String[] lines = result.body.split("\n");
+    assertEquals(2, lines.length);
+    assertEquals("aaaaaaaaaaaa", ExtendedJSONObject.parseJSONObject(lines[0]).getString("id"));
+    assertEquals("cccccccccccc", ExtendedJSONObject.parseJSONObject(lines[1]).getString("id"));
+
+    final ExtendedJSONObject info = ExtendedJSONObject.parseJSONObject(request("GET", INFO_URL, null).body);
+    assertEquals(secondBody.getTimestamp("modified"), info.getTimestamp("history"));
+  }
+
+  @Test
+  public void testSingleRecords() throws Exception {
+    Result result = request("PUT", STORAGE_URL + "meta/global", wbo("global", 0));
+    assertEquals(200, result.code);
+    final long modified = Utils.decimalSecondsToMilliseconds(result.body);
+
+    result = request("GET", STORAGE_URL + "meta/global", null);
+    assertEquals(200, result.code);
+    assertEquals("global", ExtendedJSONObject.parseJSONObject(result.body).getString("id"));
+
+    assertEquals(404, request("GET", STORAGE_URL + "meta/fxa_credentials", null).code);
+    assertEquals(304, request("GET", STORAGE_URL + "meta/global", null,
+        "X-If-Modified-Since", Utils.millisecondsToDecimalSecondsString(modified)).code);
+    assertEquals(412, request("PUT", STORAGE_URL + "meta/global", wbo("global", 0),
+        "X-If-Unmodified-Since", Utils.millisecondsToDecimalSecondsString(modified - 10)).code);
+
+    assertEquals(200, request("DELETE", STORAGE_URL + "meta/global", null).code);
+    assertEquals(404, request("GET", STORAGE_URL + "meta/global", null).code);
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    post("forms", wbo("aaaaaaaaaaaa", 0), wbo("bbbbbbbbbbbb", 0));
+    post("history", wbo("cccccccccccc", 0));
+
+    assertEquals(200, request("DELETE", STORAGE_URL + "forms?ids=aaaaaaaaaaaa", null).code);
+    assertEquals(1, server.recordCount("forms"));
+    assertNull(server.getWBO("forms", "aaaaaaaaaaaa"));
+    assertNotNull(server.getWBO("forms", "bbbbbbbbbbbb"));
+
+    assertEquals(200, request("DELETE", "http://localhost:" + TEST_PORT + "/1.1/user/storage", null).code);
+    assertEquals(0, server.recordCount("forms"));
+    assertEquals(0, server.recordCount("history"));
+    assertEquals("{}", request("GET", INFO_URL, null).body);
+  }
+
+  @Test
+  public void testConditionalRequests() throws Exception {
+    final long modified = ExtendedJSONObject.parseJSONObject(post("history", wbo("aaaaaaaaaaaa", 0)).body).getTimestamp("modified");
+    final String since = Utils.millisecondsToDecimalSecondsString(modified);
+
+    assertEquals(304, request("GET", INFO_URL, null, "X-If-Modified-Since", since).code);
+    assertEquals(304, request("GET", STORAGE_URL + "history", null, "X-If-Modified-Since", since).code);
+    assertEquals(200, request("POST", STORAGE_URL + "history", "[" + wbo("bbbbbbbbbbbb", 0) + "]",
+        "X-If-Unmodified-Since", since).code);
+    assertEquals(412, request("POST", STORAGE_URL + "history", "[" + wbo("cccccccccccc", 0) + "]",
+        "X-If-Unmodified-Since", since).code);
+    assertEquals(200, request("GET", INFO_URL, null, "X-If-Modified-Since", since).code);
+  }
+
+  @Test
+  public void testUnhappyServer() throws Exception {
+    server.failEvery = 2;
+    final ExtendedJSONObject body = ExtendedJSONObject.parseJSONObject(
+        post("history", wbo("aaaaaaaaaaaa", 0), wbo("bbbbbbbbbbbb", 0), wbo("cccccccccccc", 0), wbo("dddddddddddd", 0)).body);
+    assertEquals(2, body.getArray("success").size());
+    assertEquals(2, body.getObject("failed").object.size());
+    assertTrue(body.getObject("failed").containsKey("bbbbbbbbbbbb"));
+    server.failEvery = 0;
+
+    server.weaveBackoffSeconds = 300;
+    Result result = request("GET", STORAGE_URL + "history", null);
+    assertEquals(200, result.code);
+    assertEquals("300", result.connection.getHeaderField("X-Weave-Backoff"));
+    server.weaveBackoffSeconds = 0;
+
+    server.retryAfterSeconds = 60;
+    result = request("GET", STORAGE_URL + "history", null);
+    assertEquals(503, result.code);
+    assertEquals("60", result.connection.getHeaderField("Retry-After"));
+    assertNotNull(result.connection.getHeaderField("X-Weave-Timestamp"));
+    server.retryAfterSeconds = 0;
+    assertFalse(request("GET", STORAGE_URL + "history", null).code == 503);
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    post("history", wbo("aaaaaaaaaaaa", 0));
+    request("GET", STORAGE_URL + "history?full=1", null);
+    request("GET", INFO_URL, null);
+
+    final MockWBOServer.Stats history = server.getStats("history");
+    assertEquals(2, history.requests);
+    assertTrue(history.bytesIn > 0);
+    assertTrue(history.bytesOut > 0);
+    assertEquals(1, server.getStats(MockWBOServer.INFO).requests);
+    assertEquals(3, server.getTotalStats().requests);
+
+    server.resetStats();
+    assertEquals(0, server.getTotalStats().requests);
+  }
+}
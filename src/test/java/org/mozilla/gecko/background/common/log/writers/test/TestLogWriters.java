@@ -15,6 +15,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.common.log.writers.AsyncLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LevelFilteringLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LogWriter;
 import org.mozilla.gecko.background.common.log.writers.PrintLogWriter;
@@ -174,4 +175,91 @@ public class TestLogWriters {
       Logger.stopLoggingTo(logWriter);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testFormat() {
+    assertEquals("a 1 b two c", Logger.format("a {} b {} c", 1, "two"));
+    assertEquals("no placeholders", Logger.format("no placeholders", 1));
+    assertEquals("x null {}", Logger.format("x {} {}", (Object) null));
+    assertEquals("{}", Logger.format("{}"));
+  }
+
+  @Test
+  public void testParameterizedMessagesAreLazy() {
+    final int[] formatted = new int[] { 0 };
+    final Object arg = new Object() {
+      @Override
+      public String toString() {
+        formatted[0]++;
+        return "ARG";
+      }
+    };
+
+    StringLogWriter lw = new StringLogWriter();
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.INFO, lw));
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.DEBUG));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.INFO));
+
+    Logger.trace(TEST_LOG_TAG_1, "trace {}", arg);
+    Logger.debug(TEST_LOG_TAG_1, "debug {} {}", arg, 5);
+    assertEquals(0, formatted[0]);
+
+    Logger.info(TEST_LOG_TAG_1, "info {} {}", arg, 5);
+    assertEquals(1, formatted[0]);
+    assertTrue(lw.toString().contains("info ARG 5"));
+    assertFalse(lw.toString().contains("debug"));
+
+    Logger.trace(TEST_LOG_TAG_1, "trace {} {}", 3L, 4L);
+    Logger.info(TEST_LOG_TAG_1, "info {} {}", 3L, 4L);
+    assertTrue(lw.toString().contains("info 3 4"));
+    assertFalse(lw.toString().contains("trace"));
+  }
+
+  @Test
+  public void testAsyncLogWriter() {
+    StringLogWriter lw = new StringLogWriter();
+    AsyncLogWriter async = new AsyncLogWriter(lw);
+    Logger.startLoggingTo(async);
+    for (int i = 0; i < 100; i++) {
+      Logger.info(TEST_LOG_TAG_1, "message {}", i);
+    }
+    // Writes everything buffered.
+    Logger.stopLoggingTo(async);
+
+    String[] lines = lw.toString().split("\n");
+    assertEquals(100, lines.length);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(TEST_LOG_TAG_1 + PrintLogWriter.INFO + "message " + i, lines[i]);
+    }
+  }
+
+  @Test
+  public void testAsyncLogWriterDropsWhenFull() throws InterruptedException {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final StringLogWriter lw = new StringLogWriter() {
+      @Override
+      public void info(String tag, String message, Throwable error) {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // Carry on.
+        }
+        super.info(tag, message, error);
+      }
+    };
+    AsyncLogWriter async = new AsyncLogWriter(lw, 2);
+    async.info(TEST_LOG_TAG_1, "first", null);
+    blocked.await();
+    for (int i = 0; i < 5; i++) {
+      async.info(TEST_LOG_TAG_1, "queued", null);
+    }
+    assertEquals(3, async.getDroppedCount());
+    release.countDown();
+    async.close();
+
+    String s = lw.toString();
+    assertTrue(s.contains("Dropped 3 log messages."));
+  }
+}
@@ -136,6 +136,22 @@ public class TestObsoleteDocumentTracker {
     assertEquals(expected, new HashSet<String>(tracker.getBatchOfObsoleteIds()));
   }
 
+  @Test
+  public void testNextObsoleteIdIsDeterministic() {
+    ExtendedJSONObject ids = new ExtendedJSONObject();
+    ids.put("id1", 2L);
+    ids.put("id2", 2L);
+    tracker.setObsoleteIds(ids);
+    assertEquals("id2", tracker.getNextObsoleteId());
+
+    // The order the IDs are stored in doesn't matter.
+    ids = new ExtendedJSONObject();
+    ids.put("id2", 2L);
+    ids.put("id1", 2L);
+    tracker.setObsoleteIds(ids);
+    assertEquals("id2", tracker.getNextObsoleteId());
+  }
+
   @Test
   public void testPairComparator() {
     // Make sure that malformed entries get sorted first.
@@ -0,0 +1,81 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Objects/sec for parsing and serializing <code>ExtendedJSONObject</code>,
+ * using a decrypted history record with a varying number of visits: the
+ * most common record we handle, and the one whose size varies most.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtendedJSONObjectBenchmark {
+  @Param({ "1", "20", "500" })
+  public int visits;
+
+  private String json;
+  private byte[] jsonBytes;
+  private ExtendedJSONObject object;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() throws Exception {
+    final JSONArray visitArray = new JSONArray();
+    for (int i = 0; i < visits; ++i) {
+      final ExtendedJSONObject visit = new ExtendedJSONObject();
+      visit.put("date", 1326254123650000L - i * 3600000000L);
+      visit.put("type", 1L);
+      visitArray.add(visit.object);
+    }
+    object = new ExtendedJSONObject();
+    object.put("id", "abcdefghijkl");
+    object.put("histUri", "https://developer.mozilla.org/en-US/docs/Mozilla/Projects/Sync");
+    object.put("title", "Sync \u2014 Mozilla | MDN");
+    object.put("visits", visitArray);
+
+    json = object.toJSONString();
+    jsonBytes = json.getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public ExtendedJSONObject parseString() throws Exception {
+    return ExtendedJSONObject.parseJSONObject(json);
+  }
+
+  @Benchmark
+  public ExtendedJSONObject parseUTF8() throws Exception {
+    return ExtendedJSONObject.parseUTF8AsJSONObject(jsonBytes);
+  }
+
+  @Benchmark
+  public String serialize() {
+    return object.toJSONString();
+  }
+
+  @Benchmark
+  public long parseAndGet() throws Exception {
+    final ExtendedJSONObject parsed = ExtendedJSONObject.parseUTF8AsJSONObject(jsonBytes);
+    return parsed.getString("histUri").length() + parsed.getArray("visits").size();
+  }
+}
@@ -0,0 +1,583 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockWBOServer;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.common.log.writers.LevelFilteringLogWriter;
+import org.mozilla.gecko.background.common.log.writers.PrintLogWriter;
+import org.mozilla.gecko.background.testhelpers.DefaultGlobalSessionCallback;
+import org.mozilla.gecko.background.testhelpers.MockPrefsGlobalSession;
+import org.mozilla.gecko.background.testhelpers.MockServerSyncStage;
+import org.mozilla.gecko.background.testhelpers.MockSharedPreferences;
+import org.mozilla.gecko.background.testhelpers.WBORepository;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.SyncConfiguration;
+import org.mozilla.gecko.sync.SyncConfigurationException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.delegates.GlobalSessionCallback;
+import org.mozilla.gecko.sync.metrics.Histogram;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
+import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
+import org.mozilla.gecko.sync.repositories.Repository;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.repositories.domain.VersionConstants;
+import org.mozilla.gecko.sync.stage.GlobalSyncStage;
+import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
+import org.mozilla.gecko.sync.stage.ServerSyncStage;
+
+import android.util.Log;
+
+/**
+ * Load test for whole syncs: real <code>GlobalSession</code>s, talking HTTP to
+ * an in-process <code>MockWBOServer</code>, syncing <code>WBORepository</code>
+ * local engines filled with synthetic records.
+ * <p>
+ * For each record count, one client uploads every engine's records to an
+ * empty server, and a second client downloads them (first sync). Then the
+ * first client changes 1% of its records and both sync again (steady state).
+ * Each engine syncs in its own session, and for each we report records
+ * synced, records/sec over the engine stage, bytes of the engine's
+ * collection sent and received, and peak heap.
+ * <p>
+ * Configure with system properties:
+ * <ul>
+ * <li><code>load.records</code>: comma-separated record counts per engine;
+ * default 1000,10000,100000.</li>
+ * <li><code>load.engines</code>: comma-separated engines, from history,
+ * bookmarks, passwords and forms; default all.</li>
+ * <li><code>load.latency</code>: server milliseconds per request; default 0.</li>
+ * <li><code>load.bandwidth</code>: server bytes/sec; default 0, unlimited.</li>
+ * </ul>
+ * Run it with the load profile:
+ *
+ * <pre>
+ *   mvn -pl android-sync-app -P load test -Dload.records=1000,10000
+ * </pre>
+ *
+ * Peak heap is the sum of the heap pools' peaks during the sync, so it's an
+ * upper bound; run with a fixed <code>-Xmx</code> to compare runs.
+ */
+public class SyncLoadSimulator {
+  public static final String LOG_TAG = "SyncLoadSimulator";
+
+  public static final String USERNAME = "loadtest";
+  public static final String PASSWORD = "password";
+  public static final String SYNC_KEY = "abcdeabcdeabcdeabcdeabcdea";
+
+  public static final String DEFAULT_RECORDS = "1000,10000,100000";
+  public static final String DEFAULT_ENGINES = "history,bookmarks,passwords,forms";
+
+  protected static final long SYNC_TIMEOUT_MINUTES = 30;
+
+  /**
+   * An engine, and how to make its synthetic records.
+   */
+  public static enum Engine {
+    history(VersionConstants.HISTORY_ENGINE_VERSION) {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Record createRecord(String guid, int i, int generation, long lastModified) {
+        final HistoryRecord record = new HistoryRecord(guid, name(), lastModified, false);
+        record.histURI = "https://example.com/" + i + "/page.html";
+        record.title = "Example page " + i + " (" + generation + ")";
+        record.visits = new JSONArray();
+        // Three visits, as a rough average.
+        for (int v = 0; v < 3 + generation; ++v) {
+          final JSONObject visit = new JSONObject();
+          visit.put("date", (lastModified - v * 3600000L) * 1000L);
+          visit.put("type", 1L);
+          record.visits.add(visit);
+        }
+        return record;
+      }
+
+      @Override
+      public RecordFactory createRecordFactory() {
+        return new HistoryRecordFactory();
+      }
+    },
+
+    bookmarks(VersionConstants.BOOKMARKS_ENGINE_VERSION) {
+      @Override
+      public Record createRecord(String guid, int i, int generation, long lastModified) {
+        final BookmarkRecord record = new BookmarkRecord(guid, name(), lastModified, false);
+        record.type = "bookmark";
+        record.title = "Bookmark " + i + " (" + generation + ")";
+        record.bookmarkURI = "https://example.com/" + i + "/";
+        record.description = "Synthetic bookmark " + i;
+        record.parentID = "unfiled";
+        record.parentName = "Unsorted Bookmarks";
+        record.tags = new JSONArray();
+        return record;
+      }
+
+      @Override
+      public RecordFactory createRecordFactory() {
+        return new BookmarkRecordFactory();
+      }
+    },
+
+    passwords(VersionConstants.PASSWORDS_ENGINE_VERSION) {
+      @Override
+      public Record createRecord(String guid, int i, int generation, long lastModified) {
+        final PasswordRecord record = new PasswordRecord(guid, name(), lastModified, false);
+        record.hostname = "https://accounts" + i + ".example.com";
+        record.formSubmitURL = record.hostname + "/login";
+        record.encryptedUsername = "user" + i + "@example.com";
+        record.encryptedPassword = "password " + i + " (" + generation + ")";
+        record.usernameField = "email";
+        record.passwordField = "password";
+        record.timeCreated = lastModified;
+        record.timePasswordChanged = lastModified;
+        return record;
+      }
+
+      @Override
+      public RecordFactory createRecordFactory() {
+        return new PasswordRecordFactory();
+      }
+    },
+
+    forms(VersionConstants.FORMS_ENGINE_VERSION) {
+      @Override
+      public Record createRecord(String guid, int i, int generation, long lastModified) {
+        final FormHistoryRecord record = new FormHistoryRecord(guid, name(), lastModified, false);
+        record.fieldName = "search" + (i % 10);
+        record.fieldValue = "query " + i + " (" + generation + ")";
+        return record;
+      }
+
+      @Override
+      public RecordFactory createRecordFactory() {
+        return new RecordFactory() {
+          @Override
+          public Record createRecord(Record record) {
+            final FormHistoryRecord r = new FormHistoryRecord();
+            r.initFromEnvelope((CryptoRecord) record);
+            return r;
+          }
+        };
+      }
+    };
+
+    public final int version;
+
+    private Engine(int version) {
+      this.version = version;
+    }
+
+    public abstract Record createRecord(String guid, int i, int generation, long lastModified);
+    public abstract RecordFactory createRecordFactory();
+
+    public String guid(int i) {
+      // Twelve characters, unique across engines.
+      return String.format("%s%09d", name().substring(0, 3), i);
+    }
+  }
+
+  /**
+   * A local engine that remembers which records it stored during a sync, so
+   * that they aren't uploaded straight back, as the Android repositories do.
+   */
+  public static class EngineRepository extends WBORepository {
+    @Override
+    public synchronized boolean shouldTrack() {
+      return true;
+    }
+  }
+
+  /**
+   * Syncs an <code>Engine</code> with an <code>EngineRepository</code>.
+   */
+  public static class LocalEngineStage extends ServerSyncStage {
+    protected final Engine engine;
+    protected final EngineRepository repository;
+
+    public LocalEngineStage(Engine engine, EngineRepository repository) {
+      this.engine = engine;
+      this.repository = repository;
+    }
+
+    @Override
+    protected String getCollection() {
+      return engine.name();
+    }
+
+    @Override
+    protected String getEngineName() {
+      return engine.name();
+    }
+
+    @Override
+    public Integer getStorageVersion() {
+      return engine.version;
+    }
+
+    @Override
+    protected Repository getLocalRepository() {
+      return repository;
+    }
+
+    @Override
+    protected RecordFactory getRecordFactory() {
+      return engine.createRecordFactory();
+    }
+  }
+
+  /**
+   * A real sync, except that the clients engine and every engine stage do
+   * nothing; the engines to sync are added with <code>withStage</code>.
+   * <p>
+   * Engines that aren't syncing must not be present at all: an engine whose
+   * syncID differs from meta/global's syncs even if it isn't in
+   * <code>stagesToSync</code>.
+   */
+  public static class LoadGlobalSession extends MockPrefsGlobalSession {
+    public LoadGlobalSession(SyncConfiguration config, GlobalSessionCallback callback)
+        throws SyncConfigurationException, IllegalArgumentException, IOException,
+        ParseException, NonObjectJSONException {
+      super(config, callback, null, null);
+    }
+
+    @Override
+    protected void prepareStages() {
+      super.prepareStages();
+      final Map<Stage, GlobalSyncStage> newStages = new EnumMap<Stage, GlobalSyncStage>(this.stages);
+      newStages.put(Stage.syncClientsEngine, new MockServerSyncStage());
+      for (Engine engine : Engine.values()) {
+        // Stands in for the engine when it isn't syncing, but still
+        // contributes the right version to a fresh meta/global.
+        final MockServerSyncStage stage = new MockServerSyncStage();
+        stage.name = engine.name();
+        stage.collection = engine.name();
+        stage.version = engine.version;
+        newStages.put(Stage.byName(engine.name()), stage);
+      }
+      newStages.put(Stage.syncTabs, new MockServerSyncStage());
+      this.stages = newStages;
+    }
+
+    public LoadGlobalSession withStage(Stage stage, GlobalSyncStage syncStage) {
+      stages.put(stage, syncStage);
+      return this;
+    }
+  }
+
+  protected static class LoadCallback extends DefaultGlobalSessionCallback {
+    protected final CountDownLatch done = new CountDownLatch(1);
+    protected volatile boolean succeeded = false;
+    protected volatile String failure = null;
+
+    @Override
+    public void handleSuccess(GlobalSession globalSession) {
+      succeeded = true;
+      done.countDown();
+    }
+
+    @Override
+    public void handleError(GlobalSession globalSession, Exception ex) {
+      failure = "error: " + ex;
+      done.countDown();
+    }
+
+    @Override
+    public void handleAborted(GlobalSession globalSession, String reason) {
+      failure = "aborted: " + reason;
+      done.countDown();
+    }
+
+    @Override
+    public void requestBackoff(long backoff) {
+      Logger.warn(LOG_TAG, "Server requested backoff of " + backoff + "ms.");
+    }
+  }
+
+  /**
+   * One engine's sync.
+   */
+  public static class EngineRun {
+    public final String phase;
+    public final Engine engine;
+    public final long records;
+    public final long stageMillis;
+    public final long bytesUp;
+    public final long bytesDown;
+    public final long requests;
+    public final long peakHeapBytes;
+    public final String failure;
+
+    public EngineRun(String phase, Engine engine, long records, long stageMillis,
+                     long bytesUp, long bytesDown, long requests, long peakHeapBytes, String failure) {
+      this.phase = phase;
+      this.engine = engine;
+      this.records = records;
+      this.stageMillis = stageMillis;
+      this.bytesUp = bytesUp;
+      this.bytesDown = bytesDown;
+      this.requests = requests;
+      this.peakHeapBytes = peakHeapBytes;
+      this.failure = failure;
+    }
+
+    public double recordsPerSecond() {
+      return (stageMillis <= 0) ? 0 : (records * 1000.0) / stageMillis;
+    }
+  }
+
+  /**
+   * A device: its preferences, which persist between syncs, and its local
+   * engines.
+   */
+  public static class SimulatedClient {
+    protected final MockSharedPreferences prefs = new MockSharedPreferences();
+    protected final KeyBundle syncKeyBundle;
+    public final Map<Engine, EngineRepository> repositories = new EnumMap<Engine, EngineRepository>(Engine.class);
+
+    public SimulatedClient(Collection<Engine> engines) throws Exception {
+      syncKeyBundle = new KeyBundle(USERNAME, SYNC_KEY);
+      for (Engine engine : engines) {
+        repositories.put(engine, new EngineRepository());
+      }
+    }
+
+    /**
+     * Create <code>count</code> records in each engine, or replace the first
+     * <code>count</code> with changed records.
+     */
+    public void populate(int count, int generation, long lastModified) {
+      for (Entry<Engine, EngineRepository> entry : repositories.entrySet()) {
+        final Engine engine = entry.getKey();
+        for (int i = 0; i < count; ++i) {
+          final String guid = engine.guid(i);
+          entry.getValue().wbos.put(guid, engine.createRecord(guid, i, generation, lastModified));
+        }
+      }
+    }
+
+    /**
+     * Sync <code>engines</code>, which may be empty, to the server at
+     * <code>clusterURL</code>.
+     *
+     * @return the finished session's metrics.
+     */
+    public SyncMetrics sync(URI clusterURL, Collection<Engine> engines) throws Exception {
+      final SyncConfiguration config = new SyncConfiguration(USERNAME, new BasicAuthHeaderProvider(USERNAME, PASSWORD), prefs, syncKeyBundle);
+      config.setClusterURL(clusterURL);
+      final List<String> names = new ArrayList<String>();
+      for (Engine engine : engines) {
+        names.add(engine.name());
+      }
+      config.stagesToSync = names;
+
+      final LoadCallback callback = new LoadCallback();
+      final LoadGlobalSession session = new LoadGlobalSession(config, callback);
+      for (Engine engine : engines) {
+        session.withStage(Stage.byName(engine.name()), new LocalEngineStage(engine, repositories.get(engine)));
+      }
+      session.start();
+      if (!callback.done.await(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("Sync didn't finish in " + SYNC_TIMEOUT_MINUTES + " minutes.");
+      }
+      if (!callback.succeeded) {
+        throw new SyncFailedException(callback.failure, session.getMetrics());
+      }
+      return session.getMetrics();
+    }
+  }
+
+  public static class SyncFailedException extends Exception {
+    private static final long serialVersionUID = -2592286387419418932L;
+
+    public final SyncMetrics metrics;
+
+    public SyncFailedException(String message, SyncMetrics metrics) {
+      super(message);
+      this.metrics = metrics;
+    }
+  }
+
+  protected final MockWBOServer server;
+  protected final URI clusterURL;
+  protected final List<Engine> engines;
+  protected final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+  public SyncLoadSimulator(MockWBOServer server, int port, List<Engine> engines) throws Exception {
+    this.server = server;
+    this.clusterURL = new URI("http://localhost:" + port + "/1.1/" + USERNAME);
+    this.engines = engines;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPools.add(pool);
+      }
+    }
+  }
+
+  protected void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : heapPools) {
+      pool.resetPeakUsage();
+    }
+  }
+
+  protected long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : heapPools) {
+      peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  /**
+   * Sync one engine of <code>client</code>, measuring it.
+   */
+  public EngineRun syncEngine(String phase, SimulatedClient client, Engine engine) throws Exception {
+    server.resetStats();
+    resetPeakHeap();
+
+    SyncMetrics metrics;
+    String failure = null;
+    try {
+      metrics = client.sync(clusterURL, Collections.singletonList(engine));
+    } catch (SyncFailedException e) {
+      metrics = e.metrics;
+      failure = e.getMessage();
+    }
+
+    final SyncMetrics engineMetrics = metrics.scope(engine.name());
+    final long records = engineMetrics.getCount("inbound.stored") + engineMetrics.getCount("outbound.stored");
+    final Histogram stage = engineMetrics.getHistogram("stage.millis");
+    final long stageMillis = (stage == null) ? -1 : stage.getMax();
+    final MockWBOServer.Stats stats = server.getStats(engine.name());
+    return new EngineRun(phase, engine, records, stageMillis, stats.bytesIn, stats.bytesOut,
+                         stats.requests, peakHeap(), failure);
+  }
+
+  /**
+   * First sync and steady state for <code>count</code> records per engine,
+   * starting from an empty server.
+   */
+  public List<EngineRun> run(int count) throws Exception {
+    final List<EngineRun> runs = new ArrayList<EngineRun>();
+
+    final SimulatedClient uploader = new SimulatedClient(engines);
+    final SimulatedClient downloader = new SimulatedClient(engines);
+    uploader.populate(count, 0, System.currentTimeMillis() - 60 * 1000);
+
+    // Nothing on the server yet: this wipes it and uploads meta/global and
+    // crypto/keys.
+    uploader.sync(clusterURL, Collections.<Engine>emptyList());
+
+    for (Engine engine : engines) {
+      runs.add(syncEngine("first upload", uploader, engine));
+    }
+    for (Engine engine : engines) {
+      runs.add(syncEngine("first download", downloader, engine));
+    }
+
+    Thread.sleep(10);
+    uploader.populate(Math.max(1, count / 100), 1, System.currentTimeMillis());
+    for (Engine engine : engines) {
+      runs.add(syncEngine("steady upload", uploader, engine));
+    }
+    for (Engine engine : engines) {
+      runs.add(syncEngine("steady download", downloader, engine));
+    }
+
+    for (Engine engine : engines) {
+      final int local = downloader.repositories.get(engine).wbos.size();
+      if (local != count) {
+        Logger.warn(LOG_TAG, "Downloader has " + local + " " + engine + " records; expected " + count + ".");
+      }
+    }
+    return runs;
+  }
+
+  public static void printHeader(PrintStream out) {
+    out.println(String.format("%8s  %-16s %-10s %8s %10s %10s %10s %10s %8s %9s",
+        "count", "phase", "engine", "records", "stage ms", "records/s", "KB up", "KB down", "requests", "heap MB"));
+  }
+
+  public static void print(PrintStream out, int count, EngineRun run) {
+    out.println(String.format("%8d  %-16s %-10s %8d %10d %10.0f %10d %10d %8d %9d%s",
+        count, run.phase, run.engine.name(), run.records, run.stageMillis, run.recordsPerSecond(),
+        run.bytesUp / 1024, run.bytesDown / 1024, run.requests, run.peakHeapBytes / (1024 * 1024),
+        (run.failure == null) ? "" : "  FAILED: " + run.failure));
+  }
+
+  protected static List<Engine> parseEngines(String value) {
+    final List<Engine> engines = new ArrayList<Engine>();
+    for (String name : value.split(",")) {
+      engines.add(Engine.valueOf(name.trim()));
+    }
+    return engines;
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Debug logging would dominate the measurements.
+    Logger.stopLoggingToAll();
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.WARN, new PrintLogWriter(new PrintWriter(System.err, true))));
+
+    final List<Engine> engines = parseEngines(System.getProperty("load.engines", DEFAULT_ENGINES));
+    final String[] counts = System.getProperty("load.records", DEFAULT_RECORDS).split(",");
+
+    final PrintStream out = System.out;
+    printHeader(out);
+    int exitCode = 0;
+    for (String value : counts) {
+      final int count = Integer.parseInt(value.trim());
+
+      final MockWBOServer server = new MockWBOServer();
+      server.latencyMillis = Long.parseLong(System.getProperty("load.latency", "0"));
+      server.bandwidthBytesPerSecond = Long.parseLong(System.getProperty("load.bandwidth", "0"));
+
+      final HTTPServerTestHelper helper = new HTTPServerTestHelper();
+      helper.startHTTPServer(server);
+      try {
+        final SyncLoadSimulator simulator = new SyncLoadSimulator(server, helper.port, engines);
+        for (EngineRun run : simulator.run(count)) {
+          print(out, count, run);
+          if (run.failure != null) {
+            exitCode = 1;
+          }
+        }
+      } finally {
+        helper.stopHTTPServer();
+      }
+    }
+    // Repository sessions leave idle executor threads behind.
+    System.exit(exitCode);
+  }
+}
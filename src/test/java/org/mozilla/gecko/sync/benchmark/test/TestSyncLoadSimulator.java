@@ -0,0 +1,65 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmark.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockWBOServer;
+import org.mozilla.gecko.sync.benchmark.SyncLoadSimulator;
+import org.mozilla.gecko.sync.benchmark.SyncLoadSimulator.Engine;
+import org.mozilla.gecko.sync.benchmark.SyncLoadSimulator.EngineRun;
+
+public class TestSyncLoadSimulator {
+  private static final int RECORDS = 150;
+
+  private HTTPServerTestHelper data;
+  private MockWBOServer server;
+
+  @Before
+  public void setUp() {
+    data = new HTTPServerTestHelper();
+    server = new MockWBOServer();
+    data.startHTTPServer(server);
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  @Test
+  public void testFirstAndSteadyStateSyncs() throws Exception {
+    final List<Engine> engines = Arrays.asList(Engine.values());
+    final SyncLoadSimulator simulator = new SyncLoadSimulator(server, data.port, engines);
+    final List<EngineRun> runs = simulator.run(RECORDS);
+
+    assertEquals(4 * engines.size(), runs.size());
+    for (EngineRun run : runs) {
+      assertNull(run.phase + " " + run.engine, run.failure);
+      if (run.phase.startsWith("first")) {
+        assertEquals(run.phase + " " + run.engine, RECORDS, run.records);
+      } else {
+        // 1% of the records changed.
+        assertEquals(run.phase + " " + run.engine, 1, run.records);
+      }
+      if (run.phase.endsWith("upload")) {
+        assertTrue(run.bytesUp > 0);
+      } else {
+        assertTrue(run.bytesDown > 0);
+      }
+    }
+    for (Engine engine : engines) {
+      assertEquals(RECORDS, server.recordCount(engine.name()));
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.crypto.Base64Decoder;
+import org.mozilla.gecko.sync.crypto.Base64Encoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations/sec for the shaded commons-codec <code>Base64</code>, which
+ * encodes every ciphertext we upload and decodes keys and IVs, compared with
+ * <code>Base64Encoder</code> and <code>Base64Decoder</code> working in
+ * reused buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+  @Param({ "16", "2048", "65536" })
+  public int size;
+
+  private byte[] bytes;
+  private byte[] encoded;
+  private byte[] decoded;
+  private byte[] encodeBuffer;
+
+  @Setup
+  public void setUp() throws Exception {
+    bytes = new byte[size];
+    new Random(0).nextBytes(bytes);
+    encoded = Base64.encodeBase64(bytes);
+    decoded = new byte[Base64Decoder.maxDecodedLength(encoded.length)];
+    encodeBuffer = new byte[Base64Encoder.encodedLength(size)];
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return Base64.encodeBase64(bytes);
+  }
+
+  @Benchmark
+  public int encodeIntoBuffer() {
+    return Base64Encoder.encode(bytes, 0, bytes.length, encodeBuffer, 0);
+  }
+
+  @Benchmark
+  public String encodeString() {
+    return Base64.encodeBase64String(bytes);
+  }
+
+  @Benchmark
+  public byte[] decode() {
+    return Base64.decodeBase64(encoded);
+  }
+
+  @Benchmark
+  public int decodeIntoBuffer() {
+    return Base64Decoder.decode(encoded, 0, encoded.length, decoded, 0);
+  }
+}
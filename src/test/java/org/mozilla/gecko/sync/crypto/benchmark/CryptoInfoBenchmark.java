@@ -0,0 +1,93 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.benchmark;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records/sec for a full Crypto5 encrypt (AES-CBC + HMAC) and decrypt
+ * (HMAC verify + AES-CBC), comparing the per-thread cached
+ * <code>CryptoEngine</code> path used by <code>CryptoInfo</code> against the
+ * previous behaviour of looking up and initializing fresh JCE objects for
+ * every record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoInfoBenchmark {
+  @Param({ "200", "2048", "65536" })
+  public int payloadSize;
+
+  private KeyBundle keys;
+  private byte[] plaintext;
+  private byte[] ciphertext;
+  private byte[] iv;
+  private byte[] hmac;
+
+  @Setup
+  public void setUp() throws Exception {
+    keys = KeyBundle.withRandomKeys();
+    plaintext = new byte[payloadSize];
+    new SecureRandom().nextBytes(plaintext);
+
+    CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, keys);
+    ciphertext = encrypted.getMessage();
+    iv = encrypted.getIV();
+    hmac = encrypted.getHMAC();
+  }
+
+  @Benchmark
+  public byte[] encryptCached() throws Exception {
+    return CryptoInfo.encrypt(plaintext, iv, keys).getMessage();
+  }
+
+  @Benchmark
+  public byte[] decryptCached() throws Exception {
+    return CryptoInfo.decrypt(ciphertext, iv, hmac, keys).getMessage();
+  }
+
+  @Benchmark
+  public byte[] encryptUncached() throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), "AES"), new IvParameterSpec(iv));
+    byte[] encrypted = cipher.doFinal(plaintext);
+    Mac hasher = HKDF.makeHMACHasher(keys.getHMACKey());
+    hasher.doFinal(Base64.encodeBase64(encrypted));
+    return encrypted;
+  }
+
+  @Benchmark
+  public byte[] decryptUncached() throws Exception {
+    Mac hasher = HKDF.makeHMACHasher(keys.getHMACKey());
+    hasher.doFinal(Base64.encodeBase64(ciphertext));
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), "AES"), new IvParameterSpec(iv));
+    return cipher.doFinal(ciphertext);
+  }
+}
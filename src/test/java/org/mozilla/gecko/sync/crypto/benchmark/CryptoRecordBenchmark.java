@@ -0,0 +1,135 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records/sec for the Crypto5 record path, from wire-format WBO to cleartext
+ * bytes and back. The <code>parse</code> benchmarks measure just
+ * <code>CryptoRecord.fromJSONRecord</code>.
+ * <p>
+ * The <code>legacy</code> benchmarks reproduce the previous behaviour:
+ * base64-decode the ciphertext, then re-encode it to compute the HMAC; and on
+ * the way out, encode once for the HMAC and again for the payload. The
+ * <code>current</code> benchmarks use <code>CryptoRecord</code> as it stands,
+ * which HMACs the base64 text it already has and decodes it once into a
+ * reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoRecordBenchmark {
+  @Param({ "200", "2048", "65536" })
+  public int payloadSize;
+
+  private KeyBundle keys;
+  private byte[] cleartext;
+  private ExtendedJSONObject cleartextPayload;
+  private byte[] wbo;
+  private String ciphertext64;
+  private String iv64;
+  private String hmac16;
+
+  @Setup
+  public void setUp() throws Exception {
+    keys = KeyBundle.withRandomKeys();
+
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < payloadSize; ++i) {
+      title.append((char) ('a' + (i % 26)));
+    }
+    cleartextPayload = new ExtendedJSONObject();
+    cleartextPayload.put("id", "abcdefghijkl");
+    cleartextPayload.put("title", title.toString());
+    cleartext = cleartextPayload.toJSONString().getBytes("UTF-8");
+
+    CryptoRecord record = new CryptoRecord(cleartextPayload);
+    record.guid = "abcdefghijkl";
+    record.keyBundle = keys;
+    record.encrypt();
+    ciphertext64 = (String) record.payload.get("ciphertext");
+    iv64 = (String) record.payload.get("IV");
+    hmac16 = (String) record.payload.get("hmac");
+
+    ExtendedJSONObject envelope = new ExtendedJSONObject(record.toJSONObject());
+    envelope.put("modified", 1326254123.65);
+    envelope.put("sortindex", 100L);
+    wbo = envelope.toJSONString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public Object parseLegacy() throws Exception {
+    return CryptoRecord.fromJSONRecord(new String(wbo, "UTF-8"));
+  }
+
+  @Benchmark
+  public Object parseCurrent() throws Exception {
+    return CryptoRecord.fromJSONRecord(wbo, 0, wbo.length);
+  }
+
+  @Benchmark
+  public Object decryptLegacy() throws Exception {
+    CryptoRecord record = CryptoRecord.fromJSONRecord(new String(wbo, "UTF-8"));
+    byte[] ciphertext = Base64.decodeBase64(((String) record.payload.get("ciphertext")).getBytes("UTF-8"));
+    byte[] iv = Base64.decodeBase64(((String) record.payload.get("IV")).getBytes("UTF-8"));
+    byte[] hmac = Utils.hex2Byte((String) record.payload.get("hmac"));
+    // CryptoInfo.decrypt re-encodes ciphertext to check the HMAC.
+    return ExtendedJSONObject.parseUTF8AsJSONObject(CryptoInfo.decrypt(ciphertext, iv, hmac, keys).getMessage());
+  }
+
+  @Benchmark
+  public Object decryptCurrent() throws Exception {
+    CryptoRecord record = CryptoRecord.fromJSONRecord(wbo, 0, wbo.length);
+    record.keyBundle = keys;
+    return record.decrypt().payload;
+  }
+
+  @Benchmark
+  public byte[] decryptOnlyLegacy() throws Exception {
+    byte[] ciphertext = Base64.decodeBase64(ciphertext64.getBytes("UTF-8"));
+    byte[] iv = Base64.decodeBase64(iv64.getBytes("UTF-8"));
+    return CryptoInfo.decrypt(ciphertext, iv, Utils.hex2Byte(hmac16), keys).getMessage();
+  }
+
+  @Benchmark
+  public byte[] decryptOnlyCurrent() throws Exception {
+    byte[] ciphertext = ciphertext64.getBytes("UTF-8");
+    byte[] iv = Base64.decodeBase64(iv64.getBytes("UTF-8"));
+    return CryptoInfo.decryptEncoded(ciphertext, 0, ciphertext.length, iv, Utils.hex2Byte(hmac16), keys).getMessage();
+  }
+
+  @Benchmark
+  public String encryptLegacy() throws Exception {
+    CryptoInfo info = CryptoInfo.encrypt(cleartext, keys);
+    return new String(Base64.encodeBase64(info.getMessage()));
+  }
+
+  @Benchmark
+  public String encryptCurrent() throws Exception {
+    CryptoInfo info = CryptoInfo.encrypt(cleartext, keys);
+    return new String(info.getEncodedMessage(), "UTF-8");
+  }
+}
@@ -0,0 +1,61 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.PBKDF2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Derivations/sec for HKDF, which turns a sync key into the key bundle
+ * for each collection, and PBKDF2, which stretches a Firefox Account
+ * password.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+  @Param({ "1000" })
+  public int iterations;
+
+  private byte[] secret;
+  private byte[] salt;
+  private byte[] info;
+
+  @Setup
+  public void setUp() throws Exception {
+    final Random random = new Random(0);
+    secret = new byte[32];
+    salt = new byte[32];
+    random.nextBytes(secret);
+    random.nextBytes(salt);
+    info = HKDF.bytes("identity.mozilla.com/picl/v1/oldsync");
+  }
+
+  @Benchmark
+  public byte[] hkdf() throws Exception {
+    return HKDF.derive(secret, salt, info, 2 * 32);
+  }
+
+  @Benchmark
+  public byte[] pbkdf2() throws Exception {
+    return PBKDF2.pbkdf2SHA256(secret, salt, iterations, 32);
+  }
+}
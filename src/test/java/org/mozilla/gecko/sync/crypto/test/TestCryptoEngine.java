@@ -0,0 +1,72 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.crypto.CryptoEngine;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+
+public class TestCryptoEngine {
+  @Test
+  public void testEngineIsPerThread() throws Exception {
+    final KeyBundle kb = KeyBundle.withRandomKeys();
+    final CryptoEngine engine = CryptoEngine.forKeyBundle(kb);
+    assertSame(engine, CryptoEngine.forKeyBundle(kb));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CryptoEngine other = executor.submit(new Callable<CryptoEngine>() {
+        @Override
+        public CryptoEngine call() throws Exception {
+          return CryptoEngine.forKeyBundle(kb);
+        }
+      }).get();
+      assertNotSame(engine, other);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testHMACMatchesFreshHasher() throws Exception {
+    final byte[] input = "some ciphertext".getBytes("UTF-8");
+    final KeyBundle kb1 = KeyBundle.withRandomKeys();
+    final KeyBundle kb2 = KeyBundle.withRandomKeys();
+
+    // Alternate between bundles to exercise re-keying the cached Mac.
+    for (KeyBundle kb : new KeyBundle[] { kb1, kb2, kb1 }) {
+      byte[] expected = HKDF.makeHMACHasher(kb.getHMACKey()).doFinal(input);
+      assertArrayEquals(expected, CryptoEngine.forKeyBundle(kb).hmac(input));
+      assertArrayEquals(expected, CryptoEngine.forKeyBundle(kb).hmac(input, 0, input.length));
+    }
+  }
+
+  @Test
+  public void testRoundTripAcrossBundles() throws Exception {
+    final byte[] plaintext = "plaintext".getBytes("UTF-8");
+    final KeyBundle kb1 = KeyBundle.withRandomKeys();
+    final KeyBundle kb2 = KeyBundle.withRandomKeys();
+
+    CryptoInfo info1 = CryptoInfo.encrypt(plaintext, kb1);
+    CryptoInfo info2 = CryptoInfo.encrypt(plaintext, kb2);
+    assertFalse(Arrays.equals(info1.getMessage(), info2.getMessage()));
+
+    info1.decrypt();
+    info2.decrypt();
+    assertArrayEquals(plaintext, info1.getMessage());
+    assertArrayEquals(plaintext, info2.getMessage());
+  }
+}
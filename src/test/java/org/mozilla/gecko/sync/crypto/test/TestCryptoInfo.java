@@ -4,18 +4,24 @@
 package org.mozilla.gecko.sync.crypto.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import org.junit.Test;
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.Base64Decoder;
+import org.mozilla.gecko.sync.crypto.Base64Encoder;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 
 public class TestCryptoInfo {
@@ -138,4 +144,86 @@ public class TestCryptoInfo {
     assertArrayEquals(Base64.decodeBase64(base64CipherText), encrypted.getMessage());
     assertArrayEquals(Utils.hex2Byte(base16Hmac), encrypted.getHMAC());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testEncodedMessageIsHMACed() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    CryptoInfo encrypted = CryptoInfo.encrypt("plaintext".getBytes("UTF-8"), kb);
+    assertArrayEquals(Base64.encodeBase64(encrypted.getMessage()), encrypted.getEncodedMessage());
+    assertArrayEquals(encrypted.getHMAC(), CryptoInfo.generatedHMACFor(encrypted.getMessage(), kb));
+  }
+
+  @Test
+  public void testDecryptEncodedSlice() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] plaintext = "a somewhat longer plaintext, spanning several blocks".getBytes("UTF-8");
+    CryptoInfo encrypted = CryptoInfo.encrypt(plaintext, kb);
+    byte[] encoded = encrypted.getEncodedMessage();
+
+    // Embed the base64 text in a larger buffer.
+    byte[] buffer = new byte[encoded.length + 20];
+    System.arraycopy(encoded, 0, buffer, 7, encoded.length);
+
+    CryptoInfo decrypted = CryptoInfo.decryptEncoded(buffer, 7, encoded.length, encrypted.getIV(), encrypted.getHMAC(), kb);
+    assertArrayEquals(plaintext, decrypted.getMessage());
+    assertArrayEquals(encrypted.getIV(), decrypted.getIV());
+
+    byte[] badHMAC = encrypted.getHMAC().clone();
+    badHMAC[0] ^= 1;
+    try {
+      CryptoInfo.decryptEncoded(buffer, 7, encoded.length, encrypted.getIV(), badHMAC, kb);
+      fail("Expected HMAC verification to fail.");
+    } catch (HMACVerificationException e) {
+      // Good.
+    }
+  }
+
+  @Test
+  public void testBase64Decoder() throws Exception {
+    for (int length = 0; length < 40; ++length) {
+      byte[] raw = new byte[length];
+      for (int i = 0; i < length; ++i) {
+        raw[i] = (byte) (i * 37 + length);
+      }
+      byte[] encoded = Base64.encodeBase64(raw);
+      assertArrayEquals(raw, Base64Decoder.decode(encoded, 0, encoded.length));
+
+      byte[] out = new byte[Base64Decoder.maxDecodedLength(encoded.length) + 3];
+      assertEquals(length, Base64Decoder.decode(encoded, 0, encoded.length, out, 3));
+      assertArrayEquals(raw, Arrays.copyOfRange(out, 3, 3 + length));
+    }
+    // Lenient, like commons-codec.
+    byte[] sloppy = "GX8L 37AA\nb2FZ-_zIoXlX8w==".getBytes("UTF-8");
+    assertArrayEquals(Base64.decodeBase64(sloppy), Base64Decoder.decode(sloppy, 0, sloppy.length));
+  }
+
+  @Test
+  public void testBase64Encoder() throws Exception {
+    for (int length = 0; length < 40; ++length) {
+      byte[] raw = new byte[length];
+      for (int i = 0; i < length; ++i) {
+        raw[i] = (byte) (i * 37 + length);
+      }
+      byte[] expected = Base64.encodeBase64(raw);
+      assertArrayEquals(expected, Base64Encoder.encode(raw));
+      assertEquals(expected.length, Base64Encoder.encodedLength(length));
+
+      byte[] out = new byte[expected.length + 3];
+      assertEquals(expected.length, Base64Encoder.encode(raw, 0, length, out, 3));
+      assertArrayEquals(expected, Arrays.copyOfRange(out, 3, out.length));
+    }
+  }
+
+  @Test
+  public void testEncryptSlice() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] buffer = "xxplaintextyy".getBytes("UTF-8");
+    CryptoInfo encrypted = CryptoInfo.encrypt(buffer, 2, 9, kb);
+    assertArrayEquals(Base64.encodeBase64(encrypted.getMessage()), encrypted.getEncodedMessage());
+    assertTrue(encrypted.generatedHMACIsHMAC());
+
+    byte[] encoded = encrypted.getEncodedMessage();
+    CryptoInfo decrypted = CryptoInfo.decryptEncoded(encoded, 0, encoded.length, encrypted.getIV(), encrypted.getHMAC(), kb);
+    assertArrayEquals("plaintext".getBytes("UTF-8"), decrypted.getMessage());
+  }
+}
@@ -0,0 +1,98 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.metrics.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.metrics.Histogram;
+import org.mozilla.gecko.sync.metrics.MetricsSink;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
+
+public class TestSyncMetrics {
+  protected static class RecordingSink implements MetricsSink {
+    public final List<String> exported = new ArrayList<String>();
+
+    @Override
+    public void exportCounter(String name, long value) {
+      exported.add(name + "=" + value);
+    }
+
+    @Override
+    public void exportHistogram(String name, Histogram histogram) {
+      exported.add(name + ":" + histogram.getCount());
+    }
+  }
+
+  @Test
+  public void testCounters() {
+    final SyncMetrics metrics = new SyncMetrics();
+    assertEquals(0, metrics.getCount("requests"));
+    metrics.counter("requests").increment();
+    metrics.counter("requests").add(4);
+    assertSame(metrics.counter("requests"), metrics.counter("requests"));
+    assertEquals(5, metrics.getCount("requests"));
+  }
+
+  @Test
+  public void testHistogram() {
+    final Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMin());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(50));
+
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    histogram.record(-5);
+    assertEquals(101, histogram.getCount());
+    assertEquals(5050, histogram.getSum());
+    assertEquals(0, histogram.getMin());
+    assertEquals(100, histogram.getMax());
+
+    // Percentiles are bucket upper bounds: within a factor of two.
+    final long median = histogram.getPercentile(50);
+    assertTrue(median >= 50 && median <= 100);
+    assertEquals(100, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testScope() {
+    final SyncMetrics metrics = new SyncMetrics();
+    final SyncMetrics history = metrics.scope("history");
+    history.counter("fetched").add(10);
+    history.scope("crypto").histogram("decrypt.micros").record(7);
+    metrics.counter("fetched").increment();
+
+    assertEquals(10, history.getCount("fetched"));
+    assertEquals(10, metrics.getCount("history.fetched"));
+    assertEquals(1, metrics.getCount("fetched"));
+    assertEquals(7, metrics.getHistogram("history.crypto.decrypt.micros").getMax());
+    assertNull(metrics.getHistogram("decrypt.micros"));
+  }
+
+  @Test
+  public void testExport() {
+    final SyncMetrics metrics = new SyncMetrics();
+    metrics.counter("b").increment();
+    metrics.counter("a").add(2);
+    metrics.histogram("h").record(1);
+    metrics.scope("history").counter("stored").add(3);
+
+    RecordingSink sink = new RecordingSink();
+    metrics.export(sink);
+    assertEquals("[a=2, b=1, history.stored=3, h:1]", sink.exported.toString());
+
+    sink = new RecordingSink();
+    metrics.scope("history").export(sink);
+    assertEquals("[history.stored=3]", sink.exported.toString());
+  }
+}
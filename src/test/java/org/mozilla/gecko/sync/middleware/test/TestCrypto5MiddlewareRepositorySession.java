@@ -10,6 +10,10 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.AssertionFailedError;
 
@@ -31,11 +35,15 @@ import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
 import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepositorySession;
+import org.mozilla.gecko.sync.middleware.ParallelDecryptingTransformingFetchDelegate;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
+import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 public class TestCrypto5MiddlewareRepositorySession {
@@ -287,4 +295,157 @@ public class TestCrypto5MiddlewareRepositorySession {
     assertTrue(record1.title.equals(decryptedRecord1.title) || record1.title.equals(decryptedRecord2.title));
     assertTrue(record2.title.equals(decryptedRecord1.title) || record2.title.equals(decryptedRecord2.title));
   }
+
+  protected CryptoRecord[] makeEncryptedBookmarks(int count) throws UnsupportedEncodingException, CryptoException {
+    final CryptoRecord[] encrypted = new CryptoRecord[count];
+    for (int i = 0; i < count; i++) {
+      final BookmarkRecord record = new BookmarkRecord(String.format("guid%08d", i), "coll", System.currentTimeMillis(), false);
+      record.title = "title " + i;
+      encrypted[i] = record.getEnvelope();
+      encrypted[i].keyBundle = keyBundle;
+      encrypted[i].encrypt();
+    }
+    return encrypted;
+  }
+
+  @Test
+  /**
+   * Verify that parallel decryption delivers every record, in order, before completing.
+   */
+  public void testParallelFetchPreservesOrder() throws UnsupportedEncodingException, CryptoException {
+    final CryptoRecord[] encrypted = makeEncryptedBookmarks(300);
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate fetchRecordsDelegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    final ParallelDecryptingTransformingFetchDelegate parallel =
+        new ParallelDecryptingTransformingFetchDelegate(fetchRecordsDelegate, keyBundle, new BookmarkRecordFactory(), 4, true);
+
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        for (CryptoRecord record : encrypted) {
+          parallel.onFetchedRecord(record);
+        }
+        parallel.onFetchCompleted(System.currentTimeMillis());
+      }
+    }));
+
+    assertEquals(encrypted.length, fetchRecordsDelegate.fetchedRecords.size());
+    for (int i = 0; i < encrypted.length; i++) {
+      final BookmarkRecord fetched = (BookmarkRecord) fetchRecordsDelegate.fetchedRecords.get(i);
+      assertEquals(encrypted[i].guid, fetched.guid);
+      assertEquals("title " + i, fetched.title);
+    }
+  }
+
+  @Test
+  /**
+   * Verify that unordered parallel decryption still delivers every record before completing.
+   */
+  public void testParallelFetchUnordered() throws UnsupportedEncodingException, CryptoException {
+    final CryptoRecord[] encrypted = makeEncryptedBookmarks(300);
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate fetchRecordsDelegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    final ParallelDecryptingTransformingFetchDelegate parallel =
+        new ParallelDecryptingTransformingFetchDelegate(fetchRecordsDelegate, keyBundle, new BookmarkRecordFactory(), 4, false);
+
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        for (CryptoRecord record : encrypted) {
+          parallel.onFetchedRecord(record);
+        }
+        parallel.onFetchCompleted(System.currentTimeMillis());
+      }
+    }));
+
+    assertEquals(encrypted.length, fetchRecordsDelegate.fetchedRecords.size());
+    final Set<String> guids = new HashSet<String>();
+    for (Record fetched : fetchRecordsDelegate.fetchedRecords) {
+      guids.add(fetched.guid);
+    }
+    assertEquals(encrypted.length, guids.size());
+  }
+
+  // Exposes the in-flight limit.
+  protected static class LimitedParallelDelegate extends ParallelDecryptingTransformingFetchDelegate {
+    public static final int WORKERS = 2;
+    public static final int MAX_IN_FLIGHT = WORKERS * IN_FLIGHT_PER_WORKER;
+
+    public LimitedParallelDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle keyBundle, RecordFactory recordFactory) {
+      super(next, keyBundle, recordFactory, WORKERS, true);
+    }
+  }
+
+  @Test
+  /**
+   * Verify that records finished behind a slow head record count against the
+   * in-flight limit, so the producer blocks rather than the reorder buffer growing.
+   */
+  public void testParallelFetchOrderedIsBounded() throws Exception {
+    final CryptoRecord[] encrypted = makeEncryptedBookmarks(300);
+    final CountDownLatch headReleased = new CountDownLatch(1);
+    final RecordFactory slowHead = new BookmarkRecordFactory() {
+      @Override
+      public Record createRecord(Record record) {
+        if (encrypted[0].guid.equals(record.guid)) {
+          try {
+            headReleased.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.createRecord(record);
+      }
+    };
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate fetchRecordsDelegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    final LimitedParallelDelegate parallel = new LimitedParallelDelegate(fetchRecordsDelegate, keyBundle, slowHead);
+    final AtomicInteger submitted = new AtomicInteger();
+    final AtomicInteger submittedWhileHeadBlocked = new AtomicInteger();
+
+    performWait(new Runnable() {
+      @Override public void run() {
+        new Thread(new Runnable() {
+          @Override public void run() {
+            for (CryptoRecord record : encrypted) {
+              parallel.onFetchedRecord(record);
+              submitted.incrementAndGet();
+            }
+            parallel.onFetchCompleted(System.currentTimeMillis());
+          }
+        }).start();
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        submittedWhileHeadBlocked.set(submitted.get());
+        headReleased.countDown();
+      }
+    });
+
+    assertTrue(submittedWhileHeadBlocked.get() <= LimitedParallelDelegate.MAX_IN_FLIGHT);
+    assertEquals(encrypted.length, fetchRecordsDelegate.fetchedRecords.size());
+    for (int i = 0; i < encrypted.length; ++i) {
+      assertEquals(encrypted[i].guid, fetchRecordsDelegate.fetchedRecords.get(i).guid);
+    }
+  }
+
+  @Test
+  /**
+   * Verify that a closed delegate still delivers records, processing them inline.
+   */
+  public void testParallelFetchAfterClose() throws UnsupportedEncodingException, CryptoException {
+    final CryptoRecord[] encrypted = makeEncryptedBookmarks(10);
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate fetchRecordsDelegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    final ParallelDecryptingTransformingFetchDelegate parallel =
+        new ParallelDecryptingTransformingFetchDelegate(fetchRecordsDelegate, keyBundle, new BookmarkRecordFactory(), 4, true);
+    parallel.close();
+
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        for (CryptoRecord record : encrypted) {
+          parallel.onFetchedRecord(record);
+        }
+        parallel.onFetchCompleted(System.currentTimeMillis());
+      }
+    }));
+
+    assertEquals(encrypted.length, fetchRecordsDelegate.fetchedRecords.size());
+  }
 }
@@ -0,0 +1,72 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.net.HawkAuthHeaderProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.client.methods.HttpGet;
+import ch.boye.httpclientandroidlib.client.methods.HttpPost;
+import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+
+/**
+ * Headers/sec for signing storage requests with Hawk: a GET, and a POST of
+ * a batch of records whose body is hashed into the header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HawkAuthHeaderBenchmark {
+  @Param({ "0", "262144" })
+  public int bodySize;
+
+  private HawkAuthHeaderProvider provider;
+  private HttpRequestBase request;
+
+  @Setup
+  public void setUp() throws Exception {
+    final Random random = new Random(0);
+    final byte[] key = new byte[32];
+    random.nextBytes(key);
+    provider = new HawkAuthHeaderProvider("eyJub2RlIjogImh0dHA6Ly9sb2NhbGhvc3Q6NTAwMCJ9", key, true, 0L);
+
+    final String uri = "https://sync-1-us-east-1.sync.services.mozilla.com/1.5/12345/storage/history?full=1&newer=1326254123.65";
+    if (bodySize == 0) {
+      request = new HttpGet(uri);
+    } else {
+      final byte[] body = new byte[bodySize];
+      for (int i = 0; i < bodySize; ++i) {
+        body[i] = (byte) ('a' + random.nextInt(26));
+      }
+      final HttpPost post = new HttpPost(uri);
+      final ByteArrayEntity entity = new ByteArrayEntity(body);
+      entity.setContentType("application/json");
+      post.setEntity(entity);
+      request = post;
+    }
+  }
+
+  @Benchmark
+  public Header getAuthHeader() throws Exception {
+    return provider.getAuthHeader(request, null, null);
+  }
+}
@@ -0,0 +1,110 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.BaseResourceDelegate;
+import org.mozilla.gecko.sync.net.ConnectionReuseCounter;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.ClientProtocolException;
+import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+
+public class TestConnectionReuse {
+  private static final int TEST_PORT = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT + "/";
+
+  protected final HTTPServerTestHelper data = new HTTPServerTestHelper();
+  protected final ConnectionReuseCounter counter = new ConnectionReuseCounter();
+
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+    BaseResource.setHttpConnectionObserver(counter);
+    data.startHTTPServer(new MockServer(200, "{}"));
+  }
+
+  @After
+  public void tearDown() {
+    BaseResource.setHttpConnectionObserver(null);
+    data.stopHTTPServer();
+  }
+
+  protected class ConsumingDelegate extends BaseResourceDelegate {
+    public DefaultHttpClient client;
+
+    public ConsumingDelegate(BaseResource resource) {
+      super(resource);
+    }
+
+    @Override
+    public String getUserAgent() {
+      return null;
+    }
+
+    @Override
+    public void addHeaders(HttpRequestBase request, DefaultHttpClient client) {
+      this.client = client;
+    }
+
+    @Override
+    public void handleHttpResponse(HttpResponse response) {
+      BaseResource.consumeEntity(response);
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public void handleHttpProtocolException(ClientProtocolException e) {
+      WaitHelper.getTestWaiter().performNotify(e);
+    }
+
+    @Override
+    public void handleHttpIOException(IOException e) {
+      WaitHelper.getTestWaiter().performNotify(e);
+    }
+
+    @Override
+    public void handleTransportException(GeneralSecurityException e) {
+      WaitHelper.getTestWaiter().performNotify(e);
+    }
+  }
+
+  protected DefaultHttpClient get(String uri) throws Exception {
+    final BaseResource resource = new BaseResource(uri);
+    final ConsumingDelegate delegate = new ConsumingDelegate(resource);
+    resource.delegate = delegate;
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        resource.get();
+      }
+    });
+    return delegate.client;
+  }
+
+  @Test
+  public void testSequentialRequestsShareConnection() throws Exception {
+    DefaultHttpClient first = get(TEST_SERVER + "first");
+    DefaultHttpClient second = get(TEST_SERVER + "second");
+
+    // One client per endpoint...
+    assertSame(first, second);
+    // ... and one connection.
+    assertEquals(1, counter.getNewConnections());
+    assertEquals(1, counter.getReusedConnections());
+  }
+}
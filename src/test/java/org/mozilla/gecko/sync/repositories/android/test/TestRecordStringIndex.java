@@ -0,0 +1,148 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.android.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
+
+public class TestRecordStringIndex {
+  protected static String url(int i) {
+    return "http://example.com/" + i;
+  }
+
+  protected static String guid(int i) {
+    return "guid" + i;
+  }
+
+  @Test
+  public void testPutGet() {
+    RecordStringIndex index = new RecordStringIndex();
+    for (int i = 0; i < 10000; ++i) {
+      index.put(url(i), guid(i));
+    }
+    assertEquals(10000, index.size());
+    for (int i = 0; i < 10000; ++i) {
+      assertEquals(guid(i), index.get(url(i)));
+    }
+    assertNull(index.get(url(10000)));
+
+    // Replacing doesn't grow the index.
+    index.put(url(5), "other");
+    assertEquals("other", index.get(url(5)));
+    assertEquals(10000, index.size());
+  }
+
+  @Test
+  public void testHashesAreDistinct() {
+    HashSet<Long> hashes = new HashSet<Long>();
+    for (int i = 0; i < 100000; ++i) {
+      assertTrue(hashes.add(RecordStringIndex.hash(url(i))));
+    }
+    assertTrue(RecordStringIndex.hash("") != 0);
+  }
+
+  @Test
+  public void testRemoveAgainstModel() {
+    // Keep the table small so that probe runs are long and wrap around.
+    RecordStringIndex index = new RecordStringIndex();
+    Map<String, String> model = new HashMap<String, String>();
+    Random random = new Random(42);
+    for (int step = 0; step < 20000; ++step) {
+      final int i = random.nextInt(40);
+      if (random.nextBoolean()) {
+        index.put(url(i), guid(step));
+        model.put(url(i), guid(step));
+      } else {
+        final String expected = model.get(url(i));
+        assertFalse(index.remove(url(i), "not" + expected));
+        assertEquals(expected != null, index.remove(url(i), expected));
+        model.remove(url(i));
+      }
+      assertEquals(model.size(), index.size());
+      for (int j = 0; j < 40; ++j) {
+        assertEquals(model.get(url(j)), index.get(url(j)));
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveGUIDs() {
+    RecordStringIndex index = new RecordStringIndex();
+    for (int i = 0; i < 1000; ++i) {
+      index.put(url(i), guid(i % 100));
+    }
+    HashSet<String> toRemove = new HashSet<String>();
+    toRemove.add(guid(3));
+    toRemove.add(guid(50));
+    toRemove.add("missing");
+    assertEquals(20, index.removeGUIDs(toRemove));
+    assertEquals(980, index.size());
+    for (int i = 0; i < 1000; ++i) {
+      if (i % 100 == 3 || i % 100 == 50) {
+        assertNull(index.get(url(i)));
+      } else {
+        assertEquals(guid(i % 100), index.get(url(i)));
+      }
+    }
+    assertEquals(0, index.removeGUIDs(new HashSet<String>()));
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() throws Exception {
+    File file = File.createTempFile("recordstrings", ".idx");
+    try {
+      RecordStringIndex index = new RecordStringIndex();
+      for (int i = 0; i < 1000; ++i) {
+        index.put(url(i), guid(i));
+      }
+      index.setTimestamp(12345L);
+      index.setCreated(1234L);
+      index.writeTo(file);
+
+      RecordStringIndex read = RecordStringIndex.readFrom(file);
+      assertEquals(1000, read.size());
+      assertEquals(12345L, read.getTimestamp());
+      assertEquals(1234L, read.getCreated());
+      for (int i = 0; i < 1000; ++i) {
+        assertEquals(guid(i), read.get(url(i)));
+      }
+      assertFalse(new File(file.getPath() + ".tmp").exists());
+    } finally {
+      file.delete();
+    }
+    assertNull(RecordStringIndex.readFrom(file));
+  }
+
+  @Test
+  public void testCorruptSnapshot() throws Exception {
+    File file = File.createTempFile("recordstrings", ".idx");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[] { 0, 0, 0, 1, 1, 2, 3 });
+      out.close();
+      try {
+        RecordStringIndex.readFrom(file);
+        fail("Expected IOException.");
+      } catch (IOException e) {
+        // Good.
+      }
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.domain.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
+import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.repositories.domain.TabsRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records/sec for turning each kind of domain record into the cleartext
+ * bytes we upload: <code>getEnvelope</code> builds the payload, and
+ * <code>toJSONBytes</code> serializes the envelope.
+ * <p>
+ * The <code>encrypt</code> benchmarks cover the whole upload path: the
+ * <code>legacy</code> one builds the payload as a JSON object, encrypts its
+ * string form and serializes the envelope through strings; the
+ * <code>current</code> one writes the cleartext into a reused buffer and the
+ * envelope straight to bytes.
+ * <p>
+ * The records are built from typical payloads, as if they had just been
+ * downloaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordSerializationBenchmark {
+  @Param({ "bookmarks", "history", "passwords", "forms", "tabs", "clients" })
+  public String collection;
+
+  private Record record;
+  private CryptoRecord envelope;
+  private KeyBundle keys;
+
+  // Single quotes are replaced by double quotes.
+  protected static String payloadFor(String collection) {
+    if ("bookmarks".equals(collection)) {
+      return "{'id':'abcdefghijkl','type':'bookmark','title':'Mozilla Developer Network'," +
+             "'bmkUri':'https://developer.mozilla.org/','description':'Resources for developers'," +
+             "'parentid':'toolbar','parentName':'Bookmarks Toolbar','tags':['mdn','docs']," +
+             "'keyword':'mdn','loadInSidebar':false}";
+    }
+    if ("history".equals(collection)) {
+      StringBuilder visits = new StringBuilder();
+      for (int i = 0; i < 20; ++i) {
+        visits.append(i == 0 ? "" : ",");
+        visits.append("{'date':").append(1326254123650000L - i * 3600000000L).append(",'type':1}");
+      }
+      return "{'id':'abcdefghijkl','histUri':'https://developer.mozilla.org/en-US/docs/Mozilla/Projects/Sync'," +
+             "'title':'Sync | MDN','visits':[" + visits + "]}";
+    }
+    if ("passwords".equals(collection)) {
+      return "{'id':'abcdefghijkl','hostname':'https://accounts.example.com'," +
+             "'formSubmitURL':'https://accounts.example.com/login','httpRealm':null," +
+             "'username':'jane.doe@example.com','password':'correct horse battery staple'," +
+             "'usernameField':'email','passwordField':'password'}";
+    }
+    if ("forms".equals(collection)) {
+      return "{'id':'abcdefghijkl','name':'search','value':'android sync benchmarks'}";
+    }
+    if ("tabs".equals(collection)) {
+      StringBuilder tabs = new StringBuilder();
+      for (int i = 0; i < 10; ++i) {
+        tabs.append(i == 0 ? "" : ",");
+        tabs.append("{'title':'Tab ").append(i).append("','icon':'https://example.com/favicon.ico'," +
+                    "'urlHistory':['https://example.com/").append(i).append("','https://example.com/']," +
+                    "'lastUsed':'1326254123'}");
+      }
+      return "{'id':'abcdefghijkl','clientName':'Jane Doe on Nexus 5','tabs':[" + tabs + "]}";
+    }
+    if ("clients".equals(collection)) {
+      return "{'id':'abcdefghijkl','name':'Jane Doe on Nexus 5','type':'mobile','version':'32.0a1'," +
+             "'commands':[{'command':'displayURI','args':['https://example.com/','abcdefghijkm','Example']}]," +
+             "'protocols':['1.5'],'os':'Android','application':'Firefox','appPackage':'org.mozilla.firefox'," +
+             "'formfactor':'phone','device':'Nexus 5'}";
+    }
+    throw new IllegalArgumentException("Unknown collection " + collection);
+  }
+
+  protected static Record recordFor(String collection) {
+    if ("bookmarks".equals(collection)) {
+      return new BookmarkRecord();
+    }
+    if ("history".equals(collection)) {
+      return new HistoryRecord();
+    }
+    if ("passwords".equals(collection)) {
+      return new PasswordRecord();
+    }
+    if ("forms".equals(collection)) {
+      return new FormHistoryRecord();
+    }
+    if ("tabs".equals(collection)) {
+      return new TabsRecord();
+    }
+    if ("clients".equals(collection)) {
+      return new ClientRecord();
+    }
+    throw new IllegalArgumentException("Unknown collection " + collection);
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    final String json = payloadFor(collection).replace('\'', '"');
+    final CryptoRecord downloaded = new CryptoRecord(ExtendedJSONObject.parseJSONObject(json));
+    downloaded.guid = "abcdefghijkl";
+    downloaded.collection = collection;
+    downloaded.lastModified = 1326254123650L;
+
+    record = recordFor(collection);
+    record.initFromEnvelope(downloaded);
+    envelope = record.getEnvelope();
+    keys = KeyBundle.withRandomKeys();
+  }
+
+  @Benchmark
+  public byte[] envelopeAndSerialize() {
+    return record.getEnvelope().toJSONBytes();
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return envelope.toJSONBytes();
+  }
+
+  @Benchmark
+  public byte[] cleartext() throws Exception {
+    return record.getEnvelope().payload.toJSONString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public byte[] encryptLegacy() throws Exception {
+    CryptoRecord rec = record.getEnvelope();
+    rec.keyBundle = keys;
+    return rec.encrypt().toJSONString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public byte[] encryptCurrent() throws Exception {
+    return CryptoRecord.encrypt(record, keys).toJSONBytes();
+  }
+}
@@ -0,0 +1,171 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+public class TestServer11PagedFetch {
+  private static final String TEST_STORAGE_URL = "http://localhost:8080/1.1/user/storage/";
+
+  /**
+   * A session whose windows are served from memory, after a random delay, so
+   * that windows complete out of order.
+   */
+  public static class InMemoryPagedSession extends Server11RepositorySession {
+    public final AtomicInteger windowsFetched = new AtomicInteger(0);
+    public final AtomicInteger concurrent = new AtomicInteger(0);
+    public final AtomicInteger maxConcurrent = new AtomicInteger(0);
+    public volatile int failWindowContaining = -1;
+    private final Random random = new Random(1234);
+
+    public InMemoryPagedSession(Server11Repository repository) {
+      super(repository);
+    }
+
+    @Override
+    protected List<CryptoRecord> fetchWindow(List<String> guids, String sort) throws Exception {
+      final int now = concurrent.incrementAndGet();
+      while (true) {
+        int max = maxConcurrent.get();
+        if (now <= max || maxConcurrent.compareAndSet(max, now)) {
+          break;
+        }
+      }
+      try {
+        windowsFetched.incrementAndGet();
+        Thread.sleep(random.nextInt(10));
+        ArrayList<CryptoRecord> records = new ArrayList<CryptoRecord>();
+        for (String guid : guids) {
+          if (guid.equals("" + failWindowContaining)) {
+            throw new RuntimeException("Window failed.");
+          }
+          CryptoRecord record = new CryptoRecord();
+          record.guid = guid;
+          records.add(record);
+        }
+        return records;
+      } finally {
+        concurrent.decrementAndGet();
+      }
+    }
+  }
+
+  public static class CollectingDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final List<String> guids = Collections.synchronizedList(new ArrayList<String>());
+    public volatile long fetchEnd = -1;
+    public volatile Exception failure;
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      failure = ex;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      guids.add(record.guid);
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      this.fetchEnd = fetchEnd;
+      WaitHelper.getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  protected static List<String> makeGUIDs(int count) {
+    ArrayList<String> guids = new ArrayList<String>();
+    for (int i = 0; i < count; ++i) {
+      guids.add("" + i);
+    }
+    return guids;
+  }
+
+  protected InMemoryPagedSession makeSession(int windowSize, int connections) throws Exception {
+    Server11Repository repository = new Server11Repository("history", TEST_STORAGE_URL, null, new InfoCollections());
+    repository.setPagedFetch(windowSize, connections);
+    return new InMemoryPagedSession(repository);
+  }
+
+  @Test
+  public void testWindowsDeliveredInOrder() throws Exception {
+    final InMemoryPagedSession session = makeSession(7, 4);
+    final List<String> guids = makeGUIDs(250);
+    final CollectingDelegate delegate = new CollectingDelegate();
+
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.fetchWindows(guids, 12345L, "index", delegate);
+      }
+    });
+
+    assertEquals(null, delegate.failure);
+    assertEquals(12345L, delegate.fetchEnd);
+    assertEquals(guids, delegate.guids);
+    assertEquals(36, session.windowsFetched.get());
+    assertTrue(session.maxConcurrent.get() <= 4);
+  }
+
+  @Test
+  public void testNoRecords() throws Exception {
+    final InMemoryPagedSession session = makeSession(100, 4);
+    final CollectingDelegate delegate = new CollectingDelegate();
+
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.fetchWindows(new ArrayList<String>(), 555L, null, delegate);
+      }
+    });
+
+    assertEquals(555L, delegate.fetchEnd);
+    assertEquals(0, delegate.guids.size());
+    assertEquals(0, session.windowsFetched.get());
+  }
+
+  @Test
+  public void testWindowFailureFailsFetch() throws Exception {
+    final InMemoryPagedSession session = makeSession(10, 3);
+    session.failWindowContaining = 55;
+    final List<String> guids = makeGUIDs(200);
+    final CollectingDelegate delegate = new CollectingDelegate();
+
+    WaitHelper.getTestWaiter().performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.fetchWindows(guids, 12345L, "index", delegate);
+      }
+    });
+
+    assertTrue(delegate.failure instanceof RuntimeException);
+    assertEquals(-1, delegate.fetchEnd);
+    // Nothing past the failed window was delivered, and what was delivered
+    // was in order.
+    assertTrue(delegate.guids.size() <= 50);
+    assertEquals(guids.subList(0, delegate.guids.size()), delegate.guids);
+  }
+}
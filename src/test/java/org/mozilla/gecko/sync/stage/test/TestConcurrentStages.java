@@ -0,0 +1,260 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.stage.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.AssertionFailedError;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.gecko.background.testhelpers.MockGlobalSession;
+import org.mozilla.gecko.background.testhelpers.MockServerSyncStage;
+import org.mozilla.gecko.background.testhelpers.MockSharedPreferences;
+import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.SyncConfiguration;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
+import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.ProtocolVersion;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+public class TestConcurrentStages {
+  private static final String TEST_USERNAME = "johndoe";
+  private static final String TEST_PASSWORD = "password";
+  private static final String TEST_SYNC_KEY = "abcdeabcdeabcdeabcdeabcdea";
+
+  private static final Stage[] ENGINE_STAGES = new Stage[] {
+    Stage.syncTabs,
+    Stage.syncPasswords,
+    Stage.syncBookmarks,
+    Stage.syncHistory,
+    Stage.syncFormHistory,
+  };
+
+  protected final AtomicInteger inFlight = new AtomicInteger(0);
+  protected final AtomicInteger maxInFlight = new AtomicInteger(0);
+  protected final AtomicInteger finished = new AtomicInteger(0);
+
+  @After
+  public void tearDown() {
+    GlobalSession.setMaxConcurrentStages(GlobalSession.DEFAULT_MAX_CONCURRENT_STAGES);
+  }
+
+  /**
+   * A stage that finishes on another thread a little while after it starts.
+   */
+  protected class SlowStage extends MockServerSyncStage {
+    @Override
+    public void execute() {
+      final int now = inFlight.incrementAndGet();
+      int max;
+      do {
+        max = maxInFlight.get();
+      } while (now > max && !maxInFlight.compareAndSet(max, now));
+
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            // Finish early.
+          }
+          inFlight.decrementAndGet();
+          finished.incrementAndGet();
+          finish();
+        }
+      }).start();
+    }
+
+    protected void finish() {
+      session.advance(this);
+    }
+  }
+
+  /**
+   * Fails the test unless every engine stage has finished.
+   */
+  protected class JoinCheckingStage extends MockServerSyncStage {
+    @Override
+    public void execute() {
+      if (finished.get() != ENGINE_STAGES.length) {
+        WaitHelper.getTestWaiter().performNotify(new AssertionFailedError("uploadMetaGlobal ran before engine stages finished."));
+        return;
+      }
+      session.advance(this);
+    }
+  }
+
+  protected MockGlobalSession createSession(MockGlobalSessionCallback callback) throws Exception {
+    SyncConfiguration config = new SyncConfiguration(TEST_USERNAME, new BasicAuthHeaderProvider(TEST_USERNAME, TEST_PASSWORD), new MockSharedPreferences(), new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY));
+    MockGlobalSession session = new MockGlobalSession(config, callback);
+    for (Stage stage : ENGINE_STAGES) {
+      session.withStage(stage, new SlowStage());
+    }
+    session.withStage(Stage.uploadMetaGlobal, new JoinCheckingStage());
+    return session;
+  }
+
+  protected void startAndWait(final GlobalSession session) {
+    WaitHelper.getTestWaiter().performWait(WaitHelper.onThreadRunnable(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          session.start();
+        } catch (Exception e) {
+          final AssertionFailedError error = new AssertionFailedError();
+          error.initCause(e);
+          WaitHelper.getTestWaiter().performNotify(error);
+        }
+      }
+    }));
+  }
+
+  @Test
+  public void testEngineStagesRunConcurrently() throws Exception {
+    GlobalSession.setMaxConcurrentStages(3);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback();
+    startAndWait(createSession(callback));
+
+    // handleSuccess asserts that every stage was reported completed.
+    assertTrue(callback.calledSuccess);
+    assertFalse(callback.calledError);
+    assertEquals(ENGINE_STAGES.length, finished.get());
+    assertTrue(maxInFlight.get() > 1);
+    assertTrue(maxInFlight.get() <= 3);
+  }
+
+  @Test
+  public void testOneAtATime() throws Exception {
+    GlobalSession.setMaxConcurrentStages(1);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback();
+    startAndWait(createSession(callback));
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(ENGINE_STAGES.length, finished.get());
+    assertEquals(1, maxInFlight.get());
+  }
+
+  @Test
+  public void testFirstAbortWins() throws Exception {
+    final AtomicInteger errors = new AtomicInteger(0);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback() {
+      @Override
+      public void handleError(GlobalSession globalSession, Exception ex) {
+        errors.incrementAndGet();
+        super.handleError(globalSession, ex);
+      }
+    };
+    final CountDownLatch aborted = new CountDownLatch(2);
+    final MockGlobalSession session = createSession(callback);
+    for (Stage stage : new Stage[] { Stage.syncTabs, Stage.syncPasswords }) {
+      session.withStage(stage, new SlowStage() {
+        @Override
+        protected void finish() {
+          session.abort(this, null, "Stage intentionally failed.");
+          aborted.countDown();
+        }
+      });
+    }
+    startAndWait(session);
+    assertTrue(aborted.await(5, TimeUnit.SECONDS));
+
+    assertFalse(callback.calledSuccess);
+    assertEquals(1, errors.get());
+  }
+
+  @Test
+  public void testAbortWaitsForRunningStages() throws Exception {
+    GlobalSession.setMaxConcurrentStages(3);
+    final AtomicInteger finishedAtError = new AtomicInteger(-1);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback() {
+      @Override
+      public void handleError(GlobalSession globalSession, Exception ex) {
+        finishedAtError.set(finished.get());
+        super.handleError(globalSession, ex);
+      }
+    };
+    final MockGlobalSession session = createSession(callback);
+    session.withStage(Stage.syncTabs, new MockServerSyncStage() {
+      @Override
+      public void execute() {
+        session.abort(this, null, "Stage intentionally failed.");
+      }
+    });
+    startAndWait(session);
+
+    assertTrue(callback.calledError);
+    // The two stages running alongside syncTabs finished before the error
+    // was reported; the stages waiting behind them never started.
+    assertEquals(2, finishedAtError.get());
+    assertEquals(2, finished.get());
+  }
+
+  @Test
+  public void testStageFinishesOnlyOnce() throws Exception {
+    GlobalSession.setMaxConcurrentStages(3);
+    final AtomicInteger finishedAtError = new AtomicInteger(-1);
+    final AtomicInteger errors = new AtomicInteger(0);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback() {
+      @Override
+      public void handleError(GlobalSession globalSession, Exception ex) {
+        finishedAtError.set(finished.get());
+        errors.incrementAndGet();
+        super.handleError(globalSession, ex);
+      }
+    };
+    final MockGlobalSession session = createSession(callback);
+    session.withStage(Stage.syncTabs, new MockServerSyncStage() {
+      @Override
+      public void execute() {
+        // Like a stage that fails to wipe the server and carries on anyway.
+        session.abort(this, null, "Stage intentionally failed.");
+        session.advance(this);
+      }
+    });
+    startAndWait(session);
+
+    assertTrue(callback.calledError);
+    assertEquals(1, errors.get());
+    // The second report from syncTabs didn't count: the error waited for both
+    // stages running alongside it.
+    assertEquals(2, finishedAtError.get());
+    assertEquals(2, finished.get());
+  }
+
+  @Test
+  public void testBackoffAbortsConcurrentStages() throws Exception {
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback();
+    final MockGlobalSession session = createSession(callback);
+    session.withStage(Stage.syncBookmarks, new SlowStage() {
+      @Override
+      protected void finish() {
+        final HttpResponse response = new BasicHttpResponse(
+            new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200, "OK"));
+        response.addHeader("X-Weave-Backoff", "10");
+        session.observeHttpResponse(response);
+        session.advance(this);
+      }
+    });
+    startAndWait(session);
+
+    assertFalse(callback.calledSuccess);
+    assertTrue(callback.calledError);
+    assertTrue(callback.calledRequestBackoff);
+    assertEquals(10000, callback.weaveBackoff);
+  }
+}
@@ -4,6 +4,7 @@
 package org.mozilla.gecko.sync.stage.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -16,6 +17,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.android.sync.test.helpers.MockNotModifiedServer;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.MockGlobalSession;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
@@ -26,6 +28,7 @@ import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.crypto.PersistedCrypto5Keys;
 import org.mozilla.gecko.sync.stage.EnsureCrypto5KeysStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
 import org.simpleframework.http.Request;
@@ -230,4 +233,80 @@ public class TestEnsureCrypto5KeysStage {
     assertTrue(stagesReset.contains(TEST_COLLECTION));
     assertTrue(callback.calledError);
   }
+
+  protected String encryptedKeys(CollectionKeys keys) throws Exception {
+    CryptoRecord rec = keys.asCryptoRecord();
+    rec.keyBundle = syncKeyBundle;
+    rec.encrypt();
+    return rec.toJSONString();
+  }
+
+  @Test
+  public void testNotModifiedUsesPersisted() throws Exception {
+    session.config.infoCollections = new InfoCollections(ExtendedJSONObject.parseJSONObject(TEST_JSON_NEW_CRYPTO));
+    final PersistedCrypto5Keys pck = session.config.persistedCryptoKeys();
+    pck.persistLastModified(System.currentTimeMillis());
+
+    final CollectionKeys keys = CollectionKeys.generateCollectionKeys();
+    keys.setDefaultKeyBundle(syncKeyBundle);
+    pck.persistKeys(keys);
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(encryptedKeys(CollectionKeys.generateCollectionKeys()));
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertFalse(calledResetStages);
+    assertEquals(1, server.conditionalRequests.get());
+    assertEquals(0, server.unconditionalRequests.get());
+    assertTrue(CollectionKeys.differences(session.config.collectionKeys, keys).isEmpty());
+  }
+
+  /**
+   * Persisted keys we can't read must not stop us fetching keys: we ask
+   * conditionally because we hold keys, and refetch when the server says
+   * they haven't changed.
+   */
+  @Test
+  public void testNotModifiedWithCorruptPersistedRefetches() throws Exception {
+    session.config.infoCollections = new InfoCollections(ExtendedJSONObject.parseJSONObject(TEST_JSON_OLD_CRYPTO));
+    final PersistedCrypto5Keys pck = session.config.persistedCryptoKeys();
+    pck.persistLastModified(System.currentTimeMillis());
+    session.config.getPrefs().edit()
+        .putString(PersistedCrypto5Keys.CRYPTO5_KEYS_SERVER_RESPONSE_BODY, "{\"payload\":")
+        .commit();
+
+    final CollectionKeys keys = CollectionKeys.generateCollectionKeys();
+    keys.setDefaultKeyBundle(syncKeyBundle);
+    final MockNotModifiedServer server = new MockNotModifiedServer(encryptedKeys(keys));
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertFalse(calledResetStages);
+    assertEquals(1, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertTrue(session.config.collectionKeys.equals(keys));
+    assertNotNull(pck.keys());
+  }
+
+  /**
+   * Keys persisted for another account can't be decrypted with our Sync Key,
+   * and must not be used.
+   */
+  @Test
+  public void testOtherAccountKeysAreNotUsed() throws Exception {
+    session.config.infoCollections = new InfoCollections(ExtendedJSONObject.parseJSONObject(TEST_JSON_OLD_CRYPTO));
+    final KeyBundle otherSyncKeyBundle = KeyBundle.withRandomKeys();
+    final PersistedCrypto5Keys otherPck = new PersistedCrypto5Keys(session.config.getPrefs(), otherSyncKeyBundle);
+    otherPck.persistLastModified(System.currentTimeMillis());
+    otherPck.persistKeys(CollectionKeys.generateCollectionKeys());
+
+    final CollectionKeys keys = CollectionKeys.generateCollectionKeys();
+    keys.setDefaultKeyBundle(syncKeyBundle);
+    final MockNotModifiedServer server = new MockNotModifiedServer(encryptedKeys(keys));
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, server.unconditionalRequests.get());
+    assertTrue(session.config.collectionKeys.equals(keys));
+  }
 }
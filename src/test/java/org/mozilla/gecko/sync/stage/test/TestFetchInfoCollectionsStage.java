@@ -0,0 +1,167 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.stage.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.android.sync.test.helpers.MockNotModifiedServer;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.background.testhelpers.MockGlobalSession;
+import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.AlreadySyncingException;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.PersistedInfoCollections;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.stage.FetchInfoCollectionsStage;
+import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+public class TestFetchInfoCollectionsStage {
+  private int          TEST_PORT                = HTTPServerTestHelper.getTestPort();
+  private final String TEST_CLUSTER_URL         = "http://localhost:" + TEST_PORT;
+  private final String TEST_USERNAME            = "johndoe";
+  private final String TEST_PASSWORD            = "password";
+  private final String TEST_SYNC_KEY            = "abcdeabcdeabcdeabcdeabcdea";
+
+  private final String TEST_JSON_PERSISTED      = "{\"history\":1.3319567131E9}";
+  private final long   TEST_PERSISTED_MODIFIED  = 1331956713100L;
+  private final String TEST_JSON_SERVER         = "{\"history\":1.3319567131E9,\"bookmarks\":1.3319567132E9}";
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  private MockGlobalSessionCallback callback;
+  private GlobalSession session;
+  private PersistedInfoCollections pic;
+
+  @Before
+  public void setUp() throws Exception {
+    callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    session = new MockGlobalSession(TEST_USERNAME, TEST_PASSWORD,
+        new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY), callback)
+      .withStage(Stage.fetchInfoCollections, new FetchInfoCollectionsStage());
+    session.config.setClusterURL(new URI(TEST_CLUSTER_URL));
+    pic = session.config.persistedInfoCollections();
+  }
+
+  public void doSession(MockServer server) {
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.start();
+          } catch (AlreadySyncingException e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
+
+  protected void persist(String url) throws Exception {
+    pic.persistInfoCollections(url, ExtendedJSONObject.parseJSONObject(TEST_JSON_PERSISTED), TEST_PERSISTED_MODIFIED);
+  }
+
+  @Test
+  public void testNotModifiedUsesPersisted() throws Exception {
+    persist(session.config.infoCollectionsURL());
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(TEST_JSON_SERVER);
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, server.conditionalRequests.get());
+    assertEquals(0, server.unconditionalRequests.get());
+    assertNotNull(session.config.infoCollections);
+    assertNotNull(session.config.infoCollections.getTimestamp("history"));
+    assertNull(session.config.infoCollections.getTimestamp("bookmarks"));
+  }
+
+  @Test
+  public void testFetchPersists() throws Exception {
+    final MockNotModifiedServer server = new MockNotModifiedServer(TEST_JSON_SERVER);
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(0, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertNotNull(session.config.infoCollections.getTimestamp("bookmarks"));
+    assertNotNull(pic.infoCollections(session.config.infoCollectionsURL()));
+    assertEquals(session.config.infoCollections.getLastModified(), pic.lastModified(session.config.infoCollectionsURL()));
+  }
+
+  /**
+   * If the persisted copy goes while we ask whether it's current, fetch
+   * info/collections afresh rather than abort.
+   */
+  @Test
+  public void testNotModifiedWithoutPersistedRefetches() throws Exception {
+    persist(session.config.infoCollectionsURL());
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(TEST_JSON_SERVER) {
+      @Override
+      public void handle(Request request, Response response) {
+        pic.purge();
+        super.handle(request, response);
+      }
+    };
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertNotNull(session.config.infoCollections.getTimestamp("bookmarks"));
+  }
+
+  @Test
+  public void testCorruptPersistedIsNotUsed() throws Exception {
+    persist(session.config.infoCollectionsURL());
+    session.config.getPrefs().edit()
+        .putString(PersistedInfoCollections.INFO_COLLECTIONS_SERVER_RESPONSE_BODY, "{\"history\":")
+        .commit();
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(TEST_JSON_SERVER);
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(0, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertNotNull(session.config.infoCollections.getTimestamp("bookmarks"));
+  }
+
+  /**
+   * info/collections persisted for another account, or another storage node,
+   * must not be used.
+   */
+  @Test
+  public void testOtherURLIsNotUsed() throws Exception {
+    final String otherURL = TEST_CLUSTER_URL + "/1.1/janedoe/info/collections";
+    persist(otherURL);
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(TEST_JSON_SERVER);
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(0, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertNotNull(session.config.infoCollections.getTimestamp("bookmarks"));
+    // What we fetched replaces the other URL's copy.
+    assertNull(pic.infoCollections(otherURL));
+    assertNotNull(pic.infoCollections(session.config.infoCollectionsURL()));
+  }
+}
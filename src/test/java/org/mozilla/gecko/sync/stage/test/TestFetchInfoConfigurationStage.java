@@ -0,0 +1,119 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.stage.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.background.testhelpers.MockGlobalSession;
+import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.AlreadySyncingException;
+import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.stage.FetchInfoConfigurationStage;
+import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+public class TestFetchInfoConfigurationStage {
+  private int          TEST_PORT                = HTTPServerTestHelper.getTestPort();
+  private final String TEST_CLUSTER_URL         = "http://localhost:" + TEST_PORT;
+  private final String TEST_USERNAME            = "johndoe";
+  private final String TEST_PASSWORD            = "password";
+  private final String TEST_SYNC_KEY            = "abcdeabcdeabcdeabcdeabcdea";
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  private MockGlobalSessionCallback callback;
+  private GlobalSession session;
+
+  @Before
+  public void setUp() throws Exception {
+    callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    session = new MockGlobalSession(TEST_USERNAME, TEST_PASSWORD,
+        new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY), callback)
+      .withStage(Stage.fetchInfoConfiguration, new FetchInfoConfigurationStage());
+    session.config.setClusterURL(new URI(TEST_CLUSTER_URL));
+  }
+
+  public void doSession(MockServer server) {
+    data.startHTTPServer(server);
+    try {
+      WaitHelper.getTestWaiter().performWait(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            session.start();
+          } catch (AlreadySyncingException e) {
+            WaitHelper.getTestWaiter().performNotify(e);
+          }
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
+
+  @Test
+  public void testFetchesLimits() throws Exception {
+    doSession(new MockServer(200, "{\"max_post_records\":50}"));
+
+    assertTrue(callback.calledSuccess);
+    assertNotNull(session.config.infoConfiguration);
+    assertEquals(50, session.config.infoConfiguration.maxPostRecords);
+  }
+
+  @Test
+  public void testMissingEndpointMeansNoBatches() throws Exception {
+    doSession(new MockServer(404, "Not Found"));
+
+    assertTrue(callback.calledSuccess);
+    assertNull(session.config.infoConfiguration);
+  }
+
+  @Test
+  public void testUnauthorizedAborts() throws Exception {
+    doSession(new MockServer(401, "Unauthorized"));
+
+    assertFalse(callback.calledSuccess);
+    assertTrue(callback.calledError);
+    assertTrue(callback.calledErrorException instanceof HTTPFailureException);
+    assertTrue(callback.calledInformUnauthorizedResponse);
+  }
+
+  @Test
+  public void testBackoffAborts() throws Exception {
+    doSession(new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        try {
+          response.set("X-Weave-Backoff", "10");
+          final PrintStream bodyStream = this.handleBasicHeaders(request, response, 503, "text/plain");
+          bodyStream.println("Service Unavailable");
+          bodyStream.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    assertFalse(callback.calledSuccess);
+    assertTrue(callback.calledError);
+    assertTrue(callback.calledRequestBackoff);
+    assertEquals(10000, callback.weaveBackoff);
+  }
+}
@@ -20,6 +20,7 @@ import org.junit.Test;
 import org.mozilla.android.sync.net.test.TestMetaGlobal;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockGlobalSessionCallback;
+import org.mozilla.android.sync.test.helpers.MockNotModifiedServer;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.MockGlobalSession;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
@@ -31,6 +32,7 @@ import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.MetaGlobal;
 import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.PersistedMetaGlobal;
 import org.mozilla.gecko.sync.SyncConfigurationException;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
@@ -336,6 +338,74 @@ public class TestFetchMetaGlobalStage {
     assertEquals(ParseException.class, callback.calledErrorException.getClass());
   }
 
+  protected MetaGlobal makeMetaGlobal(String syncID) {
+    MetaGlobal mg = new MetaGlobal(null, null);
+    mg.setSyncID(syncID);
+    mg.setStorageVersion(Long.valueOf(TEST_STORAGE_VERSION));
+    return mg;
+  }
+
+  @Test
+  public void testNotModifiedUsesPersisted() throws Exception {
+    session.config.syncID = TEST_SYNC_ID;
+    final PersistedMetaGlobal pmg = session.config.persistedMetaGlobal();
+    pmg.persistMetaGlobal(makeMetaGlobal(TEST_SYNC_ID));
+    pmg.persistLastModified(System.currentTimeMillis() - 10000);
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(makeMetaGlobal("NOT TEST SYNC ID").asCryptoRecord().toJSONString());
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, server.conditionalRequests.get());
+    assertEquals(0, server.unconditionalRequests.get());
+    assertFalse(calledResetAllStages);
+    assertEquals(TEST_SYNC_ID, session.config.metaGlobal.getSyncID());
+  }
+
+  /**
+   * If the persisted copy goes while we ask whether it's current, fetch
+   * meta/global afresh rather than abort.
+   */
+  @Test
+  public void testNotModifiedWithoutPersistedRefetches() throws Exception {
+    session.config.syncID = TEST_SYNC_ID;
+    final PersistedMetaGlobal pmg = session.config.persistedMetaGlobal();
+    pmg.persistMetaGlobal(makeMetaGlobal(TEST_SYNC_ID));
+    pmg.persistLastModified(System.currentTimeMillis() - 10000);
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(makeMetaGlobal(TEST_SYNC_ID).asCryptoRecord().toJSONString()) {
+      @Override
+      public void handle(Request request, Response response) {
+        pmg.purge();
+        super.handle(request, response);
+      }
+    };
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertEquals(TEST_SYNC_ID, session.config.metaGlobal.getSyncID());
+  }
+
+  @Test
+  public void testCorruptPersistedIsNotUsed() throws Exception {
+    session.config.syncID = TEST_SYNC_ID;
+    final PersistedMetaGlobal pmg = session.config.persistedMetaGlobal();
+    pmg.persistLastModified(System.currentTimeMillis() - 10000);
+    session.config.getPrefs().edit()
+        .putString(PersistedMetaGlobal.META_GLOBAL_SERVER_RESPONSE_BODY, "{\"payload\":")
+        .commit();
+
+    final MockNotModifiedServer server = new MockNotModifiedServer(makeMetaGlobal(TEST_SYNC_ID).asCryptoRecord().toJSONString());
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(0, server.conditionalRequests.get());
+    assertEquals(1, server.unconditionalRequests.get());
+    assertEquals(TEST_SYNC_ID, session.config.metaGlobal.getSyncID());
+  }
+
   protected void doFreshStart(MockServer server) {
     data.startHTTPServer(server);
     WaitHelper.getTestWaiter().performWait(WaitHelper.onThreadRunnable(new Runnable() {
@@ -0,0 +1,146 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.synchronizer.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.gecko.background.testhelpers.WBORepository;
+import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
+import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Milliseconds to flow a collection of history records through a
+ * <code>RecordsChannel</code> between two in-memory repositories: the
+ * queueing, threading, and delegate overhead of a sync, without network,
+ * crypto, or database costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordsChannelBenchmark {
+  @Param({ "1000", "10000" })
+  public int records;
+
+  /**
+   * A <code>WBORepository</code> whose sessions shut down their delegate
+   * thread when aborted, so that a benchmark run doesn't leak a thread per
+   * flow.
+   */
+  protected static class BenchmarkRepository extends WBORepository {
+    public class BenchmarkSession extends WBORepositorySession {
+      public BenchmarkSession() {
+        super(BenchmarkRepository.this);
+      }
+
+      @Override
+      public void abort() {
+        super.abort();
+        delegateExecutor.shutdown();
+      }
+    }
+  }
+
+  private BenchmarkRepository source;
+  private BenchmarkRepository sink;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() {
+    source = new BenchmarkRepository();
+    sink = new BenchmarkRepository();
+    for (int i = 0; i < records; ++i) {
+      final HistoryRecord record = new HistoryRecord(String.format("%012d", i), "history", 1326254123650L + i);
+      record.histURI = "https://example.com/" + i;
+      record.title = "Page " + i;
+      record.visits = new JSONArray();
+      final JSONObject visit = new JSONObject();
+      visit.put("date", 1326254123650000L + i);
+      visit.put("type", 1L);
+      record.visits.add(visit);
+      source.wbos.put(record.guid, record);
+    }
+  }
+
+  // Each trial runs in its own JVM; let it exit without waiting for idle
+  // consumer threads.
+  @TearDown
+  public void tearDown() {
+    ThreadPool.executorService.shutdown();
+  }
+
+  @Benchmark
+  public int flow() throws Exception {
+    // Every flow stores into an empty repository.
+    sink.wbos = new ConcurrentHashMap<String, Record>();
+
+    final BenchmarkRepository.BenchmarkSession sourceSession = source.new BenchmarkSession();
+    final BenchmarkRepository.BenchmarkSession sinkSession = sink.new BenchmarkSession();
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    final RecordsChannel channel = new RecordsChannel(sourceSession, sinkSession, new RecordsChannelDelegate() {
+      @Override
+      public void onFlowCompleted(RecordsChannel recordsChannel, long fetchEnd, long storeEnd) {
+        done.countDown();
+      }
+
+      @Override
+      public void onFlowBeginFailed(RecordsChannel recordsChannel, Exception ex) {
+        failure.set(ex);
+        done.countDown();
+      }
+
+      @Override
+      public void onFlowFetchFailed(RecordsChannel recordsChannel, Exception ex) {
+        failure.set(ex);
+      }
+
+      @Override
+      public void onFlowStoreFailed(RecordsChannel recordsChannel, Exception ex, String recordGuid) {
+        failure.set(ex);
+      }
+
+      @Override
+      public void onFlowFinishFailed(RecordsChannel recordsChannel, Exception ex) {
+        failure.set(ex);
+        done.countDown();
+      }
+    });
+
+    try {
+      channel.beginAndFlow();
+      done.await();
+    } finally {
+      sourceSession.abort();
+      sinkSession.abort();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return channel.getStoreCount();
+  }
+}
@@ -0,0 +1,231 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CompactJSONObject;
+
+public class TestCompactJSONObject {
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testMapSemantics() {
+    final CompactJSONObject o = new CompactJSONObject();
+    final JSONObject reference = new JSONObject();
+    assertTrue(o.isEmpty());
+
+    for (int i = 0; i < 6; ++i) {
+      assertNull(o.put("k" + i, "v" + i));
+      reference.put("k" + i, "v" + i);
+    }
+    assertEquals("v3", o.put("k3", "w3"));
+    reference.put("k3", "w3");
+    o.put("null", null);
+    reference.put("null", null);
+
+    assertEquals(7, o.size());
+    assertTrue(o.containsKey("null"));
+    assertTrue(o.containsValue("w3"));
+    assertFalse(o.containsValue("v3"));
+    assertEquals(reference, o);
+    assertEquals(o, reference);
+    assertEquals(reference.hashCode(), o.hashCode());
+
+    assertEquals("v0", o.remove("k0"));
+    assertNull(o.remove("missing"));
+    assertEquals(Arrays.asList("k1", "k2", "k3", "k4", "k5", "null"), new ArrayList<Object>(o.keySet()));
+
+    // Removal through an iterator.
+    final Iterator<?> it = o.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) it.next();
+      if ("k2".equals(entry.getKey())) {
+        it.remove();
+      }
+    }
+    assertFalse(o.containsKey("k2"));
+    assertEquals(5, o.size());
+
+    final CompactJSONObject copy = (CompactJSONObject) o.clone();
+    copy.put("k1", "changed");
+    assertEquals("v1", o.get("k1"));
+
+    o.clear();
+    assertTrue(o.isEmpty());
+    assertEquals("{}", o.toJSONString());
+  }
+
+  @Test
+  public void testUnboxedNumbers() {
+    final CompactJSONObject o = new CompactJSONObject();
+    o.putLong("date", 1326254123650000L);
+    o.putDouble("modified", 1326254123.65);
+    o.put("boxed", Long.valueOf(5));
+    o.put("string", "5");
+
+    assertEquals(Long.valueOf(1326254123650000L), o.get("date"));
+    assertEquals(Double.valueOf(1326254123.65), o.get("modified"));
+    assertEquals(1326254123650000L, o.getLong("date", -1));
+    assertEquals(1326254123L, o.getLong("modified", -1));
+    assertEquals(5L, o.getLong("boxed", -1));
+    assertEquals(-1L, o.getLong("string", -1));
+    assertEquals(-1L, o.getLong("missing", -1));
+    assertEquals(1326254123.65, o.getDouble("modified", 0), 0.0);
+    assertEquals(7L, CompactJSONObject.getLong(new CompactJSONObject(), "x", 7));
+
+    // Replacing an unboxed number with an object, and vice versa.
+    o.put("date", "now");
+    assertEquals("now", o.get("date"));
+    o.putLong("string", 6);
+    assertEquals(Long.valueOf(6), o.get("string"));
+    assertEquals("{\"date\":\"now\",\"modified\":1.32625412365E9,\"boxed\":5,\"string\":6}", o.toJSONString());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testLargeObjects() {
+    final CompactJSONObject o = new CompactJSONObject();
+    final JSONObject reference = new JSONObject();
+    for (int i = 0; i < 100; ++i) {
+      o.putLong("k" + i, i);
+      reference.put("k" + i, Long.valueOf(i));
+    }
+    assertEquals(100, o.size());
+    assertEquals(reference, o);
+    assertEquals(42L, o.getLong("k42", -1));
+    assertEquals(Long.valueOf(99), o.remove("k99"));
+    assertEquals(99, o.size());
+    assertEquals(99, o.keySet().size());
+
+    final CompactJSONObject copy = (CompactJSONObject) o.clone();
+    assertEquals(o, copy);
+    copy.remove("k0");
+    assertTrue(o.containsKey("k0"));
+
+    o.clear();
+    o.putLong("small", 1);
+    assertEquals("{\"small\":1}", o.toJSONString());
+  }
+
+  @Test
+  public void testSerializable() throws Exception {
+    final CompactJSONObject o = new CompactJSONObject();
+    o.putLong("a", 1);
+    o.put("b", "two");
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(o);
+    out.close();
+    final Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertEquals(o, read);
+  }
+
+  protected void checkConditionalMethods(CompactJSONObject o) {
+    o.putLong("long", 1);
+    o.put("null", null);
+
+    assertEquals(Long.valueOf(1), o.getOrDefault("long", "default"));
+    assertNull(o.getOrDefault("null", "default"));
+    assertEquals("default", o.getOrDefault("missing", "default"));
+
+    assertEquals(Long.valueOf(1), o.putIfAbsent("long", "other"));
+    assertNull(o.putIfAbsent("null", "set"));
+    assertEquals("set", o.get("null"));
+    assertNull(o.putIfAbsent("absent", "set"));
+    assertEquals("set", o.get("absent"));
+
+    assertNull(o.replace("missing", "value"));
+    assertFalse(o.containsKey("missing"));
+    assertEquals(Long.valueOf(1), o.replace("long", Long.valueOf(2)));
+    assertFalse(o.replace("long", Long.valueOf(1), Long.valueOf(3)));
+    assertTrue(o.replace("long", Long.valueOf(2), Long.valueOf(3)));
+    assertEquals(3L, o.getLong("long", -1));
+
+    assertFalse(o.remove("long", Long.valueOf(2)));
+    assertTrue(o.remove("long", Long.valueOf(3)));
+    assertFalse(o.containsKey("long"));
+  }
+
+  @Test
+  public void testConditionalMethods() {
+    checkConditionalMethods(new CompactJSONObject());
+
+    final CompactJSONObject large = new CompactJSONObject();
+    for (int i = 0; i < 100; ++i) {
+      large.putLong("k" + i, i);
+    }
+    checkConditionalMethods(large);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testEqualsAndHashCode() {
+    final CompactJSONObject o = new CompactJSONObject();
+    final JSONObject reference = new JSONObject();
+    o.putLong("long", 1);
+    reference.put("long", Long.valueOf(1));
+    o.putDouble("double", 1.5);
+    reference.put("double", Double.valueOf(1.5));
+    o.put("null", null);
+    reference.put("null", null);
+
+    assertTrue(o.equals(reference));
+    assertTrue(reference.equals(o));
+    assertEquals(reference.hashCode(), o.hashCode());
+
+    reference.put("null", "not null");
+    assertFalse(o.equals(reference));
+    reference.remove("null");
+    reference.put("other", null);
+    assertFalse(o.equals(reference));
+    assertFalse(o.equals("{}"));
+  }
+
+  // Java 8 methods that take functional interfaces, which can't be declared
+  // against the Java 7 API.
+  protected static final Set<String> UNDECLARABLE = new HashSet<String>(Arrays.asList(
+      "forEach", "replaceAll", "compute", "computeIfAbsent", "computeIfPresent", "merge"));
+
+  /**
+   * HashMap's own methods only see its table, so every one we can declare
+   * must be overridden to see the array mappings too.
+   */
+  @Test
+  public void testOverridesHashMapMethods() throws Exception {
+    for (Method method : HashMap.class.getMethods()) {
+      final Class<?> declaring = method.getDeclaringClass();
+      if (Modifier.isStatic(method.getModifiers()) ||
+          (declaring != HashMap.class && declaring != AbstractMap.class) ||
+          UNDECLARABLE.contains(method.getName())) {
+        continue;
+      }
+      final Method ours = CompactJSONObject.class.getMethod(method.getName(), method.getParameterTypes());
+      if (ours.getDeclaringClass() != CompactJSONObject.class) {
+        fail("CompactJSONObject doesn't override " + method + ".");
+      }
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CompactJSONObject;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONTokenizer;
+
+public class TestJSONTokenizer {
+  protected static JSONTokenizer tokenizer(String json) throws Exception {
+    return new JSONTokenizer(json.getBytes("UTF-8"));
+  }
+
+  protected static Object parse(String json) throws Exception {
+    return tokenizer(json).readDocument();
+  }
+
+  @Test
+  public void testTokens() throws Exception {
+    final JSONTokenizer t = tokenizer(" {\"a\": [1, -2.5e3, \"x\", true, false, null]}\n");
+    assertEquals(JSONTokenizer.BEGIN_OBJECT, t.next());
+    assertEquals(JSONTokenizer.STRING, t.next());
+    assertEquals("a", t.keyValue());
+    assertEquals(JSONTokenizer.COLON, t.next());
+    assertEquals(JSONTokenizer.BEGIN_ARRAY, t.next());
+    assertEquals(JSONTokenizer.LONG, t.next());
+    assertEquals(1L, t.longValue());
+    assertEquals(JSONTokenizer.COMMA, t.next());
+    assertEquals(JSONTokenizer.DOUBLE, t.next());
+    assertEquals(-2500.0, t.doubleValue(), 0.0);
+    assertEquals(JSONTokenizer.COMMA, t.next());
+    assertEquals(JSONTokenizer.STRING, t.next());
+    assertEquals("x", t.stringValue());
+    assertEquals(JSONTokenizer.COMMA, t.next());
+    assertEquals(JSONTokenizer.TRUE, t.next());
+    assertEquals(JSONTokenizer.COMMA, t.next());
+    assertEquals(JSONTokenizer.FALSE, t.next());
+    assertEquals(JSONTokenizer.COMMA, t.next());
+    assertEquals(JSONTokenizer.NULL, t.next());
+    assertEquals(JSONTokenizer.END_ARRAY, t.next());
+    assertEquals(JSONTokenizer.END_OBJECT, t.next());
+    assertEquals(JSONTokenizer.END_DOCUMENT, t.next());
+  }
+
+  @Test
+  public void testValues() throws Exception {
+    final CompactJSONObject o = (CompactJSONObject) parse(
+        "{\"long\": 1326254123, \"negative\": -5, \"double\": 1326254123.65, \"big\": 123456789012345678901," +
+        " \"max\": 9223372036854775807, \"s\": \"\\u00e9\\n\\\"\\/\", \"emoji\": \"\\ud83d\\ude00\"," +
+        " \"utf8\": \"h\u00e9llo\", \"array\": [{}, []], \"nothing\": null}");
+    assertEquals(Long.valueOf(1326254123L), o.get("long"));
+    assertEquals(1326254123L, o.getLong("long", 0));
+    assertEquals(Long.valueOf(-5L), o.get("negative"));
+    assertEquals(Double.valueOf(1326254123.65), o.get("double"));
+    assertEquals(1326254123.65, o.getDouble("double", 0), 0.0);
+    assertTrue(o.get("big") instanceof Double);
+    assertEquals(Long.valueOf(Long.MAX_VALUE), o.get("max"));
+    assertEquals("\u00e9\n\"/", o.get("s"));
+    assertEquals("\ud83d\ude00", o.get("emoji"));
+    assertEquals("h\u00e9llo", o.get("utf8"));
+    final JSONArray array = (JSONArray) o.get("array");
+    assertTrue(array.get(0) instanceof CompactJSONObject);
+    assertTrue(array.get(1) instanceof JSONArray);
+    assertTrue(o.containsKey("nothing"));
+    assertNull(o.get("nothing"));
+
+    assertEquals("top", parse("\"top\""));
+    assertNull(parse("null"));
+  }
+
+  @Test
+  public void testAgreesWithJSONSimple() throws Exception {
+    final String[] inputs = new String[] {
+        TestExtendedJSONObject.exampleJSON,
+        TestExtendedJSONObject.exampleIntegral,
+        "{\"a\":1,,\"b\":2}",
+        "[,1,,2,]",
+        "{\"nested\":{\"deeper\":[1,2.5,{\"x\":\"\\t\"}]},\"empty\":{}}",
+    };
+    for (String input : inputs) {
+      assertEquals(input, new JSONParser().parse(input), parse(input));
+    }
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    final String[] inputs = new String[] {
+        "", "{", "{\"a\"}", "{\"a\":}", "{1:2}", "[1", "\"unterminated", "tru", "nul", "-", "1.", "1e",
+        "{\"a\":1}}", "\"\\x\"", "\"\\u12\"",
+    };
+    for (String input : inputs) {
+      try {
+        parse(input);
+        fail("Expected ParseException for " + input);
+      } catch (ParseException e) {
+        // Good.
+      }
+    }
+
+    final StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      deep.append('[');
+    }
+    try {
+      parse(deep.toString());
+      fail("Expected ParseException for deep nesting.");
+    } catch (ParseException e) {
+      // Good.
+    }
+  }
+
+  @Test
+  public void testKeysAreShared() throws Exception {
+    final CompactJSONObject first = (CompactJSONObject) parse("{\"histUri\":1}");
+    final CompactJSONObject second = (CompactJSONObject) parse("{\"histUri\":2}");
+    assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+  }
+
+  @Test
+  public void testExtendedJSONObjectEntryPoints() throws Exception {
+    final String json = "{\"id\":\"abc\",\"modified\":1326254123.65}";
+    final byte[] bytes = ("xx" + json + "yy").getBytes("UTF-8");
+    final ExtendedJSONObject fromSlice = ExtendedJSONObject.parseUTF8AsJSONObject(bytes, 2, bytes.length - 4);
+    final ExtendedJSONObject fromStream = ExtendedJSONObject.parseJSONObject(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    final ExtendedJSONObject fromString = ExtendedJSONObject.parseJSONObject(json);
+    assertEquals(fromString, fromSlice);
+    assertEquals(fromString, fromStream);
+    assertEquals(Long.valueOf(1326254123650L), fromSlice.getTimestamp("modified"));
+    assertEquals(1326254123L, fromSlice.getLong("modified", -1));
+    assertEquals(-1L, fromSlice.getLong("id", -1));
+  }
+}
@@ -0,0 +1,109 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CompactJSONObject;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONWriter;
+
+public class TestJSONWriter {
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testMatchesJSONSimple() throws Exception {
+    final JSONArray array = new JSONArray();
+    array.add("plain");
+    array.add("quote \" backslash \\ slash / tab \t newline \n");
+    array.add("control \u0001 \u001f del \u007f c1 \u0085 punctuation   €");
+    array.add("latin é cjk 中 emoji 😀.");
+    array.add(Long.valueOf(Long.MIN_VALUE));
+    array.add(Long.valueOf(-12345));
+    array.add(Integer.valueOf(0));
+    array.add(Double.valueOf(1326254123.65));
+    array.add(Double.valueOf(Double.NaN));
+    array.add(Float.valueOf(1.1f));
+    array.add(Boolean.TRUE);
+    array.add(null);
+    final JSONObject object = new JSONObject();
+    object.put("nested", new JSONArray());
+    object.put("k/ey", "value");
+    array.add(object);
+
+    for (Object value : array) {
+      assertEquals(JSONValue.toJSONString(value), JSONWriter.toJSONString(value));
+    }
+    assertEquals(array.toJSONString(), JSONWriter.toJSONString(array));
+    assertEquals(array.toJSONString(), new String(JSONWriter.toJSONBytes(array), "UTF-8"));
+
+    // Unpaired surrogates are replaced, just as the UTF-8 encoder would.
+    final String lone = "lone \ud83d.";
+    assertEquals(new String(JSONValue.toJSONString(lone).getBytes("UTF-8"), "UTF-8"), JSONWriter.toJSONString(lone));
+  }
+
+  @Test
+  public void testUTF8StringValue() throws Exception {
+    final String s = "{\"a\":\"b/c\\n\"} \u0001 \u007f \u0080 \u009f \u00a0 \u00e9 \u1fff \u2000 \u2014 \u20ff \u2100 \u4e2d \ud83d\ude00";
+    final byte[] utf8 = ("xx" + s + "yy").getBytes("UTF-8");
+    final JSONWriter writer = new JSONWriter();
+    writer.beginArray().value(utf8, 2, utf8.length - 4).endArray();
+    assertEquals("[" + JSONValue.toJSONString(s) + "]", new String(writer.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testStreaming() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // A small buffer, so that we flush part way through.
+    final JSONWriter writer = new JSONWriter(out, 64);
+    writer.beginObject();
+    writer.name("id").value("abcdefghijkl");
+    writer.name("visits").beginArray();
+    for (int i = 0; i < 10; ++i) {
+      writer.beginObject().name("date").value(1326254123650000L + i).name("type").value(1).endObject();
+    }
+    writer.endArray();
+    writer.name("deleted").value(false);
+    writer.name("sortindex").value((Object) null);
+    writer.endObject();
+    writer.flush();
+
+    final ExtendedJSONObject parsed = ExtendedJSONObject.parseUTF8AsJSONObject(out.toByteArray());
+    assertEquals("abcdefghijkl", parsed.getString("id"));
+    assertEquals(10, parsed.getArray("visits").size());
+    assertEquals(Long.valueOf(1326254123650009L), ((JSONObject) parsed.getArray("visits").get(9)).get("date"));
+    assertEquals(Boolean.FALSE, parsed.getBoolean("deleted"));
+    assertEquals(parsed.toJSONString(), new String(out.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testInMemoryReuse() throws Exception {
+    final JSONWriter writer = new JSONWriter();
+    writer.beginArray().value(1).value(2).endArray();
+    assertEquals("[1,2]", new String(writer.toByteArray(), "UTF-8"));
+    writer.reset();
+    final CompactJSONObject o = new CompactJSONObject();
+    o.putLong("a", 1);
+    writer.value(o);
+    assertEquals(7, writer.size());
+    assertEquals("{\"a\":1}", new String(writer.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testExtendedJSONObject() throws Exception {
+    final ExtendedJSONObject o = new ExtendedJSONObject();
+    o.put("payload", "{\"ciphertext\":\"abc\"}");
+    o.put("inner", new ExtendedJSONObject(new JSONObject()));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    o.writeTo(out);
+    assertEquals(o.toJSONString(), new String(out.toByteArray(), "UTF-8"));
+    assertEquals(o.toJSONString(), new String(o.toJSONBytes(), "UTF-8"));
+    assertEquals("{\"payload\":\"{\\\"ciphertext\\\":\\\"abc\\\"}\",\"inner\":{}}", o.toJSONString());
+  }
+}
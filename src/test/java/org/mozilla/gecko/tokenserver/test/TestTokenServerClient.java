@@ -107,12 +107,16 @@ public class TestTokenServerClient {
 
   @Test
   public void testProcessResponseSuccess() throws Exception {
+    final long before = System.currentTimeMillis();
     TokenServerToken token = doProcessResponse(200, "application/json", TEST_TOKEN_RESPONSE);
 
     assertEquals("eySHORTENED", token.id);
     assertEquals("-plSHORTENED", token.key);
     assertEquals("1659259", token.uid);
     assertEquals("https://stage-aitc1.services.mozilla.com/1.0/1659259", token.endpoint);
+    // Duration is 300 seconds.
+    assertTrue(token.expiresAt >= before + 300 * 1000);
+    assertTrue(token.expiresAt <= System.currentTimeMillis() + 300 * 1000);
   }
 
   @Test
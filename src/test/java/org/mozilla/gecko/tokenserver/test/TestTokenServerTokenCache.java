@@ -0,0 +1,61 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.tokenserver.test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.mozilla.gecko.tokenserver.TokenServerToken;
+import org.mozilla.gecko.tokenserver.TokenServerTokenCache;
+
+public class TestTokenServerTokenCache {
+  protected static final String UID = "uid";
+  protected static final String ENDPOINT = "https://token.services.mozilla.com/1.0/sync/1.5";
+  protected static final String CLIENT_STATE = "abcdef";
+  protected static final long MARGIN = 60 * 1000;
+  protected static final long NOW = 1000000000000L;
+
+  protected static TokenServerToken makeToken(long expiresAt) {
+    return new TokenServerToken("id", "key", UID, "https://storage/1.5/1", expiresAt);
+  }
+
+  @Test
+  public void testExpiry() {
+    final TokenServerTokenCache cache = new TokenServerTokenCache(MARGIN);
+    final TokenServerToken token = makeToken(NOW + 5 * MARGIN);
+    cache.put(UID, ENDPOINT, CLIENT_STATE, token);
+
+    assertSame(token, cache.get(UID, ENDPOINT, CLIENT_STATE, NOW));
+    assertSame(token, cache.get(UID, ENDPOINT, CLIENT_STATE, NOW + 3 * MARGIN));
+    // Within the margin of expiry: evicted.
+    assertNull(cache.get(UID, ENDPOINT, CLIENT_STATE, NOW + 4 * MARGIN + 1));
+    assertNull(cache.get(UID, ENDPOINT, CLIENT_STATE, NOW));
+  }
+
+  @Test
+  public void testKeyedByClientState() {
+    final TokenServerTokenCache cache = new TokenServerTokenCache(MARGIN);
+    cache.put(UID, ENDPOINT, CLIENT_STATE, makeToken(NOW + 5 * MARGIN));
+
+    assertNull(cache.get(UID, ENDPOINT, "012345", NOW));
+    assertNull(cache.get("other", ENDPOINT, CLIENT_STATE, NOW));
+    assertNull(cache.get(UID, "https://other", CLIENT_STATE, NOW));
+  }
+
+  @Test
+  public void testInvalidate() {
+    final TokenServerTokenCache cache = new TokenServerTokenCache(MARGIN);
+    cache.put(UID, ENDPOINT, CLIENT_STATE, makeToken(NOW + 5 * MARGIN));
+    cache.invalidate(UID, ENDPOINT, CLIENT_STATE);
+    assertNull(cache.get(UID, ENDPOINT, CLIENT_STATE, NOW));
+  }
+
+  @Test
+  public void testTokensWithoutExpiryAreNotCached() {
+    final TokenServerTokenCache cache = new TokenServerTokenCache(MARGIN);
+    cache.put(UID, ENDPOINT, CLIENT_STATE, new TokenServerToken("id", "key", UID, "https://storage/1.5/1"));
+    assertNull(cache.get(UID, ENDPOINT, CLIENT_STATE, NOW));
+  }
+}
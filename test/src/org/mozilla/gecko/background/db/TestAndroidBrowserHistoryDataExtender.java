@@ -5,6 +5,8 @@ package org.mozilla.gecko.background.db;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -20,13 +22,19 @@ import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryDataExte
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
+import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
 
   protected AndroidBrowserHistoryDataExtender extender;
   protected static final String LOG_TAG = "SyncHistoryVisitsTest";
 
+  // As in AndroidBrowserHistoryDataExtender.
+  protected static final String DB_NAME = "history_extension_database";
+
   public void setUp() {
     extender = new AndroidBrowserHistoryDataExtender(getApplicationContext());
     extender.wipe();
@@ -36,11 +44,23 @@ public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
     extender.close();
   }
 
+  @SuppressWarnings("unchecked")
+  protected static JSONArray visits(long... dates) {
+    JSONArray visits = new JSONArray();
+    for (long date : dates) {
+      JSONObject visit = new JSONObject();
+      visit.put("date", date);
+      visit.put("type", 1L);
+      visits.add(visit);
+    }
+    return visits;
+  }
+
   public void testStoreFetch() throws NullCursorException, NonObjectJSONException, IOException, ParseException {
     String guid = Utils.generateGuid();
-    extender.store(Utils.generateGuid(), null);
-    extender.store(guid, null);
-    extender.store(Utils.generateGuid(), null);
+    extender.store(Utils.generateGuid(), visits(1000L));
+    extender.store(guid, visits(1000L));
+    extender.store(Utils.generateGuid(), visits(1000L));
 
     Cursor cur = null;
     try {
@@ -57,7 +77,7 @@ public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
 
   public void testVisitsForGUID() throws NonArrayJSONException, NonObjectJSONException, IOException, ParseException, NullCursorException {
     String guid = Utils.generateGuid();
-    JSONArray visits = new ExtendedJSONObject("{ \"visits\": [ { \"key\" : \"value\" } ] }").getArray("visits");
+    JSONArray visits = new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 1320087601465600, \"type\" : 2 } ] }").getArray("visits");
 
     extender.store(Utils.generateGuid(), null);
     extender.store(guid, visits);
@@ -65,14 +85,159 @@ public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
 
     JSONArray fetchedVisits = extender.visitsForGUID(guid);
     assertEquals(1, fetchedVisits.size());
-    assertEquals("value", ((JSONObject)fetchedVisits.get(0)).get("key"));
+    assertEquals(1320087601465600L, ((JSONObject)fetchedVisits.get(0)).get("date"));
+    assertEquals(2L, ((JSONObject)fetchedVisits.get(0)).get("type"));
+  }
+
+  public void testStoreAppends() throws NullCursorException {
+    String guid = Utils.generateGuid();
+    extender.store(guid, visits(1000L, 2000L));
+    extender.store(guid, visits(2000L, 3000L));
+    extender.store(guid, null);
+
+    JSONArray fetchedVisits = extender.visitsForGUID(guid);
+    assertEquals(3, fetchedVisits.size());
+    // Newest first.
+    assertEquals(3000L, ((JSONObject)fetchedVisits.get(0)).get("date"));
+    assertEquals(1000L, ((JSONObject)fetchedVisits.get(2)).get("date"));
+  }
+
+  public void testStoreIsIdempotent() throws NullCursorException {
+    String guid = Utils.generateGuid();
+    extender.store(guid, visits(1000L, 2000L, 3000L));
+    // Records are stored with all their visits, most already stored.
+    extender.store(guid, visits(1000L, 2000L, 3000L));
+    extender.store(guid, visits(3000L, 2000L, 1000L));
+
+    JSONArray fetchedVisits = extender.visitsForGUID(guid);
+    assertEquals(3, fetchedVisits.size());
+    assertEquals(3000L, ((JSONObject)fetchedVisits.get(0)).get("date"));
+    assertEquals(2000L, ((JSONObject)fetchedVisits.get(1)).get("date"));
+    assertEquals(1000L, ((JSONObject)fetchedVisits.get(2)).get("date"));
+  }
+
+  /**
+   * Replace the extender's database with a schema version 1 database holding
+   * the given JSON visits for each GUID.
+   */
+  protected void createVersion1Database(Map<String, String> visits) {
+    extender.close();
+    final Context context = getApplicationContext();
+    context.deleteDatabase(DB_NAME);
+    final SQLiteDatabase db = context.openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+    try {
+      db.execSQL("CREATE TABLE HistoryExtension (guid TEXT PRIMARY KEY, visits TEXT)");
+      for (Map.Entry<String, String> entry : visits.entrySet()) {
+        ContentValues cv = new ContentValues();
+        cv.put("guid", entry.getKey());
+        cv.put("visits", entry.getValue());
+        db.insert("HistoryExtension", null, cv);
+      }
+      db.setVersion(1);
+    } finally {
+      db.close();
+    }
+    extender = new AndroidBrowserHistoryDataExtender(context);
+  }
+
+  public void testMigrateFromVersion1() throws NullCursorException {
+    final String guid = Utils.generateGuid();
+    final String duplicates = Utils.generateGuid();
+    final String full = Utils.generateGuid();
+    final String unparseable = Utils.generateGuid();
+
+    final long[] fullDates = new long[AndroidBrowserHistoryDataExtender.DEFAULT_MAX_VISITS_PER_GUID + 5];
+    for (int i = 0; i < fullDates.length; i++) {
+      fullDates[i] = 1000L * (i + 1);
+    }
+
+    final Map<String, String> v1 = new HashMap<String, String>();
+    v1.put(guid, "[{\"date\":1320087601465600,\"type\":2},{\"date\":1320087601465500,\"type\":1}]");
+    v1.put(duplicates, visits(1000L, 2000L, 1000L, 2000L, 3000L).toJSONString());
+    v1.put(full, visits(fullDates).toJSONString());
+    v1.put(unparseable, "[{\"date\":");
+    createVersion1Database(v1);
+
+    // Opening the database migrates it.
+    JSONArray fetched = extender.visitsForGUID(guid);
+    assertEquals(2, fetched.size());
+    assertEquals(1320087601465600L, ((JSONObject)fetched.get(0)).get("date"));
+    assertEquals(2L, ((JSONObject)fetched.get(0)).get("type"));
+    assertEquals(1320087601465500L, ((JSONObject)fetched.get(1)).get("date"));
+    assertEquals(1L, ((JSONObject)fetched.get(1)).get("type"));
+
+    // Duplicate visits collapse.
+    fetched = extender.visitsForGUID(duplicates);
+    assertEquals(3, fetched.size());
+    assertEquals(3000L, ((JSONObject)fetched.get(0)).get("date"));
+    assertEquals(2000L, ((JSONObject)fetched.get(1)).get("date"));
+    assertEquals(1000L, ((JSONObject)fetched.get(2)).get("date"));
+
+    // Only the most recent visits are kept.
+    fetched = extender.visitsForGUID(full);
+    assertEquals(AndroidBrowserHistoryDataExtender.DEFAULT_MAX_VISITS_PER_GUID, fetched.size());
+    assertEquals(fullDates[fullDates.length - 1], ((JSONObject)fetched.get(0)).get("date"));
+    assertEquals(fullDates[5], ((JSONObject)fetched.get(fetched.size() - 1)).get("date"));
+
+    // Unparseable visits are dropped.
+    assertEquals(0, extender.visitsForGUID(unparseable).size());
+
+    // Migrated visits are stored like any others.
+    extender.store(guid, visits(1320087601465700L));
+    assertEquals(3, extender.visitsForGUID(guid).size());
+
+    // The version 1 table is gone.
+    extender.close();
+    final SQLiteDatabase db = getApplicationContext().openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+    Cursor cur = null;
+    try {
+      assertEquals(2, db.getVersion());
+      cur = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'HistoryExtension'", null);
+      assertEquals(0, cur.getCount());
+    } finally {
+      if (cur != null) {
+        cur.close();
+      }
+      db.close();
+    }
+  }
+
+  public void testMaxVisitsPerGUID() throws NullCursorException {
+    String guid = Utils.generateGuid();
+    String other = Utils.generateGuid();
+    extender.setMaxVisitsPerGUID(2);
+    extender.store(other, visits(1000L));
+    extender.store(guid, visits(1000L, 2000L, 3000L));
+    extender.store(guid, visits(4000L));
+
+    JSONArray fetchedVisits = extender.visitsForGUID(guid);
+    assertEquals(2, fetchedVisits.size());
+    assertEquals(4000L, ((JSONObject)fetchedVisits.get(0)).get("date"));
+    assertEquals(3000L, ((JSONObject)fetchedVisits.get(1)).get("date"));
+    assertEquals(1, extender.visitsForGUID(other).size());
+  }
+
+  public void testVisitsForGUIDs() throws NullCursorException {
+    String guid1 = Utils.generateGuid();
+    String guid2 = Utils.generateGuid();
+    extender.store(guid1, visits(1000L, 2000L));
+    extender.store(guid2, visits(3000L));
+
+    ArrayList<String> guids = new ArrayList<String>();
+    guids.add(guid1);
+    guids.add(guid2);
+    guids.add(Utils.generateGuid());
+    Map<String, JSONArray> fetched = extender.visitsForGUIDs(guids);
+    assertEquals(2, fetched.size());
+    assertEquals(2, fetched.get(guid1).size());
+    assertEquals(1, fetched.get(guid2).size());
   }
 
   public void testDeleteHandlesBadGUIDs() {
     String evilGUID = "' or '1'='1";
-    extender.store(Utils.generateGuid(), null);
-    extender.store(Utils.generateGuid(), null);
-    extender.store(evilGUID, null);
+    extender.store(Utils.generateGuid(), visits(1000L));
+    extender.store(Utils.generateGuid(), visits(1000L));
+    extender.store(evilGUID, visits(1000L));
     extender.delete(evilGUID);
 
     Cursor cur = null;
@@ -97,9 +262,9 @@ public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
 
   public void testStoreFetchHandlesBadGUIDs() {
     String evilGUID = "' or '1'='1";
-    extender.store(Utils.generateGuid(), null);
-    extender.store(Utils.generateGuid(), null);
-    extender.store(evilGUID, null);
+    extender.store(Utils.generateGuid(), visits(1000L));
+    extender.store(Utils.generateGuid(), visits(1000L));
+    extender.store(evilGUID, visits(1000L));
 
     Cursor cur = null;
     try {
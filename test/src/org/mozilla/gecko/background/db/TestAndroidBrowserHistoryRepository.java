@@ -4,14 +4,22 @@
 package org.mozilla.gecko.background.db;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.mozilla.gecko.background.sync.helpers.DefaultStoreDelegate;
+import org.mozilla.gecko.background.sync.helpers.ExpectBeginDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFinishDelegate;
 import org.mozilla.gecko.background.sync.helpers.HistoryHelpers;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.metrics.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -29,8 +37,10 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositoryTestCase {
 
@@ -495,4 +505,367 @@ public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositor
     session.abort();
     assertTrue(db.getHistoryDataExtender().isClosed());
   }
+
+  /**
+   * A history session whose next store batch can be made to fail, which
+   * records the size of each fetch window, and which exposes its record
+   * string map.
+   */
+  protected class InstrumentedHistorySession extends AndroidBrowserHistoryRepositorySession {
+    public volatile boolean failNextBatch = false;
+    public final List<Integer> fetchWindowSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    public InstrumentedHistorySession(Repository repository, Context context) {
+      super(repository, context);
+      dbHelper = new AndroidBrowserHistoryDataAccessor(context) {
+        @Override
+        public StoreBatch newStoreBatch() {
+          return new HistoryStoreBatch() {
+            @Override
+            public void apply() throws RemoteException, OperationApplicationException {
+              if (failNextBatch) {
+                failNextBatch = false;
+                throw new OperationApplicationException("Failing batch for test.");
+              }
+              super.apply();
+            }
+          };
+        }
+      };
+    }
+
+    @Override
+    protected synchronized void trackGUID(String guid) {
+      // Ignored: this is a test!
+    }
+
+    @Override
+    protected List<Record> transformRecords(List<Record> records) throws NullCursorException {
+      fetchWindowSizes.add(records.size());
+      return super.transformRecords(records);
+    }
+
+    public String guidForRecordString(String recordString) throws Exception {
+      return getGuidForString(recordString);
+    }
+  }
+
+  /**
+   * Records store outcomes, and notifies when the store is done.
+   */
+  protected static class CollectingStoreDelegate extends DefaultStoreDelegate {
+    public final List<String> succeeded = Collections.synchronizedList(new ArrayList<String>());
+    public final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public void onRecordStoreSucceeded(String guid) {
+      succeeded.add(guid);
+    }
+
+    @Override
+    public void onRecordStoreFailed(Exception ex, String guid) {
+      failed.add(guid);
+    }
+
+    @Override
+    public void onStoreCompleted(long storeEnd) {
+      performNotify();
+    }
+  }
+
+  protected InstrumentedHistorySession createAndBeginInstrumentedSession() {
+    final InstrumentedHistorySession session = new InstrumentedHistorySession(new AndroidBrowserHistoryRepository(), getApplicationContext());
+    performWait(beginRunnable(session, new ExpectBeginDelegate()));
+    return session;
+  }
+
+  /**
+   * Hand all the records to the session at once, so they're stored in one batch.
+   */
+  protected static Runnable storeBatchRunnable(final RepositorySession session, final List<Record> records, final DefaultStoreDelegate delegate) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(delegate);
+        try {
+          session.storeBatch(records);
+          session.storeDone();
+        } catch (NoStoreDelegateException e) {
+          fail("NoStoreDelegateException should not occur.");
+        }
+      }
+    };
+  }
+
+  protected long lastModified(RepositorySession session, Record record) {
+    final ExpectFetchDelegate delegate = preparedExpectFetchDelegate(new Record[] { record });
+    performWait(fetchRunnable(session, new String[] { record.guid }, delegate));
+    return delegate.records.get(0).lastModified;
+  }
+
+  protected static HistoryRecord remoteVersion(HistoryRecord local, String guid, String histURI, String title, long lastModified) {
+    final HistoryRecord remote = HistoryHelpers.createHistory1();
+    remote.guid = guid;
+    remote.histURI = histURI;
+    remote.title = title;
+    remote.visits = local.visits;
+    remote.lastModified = lastModified;
+    return remote;
+  }
+
+  public void testStoreRecordsStoreTime() throws Exception {
+    final SyncMetrics metrics = new SyncMetrics();
+    final AndroidBrowserHistoryRepository repository = new AndroidBrowserHistoryRepository();
+    repository.setMetrics(metrics);
+    final InstrumentedHistorySession session = new InstrumentedHistorySession(repository, getApplicationContext());
+    performWait(beginRunnable(session, new ExpectBeginDelegate()));
+
+    final ArrayList<Record> records = new ArrayList<Record>();
+    records.add(HistoryHelpers.createHistory1());
+    records.add(HistoryHelpers.createHistory2());
+    final CollectingStoreDelegate delegate = new CollectingStoreDelegate();
+    performWait(storeBatchRunnable(session, records, delegate));
+
+    assertEquals(2, delegate.succeeded.size());
+    // Recorded when the batch is applied, not when it's handed over.
+    assertTrue(metrics.getHistogram("store.millis").getCount() > 0);
+    dispose(session);
+  }
+
+  public void testStoreBatchReplacesRecords() throws Exception {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final HistoryRecord[] locals = new HistoryRecord[] {
+        HistoryHelpers.createHistory1(),
+        HistoryHelpers.createHistory2(),
+        HistoryHelpers.createHistory3(),
+    };
+    performWait(storeManyRunnable(session, locals));
+
+    final ArrayList<Record> remotes = new ArrayList<Record>();
+    for (HistoryRecord local : locals) {
+      final long modified = lastModified(session, local) + 1000;
+      remotes.add(remoteVersion(local, local.guid, local.histURI, local.title + " remote", modified));
+    }
+    final CollectingStoreDelegate delegate = new CollectingStoreDelegate();
+    performWait(storeBatchRunnable(session, remotes, delegate));
+
+    assertEquals(0, delegate.failed.size());
+    assertEquals(3, delegate.succeeded.size());
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(remotes.toArray(new Record[remotes.size()]))));
+    for (HistoryRecord local : locals) {
+      assertEquals(local.guid, session.guidForRecordString(local.histURI));
+    }
+    dispose(session);
+  }
+
+  public void testStoreBatchFailureLeavesBookkeeping() throws Exception {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final HistoryRecord local = HistoryHelpers.createHistory1();
+    performWait(storeRunnable(session, local));
+
+    final String movedURI = local.histURI + "/moved";
+    final HistoryRecord remote = remoteVersion(local, local.guid, movedURI, local.title, lastModified(session, local) + 1000);
+    final ArrayList<Record> remotes = new ArrayList<Record>();
+    remotes.add(remote);
+
+    session.failNextBatch = true;
+    final CollectingStoreDelegate delegate = new CollectingStoreDelegate();
+    performWait(storeBatchRunnable(session, remotes, delegate));
+
+    assertEquals(0, delegate.succeeded.size());
+    assertEquals(1, delegate.failed.size());
+    assertEquals(local.guid, delegate.failed.get(0));
+
+    // Nothing was written, so the record string map must not claim otherwise.
+    assertNull(session.guidForRecordString(movedURI));
+    assertEquals(local.guid, session.guidForRecordString(local.histURI));
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(new Record[] { local })));
+    dispose(session);
+  }
+
+  public void testStoreBatchMatchesEarlierRecordString() throws Exception {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final HistoryRecord local = HistoryHelpers.createHistory1();
+    performWait(storeRunnable(session, local));
+
+    // The first record moves the local record to a new URI; the second, with
+    // a new GUID, has that URI, so it must match the first rather than being
+    // inserted as a duplicate.
+    final String movedURI = local.histURI + "/moved";
+    final long modified = lastModified(session, local);
+    final ArrayList<Record> remotes = new ArrayList<Record>();
+    remotes.add(remoteVersion(local, local.guid, movedURI, local.title, modified + 1000));
+    remotes.add(remoteVersion(local, Utils.generateGuid(), movedURI, local.title, modified + 2000));
+
+    final CollectingStoreDelegate delegate = new CollectingStoreDelegate();
+    performWait(storeBatchRunnable(session, remotes, delegate));
+    assertEquals(0, delegate.failed.size());
+
+    final Cursor cur = getAllHistory();
+    try {
+      assertEquals(1, cur.getCount());
+      assertTrue(cur.moveToFirst());
+      assertEquals(movedURI, RepoUtils.getStringFromCursor(cur, BrowserContract.History.URL));
+    } finally {
+      cur.close();
+    }
+    dispose(session);
+  }
+
+  public void testStoreBatchSameGUIDTwice() throws Exception {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final HistoryRecord local = HistoryHelpers.createHistory1();
+    performWait(storeRunnable(session, local));
+
+    final long modified = lastModified(session, local);
+    final HistoryRecord second = remoteVersion(local, local.guid, local.histURI, "Second", modified + 10000);
+    final ArrayList<Record> remotes = new ArrayList<Record>();
+    remotes.add(remoteVersion(local, local.guid, local.histURI, "First", modified + 5000));
+    remotes.add(second);
+
+    final CollectingStoreDelegate delegate = new CollectingStoreDelegate();
+    performWait(storeBatchRunnable(session, remotes, delegate));
+
+    assertEquals(0, delegate.failed.size());
+    assertEquals(2, delegate.succeeded.size());
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(new Record[] { second })));
+    dispose(session);
+  }
+
+  public void testStaleRecordStringFallsBackToLookup() throws Exception {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final HistoryRecord first = HistoryHelpers.createHistory1();
+    final HistoryRecord second = HistoryHelpers.createHistory2();
+    performWait(storeManyRunnable(session, new Record[] { first, second }));
+    assertEquals(first.guid, session.guidForRecordString(first.histURI));
+    final long modified = lastModified(session, second);
+
+    // Behind the session's back, move the first record's URL to the second
+    // record, so that the record string map is stale.
+    final AndroidBrowserRepositoryDataAccessor db = getDataAccessor();
+    try {
+      ContentValues cv = new ContentValues();
+      cv.put(BrowserContract.History.URL, first.histURI + "/moved");
+      db.updateByGuid(first.guid, cv);
+      cv = new ContentValues();
+      cv.put(BrowserContract.History.URL, first.histURI);
+      db.updateByGuid(second.guid, cv);
+    } finally {
+      closeDataAccessor(db);
+    }
+
+    // An incoming record with that URL matches the second record, rather
+    // than being inserted as a duplicate.
+    final HistoryRecord incoming = remoteVersion(second, Utils.generateGuid(), first.histURI, first.title, modified + 1000);
+    final ArrayList<Record> remotes = new ArrayList<Record>();
+    remotes.add(incoming);
+    final CollectingStoreDelegate delegate = new CollectingStoreDelegate();
+    performWait(storeBatchRunnable(session, remotes, delegate));
+    assertEquals(0, delegate.failed.size());
+
+    final Cursor cur = getAllHistory();
+    try {
+      assertEquals(2, cur.getCount());
+    } finally {
+      cur.close();
+    }
+    assertFalse(first.guid.equals(session.guidForRecordString(first.histURI)));
+    dispose(session);
+  }
+
+  /**
+   * Insert <code>count</code> history records, each with two visits.
+   */
+  @SuppressWarnings("unchecked")
+  protected static HistoryRecord[] insertHistory(AndroidBrowserHistoryDataAccessor db, int count) throws NullCursorException {
+    final long now = System.currentTimeMillis();
+    final ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>(count);
+    for (int i = 0; i < count; ++i) {
+      final HistoryRecord record = new HistoryRecord(Utils.generateGuid(), "history", now, false);
+      record.histURI = "http://example.com/window/" + i;
+      record.title = "Window " + i;
+      record.visits = new JSONArray();
+      for (int j = 0; j < 2; ++j) {
+        final JSONObject visit = new JSONObject();
+        visit.put("date", (now - 10 * i - j) * 1000);    // Microseconds.
+        visit.put("type", 1L);
+        record.visits.add(visit);
+      }
+      records.add(record);
+    }
+    assertEquals(count, db.bulkInsert(records));
+    return records.toArray(new HistoryRecord[count]);
+  }
+
+  protected void fetchInWindows(int count, int[] expectedWindows) throws NullCursorException {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final HistoryRecord[] records = insertHistory((AndroidBrowserHistoryDataAccessor) session.getDBHelper(), count);
+
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(records)));
+
+    assertEquals(expectedWindows.length, session.fetchWindowSizes.size());
+    for (int i = 0; i < expectedWindows.length; ++i) {
+      assertEquals(expectedWindows[i], session.fetchWindowSizes.get(i).intValue());
+    }
+    dispose(session);
+  }
+
+  public void testFetchExactlyOneWindow() throws NullCursorException {
+    final int size = AndroidBrowserHistoryRepositorySession.FETCH_WINDOW_SIZE;
+    fetchInWindows(size, new int[] { size });
+  }
+
+  public void testFetchSpanningWindows() throws NullCursorException {
+    final int size = AndroidBrowserHistoryRepositorySession.FETCH_WINDOW_SIZE;
+    fetchInWindows(2 * size + 1, new int[] { size, size, 1 });
+  }
+
+  public void testFetchWindowWithoutStoredVisits() throws NullCursorException {
+    final InstrumentedHistorySession session = createAndBeginInstrumentedSession();
+    final AndroidBrowserHistoryDataAccessor db = (AndroidBrowserHistoryDataAccessor) session.getDBHelper();
+    final HistoryRecord[] records = insertHistory(db, 10);
+
+    // Drop the stored visits for every other record: those are filled in
+    // from the visit count and date in the history table.
+    final HashSet<String> withoutVisits = new HashSet<String>();
+    for (int i = 0; i < records.length; i += 2) {
+      db.getHistoryDataExtender().delete(records[i].guid);
+      withoutVisits.add(records[i].guid);
+    }
+
+    final ExpectFetchDelegate delegate = new ExpectFetchDelegate(new Record[0]) {
+      @Override
+      public void onFetchCompleted(long fetchEnd) {
+        performNotify();
+      }
+    };
+    performWait(fetchAllRunnable(session, delegate));
+    assertEquals(records.length, delegate.records.size());
+    assertEquals(1, session.fetchWindowSizes.size());
+
+    for (Record fetched : delegate.records) {
+      final HistoryRecord history = (HistoryRecord) fetched;
+      HistoryRecord expected = null;
+      for (HistoryRecord record : records) {
+        if (record.guid.equals(history.guid)) {
+          expected = record;
+        }
+      }
+      assertNotNull(expected);
+      assertEquals(2, history.visits.size());
+      if (withoutVisits.contains(history.guid)) {
+        // One visit at the last visited date, and one just before it.
+        final long latest = ((Long) ((JSONObject) expected.visits.get(0)).get("date")).longValue();
+        final HashSet<Long> dates = new HashSet<Long>();
+        for (Object visit : history.visits) {
+          dates.add((Long) ((JSONObject) visit).get("date"));
+        }
+        assertTrue(dates.contains(latest));
+        assertTrue(dates.contains(latest - 1000));
+      } else {
+        assertTrue(expected.equalPayloads(history));
+      }
+    }
+    dispose(session);
+  }
 }
@@ -3,6 +3,7 @@
 
 package org.mozilla.gecko.background.sync.helpers;
 
+import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
@@ -19,6 +20,13 @@ public class DefaultStoreDelegate extends DefaultDelegate implements RepositoryS
     performNotify("DefaultStoreDelegate used", null);
   }
 
+  @Override
+  public void onRecordsStoreSucceeded(Collection<String> guids) {
+    for (String guid : guids) {
+      onRecordStoreSucceeded(guid);
+    }
+  }
+
   @Override
   public void onStoreCompleted(long storeEnd) {
     performNotify("DefaultStoreDelegate used", null);
@@ -39,6 +47,16 @@ public class DefaultStoreDelegate extends DefaultDelegate implements RepositoryS
         });
       }
 
+      @Override
+      public void onRecordsStoreSucceeded(final Collection<String> guids) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            self.onRecordsStoreSucceeded(guids);
+          }
+        });
+      }
+
       @Override
       public void onRecordStoreFailed(final Exception ex, final String guid) {
         executor.execute(new Runnable() {
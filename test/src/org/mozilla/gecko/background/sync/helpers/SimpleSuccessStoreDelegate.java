@@ -3,6 +3,7 @@
 
 package org.mozilla.gecko.background.sync.helpers;
 
+import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
@@ -13,6 +14,13 @@ public abstract class SimpleSuccessStoreDelegate extends DefaultDelegate impleme
     performNotify("Store failed", ex);
   }
 
+  @Override
+  public void onRecordsStoreSucceeded(Collection<String> guids) {
+    for (String guid : guids) {
+      onRecordStoreSucceeded(guid);
+    }
+  }
+
   @Override
   public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
     return this;